@@ -157,6 +157,10 @@ public class SnpSift implements VcfAnnotator, CommandLine {
 		case "annotate":
 			return new SnpSiftCmdAnnotate();
 
+		case "annserver":
+		case "annotateserver":
+			return new SnpSiftCmdAnnotateServer();
+
 		case "ca":
 		case "casecontrol":
 			return new SnpSiftCmdCaseControl();
@@ -708,6 +712,7 @@ public class SnpSift implements VcfAnnotator, CommandLine {
 				+ "\nCommand is one of:" //
 				+ "\n\talleleMat     : Create an allele matrix output." //
 				+ "\n\tannotate      : Annotate 'ID' from a database (e.g. dbSnp). Assumes entries are sorted." //
+				+ "\n\tannServer     : Annotation server: Keep databases open and annotate entries sent by 'annotate -server' clients." //
 				+ "\n\tcaseControl   : Compare how many variants are in 'case' and in 'control' groups; calculate p-values." //
 				+ "\n\tccs           : Case control summary. Case and control summaries by region, allele frequency and variant's functional effect." //
 				+ "\n\tconcordance   : Concordance metrics between two VCF files." //
@@ -748,6 +753,7 @@ public class SnpSift implements VcfAnnotator, CommandLine {
 	protected void usageGenericAndDb() {
 		System.err.println("\nOptions common to all SnpSift commands:\n" //
 				+ (needsConfig ? "\t-c , -config <file>  : Specify config file\n" : "") //
+				+ "\t-cpus <num>          : Number of threads to use (only for commands that support multi-threading). Default: " + numWorkers + ".\n" //
 				+ "\t-d                   : Debug.\n" //
 				+ (needsDb ? "\t-db <file>           : Database file name (for commands that require databases).\n" : "") //
 				+ "\t-download            : Download database, if not available locally. Default: " + download + ".\n" //
@@ -1,8 +1,15 @@
 package org.snpsift;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.snpeff.fileIterator.VcfFileIterator;
 import org.snpeff.util.Gpr;
@@ -12,11 +19,22 @@ import org.snpeff.vcf.VcfHeader;
 import org.snpeff.vcf.VcfHeaderEntry;
 import org.snpeff.vcf.VcfHeaderInfo;
 import org.snpeff.vcf.VcfInfoType;
+import org.snpsift.annotate.AnnotateClient;
+import org.snpsift.annotate.AnnotateServer;
 import org.snpsift.annotate.AnnotateVcfDb;
 import org.snpsift.annotate.AnnotateVcfDbMem;
+import org.snpsift.annotate.AnnotateVcfDbMemCompact;
+import org.snpsift.annotate.AnnotateVcfDbSdb;
 import org.snpsift.annotate.AnnotateVcfDbSorted;
+import org.snpsift.annotate.AnnotateVcfDbSortedJoin;
 import org.snpsift.annotate.AnnotateVcfDbTabix;
+import org.snpsift.annotate.DbVcfSortedJoin;
+import org.snpsift.annotate.QueryResult;
 import org.snpsift.annotate.VcfIndexTree;
+import org.snpsift.annotate.VcfSdb;
+import org.snpsift.annotate.VcfSdbBuilder;
+import org.snpsift.util.BgzfReadAhead;
+import org.snpsift.util.VcfPipeline;
 
 /**
  * Annotate a VCF file with ID from another VCF file (database)
@@ -28,25 +46,36 @@ import org.snpsift.annotate.VcfIndexTree;
 public class SnpSiftCmdAnnotate extends SnpSift {
 
 	enum AnnotationMethod {
-		SORTED_VCF, MEMORY, TABIX,
+		SORTED_VCF, SORTED_JOIN, MEMORY, MEMORY_COMPACT, TABIX, SDB,
 	}
 
 	public static final int SHOW = 100;
 
 	protected boolean annotateEmpty; // Annotate empty fields as well?
+	protected boolean buildDb; // Create a binary database ('.sdb' file) instead of annotating
+	protected boolean exactOnly; // Use an exact match index instead of interval queries ('-sorted')
 	protected boolean useId; // Annotate ID fields
 	protected boolean useInfoField; // Use all info fields
 	protected boolean useRefAlt;
 	protected AnnotationMethod method;
+	protected int cacheSize; // Maximum number of VCF entries in index cache ('-sorted')
+	protected int queryBatchSize; // Number of VCF entries per batched database query (1 means no batches)
+	protected int readAheadThreads; // Number of threads used to decompress bgzip (BGZF) database blocks ahead (zero means no 'read ahead', only used with '-tabix')
+	protected int readAheadBlocks = BgzfReadAhead.DEFAULT_BLOCKS_IN_FLIGHT; // Number of BGZF blocks decompressed ahead
 	protected int countBadRef = 0;
 	protected int maxBlockSize;
-	int countAnnotated = 0, count = 0;
+	protected int serverPort; // Use an annotation server listening on this port (zero means no server)
+	protected int posPrev = -1;
+	AtomicInteger countAnnotated = new AtomicInteger(), count = new AtomicInteger();
 	protected String chrPrev = "";
 	protected String prependInfoFieldName;
 	protected String existsInfoField;
+	protected String serverTokenFile; // Annotation server's token file (null means default, see AnnotateServer.defaultTokenFile)
 	protected ArrayList<String> infoFields; // Use only info fields
 	protected VcfFileIterator vcfFile;
 	protected AnnotateVcfDb annotateDb;
+	protected AnnotateClient annotateClient; // Client used when annotating using a server
+	protected List<SnpSiftCmdAnnotate> andDatabases; // Other databases used in the same pass ('-and' command line option), each one has its own options
 
 	public SnpSiftCmdAnnotate() {
 		super();
@@ -63,7 +92,14 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 	 */
 	ArrayList<VcfEntry> annotate(boolean createList) {
 		ArrayList<VcfEntry> list = (createList ? new ArrayList<VcfEntry>() : null);
-		if (verbose) Timer.showStdErr("Annotating entries from: '" + vcfInputFile + "'");
+
+		// A sorted join reads the database once, together with the input: It cannot be split across threads
+		if (numWorkers > 1 && isSortedJoin()) {
+			System.err.println("WARNING: Option '-sortedJoin' uses a single thread, ignoring '-cpus " + numWorkers + "'");
+			numWorkers = 1;
+		}
+
+		if (verbose) Timer.showStdErr("Annotating entries from: '" + vcfInputFile + "'" + (numWorkers > 1 ? ", using " + numWorkers + " threads" : ""));
 
 		vcfFile = openVcfInputFile(); // Open input VCF
 		try {
@@ -72,42 +108,25 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 			throw new RuntimeException(e);
 		}
 
-		int pos = -1;
-		String chr = "";
-		for (VcfEntry vcfEntry : vcfFile) {
-			try {
-				processVcfHeader(vcfFile);
-
-				// Check if file is sorted
-				if (vcfEntry.getChromosomeName().equals(chr) && vcfEntry.getStart() < pos) {
-					System.err.println("WARNING: VCF input file is not sorted!" //
-							+ "\n\tPrevious entry " + chr + ":" + pos//
-							+ "\n\tCurrent entry  " + vcfEntry.getChromosomeName() + ":" + (vcfEntry.getStart() + 1)//
-					);
-				}
-
-				// Annotate variants
-				annotate(vcfEntry);
-
-				// Show
-				if (!suppressOutput) print(vcfEntry);
-
-				if (list != null) list.add(vcfEntry);
-
-				// Update chr:pos
-				chr = vcfEntry.getChromosomeName();
-				pos = vcfEntry.getStart();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+		// Read entries, annotate them (using 'numWorkers' threads) and show them in the same order
+		VcfPipeline<VcfEntry> pipeline = new VcfPipeline<>(numWorkers, this::annotateWorker, vcfEntry -> {
+			if (!suppressOutput) print(vcfEntry);
+			if (list != null) list.add(vcfEntry);
+		});
+		pipeline.setReader(this::checkEntry);
+		if (queryBatchSize > 1) {
+			pipeline.setBatchSize(queryBatchSize);
+			pipeline.setSerialBatches(true);
 		}
+		pipeline.run(vcfFile);
 
 		// Finish up
 		annotateFinish(vcfFile);
+		if (annotateClient != null) annotateClient.close();
 
 		// Show some statistics
 		if (verbose) {
-			double perc = (100.0 * countAnnotated) / count;
+			double perc = (100.0 * countAnnotated.get()) / count.get();
 			Timer.showStdErr("Done." //
 					+ "\n\tTotal annotated entries : " + countAnnotated //
 					+ "\n\tTotal entries           : " + count //
@@ -121,23 +140,105 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 
 	@Override
 	public boolean annotate(VcfEntry vcfEntry) {
+		List<AnnotateVcfDb> annotateDbs = new ArrayList<>();
+		for (SnpSiftCmdAnnotate cmd : annotateCmds())
+			annotateDbs.add(cmd.annotateDb);
+
+		return annotate(vcfEntry, annotateDbs, null);
+	}
+
+	/**
+	 * Annotate a VCF entry using all databases in 'annotateDbs'
+	 * @param queryResults : Database query results for this entry, one list per database (e.g. from a batched query). If null, databases are queried
+	 * @return True if any database annotated the entry
+	 */
+	boolean annotate(VcfEntry vcfEntry, List<AnnotateVcfDb> annotateDbs, List<List<QueryResult>> queryResults) {
 		boolean annotated = false;
 
 		if (vcfEntry.isVariant()) {
 			try {
-				annotated = annotateDb.annotate(vcfEntry);
+				for (int i = 0; i < annotateDbs.size(); i++) {
+					AnnotateVcfDb annotateDb = annotateDbs.get(i);
+					if (queryResults != null) annotated |= annotateDb.annotate(vcfEntry, queryResults.get(i));
+					else annotated |= annotateDb.annotate(vcfEntry);
+				}
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
 		}
 
-		if (annotated) countAnnotated++;
-		count++;
-		if (verbose) Gpr.showMark(count, SHOW);
-
+		count(annotated);
 		return annotated;
 	}
 
+	/**
+	 * Commands holding each database: This one and one for each '-and' database
+	 */
+	List<SnpSiftCmdAnnotate> annotateCmds() {
+		List<SnpSiftCmdAnnotate> cmds = new ArrayList<>(1 + andDatabases.size());
+		cmds.add(this);
+		cmds.addAll(andDatabases);
+		return cmds;
+	}
+
+	/**
+	 * Worker used to annotate entries using an annotation server
+	 * Note: When using multiple threads, each worker opens its own connection (AnnotateClient objects are not thread safe)
+	 */
+	VcfPipeline.Worker<VcfEntry> annotateClientWorker() {
+		AnnotateClient client = annotateClient;
+		if (numWorkers > 1) {
+			client = createAnnotateClient();
+			client.open();
+		}
+
+		AnnotateClient annotateClientWorker = client;
+		return new VcfPipeline.Worker<VcfEntry>() {
+
+			@Override
+			public void close() {
+				if (annotateClientWorker != annotateClient) annotateClientWorker.close();
+			}
+
+			@Override
+			public VcfEntry process(VcfEntry vcfEntry) {
+				processBatch(Collections.singletonList(vcfEntry));
+				return vcfEntry;
+			}
+
+			/**
+			 * Send all entries having variants to the server, then update counters
+			 */
+			@Override
+			public List<VcfEntry> processBatch(List<VcfEntry> batch) {
+				List<VcfEntry> vcfEntries = new ArrayList<>(batch.size());
+				for (VcfEntry vcfEntry : batch)
+					if (vcfEntry.isVariant()) vcfEntries.add(vcfEntry);
+
+				boolean annotated[] = annotateClientWorker.annotate(vcfEntries);
+				Set<VcfEntry> annotatedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+				for (int i = 0; i < vcfEntries.size(); i++)
+					if (annotated[i]) annotatedEntries.add(vcfEntries.get(i));
+
+				for (VcfEntry vcfEntry : batch)
+					count(annotatedEntries.contains(vcfEntry));
+
+				return batch;
+			}
+		};
+	}
+
+	/**
+	 * Close databases
+	 */
+	@Override
+	public boolean annotateFinish(VcfFileIterator vcfFile) {
+		super.annotateFinish(vcfFile);
+		for (SnpSiftCmdAnnotate cmd : annotateCmds())
+			if (cmd.annotateDb != null) cmd.annotateDb.close();
+		return true;
+	}
+
 	/**
 	 * Initialize database for annotation process
 	 */
@@ -148,37 +249,210 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		// Find or download database
 		dbFileName = databaseFind();
 
-		// Guess annotation method if none is provided
-		method = guessAnnotationMethod();
+		// Use an annotation server? The server opens the database
+		if (serverPort > 0) {
+			if (verbose) Timer.showStdErr("Annotating:" //
+					+ (vcfInputFile != null ? "\tInput file    : '" + vcfInputFile + "'" : "") //
+					+ "\tDatabase file : '" + dbFileName + "'" //
+					+ "\tServer port : " + serverPort //
+			);
 
-		dbFileName = fixDbName();
-		if (verbose) Timer.showStdErr("Annotating:" //
-				+ (vcfInputFile != null ? "\tInput file    : '" + vcfInputFile + "'" : "") //
-				+ "\tDatabase file : '" + dbFileName + "'" //
-		);
+			annotateClient = createAnnotateClient();
+			annotateClient.open();
+			return false;
+		}
 
-		if (verbose) Timer.showStdErr("Annotating method: " + method);
+		openDatabase();
+
+		// Open other databases ('-and' command line option)
+		for (SnpSiftCmdAnnotate cmdAnd : andDatabases) {
+			cmdAnd.config = config;
+			cmdAnd.vcfFile = vcfFile;
+			cmdAnd.dbFileName = cmdAnd.databaseFind();
+			cmdAnd.openDatabase();
+		}
+
+		return false;
+	}
+
+	/**
+	 * Worker used to annotate entries
+	 * Note: When using multiple threads, each worker uses a copy of each database (AnnotateVcfDb objects are
+	 * not thread safe). Read-only databases are shared, stateful readers are opened by each worker (see AnnotateVcfDb.workerCopy)
+	 */
+	VcfPipeline.Worker<VcfEntry> annotateWorker() {
+		if (annotateClient != null) return annotateClientWorker();
+
+		// One database per command (i.e. this command and one for each '-and' database)
+		List<SnpSiftCmdAnnotate> cmds = annotateCmds();
+		List<AnnotateVcfDb> annotateDbsWorker = new ArrayList<>(cmds.size());
+		for (SnpSiftCmdAnnotate cmd : cmds)
+			annotateDbsWorker.add(numWorkers > 1 ? cmd.annotateDb.workerCopy() : cmd.annotateDb);
+
+		return new VcfPipeline.Worker<VcfEntry>() {
+
+			@Override
+			public void close() {
+				for (int i = 0; i < cmds.size(); i++)
+					if (annotateDbsWorker.get(i) != cmds.get(i).annotateDb) annotateDbsWorker.get(i).close();
+			}
+
+			@Override
+			public VcfEntry process(VcfEntry vcfEntry) {
+				return process(vcfEntry, null);
+			}
+
+			VcfEntry process(VcfEntry vcfEntry, List<List<QueryResult>> queryResults) {
+				try {
+					annotate(vcfEntry, annotateDbsWorker, queryResults);
+					return vcfEntry;
+				} catch (DbVcfSortedJoin.NotSortedException e) {
+					throw e; // We cannot continue annotating
+				} catch (Exception e) {
+					e.printStackTrace();
+					return null;
+				}
+			}
+
+			/**
+			 * Query each database once for all variants in the batch, then annotate each entry
+			 */
+			@Override
+			public List<VcfEntry> processBatch(List<VcfEntry> batch) {
+				if (queryBatchSize <= 1) return VcfPipeline.Worker.super.processBatch(batch);
+
+				// Batched query (only entries having variants are annotated)
+				List<VcfEntry> vcfEntries = new ArrayList<>(batch.size());
+				Map<VcfEntry, Integer> idxByEntry = new IdentityHashMap<>();
+				for (VcfEntry vcfEntry : batch)
+					if (vcfEntry.isVariant()) {
+						idxByEntry.put(vcfEntry, vcfEntries.size());
+						vcfEntries.add(vcfEntry);
+					}
+
+				// Note: A failed batched query is an error (we do not fall back to querying entries one by one)
+				List<List<List<QueryResult>>> queryResultsByDb = new ArrayList<>(annotateDbsWorker.size());
+				for (AnnotateVcfDb annotateDbWorker : annotateDbsWorker)
+					queryResultsByDb.add(annotateDbWorker.queryBatch(vcfEntries));
+
+				// Annotate
+				List<VcfEntry> results = new ArrayList<>(batch.size());
+				for (VcfEntry vcfEntry : batch) {
+					List<List<QueryResult>> queryResults = null;
+					Integer idx = idxByEntry.get(vcfEntry);
+					if (idx != null) {
+						queryResults = new ArrayList<>(queryResultsByDb.size());
+						for (List<List<QueryResult>> queryResultsDb : queryResultsByDb)
+							queryResults.add(queryResultsDb.get(idx));
+					}
+
+					VcfEntry res = process(vcfEntry, queryResults);
+					if (res != null) results.add(res);
+				}
+				return results;
+			}
+		};
+	}
+
+	/**
+	 * Create a binary database ('.sdb' file) from a sorted VCF file
+	 */
+	void buildDb() {
+		dbFileName = databaseFind();
+		if (verbose) Timer.showStdErr("Building binary database from file '" + dbFileName + "'");
+
+		VcfSdbBuilder vcfSdbBuilder = new VcfSdbBuilder(dbFileName);
+		vcfSdbBuilder.setVerbose(verbose);
+		vcfSdbBuilder.setDebug(debug);
+		vcfSdbBuilder.setInfoFields(useInfoField ? infoFields : new ArrayList<String>()); // Only store selected INFO fields
+		vcfSdbBuilder.build();
+	}
+
+	/**
+	 * Process VCF header and check that input entries are sorted
+	 */
+	void checkEntry(VcfEntry vcfEntry) {
+		processVcfHeader(vcfFile);
+
+		// Check if file is sorted
+		if (vcfEntry.getChromosomeName().equals(chrPrev) && vcfEntry.getStart() < posPrev) {
+			if (isSortedJoin()) throw new DbVcfSortedJoin.NotSortedException("VCF input file is not sorted (required by '-sortedJoin')." //
+					+ "\n\tPrevious entry " + chrPrev + ":" + posPrev //
+					+ "\n\tCurrent entry  " + vcfEntry.getChromosomeName() + ":" + (vcfEntry.getStart() + 1) //
+			);
+
+			System.err.println("WARNING: VCF input file is not sorted!" //
+					+ "\n\tPrevious entry " + chrPrev + ":" + posPrev//
+					+ "\n\tCurrent entry  " + vcfEntry.getChromosomeName() + ":" + (vcfEntry.getStart() + 1)//
+			);
+		}
+
+		// Update chr:pos
+		chrPrev = vcfEntry.getChromosomeName();
+		posPrev = vcfEntry.getStart();
+	}
+
+	/**
+	 * Update counters
+	 */
+	void count(boolean annotated) {
+		if (annotated) countAnnotated.incrementAndGet();
+		int countEntries = count.incrementAndGet();
+		if (verbose) Gpr.showMark(countEntries, SHOW);
+	}
+
+	/**
+	 * Create a client for the annotation server (database is not opened)
+	 */
+	AnnotateClient createAnnotateClient() {
+		String tokenFile = serverTokenFile != null ? serverTokenFile : AnnotateServer.defaultTokenFile(serverPort);
+		AnnotateClient annotateClient = new AnnotateClient(serverPort, AnnotateServer.readToken(tokenFile), serverArgs());
+		annotateClient.setDebug(debug);
+		return annotateClient;
+	}
+
+	/**
+	 * Create an 'AnnotateVcfDb' object according to annotation method (database is not opened)
+	 */
+	AnnotateVcfDb createAnnotateDb() {
+		AnnotateVcfDb annotateDb;
 
-		// Create annotateDb object
 		switch (method) {
 
 		case MEMORY:
 			annotateDb = new AnnotateVcfDbMem(dbFileName);
 			break;
 
+		case MEMORY_COMPACT:
+			annotateDb = new AnnotateVcfDbMemCompact(dbFileName);
+			break;
+
 		case SORTED_VCF:
-			annotateDb = new AnnotateVcfDbSorted(dbFileName, maxBlockSize);
+			AnnotateVcfDbSorted annotateDbSorted = new AnnotateVcfDbSorted(dbFileName, maxBlockSize, numWorkers);
+			annotateDbSorted.setCacheSize(cacheSize);
+			annotateDbSorted.setExactOnly(exactOnly && useRefAlt); // Exact match index uses REF and ALT
+			annotateDb = annotateDbSorted;
+			break;
+
+		case SORTED_JOIN:
+			annotateDb = new AnnotateVcfDbSortedJoin(dbFileName);
+			break;
+
+		case SDB:
+			annotateDb = new AnnotateVcfDbSdb(dbFileName);
 			break;
 
 		case TABIX:
-			annotateDb = new AnnotateVcfDbTabix(dbFileName);
+			AnnotateVcfDbTabix annotateDbTabix = new AnnotateVcfDbTabix(dbFileName);
+			annotateDbTabix.setReadAhead(readAheadThreads, readAheadBlocks);
+			annotateDb = annotateDbTabix;
 			break;
 
 		default:
 			throw new RuntimeException("Unknwon method '" + method + "'");
 		}
 
-		// Set parameters & open database file
+		// Set parameters
 		annotateDb.setAnnotateEmpty(annotateEmpty);
 		annotateDb.setUseId(useId);
 		annotateDb.setUseRefAlt(useRefAlt);
@@ -186,10 +460,8 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		annotateDb.setExistsInfoField(existsInfoField);
 		annotateDb.setPrependInfoFieldName(prependInfoFieldName);
 		annotateDb.setDebug(debug);
-		annotateDb.setVerbose(verbose);
-		annotateDb.open();// Open database
 
-		return false;
+		return annotateDb;
 	}
 
 	String fixDbName() {
@@ -208,6 +480,8 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 	AnnotationMethod guessAnnotationMethod() {
 		if (method != null) return method;
 
+		if (dbFileName.endsWith("." + VcfSdb.SDB_EXT)) return AnnotationMethod.SDB;
+
 		if (dbFileName.endsWith(".gz")) {
 			if (Gpr.exists(dbFileName + ".tbi") || Gpr.exists(dbFileName + ".gz.tbi")) return AnnotationMethod.TABIX;
 			throw new RuntimeException("Index not found for file '" + dbFileName + "'.\n\tERROR: Compressed VCF files require a tabix index.");
@@ -227,12 +501,28 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 	@Override
 	protected List<VcfHeaderEntry> headers() {
 		List<VcfHeaderEntry> headerInfos = super.headers();
+		headerInfos.addAll(headersDb());
+
+		// Headers from other databases ('-and' command line option)
+		for (SnpSiftCmdAnnotate cmdAnd : andDatabases)
+			headerInfos.addAll(cmdAnd.headersDb());
+
+		return headerInfos;
+	}
+
+	/**
+	 * Headers to add for this database
+	 */
+	List<VcfHeaderEntry> headersDb() {
+		List<VcfHeaderEntry> headerInfos = new ArrayList<>();
 
 		// Read database header and add INFO fields to the output vcf header
 		if (useInfoField) {
-			// Read VCF header
-			VcfFileIterator vcfDb = new VcfFileIterator(dbFileName);
-			VcfHeader vcfDbHeader = vcfDb.readHeader();
+			// Read VCF header (binary databases have no VCF file, use the header stored in the database; servers send the database header)
+			VcfHeader vcfDbHeader;
+			if (annotateClient != null) vcfDbHeader = annotateClient.getVcfHeader();
+			else if (method == AnnotationMethod.SDB) vcfDbHeader = annotateDb.getVcfHeader();
+			else vcfDbHeader = new VcfFileIterator(dbFileName).readHeader();
 
 			// Add all corresponding INFO headers
 			for (VcfHeaderInfo vcfHeaderDb : vcfDbHeader.getVcfHeaderInfo()) {
@@ -272,12 +562,24 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		useId = true; // Annotate ID fields
 		useRefAlt = true; // Use REF and ALT fields when comparing
 		method = null; // Guess annotation method
+		andDatabases = new ArrayList<>();
 
 		needsConfig = true;
 		needsDb = true;
 		dbTabix = true;
 
 		maxBlockSize = VcfIndexTree.DEFAULT_MAX_BLOCK_SIZE;
+		cacheSize = VcfIndexTree.DEFAULT_CACHE_SIZE;
+		queryBatchSize = 1;
+	}
+
+	/**
+	 * Are we annotating using a '-sortedJoin' database?
+	 */
+	boolean isSortedJoin() {
+		for (SnpSiftCmdAnnotate cmd : annotateCmds())
+			if (cmd.method == AnnotationMethod.SORTED_JOIN) return true;
+		return false;
 	}
 
 	/**
@@ -294,6 +596,28 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		return false;
 	}
 
+	/**
+	 * Create and open the annotation database
+	 */
+	AnnotateVcfDb openDatabase() {
+		// Guess annotation method if none is provided
+		method = guessAnnotationMethod();
+
+		dbFileName = fixDbName();
+		if (verbose) Timer.showStdErr("Annotating:" //
+				+ (vcfInputFile != null ? "\tInput file    : '" + vcfInputFile + "'" : "") //
+				+ "\tDatabase file : '" + dbFileName + "'" //
+		);
+
+		if (verbose) Timer.showStdErr("Annotating method: " + method);
+
+		annotateDb = createAnnotateDb();
+		annotateDb.setVerbose(verbose);
+		annotateDb.open();// Open database
+
+		return annotateDb;
+	}
+
 	/**
 	 * Parse command line arguments
 	 */
@@ -301,6 +625,15 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 	public void parseArgs(String[] args) {
 		if (args.length == 0) usage(null);
 
+		// Options after '-and' are for another database
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-and")) {
+				parseArgsAnd(Arrays.copyOfRange(args, i + 1, args.length));
+				args = Arrays.copyOf(args, i);
+				break;
+			}
+		}
+
 		for (int i = 0; i < args.length; i++) {
 			String arg = args[i];
 
@@ -311,6 +644,27 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 					annotateEmpty = true;
 					break;
 
+				case "-bgzfblocks":
+					if (args.length > (i + 1)) readAheadBlocks = Gpr.parseIntSafe(args[++i]);
+					else usage("Missing parameter -bgzfBlocks");
+					if (readAheadBlocks <= 0) usage("Error: Number of BGZF blocks must be positive");
+					break;
+
+				case "-bgzfthreads":
+					if (args.length > (i + 1)) readAheadThreads = Gpr.parseIntSafe(args[++i]);
+					else usage("Missing parameter -bgzfThreads");
+					if (readAheadThreads < 0) usage("Error: Number of BGZF threads cannot be negative");
+					break;
+
+				case "-builddb":
+					buildDb = true;
+					break;
+
+				case "-cachesize":
+					if (args.length > (i + 1)) cacheSize = Gpr.parseIntSafe(args[++i]);
+					else usage("Missing parameter -cacheSize");
+					break;
+
 				case "-clinvar":
 					dbType = "clinvar";
 					method = AnnotationMethod.TABIX;
@@ -321,6 +675,10 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 					method = AnnotationMethod.TABIX;
 					break;
 
+				case "-exactonly":
+					exactOnly = true;
+					break;
+
 				case "-exists":
 					if (args.length > (i + 1)) existsInfoField = args[++i];
 					else usage("Missing parameter -exists");
@@ -348,6 +706,10 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 					method = AnnotationMethod.MEMORY; // This should only be used for test cases (not in productions environments)
 					break;
 
+				case "-memcompact":
+					method = AnnotationMethod.MEMORY_COMPACT;
+					break;
+
 				case "-name":
 					if (args.length > (i + 1)) prependInfoFieldName = args[++i];
 					else usage("Missing parameter -name");
@@ -365,10 +727,34 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 					useInfoField = false;
 					break;
 
+				case "-querybatch":
+					if (args.length > (i + 1)) queryBatchSize = Gpr.parseIntSafe(args[++i]);
+					else usage("Missing parameter -queryBatch");
+					break;
+
+				case "-sdb":
+					method = AnnotationMethod.SDB;
+					break;
+
+				case "-server":
+					if (args.length > (i + 1)) serverPort = Gpr.parseIntSafe(args[++i]);
+					else usage("Missing parameter -server");
+					if (serverPort <= 0) usage("Invalid server port '" + args[i] + "'");
+					break;
+
+				case "-servertoken":
+					if (args.length > (i + 1)) serverTokenFile = args[++i];
+					else usage("Missing parameter -serverToken");
+					break;
+
 				case "-sorted":
 					method = AnnotationMethod.SORTED_VCF;
 					break;
 
+				case "-sortedjoin":
+					method = AnnotationMethod.SORTED_JOIN;
+					break;
+
 				case "-tabix":
 					method = AnnotationMethod.TABIX;
 					break;
@@ -387,6 +773,31 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		if (dbType == null && dbFileName == null)
 
 			usage("Missing database option or file: [-dbSnp | -clinVar | database.vcf ]");
+
+		if (serverPort > 0 && method == AnnotationMethod.SORTED_JOIN) usage("Option '-sortedJoin' cannot be used with '-server'");
+		if (!andDatabases.isEmpty() && serverPort > 0) usage("Option '-and' cannot be used with '-server'");
+		if (!andDatabases.isEmpty() && buildDb) usage("Option '-and' cannot be used with '-buildDb'");
+	}
+
+	/**
+	 * Parse options for another database (command line options after '-and').
+	 * Each database has its own options (e.g. '-info', '-name', '-exists', '-id', annotation method)
+	 */
+	void parseArgsAnd(String[] args) {
+		SnpSiftCmdAnnotate cmdAnd = new SnpSiftCmdAnnotate();
+		copyValues(cmdAnd);
+		cmdAnd.init();
+		cmdAnd.dbFileName = null;
+		cmdAnd.dbType = null;
+		cmdAnd.parseArgs(args);
+
+		// Add database (and any other database after it)
+		andDatabases.add(cmdAnd);
+		andDatabases.addAll(cmdAnd.andDatabases);
+		cmdAnd.andDatabases.clear();
+
+		// The input VCF file is usually after the last database
+		if (cmdAnd.vcfInputFile != null) vcfInputFile = cmdAnd.vcfInputFile;
 	}
 
 	/**
@@ -406,6 +817,12 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		// Read config
 		if (config == null) loadConfig();
 
+		// Create binary database
+		if (buildDb) {
+			buildDb();
+			return createList ? new ArrayList<VcfEntry>() : null;
+		}
+
 		// Annotate
 		return annotate(createList);
 	}
@@ -414,6 +831,71 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		this.annotateEmpty = annotateEmpty;
 	}
 
+	/**
+	 * Command line options used by the annotation server to open the database
+	 * Note: Only options having non-default values are added, so that clients
+	 * using the same options share the same database in the server
+	 */
+	List<String> serverArgs() {
+		List<String> args = new ArrayList<>();
+		if (annotateEmpty) args.add("-a");
+		if (cacheSize != VcfIndexTree.DEFAULT_CACHE_SIZE) {
+			args.add("-cacheSize");
+			args.add("" + cacheSize);
+		}
+		if (exactOnly) args.add("-exactOnly");
+		if (existsInfoField != null) {
+			args.add("-exists");
+			args.add(existsInfoField);
+		}
+		if (useInfoField && infoFields != null) {
+			args.add("-info");
+			args.add(String.join(",", infoFields));
+		}
+		if (maxBlockSize != VcfIndexTree.DEFAULT_MAX_BLOCK_SIZE) {
+			args.add("-maxBlockSize");
+			args.add("" + maxBlockSize);
+		}
+		if (prependInfoFieldName != null) {
+			args.add("-name");
+			args.add(prependInfoFieldName);
+		}
+		if (!useRefAlt) args.add("-noAlt");
+		if (!useId) args.add("-noId");
+		if (!useInfoField) args.add("-noInfo");
+
+		if (method != null) {
+			switch (method) {
+			case MEMORY:
+				args.add("-mem");
+				break;
+
+			case MEMORY_COMPACT:
+				args.add("-memCompact");
+				break;
+
+			case SDB:
+				args.add("-sdb");
+				break;
+
+			case SORTED_VCF:
+				args.add("-sorted");
+				break;
+
+			case TABIX:
+				args.add("-tabix");
+				break;
+
+			default:
+				throw new RuntimeException("Annotation method '" + method + "' cannot be used with an annotation server");
+			}
+		}
+
+		// The server may run on a different directory
+		args.add(new File(dbFileName).getAbsolutePath());
+		return args;
+	}
+
 	/**
 	 * Show usage message
 	 */
@@ -433,15 +915,27 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		System.err.println("\t-clinvar             : Use ClinVar database.");
 		System.err.println("\nCommand Options:");
 		System.err.println("\t-a                   : Annotate fields, even if the database has an empty value (annotates using '.' for empty).");
+		System.err.println("\t-and <opt> db.vcf    : Also annotate using database 'db.vcf' (in the same pass). Options after '-and' (e.g. '-info', '-name', '-exists', '-id', '-tabix') only apply to 'db.vcf'. Can be used several times.");
+		System.err.println("\t-bgzfBlocks <num>    : Number of bgzip blocks decompressed ahead, when using '-bgzfThreads'. Default: " + readAheadBlocks);
+		System.err.println("\t-bgzfThreads <num>   : Number of threads used to decompress bgzip blocks ahead of the queries ('-tabix' command line option). Zero means no 'read ahead'. Default: " + readAheadThreads);
+		System.err.println("\t-buildDb             : Create a binary database 'database.vcf.sdb' from a sorted VCF file (only INFO fields selected by '-info' are stored) and exit.");
+		System.err.println("\t-cacheSize <int>     : Maximum number of database entries cached when using an index ('-sorted' command line option). Default: " + cacheSize);
+		System.err.println("\t-exactOnly           : Find database entries using an exact match index (CHROM, POS, REF, ALT), instead of interval queries ('-sorted' command line option, ignored if '-noAlt'). Default: " + exactOnly);
 		System.err.println("\t-exists <tag>        : Annotate whether the variant exists or not in the database (using 'tag' as an INFO field FLAG).");
 		System.err.println("\t-id                  : Only annotate ID field (do not add INFO field). Default: " + useId);
 		System.err.println("\t-info <list>         : Annotate using a list of info fields (list is a comma separated list of fields). Default: ALL.");
 		System.err.println("\t-name str            : Prepend 'str' to all annotated INFO fields. Default: ''.");
 		System.err.println("\t-maxBlockSize <int>  : Use 'max block size' when creating index ('-sorted' command line option). Default: " + maxBlockSize);
+		System.err.println("\t-memCompact          : Load the whole VCF database into memory, using a compact (off-heap) representation. Default: " + (method == AnnotationMethod.MEMORY_COMPACT));
 		System.err.println("\t-noAlt               : Do not use REF and ALT fields when comparing database.vcf entries to file.vcf entries. Default: " + !useRefAlt);
 		System.err.println("\t-noId                : Do not annotate ID field. Default: " + !useId);
 		System.err.println("\t-noInfo              : Do not annotate INFO fields. Default: " + !useInfoField);
+		System.err.println("\t-queryBatch <int>    : Query the database once for this many VCF entries (queries are sorted and merged into regions). A value of 1 queries each entry separately. Default: " + queryBatchSize);
+		System.err.println("\t-sdb                 : Use a binary database created by '-buildDb'. Default: " + (method == AnnotationMethod.SDB));
+		System.err.println("\t-server <port>       : Annotate using an annotation server ('SnpSift annotateServer') listening on local port 'port'. The database is opened by the server.");
+		System.err.println("\t-serverToken <file>  : Annotation server's token file ('-server' command line option). Default: " + AnnotateServer.defaultTokenFile(serverPort > 0 ? serverPort : AnnotateServer.DEFAULT_PORT));
 		System.err.println("\t-sorted              : VCF database is sorted and uncompressed. Default: " + (method == AnnotationMethod.SORTED_VCF));
+		System.err.println("\t-sortedJoin          : Both VCF database and input are sorted and uncompressed, read them together (no index is used, single thread). Default: " + (method == AnnotationMethod.SORTED_JOIN));
 		System.err.println("\t-tabix               : VCF database is tabix-indexed. Default: " + (method == AnnotationMethod.TABIX));
 
 		usageGenericAndDb();
@@ -449,6 +943,9 @@ public class SnpSiftCmdAnnotate extends SnpSift {
 		System.err.println("Note: According the the VCF's database format provided, SnpSift annotate uses different strategies");
 		System.err.println("\t  i) plain VCF       : SnpSift indexes the VCF file (creating an index file *.sidx).");
 		System.err.println("\t ii) bgzip+tabix     : SnpSift uses tabix's index.");
+		System.err.println("\tiii) '-sortedJoin'   : SnpSift reads the VCF file and the database together (no index). Both must be sorted.");
+		System.err.println("\t iv) '*.sdb' file     : SnpSift uses a binary database, created using '-buildDb'.");
+		System.err.println("\t  v) '-memCompact'   : SnpSift loads the whole VCF file into memory (compact representation).");
 
 		System.exit(1);
 	}
@@ -0,0 +1,215 @@
+package org.snpsift;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.snpeff.util.Gpr;
+import org.snpeff.util.Timer;
+import org.snpsift.annotate.AnnotateServer;
+import org.snpsift.annotate.AnnotateVcfDb;
+
+/**
+ * Annotation server: Keep annotation databases open and annotate
+ * entries sent by 'SnpSift annotate -server' clients.
+ *
+ * Only databases in the command line can be used: They are opened when
+ * the server starts (using default 'annotate' options). Clients can open
+ * them using other per-database options (see ALLOWED_OPTIONS), these
+ * are opened on demand and kept open until the server is stopped.
+ *
+ * Note: Clients and server communicate using a (loopback) TCP socket.
+ * Clients must send the token written to 'tokenFile' (see AnnotateServer).
+ *
+ * @author pcingola
+ */
+public class SnpSiftCmdAnnotateServer extends SnpSift {
+
+	// 'annotate' options clients can use, and their number of parameters
+	public static final Map<String, Integer> ALLOWED_OPTIONS = new HashMap<>();
+	static {
+		for (String opt : new String[] { "-a", "-exactonly", "-id", "-mem", "-memcompact", "-noalt", "-noid", "-noinfo", "-sdb", "-sorted", "-tabix" })
+			ALLOWED_OPTIONS.put(opt, 0);
+		for (String opt : new String[] { "-bgzfblocks", "-bgzfthreads", "-cachesize", "-exists", "-info", "-maxblocksize", "-name" })
+			ALLOWED_OPTIONS.put(opt, 1);
+	}
+
+	protected int port;
+	protected String tokenFile; // Token file (null means default, see AnnotateServer.defaultTokenFile)
+	protected List<String> dbFileNames; // Databases to open when the server starts
+	protected Set<String> dbCanonicalPaths; // Databases clients are allowed to open
+	protected AnnotateServer annotateServer;
+
+	public SnpSiftCmdAnnotateServer() {
+		super();
+	}
+
+	public SnpSiftCmdAnnotateServer(String args[]) {
+		super(args);
+	}
+
+	public AnnotateServer getAnnotateServer() {
+		return annotateServer;
+	}
+
+	/**
+	 * Canonical path of a database file
+	 */
+	String canonicalPath(String fileName) {
+		try {
+			return new File(fileName).getCanonicalPath();
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot resolve path '" + fileName + "'", e);
+		}
+	}
+
+	/**
+	 * Check that a client's 'annotate' options only use allowed options and databases
+	 */
+	void checkArgs(List<String> args) {
+		if (args.isEmpty()) throw new RuntimeException("Missing database file name");
+
+		// Database: Only the ones in the command line
+		String dbFile = args.get(args.size() - 1);
+		if (!dbCanonicalPaths.contains(canonicalPath(dbFile))) throw new RuntimeException("Database '" + dbFile + "' is not served");
+
+		// Options
+		for (int i = 0; i < args.size() - 1; i++) {
+			String arg = args.get(i);
+			Integer numParams = ALLOWED_OPTIONS.get(arg.toLowerCase());
+			if (numParams == null) throw new RuntimeException("Option '" + arg + "' is not allowed");
+			i += numParams;
+			if (i >= args.size() - 1) throw new RuntimeException("Missing parameter " + arg);
+		}
+	}
+
+	/**
+	 * Initialize default values
+	 */
+	@Override
+	public void init() {
+		super.init();
+		port = AnnotateServer.DEFAULT_PORT;
+		dbFileNames = new ArrayList<>();
+		dbCanonicalPaths = new HashSet<>();
+
+		needsConfig = true;
+		needsDb = true;
+		dbTabix = true;
+	}
+
+	/**
+	 * Create and open a database, using 'annotate' command line options
+	 * Note: Invalid or not allowed options throw an exception (instead of exiting)
+	 */
+	AnnotateVcfDb openDatabase(List<String> args) {
+		checkArgs(args);
+
+		SnpSiftCmdAnnotate cmdAnnotate = new SnpSiftCmdAnnotate() {
+			@Override
+			public void usage(String msg) {
+				throw new RuntimeException("Invalid 'annotate' options " + args + (msg != null ? ": " + msg : ""));
+			}
+		};
+
+		copyValues(cmdAnnotate);
+		cmdAnnotate.init();
+		cmdAnnotate.parseArgs(args.toArray(new String[0]));
+		if (cmdAnnotate.isSortedJoin()) throw new RuntimeException("Option '-sortedJoin' cannot be used with an annotation server");
+		cmdAnnotate.dbFileName = cmdAnnotate.databaseFind();
+		return cmdAnnotate.openDatabase();
+	}
+
+	/**
+	 * Parse command line arguments
+	 */
+	@Override
+	public void parseArgs(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			// Command line option?
+			if (isOpt(arg)) {
+				switch (arg.toLowerCase()) {
+				case "-port":
+					if (args.length > (i + 1)) port = Gpr.parseIntSafe(args[++i]);
+					else usage("Missing parameter -port");
+					if (port < 0) usage("Invalid port '" + args[i] + "'");
+					break;
+
+				case "-tokenfile":
+					if (args.length > (i + 1)) tokenFile = args[++i];
+					else usage("Missing parameter -tokenFile");
+					break;
+
+				default:
+					usage("Unknown command line option '" + arg + "'");
+				}
+			} else dbFileNames.add(arg);
+		}
+	}
+
+	/**
+	 * Run server (until the process is stopped)
+	 */
+	@Override
+	public boolean run() {
+		if (config == null) loadConfig();
+
+		startServer();
+		annotateServer.run();
+		return true;
+	}
+
+	/**
+	 * Start listening and open databases (connections are not accepted until 'AnnotateServer.run()' is invoked)
+	 */
+	public AnnotateServer startServer() {
+		annotateServer = new AnnotateServer(port, this::openDatabase);
+		annotateServer.setVerbose(verbose);
+		annotateServer.setDebug(debug);
+		annotateServer.setTokenFile(tokenFile);
+		annotateServer.open();
+
+		// Open databases (default options, same arguments as 'annotate' clients would send)
+		for (String dbFileName : dbFileNames)
+			dbCanonicalPaths.add(canonicalPath(dbFileName));
+		for (String dbFileName : dbFileNames) {
+			if (verbose) Timer.showStdErr("Opening database '" + dbFileName + "'");
+			annotateServer.open(Arrays.asList(new File(dbFileName).getAbsolutePath()));
+		}
+
+		return annotateServer;
+	}
+
+	/**
+	 * Show usage message
+	 */
+	@Override
+	public void usage(String msg) {
+		if (msg != null) {
+			System.err.println("Error: " + msg);
+			showCmd();
+		}
+
+		showVersion();
+
+		System.err.println("Usage: java -jar " + SnpSift.class.getSimpleName() + ".jar " + command + " [options] [database_1.vcf ... database_N.vcf]");
+		System.err.println("\nKeep annotation databases open and annotate entries sent by clients ('SnpSift annotate -server <port> ...').");
+		System.err.println("Only databases in the command line are served. They are opened when the server starts (clients using other 'annotate' options open them again), and are kept open until the server is stopped.");
+		System.err.println("\nCommand Options:");
+		System.err.println("\t-port <int>          : Listen on local port 'port'. Default: " + port);
+		System.err.println("\t-tokenFile <file>    : Write the token clients must send to this file (only readable by the user). Default: " + AnnotateServer.defaultTokenFile(port));
+
+		usageGenericAndDb();
+
+		System.exit(1);
+	}
+
+}
@@ -14,6 +14,7 @@ import org.snpeff.util.Timer;
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
 import org.snpeff.vcf.VcfHeaderEntry;
+import org.snpsift.util.VcfPipeline;
 
 /**
  * Count number of cases and controls
@@ -39,6 +40,7 @@ public class SnpSiftCmdCaseControl extends SnpSift {
 	protected double pvalueThreshold;
 	protected boolean useChiSquare;
 	String name;
+	Object pValueLock = new Object();
 	String posMin = "";
 	double pValueMin = 1.0;
 
@@ -110,12 +112,16 @@ public class SnpSiftCmdCaseControl extends SnpSift {
 		vcfEntry.addInfo(VCF_INFO_CONTROL + name, ctrlHom + "," + ctrlHet + "," + ctrl);
 
 		// Annotate pValues
-		vcfEntry.addInfo(VCF_INFO_CC_TREND + name, pValueStr(vcfEntry, pTrend(nControl, nCase)));
-		vcfEntry.addInfo(VCF_INFO_CC_GENO + name, pValueStr(vcfEntry, pGenotypic(nControl, nCase)));
-		swapMinorAllele(nControl, nCase); // Swap if minor allele is reference
-		vcfEntry.addInfo(VCF_INFO_CC_ALL + name, "" + pValueStr(vcfEntry, pAllelic(nControl, nCase, pvalueThreshold)));
-		vcfEntry.addInfo(VCF_INFO_CC_DOM + name, "" + pValueStr(vcfEntry, pDominant(nControl, nCase, pvalueThreshold)));
-		vcfEntry.addInfo(VCF_INFO_CC_REC + name, "" + pValueStr(vcfEntry, pRecessive(nControl, nCase, pvalueThreshold)));
+		// Note: Statistical tests are shared singletons and 'pValueMin' is updated, so
+		// this part is synchronized (genotype counting above can run in parallel)
+		synchronized (pValueLock) {
+			vcfEntry.addInfo(VCF_INFO_CC_TREND + name, pValueStr(vcfEntry, pTrend(nControl, nCase)));
+			vcfEntry.addInfo(VCF_INFO_CC_GENO + name, pValueStr(vcfEntry, pGenotypic(nControl, nCase)));
+			swapMinorAllele(nControl, nCase); // Swap if minor allele is reference
+			vcfEntry.addInfo(VCF_INFO_CC_ALL + name, "" + pValueStr(vcfEntry, pAllelic(nControl, nCase, pvalueThreshold)));
+			vcfEntry.addInfo(VCF_INFO_CC_DOM + name, "" + pValueStr(vcfEntry, pDominant(nControl, nCase, pvalueThreshold)));
+			vcfEntry.addInfo(VCF_INFO_CC_REC + name, "" + pValueStr(vcfEntry, pRecessive(nControl, nCase, pvalueThreshold)));
+		}
 
 		return true;
 	}
@@ -443,17 +449,20 @@ public class SnpSiftCmdCaseControl extends SnpSift {
 		VcfFileIterator vcf = openVcfInputFile();
 		vcf.setDebug(debug);
 
-		int i = 1;
-		for (VcfEntry vcfEntry : vcf) {
-			processVcfHeader(vcf); // Handle header stuff
+		// Read entries, annotate them (using 'numWorkers' threads) and show them in the same order
+		int count[] = { 1 };
+		VcfPipeline<VcfEntry> pipeline = new VcfPipeline<>(numWorkers, () -> vcfEntry -> {
 			annotate(vcfEntry); // Annotate
-
+			return vcfEntry;
+		}, vcfEntry -> {
 			// Show
 			if (createList) list.add(vcfEntry);
 			else System.out.println(vcfEntry);
 
-			if (verbose) Gpr.showMark(i++, SHOW_EVERY);
-		}
+			if (verbose) Gpr.showMark(count[0]++, SHOW_EVERY);
+		});
+		pipeline.setReader(vcfEntry -> processVcfHeader(vcf)); // Handle header stuff
+		pipeline.run(vcf);
 
 		if (verbose) {
 			Timer.showStdErr("Done.\n\tMinimum pValue: " + pValueMin + "\tVcf entry: " + posMin);
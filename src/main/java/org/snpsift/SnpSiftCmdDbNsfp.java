@@ -10,6 +10,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.snpeff.fileIterator.VcfFileIterator;
 import org.snpeff.interval.Variant;
@@ -19,6 +20,8 @@ import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfInfoType;
 import org.snpsift.fileIterator.DbNsfp;
 import org.snpsift.fileIterator.DbNsfpEntry;
+import org.snpsift.util.BgzfReadAhead;
+import org.snpsift.util.VcfPipeline;
 
 /**
  * Annotate a VCF file with dbNSFP.
@@ -76,13 +79,19 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 	protected Map<String, String> fieldsType;
 	protected boolean annotateEmpty; // Annotate empty fields as well?
 	protected boolean annotateMissing; // Annotate entries even if missing in dbNSFP?
+	protected int queryBatchSize = 1; // Number of VCF entries per batched database query (1 means no batches)
+	protected int readAheadThreads; // Number of threads used to decompress bgzip (BGZF) database blocks ahead (zero means no 'read ahead')
+	protected int readAheadBlocks = BgzfReadAhead.DEFAULT_BLOCKS_IN_FLIGHT; // Number of BGZF blocks decompressed ahead
 	protected boolean collapseRepeatedValues; // Collapse values if repeated?
 	protected boolean inverseFieldSelection; // Inverse field selection
 	protected boolean tabixCheck = true;
 	protected String vcfFileName;
 	protected int count = 0;
-	protected int countAnnotated = 0;
-	protected int countVariants = 0;
+	protected AtomicInteger countAnnotated = new AtomicInteger();
+	protected AtomicInteger countVariants = new AtomicInteger();
+	protected int posPrev = -1;
+	protected String chrPrev = "";
+	protected boolean showHeader = true;
 	protected DbNsfp dbNsfp;
 	protected VcfFileIterator vcfFile;
 	protected DbNsfpEntry currentDbEntry;
@@ -135,49 +144,25 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 			throw new RuntimeException(e);
 		}
 
-		// Annotate VCF file
-		if (verbose) Timer.showStdErr("Annotating file '" + vcfFileName + "'");
-		boolean showHeader = true;
-		int pos = -1;
-		String chr = "";
-		for (VcfEntry vcfEntry : vcfFile) {
-			try {
-				// Show header?
-				if (showHeader) {
-					processVcfHeader(vcfFile); // Add VCF header
-					showHeader = false;
-					checkFieldsToAdd(); // Check that the fields we want to add are actually in the database
-				}
-
-				// Check if file is sorted
-				if (vcfEntry.getChromosomeName().equals(chr) && vcfEntry.getStart() < pos) {
-					fatalError("Your VCF file should be sorted!" //
-							+ "\n\tPrevious entry " + chr + ":" + pos//
-							+ "\n\tCurrent entry  " + vcfEntry.getChromosomeName() + ":" + (vcfEntry.getStart() + 1)//
-					);
-				}
-
-				// Annotate
-				annotate(vcfEntry);
-
-				// Show
-				print(vcfEntry);
-				if (list != null) list.add(vcfEntry);
-				count++;
-
-				// Update chr:pos
-				chr = vcfEntry.getChromosomeName();
-				pos = vcfEntry.getStart();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+		// Annotate VCF file: Read entries, annotate them (using 'numWorkers' threads) and show them in the same order
+		if (verbose) Timer.showStdErr("Annotating file '" + vcfFileName + "'" + (numWorkers > 1 ? ", using " + numWorkers + " threads" : ""));
+		VcfPipeline<VcfEntry> pipeline = new VcfPipeline<>(numWorkers, this::annotateWorker, vcfEntry -> {
+			print(vcfEntry);
+			if (list != null) list.add(vcfEntry);
+			count++;
+		});
+		pipeline.setReader(this::checkEntry);
+		if (queryBatchSize > 1) {
+			pipeline.setBatchSize(queryBatchSize);
+			pipeline.setSerialBatches(true);
 		}
+		pipeline.run(vcfFile);
 
 		annotateFinish(vcfFile);
 
 		// Show some stats
 		if (verbose) {
-			double perc = (100.0 * countAnnotated) / count;
+			double perc = (100.0 * countAnnotated.get()) / count;
 			Timer.showStdErr("Done." //
 					+ "\n\tTotal annotated entries : " + countAnnotated //
 					+ "\n\tTotal entries           : " + count //
@@ -192,13 +177,26 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 	 * Annotate a VCF entry
 	 */
 	public boolean annotate(Variant variant, Map<String, String> info) {
-		if (verbose) Gpr.showMark(++countVariants, SHOW_EVERY);
+		return annotate(variant, info, dbNsfp);
+	}
+
+	/**
+	 * Annotate a VCF entry using database 'dbNsfp'
+	 */
+	boolean annotate(Variant variant, Map<String, String> info, DbNsfp dbNsfp) {
+		if (verbose) Gpr.showMark(countVariants.incrementAndGet(), SHOW_EVERY);
 
 		// dbNSFP only has SNP information
 		if (!variant.isSnp()) return false;
 
 		// Find in database
-		Collection<DbNsfpEntry> dbEntries = dbNsfp.query(variant);
+		return annotate(variant, info, dbNsfp.query(variant));
+	}
+
+	/**
+	 * Annotate a VCF entry using database entries 'dbEntries' (i.e. the query results for 'variant')
+	 */
+	boolean annotate(Variant variant, Map<String, String> info, Collection<DbNsfpEntry> dbEntries) {
 		if (dbEntries == null || dbEntries.isEmpty()) {
 			if (!annotateMissing) return false;
 			if (dbEntries == null) dbEntries = new LinkedList<>();
@@ -229,7 +227,7 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 
 		// Show progress
 		if (annotated) {
-			countAnnotated++;
+			countAnnotated.incrementAndGet();
 			if (debug) Gpr.debug("Annotated: " + variant.toStr());
 		}
 
@@ -238,29 +236,69 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 
 	@Override
 	public boolean annotate(VcfEntry vcfEntry) {
+		return annotate(vcfEntry, dbNsfp);
+	}
+
+	/**
+	 * Annotate a VCF entry using database 'dbNsfp'
+	 */
+	boolean annotate(VcfEntry vcfEntry, DbNsfp dbNsfp) {
 		boolean annotated = false;
 		Map<String, String> info = new HashMap<>();
 
 		// Find annotations for each variant in this VcfEntry
 		for (Variant var : vcfEntry.variants())
-			annotated |= annotate(var, info);
+			annotated |= annotate(var, info, dbNsfp);
 
 		// Add annotations to VcfEntry
-		if (annotated) {
-			// Sort keys and add them to VcfEntry
-			ArrayList<String> keys = new ArrayList<>();
-			keys.addAll(info.keySet());
-			Collections.sort(keys);
-
-			// Add INFO fields
-			for (String key : keys) {
-				String infoKey = VcfEntry.vcfInfoKeySafe(DBNSFP_VCF_INFO_PREFIX + key);
-				vcfEntry.addInfo(infoKey, info.get(key));
-			}
+		if (annotated) annotateAddInfo(vcfEntry, info);
 
+		return annotated;
+	}
+
+	/**
+	 * Add annotations (sorted by key) to a VCF entry
+	 */
+	void annotateAddInfo(VcfEntry vcfEntry, Map<String, String> info) {
+		// Sort keys and add them to VcfEntry
+		ArrayList<String> keys = new ArrayList<>();
+		keys.addAll(info.keySet());
+		Collections.sort(keys);
+
+		// Add INFO fields
+		for (String key : keys) {
+			String infoKey = VcfEntry.vcfInfoKeySafe(DBNSFP_VCF_INFO_PREFIX + key);
+			vcfEntry.addInfo(infoKey, info.get(key));
+		}
+	}
+
+	/**
+	 * Annotate a batch of VCF entries, querying the database once for all SNPs in the batch (see DbNsfp.query(List))
+	 */
+	void annotateBatch(List<VcfEntry> batch, DbNsfp dbNsfp) {
+		// Query all SNPs (dbNSFP only has SNP information)
+		List<Variant> variants = new ArrayList<>();
+		List<List<Variant>> variantsByEntry = new ArrayList<>(batch.size());
+		for (VcfEntry vcfEntry : batch) {
+			List<Variant> vars = vcfEntry.variants();
+			variantsByEntry.add(vars);
+			for (Variant var : vars)
+				if (var.isSnp()) variants.add(var);
 		}
+		List<Collection<DbNsfpEntry>> results = dbNsfp.query(variants);
+
+		// Annotate each entry using the query results
+		int i = 0, j = 0;
+		for (VcfEntry vcfEntry : batch) {
+			boolean annotated = false;
+			Map<String, String> info = new HashMap<>();
+			for (Variant var : variantsByEntry.get(j++)) {
+				if (verbose) Gpr.showMark(countVariants.incrementAndGet(), SHOW_EVERY);
+				if (var.isSnp()) annotated |= annotate(var, info, results.get(i++));
+			}
 
-		return annotated;
+			if (annotated) annotateAddInfo(vcfEntry, info);
+		}
 	}
 
 	@Override
@@ -287,14 +325,45 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 		dbNsfp = new DbNsfp(dbFileName);
 		dbNsfp.setDebug(debug);
 		dbNsfp.setVerbose(verbose);
+		dbNsfp.setReadAhead(readAheadThreads, readAheadBlocks);
 		dbNsfp.open();
 
-		// Initialize fields to annotate
+		// Initialize fields to annotate (only these columns are parsed)
 		annotateInitFields();
+		dbNsfp.setFields(fieldsToAdd.keySet());
 
 		return true;
 	}
 
+	/**
+	 * Worker used to annotate entries
+	 * Note: When using multiple threads, each worker uses its own tabix reader and cache (DbNsfp objects
+	 * are not thread safe). Column names, types and selected fields are shared (see DbNsfp.workerCopy)
+	 */
+	VcfPipeline.Worker<VcfEntry> annotateWorker() {
+		DbNsfp dbNsfpWorker = (numWorkers > 1 ? dbNsfp.workerCopy() : dbNsfp);
+		return new VcfPipeline.Worker<VcfEntry>() {
+
+			@Override
+			public void close() {
+				if (dbNsfpWorker != dbNsfp) dbNsfpWorker.close();
+			}
+
+			@Override
+			public VcfEntry process(VcfEntry vcfEntry) {
+				annotate(vcfEntry, dbNsfpWorker);
+				return vcfEntry;
+			}
+
+			@Override
+			public List<VcfEntry> processBatch(List<VcfEntry> batch) {
+				if (queryBatchSize <= 1) return VcfPipeline.Worker.super.processBatch(batch);
+				annotateBatch(batch, dbNsfpWorker);
+				return batch;
+			}
+		};
+	}
+
 	/**
 	 * Initialize fields to annotate
 	 */
@@ -388,6 +457,34 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 			if (!dbNsfp.hasField(fieldKey)) fatalError("dbNsfp does not have field '" + fieldKey + "' (file '" + dbFileName + "')");
 	}
 
+	/**
+	 * Process VCF header (first entry) and check that input entries are sorted
+	 */
+	void checkEntry(VcfEntry vcfEntry) {
+		try {
+			// Show header?
+			if (showHeader) {
+				processVcfHeader(vcfFile); // Add VCF header
+				showHeader = false;
+				checkFieldsToAdd(); // Check that the fields we want to add are actually in the database
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Check if file is sorted
+		if (vcfEntry.getChromosomeName().equals(chrPrev) && vcfEntry.getStart() < posPrev) {
+			fatalError("Your VCF file should be sorted!" //
+					+ "\n\tPrevious entry " + chrPrev + ":" + posPrev//
+					+ "\n\tCurrent entry  " + vcfEntry.getChromosomeName() + ":" + (vcfEntry.getStart() + 1)//
+			);
+		}
+
+		// Update chr:pos
+		chrPrev = vcfEntry.getChromosomeName();
+		posPrev = vcfEntry.getStart();
+	}
+
 	String collapseRepeated(String csvalues) {
 		String values[] = csvalues.split(",");
 		if (values.length <= 1) return csvalues;
@@ -476,6 +573,18 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 				annotateEmpty = true;
 				break;
 
+			case "-bgzfblocks":
+				if (args.length > (i + 1)) readAheadBlocks = Gpr.parseIntSafe(args[++i]);
+				else usage("Missing parameter -bgzfBlocks");
+				if (readAheadBlocks <= 0) usage("Error: Number of BGZF blocks must be positive");
+				break;
+
+			case "-bgzfthreads":
+				if (args.length > (i + 1)) readAheadThreads = Gpr.parseIntSafe(args[++i]);
+				else usage("Missing parameter -bgzfThreads");
+				if (readAheadThreads < 0) usage("Error: Number of BGZF threads cannot be negative");
+				break;
+
 			case "-f":
 				fieldsNamesToAdd = args[++i];
 				break;
@@ -496,6 +605,11 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 				inverseFieldSelection = true;
 				break;
 
+			case "-querybatch":
+				if (args.length > (i + 1)) queryBatchSize = Gpr.parseIntSafe(args[++i]);
+				else usage("Missing parameter -queryBatch");
+				break;
+
 			default:
 				if (vcfFileName == null) vcfFileName = arg;
 				else usage("Unknown extra parameter '" + arg + "'");
@@ -559,6 +673,8 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 		System.err.println("Usage: java -jar " + SnpSift.class.getSimpleName() + ".jar " + command + " [options] file.vcf > newFile.vcf\n" //
 				+ "Options:\n" //
 				+ "\t-a            : Annotate fields, even if the database has an empty value (annotates using '.' for empty).\n" //
+				+ "\t-bgzfBlocks <num>  : Number of bgzip blocks decompressed ahead, when using '-bgzfThreads'. Default: " + readAheadBlocks + "\n" //
+				+ "\t-bgzfThreads <num> : Number of threads used to decompress bgzip blocks ahead of the queries. Zero means no 'read ahead'. Default: " + readAheadThreads + "\n" //
 				+ "\t-collapse     : Collapse repeated values from dbNSFP. Default: " + collapseRepeatedValues + "\n" //
 				+ "\t-db <file>    : Path to dbNSFP database file (bgzip + tabix).\n" //
 				+ "\t-g <name>     : Genome version.\n" //
@@ -566,6 +682,7 @@ public class SnpSiftCmdDbNsfp extends SnpSift {
 				+ "\t-m            : Annotate fields even if there are no database matching entries (annotates using '.').\n" //
 				+ "\t-n            : Invert 'fields to add' selection (i.e. use all fields except the ones specified in option '-f').\n" //
 				+ "\t-f            : A comma separated list of fields to add.\n" //
+				+ "\t-queryBatch <int> : Query the database once for this many VCF entries (queries are sorted and merged into regions). A value of 1 queries each entry separately. Default: " + queryBatchSize + "\n" //
 				+ "\t                Default fields to add: " + sb //
 		);
 
@@ -1,30 +1,65 @@
 package org.snpsift;
 
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfHeader;
+import org.snpeff.vcf.VcfInfoType;
+import org.snpsift.fileIterator.VcfNoGtFileIterator;
 import org.snpsift.lang.LangFactory;
+import org.snpsift.lang.ReferencedFields;
 import org.snpsift.lang.Value;
 import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.Field;
 import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.util.ArrowWriter;
+import org.snpsift.util.LineWriter;
+import org.snpsift.util.VcfPipeline;
 
 /**
  * Extract fields from VCF file to a TXT (tab separated) format
  *
+ * Expressions are classified once: Plain expressions (e.g. 'POS', 'DP') are
+ * evaluated once per VCF entry, iterable ones (e.g. 'ANN[*].EFFECT', 'GEN[*].GT')
+ * are evaluated for every value. Lines are created by 'numWorkers' threads
+ * (in the same order as the input) and written using a buffered writer.
+ *
+ * Output formats:
+ * 		- TSV : One tab separated line per VCF entry, with a title line (default)
+ * 		- ARROW : Arrow IPC file, one typed column per field expression (see ArrowWriter).
+ * 		  Column types come from the field's type in the VCF header (other expressions
+ * 		  are typed using their values). Iterable expressions (e.g. 'ANN[*].GENE') and
+ * 		  fields having multiple values (e.g. 'Number=A') are list columns
+ *
  * @author pablocingolani
  */
 public class SnpSiftCmdExtractFields extends SnpSift {
 
 	public static final int SHOW = 10000;
 
+	public enum OutFormat {
+		TSV, ARROW
+	}
+
 	String vcfFile;
 	String sameFieldSeparator; // Separate within field
 	String emptyFieldString; // Use this string in case of empty results
+	OutFormat outFormat;
+	int batchSize; // Rows per record batch ('ARROW' output format)
+	OutputStream outputStream; // Output for binary formats (null means STDOUT)
+	ArrowWriter arrowWriter;
 	List<String> expressionStrs;
 	List<Expression> expressions;
+	boolean iterable[]; // Can expression 'i' iterate over values (e.g. 'ANN[*]')?
+	boolean multipleValues[]; // Can expression 'i' have multiple (comma separated) values (e.g. 'Number=A' in the header)?
+	ReferencedFields referencedFields; // Fields used by all expressions
+	boolean prepared; // Have expressions been prepared (see 'prepareExpressions')?
 
 	public SnpSiftCmdExtractFields() {
 		super();
@@ -35,32 +70,143 @@ public class SnpSiftCmdExtractFields extends SnpSift {
 	}
 
 	/**
-	 * Iterate over all possible 'FieldIterator' values until one 'true' is found, otherwise return false.
+	 * Append a value (or 'emptyFieldString' if the value is empty)
+	 */
+	void append(Value value, StringBuilder out) {
+		String valStr = value.asString();
+		if (valStr == null || valStr.isEmpty()) out.append(emptyFieldString);
+		else out.append(valStr);
+	}
+
+	/**
+	 * Arrow column for expression 'i': The type (and whether it has multiple values)
+	 * comes from the VCF header for fields, other expressions are typed using their values
 	 */
-	String evaluate(Expression expr, VcfEntry vcfEntry) {
-		FieldIterator fieldIterator = FieldIterator.get();
-		fieldIterator.reset();
+	ArrowWriter.Column arrowColumn(int i) {
+		Expression expr = expressions.get(i);
+		ArrowWriter.Type type = null;
+		int listDepth = (iterable[i] ? 1 : 0);
+
+		if (expr instanceof Field) {
+			Field field = (Field) expr;
+			type = arrowType(field.getReturnType());
+			if (multipleValues[i]) listDepth++;
+		}
 
-		StringBuilder values = new StringBuilder();
-		do {
-			// Get value
-			Value value = expr.eval(vcfEntry);
+		return new ArrowWriter.Column(expressionStrs.get(i), type, listDepth);
+	}
+
+	/**
+	 * Arrow type for a VCF type
+	 * @return Type or null if unknown
+	 */
+	ArrowWriter.Type arrowType(VcfInfoType type) {
+		if (type == null) return null;
+
+		switch (type) {
+		case Flag:
+			return ArrowWriter.Type.BOOL;
+
+		case Integer:
+			return ArrowWriter.Type.INT;
+
+		case Float:
+			return ArrowWriter.Type.FLOAT;
+
+		case Character:
+		case String:
+			return ArrowWriter.Type.UTF8;
+
+		default:
+			return null;
+		}
+	}
 
+	/**
+	 * Iterate over all possible 'FieldIterator' values, appending each value (separated by 'sameFieldSeparator')
+	 */
+	void evaluate(Expression expr, VcfEntry vcfEntry, FieldIterator fieldIterator, StringBuilder out) {
+		int start = out.length();
+		do {
 			// Separate
-			if (values.length() > 0) values.append(sameFieldSeparator);
+			if (out.length() > start) out.append(sameFieldSeparator);
 
-			// Append values
-			String valStr = value.asString();
-			if (valStr == null || valStr.isEmpty()) values.append(emptyFieldString);
-			else values.append(value);
+			// Append value
+			append(expr.eval(vcfEntry, fieldIterator), out);
 
 			// Iterate?
 			if (fieldIterator.hasNext()) fieldIterator.next();
 			else break;
 
 		} while (true);
+	}
+
+	/**
+	 * Iterate over all possible 'FieldIterator' values
+	 * @return A list of values (see 'toObject')
+	 */
+	List<Object> evaluateValues(Expression expr, VcfEntry vcfEntry, FieldIterator fieldIterator, boolean multiple) {
+		List<Object> values = new ArrayList<>();
+		do {
+			values.add(toObject(expr.eval(vcfEntry, fieldIterator), multiple));
+
+			// Iterate?
+			if (fieldIterator.hasNext()) fieldIterator.next();
+			else break;
+		} while (true);
+
+		return values;
+	}
 
-		return values.toString();
+	/**
+	 * Append the values of all expressions for 'vcfEntry' (tab separated)
+	 */
+	void extract(VcfEntry vcfEntry, FieldIterator fieldIterator, StringBuilder out) {
+		for (int i = 0; i < iterable.length; i++) {
+			if (i > 0) out.append('\t');
+
+			fieldIterator.reset();
+			Expression expr = expressions.get(i);
+			if (iterable[i]) evaluate(expr, vcfEntry, fieldIterator, out);
+			else append(expr.eval(vcfEntry, fieldIterator), out); // Plain expressions are evaluated only once
+		}
+	}
+
+	/**
+	 * Typed values of all expressions for 'vcfEntry' (one per expression, see 'toObject')
+	 */
+	Object[] extractValues(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		Object row[] = new Object[iterable.length];
+		for (int i = 0; i < iterable.length; i++) {
+			fieldIterator.reset();
+			Expression expr = expressions.get(i);
+			if (iterable[i]) row[i] = evaluateValues(expr, vcfEntry, fieldIterator, multipleValues[i]);
+			else row[i] = toObject(expr.eval(vcfEntry, fieldIterator), multipleValues[i]);
+		}
+		return row;
+	}
+
+	/**
+	 * Worker used to extract typed values (binary output formats)
+	 */
+	VcfPipeline.Worker<Object[]> extractValuesWorker() {
+		FieldIterator fieldIterator = new FieldIterator();
+		return vcfEntry -> extractValues(vcfEntry, fieldIterator);
+	}
+
+	/**
+	 * Worker used to extract fields (each worker uses its own buffers)
+	 * Note: When running in the calling thread (one worker), lines are written before
+	 * the next entry is processed, so the same StringBuilder is re-used for every line
+	 */
+	VcfPipeline.Worker<CharSequence> extractWorker() {
+		FieldIterator fieldIterator = new FieldIterator();
+		StringBuilder line = new StringBuilder();
+		return vcfEntry -> {
+			line.setLength(0);
+			extract(vcfEntry, fieldIterator, line);
+			return numWorkers > 1 ? line.toString() : line;
+		};
 	}
 
 	@Override
@@ -68,6 +214,8 @@ public class SnpSiftCmdExtractFields extends SnpSift {
 		super.init();
 		sameFieldSeparator = "\t";
 		emptyFieldString = "";
+		outFormat = OutFormat.TSV;
+		batchSize = ArrowWriter.DEFAULT_BATCH_SIZE;
 	}
 
 	/**
@@ -84,6 +232,18 @@ public class SnpSiftCmdExtractFields extends SnpSift {
 			if (isOpt(arg)) {
 				if (arg.equals("-s")) sameFieldSeparator = args[++i];
 				else if (arg.equals("-e")) emptyFieldString = args[++i];
+				else if (arg.equalsIgnoreCase("-batchSize")) {
+					if ((i + 1) >= args.length) usage("Missing argument for command line option '-batchSize'");
+					batchSize = Gpr.parseIntSafe(args[++i]);
+					if (batchSize <= 0) usage("Invalid batch size '" + args[i] + "'");
+				} else if (arg.equalsIgnoreCase("-outFormat")) {
+					if ((i + 1) >= args.length) usage("Missing argument for command line option '-outFormat'");
+					try {
+						outFormat = OutFormat.valueOf(args[++i].toUpperCase());
+					} catch (IllegalArgumentException e) {
+						usage("Unknown output format '" + args[i] + "'");
+					}
+				}
 			} else {
 				// Non-option parameters
 				if (vcfFile == null) vcfFile = arg; // VCF file
@@ -99,10 +259,10 @@ public class SnpSiftCmdExtractFields extends SnpSift {
 	 */
 	List<Expression> parseFields(List<String> expressionsStr) {
 		List<Expression> fields = new ArrayList<>();
+		LangFactory lf = new LangFactory();
 		for (String exprStr : expressionsStr) {
 			// Parse and create field
 			// Field field = new Field(fieldName);
-			LangFactory lf = new LangFactory();
 			Expression field;
 			try {
 				field = lf.compile(exprStr);
@@ -111,12 +271,37 @@ public class SnpSiftCmdExtractFields extends SnpSift {
 			}
 			fields.add(field);
 		}
+
+		referencedFields = lf.getReferencedFields();
 		return fields;
 	}
 
 	/**
-	 * Run main algorithm
+	 * Prepare expressions: Field types are resolved using the VCF header, before any
+	 * worker evaluates them. All expressions share the same evaluation state (FieldIterator)
 	 */
+	void prepareExpressions(VcfHeader vcfHeader) {
+		int resultIdx = 0;
+		for (Expression expr : expressions)
+			resultIdx = expr.prepare(vcfHeader, false, resultIdx);
+
+		multipleValues = new boolean[expressions.size()];
+		for (int i = 0; i < multipleValues.length; i++) {
+			Expression expr = expressions.get(i);
+			multipleValues[i] = (expr instanceof Field) && ((Field) expr).isMultipleValues();
+		}
+
+		// Column types are known once expressions are prepared
+		if (outFormat == OutFormat.ARROW) {
+			List<ArrowWriter.Column> columns = new ArrayList<>();
+			for (int i = 0; i < expressions.size(); i++)
+				columns.add(arrowColumn(i));
+			arrowWriter = new ArrowWriter(outputStream != null ? outputStream : System.out, columns, batchSize);
+		}
+
+		prepared = true;
+	}
+
 	@Override
 	public boolean run() {
 		run(false);
@@ -126,41 +311,84 @@ public class SnpSiftCmdExtractFields extends SnpSift {
 	public List<String> run(boolean createList) {
 		LinkedList<String> list = new LinkedList<>();
 
-		// Parse fiels
+		// Parse fiels and classify them (plain or iterable)
 		expressions = parseFields(expressionStrs);
-
-		// Show title
-		if (!createList) {
-			String sep = "";
-			for (String fieldName : expressionStrs) {
-				System.out.print(sep + fieldName);
-				sep = "\t";
-			}
-			System.out.println("");
-		}
+		iterable = new boolean[expressions.size()];
+		for (int i = 0; i < iterable.length; i++)
+			iterable[i] = expressions.get(i).isIterable();
 
 		//---
 		// Iterate on file
+		// Note: Genotypes are only parsed if any field uses them
 		//---
-		VcfFileIterator vcf = new VcfFileIterator(vcfFile);
+		VcfFileIterator vcf = referencedFields.isGenotypes() ? new VcfFileIterator(vcfFile) : new VcfNoGtFileIterator(vcfFile, false);
 		vcf.setDebug(debug);
+		prepared = false;
 
-		for (VcfEntry ve : vcf) {
-			StringBuilder out = new StringBuilder();
-			for (Expression f : expressions) {
-				String val = evaluate(f, ve);
-				out.append(val + "\t");
-			}
-
-			// Show line
-			out.deleteCharAt(out.length() - 1); // Remove last '\t'
-			if (createList) list.add(out.toString());
-			else System.out.println(out);
+		if (outFormat == OutFormat.ARROW) {
+			runArrow(vcf);
+			return list;
 		}
 
+		// Show title
+		LineWriter out = (createList ? null : new LineWriter(System.out));
+		if (out != null) out.appendLine(String.join("\t", expressionStrs));
+
+		// Extract fields (using 'numWorkers' threads) and show lines in the same order as the input
+		VcfPipeline<CharSequence> pipeline = new VcfPipeline<>(numWorkers, this::extractWorker, line -> {
+			if (out != null) out.appendLine(line);
+			else list.add(line.toString());
+		});
+		pipeline.setReader(vcfEntry -> {
+			if (!prepared) prepareExpressions(vcfEntry.getVcfFileIterator().getVcfHeader());
+		});
+		pipeline.run(vcf);
+
+		if (out != null) out.close();
+		vcf.close();
+
 		return list;
 	}
 
+	/**
+	 * Extract typed values (using 'numWorkers' threads) and write them as an Arrow IPC file
+	 */
+	void runArrow(VcfFileIterator vcf) {
+		VcfPipeline<Object[]> pipeline = new VcfPipeline<>(numWorkers, this::extractValuesWorker, row -> arrowWriter.add(row));
+		pipeline.setReader(vcfEntry -> {
+			if (!prepared) prepareExpressions(vcfEntry.getVcfFileIterator().getVcfHeader());
+		});
+		pipeline.run(vcf);
+
+		if (!prepared) prepareExpressions(vcf.getVcfHeader()); // No entries: Write an empty table
+		arrowWriter.close();
+		arrowWriter = null;
+		vcf.close();
+	}
+
+	/**
+	 * Output stream for binary formats (default: STDOUT)
+	 */
+	public void setOutputStream(OutputStream outputStream) {
+		this.outputStream = outputStream;
+	}
+
+	/**
+	 * Convert a value to an object (for binary output formats): Boolean, Long, Double, String
+	 * or null (empty values). Multiple values (e.g. 'Number=A' fields) are split into lists
+	 */
+	Object toObject(Value value, boolean multiple) {
+		if (value.isNull()) return null;
+		if (value.isBool()) return value.asBool();
+		if (value.isInt()) return value.asInt();
+		if (value.isFloat()) return value.asFloat();
+
+		String str = value.asString();
+		if (str == null || str.isEmpty()) return null;
+		if (multiple) return Arrays.asList(str.split(","));
+		return str;
+	}
+
 	/**
 	 * Show usage message
 	 * @param msg
@@ -178,6 +406,9 @@ public class SnpSiftCmdExtractFields extends SnpSift {
 				+ "\nOptions:" //
 				+ "\n\t-s     : Same field separator. Default: '" + sameFieldSeparator + "'" //
 				+ "\n\t-e     : Empty field. Default: '" + emptyFieldString + "'" //
+				+ "\n\t-outFormat <tsv|arrow> : Output format. Arrow output is an Arrow IPC file with typed columns, iterable fields (e.g. 'ANN[*].GENE') and fields having multiple values are lists. Default: " + outFormat.toString().toLowerCase() //
+				+ "\n\t-batchSize <num> : Rows per record batch ('-outFormat arrow'). Default: " + batchSize //
+				+ "\n\t-cpus <num> : Number of threads used to extract fields (output order is preserved). Default: " + numWorkers //
 		);
 
 		System.exit(1);
@@ -7,14 +7,22 @@ import java.util.List;
 
 import org.snpeff.fileIterator.VcfFileIterator;
 import org.snpeff.util.Gpr;
+import org.snpeff.util.Timer;
 import org.snpeff.vcf.EffFormatVersion;
 import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfHeader;
 import org.snpeff.vcf.VcfHeaderEntry;
+import org.snpsift.fileIterator.VcfEntryNoGt;
+import org.snpsift.fileIterator.VcfNoGtFileIterator;
 import org.snpsift.lang.LangFactory;
+import org.snpsift.lang.ReferencedFields;
 import org.snpsift.lang.Value;
+import org.snpsift.lang.expression.CompiledExpression;
 import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.ExpressionCounter;
 import org.snpsift.lang.expression.Field;
 import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.util.VcfPipeline;
 
 /**
  * Generic SnpSift filter
@@ -50,10 +58,19 @@ public class SnpSiftCmdFilter extends SnpSift {
 	public static final String VCF_INFO_FILTER_DELETED = "FILTER_DELETED";
 
 	boolean usePassField; // Use Filter field
+	boolean compile; // Compile expression (instead of interpreting the expression tree)
+	boolean optimize; // Optimize expression (e.g. evaluate cheaper operands first). Off by default
+	boolean explain; // Show expression tree and number of evaluations of each node
+	boolean parseAll; // Parse all VCF columns, even if the expression does not use them (e.g. genotypes)
 	boolean inverse; // Inverse filter (i.e. do NOT show lines that match the filter)
 	boolean exceptionIfNotFound; // Throw an exception of a field is not found?
 	String expression; // Expression (as a string)
 	Expression expr; // Expression (parsed expression)
+	ReferencedFields referencedFields; // Fields used by the expression
+	CompiledExpression compiledExpr; // Compiled expression (null if not compiled)
+	ExpressionCounter exprCounter; // Expression tree including evaluation counters (null if not 'explain')
+	FieldIterator fieldIterator; // Evaluation state used by 'annotate()' (pipeline workers use their own)
+	boolean prepared; // Has the expression been prepared (see 'prepareExpression')?
 	String filterId; // FilterID string to add to FILTER field if the filter does NOT pass.
 	String addFilterField; // Add a string to FILTER field.
 	String rmFilterField; // Remove String from FILTER field
@@ -88,7 +105,16 @@ public class SnpSiftCmdFilter extends SnpSift {
 
 	@Override
 	public boolean annotate(VcfEntry vcfEntry) {
-		boolean eval = evaluate(vcfEntry);
+		if (!prepared) prepareExpression(vcfEntry.getVcfFileIterator().getVcfHeader());
+		return annotate(vcfEntry, fieldIterator);
+	}
+
+	/**
+	 * Evaluate expression and update FILTER field
+	 * @param fieldIterator : Evaluation state (one per thread)
+	 */
+	boolean annotate(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		boolean eval = evaluate(vcfEntry, fieldIterator);
 
 		// Use FILTER field? ('PASS' or filter name)
 		if (usePassField) {
@@ -116,22 +142,14 @@ public class SnpSiftCmdFilter extends SnpSift {
 	@Override
 	public boolean annotateInit(VcfFileIterator vcfFile) {
 		super.annotateInit(vcfFile);
-
-		try {
-			// Parse expression
-			parseExpression(expression);
-		} catch (Exception e) {
-			e.printStackTrace();
-			usage("Error parsing expression: '" + expression + "'");
-		}
+		initExpression();
 		return true;
 	}
 
 	/**
 	 * Iterate over all possible 'FieldIterator' values until one 'true' is found, otherwise return false.
 	 */
-	boolean evaluate(VcfEntry vcfEntry) {
-		FieldIterator fieldIterator = FieldIterator.get();
+	boolean evaluate(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		fieldIterator.reset();
 
 		boolean all = true, any = false;
@@ -139,7 +157,7 @@ public class SnpSiftCmdFilter extends SnpSift {
 		if (debug) Gpr.debug("VCF entry:" + vcfEntry.toStringNoGt());
 
 		do {
-			Value eval = expr.eval(vcfEntry);
+			Value eval = (compiledExpr != null ? compiledExpr.eval(vcfEntry, fieldIterator) : expr.eval(vcfEntry, fieldIterator));
 			if (debug) Gpr.debug("\tEval: " + eval + "\tFieldIterator: " + fieldIterator);
 
 			all &= eval.asBool();
@@ -205,6 +223,18 @@ public class SnpSiftCmdFilter extends SnpSift {
 		return addHeader;
 	}
 
+	/**
+	 * Parse expression (show usage on error)
+	 */
+	void initExpression() {
+		try {
+			parseExpression(expression);
+		} catch (Exception e) {
+			e.printStackTrace();
+			usage("Error parsing expression: '" + expression + "'");
+		}
+	}
+
 	/**
 	 * Initialize default values
 	 */
@@ -213,6 +243,10 @@ public class SnpSiftCmdFilter extends SnpSift {
 		super.init();
 		verbose = false;
 		usePassField = false;
+		compile = false;
+		optimize = false;
+		explain = false;
+		parseAll = false;
 		inverse = false;
 		vcfInputFile = null;
 		filterId = SnpSift.class.getSimpleName();
@@ -255,6 +289,22 @@ public class SnpSiftCmdFilter extends SnpSift {
 					usePassField = true;
 					break;
 
+				case "-compile":
+					compile = true;
+					break;
+
+				case "-explain":
+					explain = true;
+					break;
+
+				case "-optimize":
+					optimize = true;
+					break;
+
+				case "-parseall":
+					parseAll = true;
+					break;
+
 				case "--errmissing":
 					exceptionIfNotFound = true;
 					break;
@@ -316,16 +366,33 @@ public class SnpSiftCmdFilter extends SnpSift {
 
 		// Parse tree and create expression
 		expr = langFactory.compile(expression);
+		referencedFields = langFactory.getReferencedFields();
+		if (optimize && expr != null) expr = expr.optimize();
+		if (explain && expr != null) expr = exprCounter = ExpressionCounter.instrument(expr);
+		compiledExpr = null; // Compiled once field types are known (see 'prepareExpression')
+		fieldIterator = new FieldIterator();
+		prepared = false;
 
 		if (expression == null) {
 			System.err.println("Fatal error: Cannot build expression tree.");
 			System.exit(-1);
 		}
 
-		if (debug) Gpr.debug("Expression: " + expression);
+		if (debug) Gpr.debug("Expression: " + expression + "\nReferenced fields: " + referencedFields);
 		return expr;
 	}
 
+	/**
+	 * Prepare expression for evaluation: Field types are resolved using
+	 * the VCF header, before the expression is evaluated (see 'Expression.prepare').
+	 * INFO fields can then be compiled into direct lookups
+	 */
+	void prepareExpression(VcfHeader vcfHeader) {
+		expr.prepare(vcfHeader, false, 0);
+		if (compile) compiledExpr = expr.compile();
+		prepared = true;
+	}
+
 	@Override
 	public boolean run() {
 		run(false);
@@ -344,38 +411,70 @@ public class SnpSiftCmdFilter extends SnpSift {
 		// Initialize
 		LinkedList<VcfEntry> passEntries = (createList ? new LinkedList<VcfEntry>() : null);
 
-		// Open and read entries
+		// Parse expression
 		showVcfHeader = !createList;
-		VcfFileIterator vcfFile = openVcfInputFile();
-		annotateInit(vcfFile);
-		for (VcfEntry vcfEntry : vcfFile) {
+		initExpression();
+
+		// Open VCF file: Genotypes are only parsed if the expression uses them
+		// (genotype calls used by functions, e.g. 'countHet()', are packed from raw genotype columns)
+		boolean parseGenotypes = parseAll || (referencedFields.isGenotypes() && !referencedFields.isGenotypeCallsOnly());
+		VcfFileIterator vcfFile = parseGenotypes ? openVcfInputFile() : openVcfInputFileNoGt();
+
+		// Read entries, evaluate expression (using 'numWorkers' threads) and show them in the same order
+		boolean showAll = usePassField || (addFilterField != null) || (rmFilterField != null); // Always show entries (just change FILTER field)
+		VcfPipeline<VcfEntry> pipeline = new VcfPipeline<>(numWorkers, () -> {
+			FieldIterator fieldIterator = new FieldIterator(); // Evaluation state for this worker
+			return vcfEntry -> {
+				// Annotate (evaluate expression)
+				boolean show = annotate(vcfEntry, fieldIterator);
+				return show || showAll ? vcfEntry : null;
+			};
+		}, vcfEntry -> {
+			if (passEntries != null) passEntries.add(vcfEntry instanceof VcfEntryNoGt ? ((VcfEntryNoGt) vcfEntry).toVcfEntry() : vcfEntry); // Do not show. just add to the list (this is used for debugging and testing)
+			else System.out.println(vcfEntry);
+		});
+		pipeline.setReader(vcfEntry -> {
 			processVcfHeader(vcfFile);
+			if (!prepared) prepareExpression(vcfFile.getVcfHeader()); // Before any worker evaluates the expression
+		});
+		pipeline.run(vcfFile);
+		vcfFile.close();
 
-			// Annotate (evaluate expression)
-			boolean show = annotate(vcfEntry);
-
-			// Always show entries (just change FILTER field)
-			if (usePassField || (addFilterField != null) || (rmFilterField != null)) show = true;
-
-			// Show
-			if (show) {
-				if (passEntries != null) passEntries.add(vcfEntry); // Do not show. just add to the list (this is used for debugging and testing)
-				else System.out.println(vcfEntry);
-			}
-		}
 		annotateFinish(vcfFile);
 
+		// Show expression tree and number of evaluations
+		if (explain) System.err.println("Expression: " + expr + "\n" + exprCounter.toStringTree());
+
 		return passEntries;
 	}
 
+	/**
+	 * Open VCF input file, genotype columns are not parsed
+	 */
+	VcfNoGtFileIterator openVcfInputFileNoGt() {
+		if (vcfInputFile == null || vcfInputFile.isEmpty() || vcfInputFile.equals("-")) vcfInputFile = "-";
+		if (verbose) Timer.showStdErr("Opening VCF input '" + (vcfInputFile.equals("-") ? "STDIN" : vcfInputFile) + "', genotypes are not parsed");
+		VcfNoGtFileIterator vcf = new VcfNoGtFileIterator(vcfInputFile, true);
+		vcf.setDebug(debug);
+		return vcf;
+	}
+
 	public void setAddFilterField(String addFilterField) {
 		this.addFilterField = addFilterField;
 	}
 
+	public void setCompile(boolean compile) {
+		this.compile = compile;
+	}
+
 	public void setExceptionIfNotFound(boolean exceptionIfNotFound) {
 		this.exceptionIfNotFound = exceptionIfNotFound;
 	}
 
+	public void setExplain(boolean explain) {
+		this.explain = explain;
+	}
+
 	public void setExpression(String expression) {
 		this.expression = expression;
 	}
@@ -392,6 +491,14 @@ public class SnpSiftCmdFilter extends SnpSift {
 		this.inverse = inverse;
 	}
 
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+
+	public void setParseAll(boolean parseAll) {
+		this.parseAll = parseAll;
+	}
+
 	public void setRmFilterField(String rmFilterField) {
 		this.rmFilterField = rmFilterField;
 	}
@@ -419,11 +526,16 @@ public class SnpSiftCmdFilter extends SnpSift {
 		System.err.println("Usage: java -jar " + SnpSift.class.getSimpleName() + "" + ".jar filter [options] 'expression' [input.vcf]");
 		System.err.println("Options:");
 		System.err.println("\t-a|--addFilter <str>  : Add a string to FILTER VCF field if 'expression' is true. Default: '' (none)");
+		System.err.println("\t-compile              : Compile expression into specialized lambdas, instead of interpreting the expression tree.");
+		System.err.println("\t-cpus <num>           : Number of threads used to evaluate expressions. Default: " + numWorkers);
 		System.err.println("\t-e|--exprFile <file>  : Read expression from a file");
+		System.err.println("\t-explain              : Show expression tree (after optimization, if any) and number of evaluations of each node.");
 		System.err.println("\t-f|--file <input.vcf> : VCF input file. Default: STDIN");
 		System.err.println("\t-i|--filterId <str>   : ID for this filter (##FILTER tag in header and FILTER VCF field). Default: '" + filterId + "'");
 		System.err.println("\t-n|--inverse          : Inverse. Show lines that do not match filter expression");
+		System.err.println("\t-optimize             : Optimize expression: Cheaper 'And' / 'Or' operands are evaluated first. Default: " + optimize);
 		System.err.println("\t-p|--pass             : Use 'PASS' field instead of filtering out VCF entries");
+		System.err.println("\t-parseAll             : Parse all VCF columns. Default: Genotypes are only parsed if the expression uses them.");
 		System.err.println("\t-r|--rmFilter <str>   : Remove a string from FILTER VCF field if 'expression' is true (and 'str' is in the field). Default: '' (none)");
 		System.err.println("\t-s|--set <file>       : Create a SET using 'file'");
 		System.err.println("\t--errMissing          : Error is a field is missing. Default: " + exceptionIfNotFound);
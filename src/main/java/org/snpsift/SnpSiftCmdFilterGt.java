@@ -10,12 +10,19 @@ import org.snpeff.util.Gpr;
 import org.snpeff.vcf.EffFormatVersion;
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpeff.vcf.VcfHeaderEntry;
+import org.snpsift.fileIterator.VcfEntryNoGt;
+import org.snpsift.fileIterator.VcfNoGtFileIterator;
 import org.snpsift.lang.LangFactory;
 import org.snpsift.lang.Value;
+import org.snpsift.lang.expression.CompiledGenotypeExpression;
 import org.snpsift.lang.expression.Expression;
 import org.snpsift.lang.expression.Field;
 import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.lang.expression.GenotypeFields;
+import org.snpsift.util.LineWriter;
+import org.snpsift.util.VcfPipeline;
 
 /**
  * Generic SnpSift genotype filter
@@ -25,15 +32,27 @@ import org.snpsift.lang.expression.FieldIterator;
  * with quality lower than 20 will be replaced
  * by './.' (missing)
  *
+ * If possible, the expression is compiled once into a per-sample predicate
+ * over genotype fields split from the raw genotype columns (fields are found
+ * by FORMAT index, see GenotypeFields). Genotypes matching the filter are
+ * rewritten directly in the raw genotype columns, so samples are never parsed
+ * into VcfGenotype objects. Otherwise, genotypes are parsed when reading each
+ * line and the expression tree is evaluated on each VcfGenotype.
+ *
+ * Blocks of VCF entries are evaluated by 'numWorkers' threads (output order is preserved).
+ *
  * @author pablocingolani
  */
 public class SnpSiftCmdFilterGt extends SnpSift {
 
+	boolean compile; // Compile expression into a per-sample predicate (when possible)
 	boolean inverse; // Inverse filter (i.e. do NOT show lines that match the filter)
 	boolean exceptionIfNotFound; // Throw an exception of a field is not found?
 	String expression; // Expression (as a string)
 	String gtFieldName, gtFieldValue;
 	Expression expr; // Expression (parsed expression string)
+	CompiledGenotypeExpression compiledExpr; // Compiled expression (null if not compiled)
+	GenotypeFields genotypeFields; // Genotype fields used by the compiled expression
 	String filterId; // FilterID string to add to FILTER field if the filter does NOT pass.
 	ArrayList<HashSet<String>> sets;
 	EffFormatVersion formatVersion;
@@ -64,15 +83,73 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 		if (verbose) System.err.println("Adding set '" + fileName + "', " + set.size() + " elements.");
 	}
 
+	/**
+	 * Append a sample replacing field number 'fieldIdx' by 'gtFieldValue'. The sample
+	 * is 'str[start]' to 'str[end-1]'. Missing 'GT' values keep the sample's ploidy (e.g. './.')
+	 */
+	void appendChanged(String str, int start, int end, int fieldIdx, StringBuilder sb) {
+		// Find field number 'fieldIdx'
+		int fieldStart = start, idx = 0;
+		for (; idx < fieldIdx; idx++) {
+			int next = str.indexOf(':', fieldStart);
+			if (next < 0 || next >= end) break;
+			fieldStart = next + 1;
+		}
+
+		// Not enough fields in this sample? Add missing ones
+		if (idx < fieldIdx) {
+			sb.append(str, start, end);
+			for (idx++; idx < fieldIdx; idx++)
+				sb.append(':').append(VcfFileIterator.MISSING);
+			sb.append(':').append(gtFieldValue);
+			return;
+		}
+
+		int fieldEnd = str.indexOf(':', fieldStart);
+		if (fieldEnd < 0 || fieldEnd > end) fieldEnd = end;
+
+		sb.append(str, start, fieldStart);
+		if (gtFieldName.equals("GT") && gtFieldValue.equals(VcfFileIterator.MISSING)) {
+			// Missing genotype: One missing allele per allele
+			sb.append(VcfFileIterator.MISSING);
+			for (int i = fieldStart; i < fieldEnd; i++) {
+				char c = str.charAt(i);
+				if (c == '/' || c == '|') sb.append(c).append(VcfFileIterator.MISSING);
+			}
+		} else sb.append(gtFieldValue);
+		sb.append(str, fieldEnd, end);
+	}
+
+	/**
+	 * Prepare and compile expression using VCF header (fields types are defined in the header).
+	 * It is invoked once, before the first VCF entry is parsed
+	 */
+	void compile(VcfHeader vcfHeader) {
+		genotypeFields = new GenotypeFields();
+		if (expr != null) expr.prepare(vcfHeader, true, 0);
+		if (!compile || debug || expr == null) return;
+
+		compiledExpr = expr.compileGenotype(vcfHeader, genotypeFields);
+		if (verbose) System.err.println("Expression " + (compiledExpr != null ? "compiled. " + genotypeFields : "cannot be compiled, using expression tree"));
+	}
+
 	/**
 	 * Evaluate all genotypes for this entry
 	 */
 	boolean evaluate(VcfEntry vcfEntry) {
+		return evaluate(vcfEntry, new FieldIterator());
+	}
+
+	/**
+	 * Evaluate all genotypes for this entry
+	 */
+	boolean evaluate(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		if (debug) Gpr.debug(vcfEntry.toStringNoGt());
 
 		boolean ok = false;
 		for (VcfGenotype vgt : vcfEntry) {
-			boolean change = evaluate(vcfEntry, vgt);
+			fieldIterator.reset();
+			boolean change = evaluate(vcfEntry, vgt, fieldIterator);
 
 			if (debug) Gpr.debug("\t\tevaluate:" + change + "\t" + vgt);
 
@@ -89,16 +166,13 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 	/**
 	 * Iterate over all possible 'FieldIterator' values until one 'true' is found, otherwise return false.
 	 */
-	boolean evaluate(VcfEntry vcfEntry, VcfGenotype vcfGenotype) {
-		FieldIterator fieldIterator = FieldIterator.get();
-		fieldIterator.reset();
-
+	boolean evaluate(VcfEntry vcfEntry, VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
 		boolean all = true, any = false;
 
 		if (debug) Gpr.debug("VCF entry:" + vcfEntry.toStringNoGt() + "\t" + vcfGenotype);
 
 		do {
-			Value eval = expr.eval(vcfGenotype);
+			Value eval = expr.eval(vcfGenotype, fieldIterator);
 			if (debug) Gpr.debug("\tEval: " + eval + "\tFieldIterator: " + fieldIterator);
 
 			all &= eval.asBool();
@@ -138,6 +212,75 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 		return ret;
 	}
 
+	/**
+	 * Evaluate all genotypes using the compiled expression. Samples matching the
+	 * filter are rewritten directly in the raw genotype columns
+	 * @param gf : Genotype fields (one per thread)
+	 * @param sb : Buffer for the new genotype columns
+	 * @return False if the entry cannot be evaluated this way (i.e. field 'gtFieldName' is not in FORMAT)
+	 */
+	boolean evaluateCompiled(VcfEntryNoGt vcfEntry, GenotypeFields gf, StringBuilder sb) {
+		String gts = vcfEntry.getGenotypesStr();
+		if (gts == null) return true; // No genotypes
+
+		int formatEnd = gts.indexOf('\t');
+		if (formatEnd < 0) return true; // No samples
+
+		gf.setFormat(gts, formatEnd);
+		int fieldIdx = gf.formatIndex(gtFieldName);
+		if (fieldIdx < 0) return false;
+
+		// Evaluate each sample, copy samples not changed
+		sb.setLength(0);
+		int copied = 0;
+		boolean changed = false;
+		for (int start = formatEnd + 1; start <= gts.length();) {
+			int end = gts.indexOf('\t', start);
+			if (end < 0) end = gts.length();
+
+			gf.setSample(gts, start, end);
+			boolean change = inverse ^ compiledExpr.eval(gf).asBool();
+			if (change) {
+				sb.append(gts, copied, start);
+				appendChanged(gts, start, end, fieldIdx, sb);
+				copied = end;
+				changed = true;
+			}
+
+			start = end + 1;
+		}
+
+		// Any sample changed?
+		if (changed) {
+			sb.append(gts, copied, gts.length());
+			vcfEntry.setGenotypesStr(sb.toString());
+		}
+
+		return true;
+	}
+
+	/**
+	 * Worker: Evaluate a VCF entry (each worker uses its own buffers)
+	 */
+	VcfPipeline.Worker<VcfEntry> evaluateWorker() {
+		FieldIterator fieldIterator = new FieldIterator();
+		StringBuilder sb = new StringBuilder();
+		GenotypeFields gf[] = new GenotypeFields[1]; // Created on first use (the expression is compiled after reading the VCF header)
+
+		return vcfEntry -> {
+			// Genotypes are only left unparsed if the expression is compiled
+			if (vcfEntry instanceof VcfEntryNoGt) {
+				VcfEntryNoGt vcfEntryNoGt = (VcfEntryNoGt) vcfEntry;
+				if (gf[0] == null) gf[0] = genotypeFields.copy();
+				if (evaluateCompiled(vcfEntryNoGt, gf[0], sb)) return vcfEntry;
+				vcfEntry = vcfEntryNoGt.toVcfEntry(); // Field 'gtFieldName' is not in this entry's FORMAT: Parse genotypes
+			}
+
+			evaluate(vcfEntry, fieldIterator);
+			return vcfEntry;
+		};
+	}
+
 	/**
 	 * Filter a file
 	 */
@@ -166,6 +309,7 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 		vcfInputFile = null;
 		filterId = SnpSift.class.getSimpleName();
 		sets = new ArrayList<>();
+		compile = true;
 		formatVersion = null; // VcfEffect.FormatVersion.FORMAT_SNPEFF_3;
 		exceptionIfNotFound = false;
 
@@ -174,6 +318,27 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 		gtFieldValue = ".";
 	}
 
+	/**
+	 * Open VCF input file. The expression is compiled once the header is read
+	 * (i.e. before parsing the first entry): Genotype columns are only left
+	 * unparsed if the compiled expression can be used
+	 */
+	@Override
+	protected VcfFileIterator openVcfInputFile() {
+		if (vcfInputFile == null || vcfInputFile.isEmpty()) vcfInputFile = "-";
+		VcfFileIterator vcf = new VcfNoGtFileIterator(vcfInputFile, true) {
+			@Override
+			public VcfEntry parseVcfLine(String line) {
+				if (line.isEmpty() || line.startsWith("#")) return super.parseVcfLine(line);
+				if (genotypeFields == null) compile(getVcfHeader()); // Field types are defined in the VCF header
+				if (compiledExpr != null) return super.parseVcfLine(line);
+				return new VcfEntry(this, line, getLineNum(), true);
+			}
+		};
+		vcf.setDebug(debug);
+		return vcf;
+	}
+
 	/**
 	 * Parse command line options
 	 */
@@ -200,6 +365,10 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 					addSet(args[++i]);
 					break;
 
+				case "-nocompile":
+					compile = false;
+					break;
+
 				case "--errmissing":
 					exceptionIfNotFound = true;
 					break;
@@ -263,6 +432,10 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 		return expr;
 	}
 
+	public void setCompile(boolean compile) {
+		this.compile = compile;
+	}
+
 	@Override
 	public boolean run() {
 		run(false);
@@ -289,20 +462,22 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 		// Initialize
 		LinkedList<VcfEntry> passEntries = (createList ? new LinkedList<VcfEntry>() : null);
 
-		// Open and read entries
+		// Open VCF file: Genotypes are only parsed if the expression cannot be compiled
 		VcfFileIterator vcfFile = openVcfInputFile();
 		annotateInit(vcfFile);
 		showVcfHeader = !createList;
-		for (VcfEntry vcfEntry : vcfFile) {
-			// Show header before first entry
-			processVcfHeader(vcfFile);
 
-			// Evaluate expression
-			evaluate(vcfEntry);
+		// Read entries, evaluate expression (using 'numWorkers' threads) and show them in the same order
+		LineWriter out = (createList ? null : new LineWriter(System.out));
+		VcfPipeline<VcfEntry> pipeline = new VcfPipeline<>(numWorkers, this::evaluateWorker, vcfEntry -> {
+			if (passEntries != null) passEntries.add(vcfEntry instanceof VcfEntryNoGt ? ((VcfEntryNoGt) vcfEntry).toVcfEntry() : vcfEntry); // Do not show. just add to the list (this is used for debugging and testing)
+			else out.appendLine(vcfEntry.toString());
+		});
+		pipeline.setReader(vcfEntry -> processVcfHeader(vcfFile)); // Show header before first entry
+		pipeline.run(vcfFile);
+		vcfFile.close();
+		if (out != null) out.close();
 
-			if (passEntries != null) passEntries.add(vcfEntry); // Do not show. just add to the list (this is used for debugging and testing)
-			else System.out.println(vcfEntry);
-		}
 		annotateFinish(vcfFile);
 
 		return passEntries;
@@ -328,6 +503,8 @@ public class SnpSiftCmdFilterGt extends SnpSift {
 		System.err.println("\t-gv | --value <value>      : Field value to replace if filter is true. Default: '" + gtFieldValue + "'");
 		System.err.println("\t-n  | --inverse            : Inverse. Show lines that do not match filter expression");
 		System.err.println("\t-s  | --set <file>         : Create a SET using 'file'");
+		System.err.println("\t-cpus <num>                : Number of threads used to evaluate VCF entries. Default: " + numWorkers);
+		System.err.println("\t-noCompile                 : Do not compile expression, evaluate expression tree on each genotype.");
 		System.err.println("\t--errMissing               : Error is a field is missing. Default: " + exceptionIfNotFound);
 		System.err.println("\t--format <format>          : SnpEff format version: {2, 3}. Default: " + (formatVersion == null ? "Auto" : formatVersion));
 		System.exit(-1);
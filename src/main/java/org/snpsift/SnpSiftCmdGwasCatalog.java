@@ -3,6 +3,7 @@ package org.snpsift;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.snpeff.fileIterator.VcfFileIterator;
 import org.snpeff.interval.Chromosome;
@@ -20,6 +21,7 @@ import org.snpeff.vcf.VcfHeaderInfo.VcfInfoNumber;
 import org.snpeff.vcf.VcfInfoType;
 import org.snpsift.gwasCatalog.GwasCatalog;
 import org.snpsift.gwasCatalog.GwasCatalogEntry;
+import org.snpsift.util.VcfPipeline;
 
 /**
  * Annotate a VCF file using GWAS catalog database
@@ -36,6 +38,7 @@ public class SnpSiftCmdGwasCatalog extends SnpSift {
 	public final String GWAS_CATALOG = "GWASCAT";
 	public final String CONFIG_GWAS_DB_NAME = "gwascatalog";
 
+	boolean showHeader = true;
 	GwasCatalog gwasCatalog;
 	IntervalForest intervalForest;
 
@@ -57,32 +60,34 @@ public class SnpSiftCmdGwasCatalog extends SnpSift {
 
 		annotateInit(vcf);
 
-		int countAnnotated = 0, count = 0;
-		boolean showHeader = true;
+		AtomicInteger countAnnotated = new AtomicInteger(), count = new AtomicInteger();
 		List<VcfEntry> vcfEntries = saveResults ? new ArrayList<VcfEntry>() : null;
 
-		for (VcfEntry vcfEntry : vcf) {
-			// Show header?
+		// Read entries, annotate them (using 'numWorkers' threads) and show them in the same order
+		VcfPipeline<VcfEntry> pipeline = new VcfPipeline<>(numWorkers, () -> vcfEntry -> {
+			if (annotate(vcfEntry)) countAnnotated.incrementAndGet();
+			return vcfEntry;
+		}, vcfEntry -> {
+			// Show entry
+			if (saveResults) vcfEntries.add(vcfEntry);
+			else print(vcfEntry);
+			count.incrementAndGet();
+		});
+
+		// Show header
+		pipeline.setReader(vcfEntry -> {
 			if (showHeader) {
 				addHeaders(vcf);
 				String headerStr = vcf.getVcfHeader().toString();
 				if (!headerStr.isEmpty()) print(headerStr);
 				showHeader = false;
 			}
-
-			boolean annotated = annotate(vcfEntry);
-
-			// Show entry
-			if (saveResults) vcfEntries.add(vcfEntry);
-			else print(vcfEntry);
-
-			if (annotated) countAnnotated++;
-			count++;
-		}
+		});
+		pipeline.run(vcf);
 
 		annotateFinish(vcf);
 
-		double perc = (100.0 * countAnnotated) / count;
+		double perc = (100.0 * countAnnotated.get()) / count.get();
 		if (verbose) Timer.showStdErr("Done." //
 				+ "\n\tTotal annotated entries : " + countAnnotated //
 				+ "\n\tTotal entries           : " + count //
@@ -102,7 +107,11 @@ public class SnpSiftCmdGwasCatalog extends SnpSift {
 			// Skip non-variants and huge deletions
 			if (!var.isVariant() || var.isStructuralHuge()) continue;
 
-			Markers results = intervalForest.query(var);
+			// Note: Querying may modify the interval forest, so it is synchronized (annotate can be invoked from several threads)
+			Markers results;
+			synchronized (intervalForest) {
+				results = intervalForest.query(var);
+			}
 
 			// Any results? Annotate VcfEntry
 			if (!results.isEmpty()) {
@@ -12,6 +12,7 @@ import org.snpeff.vcf.VcfHeaderEntry;
 import org.snpeff.vcf.VcfHeaderInfo;
 import org.snpeff.vcf.VcfHeaderInfo.VcfInfoNumber;
 import org.snpeff.vcf.VcfInfoType;
+import org.snpsift.util.VcfPipeline;
 
 /**
  * Annotate a VCF file with variant type
@@ -25,6 +26,7 @@ public class SnpSiftCmdVarType extends SnpSift {
 
 	public static final String VARTYPE = "VARTYPE";
 
+	boolean showHeader = true;
 	String vcfFile;
 	HashMap<String, String> db = new HashMap<>();
 
@@ -116,19 +118,23 @@ public class SnpSiftCmdVarType extends SnpSift {
 		VcfFileIterator vcf = new VcfFileIterator(vcfFile);
 		vcf.setDebug(debug);
 
-		boolean showHeader = true;
-		for (VcfEntry vcfEntry : vcf) {
-			// Show header?
+		// Read entries, annotate them (using 'numWorkers' threads) and show them in the same order
+		VcfPipeline<VcfEntry> pipeline = new VcfPipeline<>(numWorkers, () -> vcfEntry -> {
+			annotate(vcfEntry);
+			return vcfEntry;
+		}, vcfEntry -> System.out.println(vcfEntry));
+
+		// Show header
+		pipeline.setReader(vcfEntry -> {
 			if (showHeader) {
 				addHeaders(vcf);
 				String headerStr = vcf.getVcfHeader().toString();
 				if (!headerStr.isEmpty()) System.out.println(headerStr);
 				showHeader = false;
 			}
+		});
+		pipeline.run(vcf);
 
-			annotate(vcfEntry);
-			System.out.println(vcfEntry);
-		}
 		return true;
 	}
 
@@ -0,0 +1,167 @@
+package org.snpsift.annotate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.snpeff.util.Gpr;
+import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfHeader;
+
+/**
+ * Client for an annotation server (see AnnotateServer)
+ *
+ * Only the first eight columns of each VCF entry are sent to the
+ * server. Annotations (ID and INFO fields) are applied to the
+ * original VCF entries.
+ *
+ * Note: This class is not thread safe (use one client per thread)
+ *
+ * @author pcingola
+ */
+public class AnnotateClient {
+
+	boolean debug;
+	int port;
+	String token; // Server's token (see AnnotateServer.readToken)
+	List<String> dbArgs; // 'annotate' command line options used to open the database in the server
+	int dbId = -1;
+	Socket socket;
+	BufferedReader in;
+	BufferedWriter out;
+	VcfHeader vcfHeader;
+
+	public AnnotateClient(int port, String token, List<String> dbArgs) {
+		this.port = port;
+		this.token = token;
+		this.dbArgs = dbArgs;
+	}
+
+	/**
+	 * Annotate VCF entries
+	 * Entries are sent in requests of at most AnnotateServer.MAX_ANNOTATE_LINES lines
+	 * @return True for each entry that has been annotated
+	 */
+	public boolean[] annotate(List<VcfEntry> vcfEntries) {
+		boolean annotated[] = new boolean[vcfEntries.size()];
+		for (int start = 0; start < vcfEntries.size(); start += AnnotateServer.MAX_ANNOTATE_LINES) {
+			List<VcfEntry> requestEntries = vcfEntries.subList(start, Math.min(start + AnnotateServer.MAX_ANNOTATE_LINES, vcfEntries.size()));
+			List<String> lines = new ArrayList<>(requestEntries.size());
+			for (VcfEntry ve : requestEntries)
+				lines.add(ve.toStringNoGt());
+
+			List<String> response = request(AnnotateServer.CMD_ANNOTATE + "\t" + dbId + "\t" + lines.size(), lines);
+			if (response.size() != requestEntries.size()) throw new RuntimeException("Annotation server returned " + response.size() + " entries, expected " + requestEntries.size());
+
+			for (int i = 0; i < requestEntries.size(); i++)
+				annotated[start + i] = AnnotateServerEntry.applyAnnotations(requestEntries.get(i), response.get(i));
+		}
+
+		return annotated;
+	}
+
+	public void close() {
+		try {
+			if (out != null) {
+				out.write(AnnotateServer.CMD_QUIT);
+				out.write('\n');
+				out.flush();
+			}
+			if (socket != null) socket.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		socket = null;
+		in = null;
+		out = null;
+	}
+
+	/**
+	 * Database's VCF header
+	 */
+	public VcfHeader getVcfHeader() {
+		if (vcfHeader == null) {
+			vcfHeader = new VcfHeader();
+			for (String line : request(AnnotateServer.CMD_HEADER + "\t" + dbId, null))
+				vcfHeader.addLine(line);
+		}
+
+		return vcfHeader;
+	}
+
+	/**
+	 * Connect to the server and open the database
+	 */
+	public void open() {
+		try {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setTcpNoDelay(true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot connect to annotation server on port " + port + ". Is the server running?", e);
+		}
+
+		String response = request(AnnotateServer.CMD_OPEN + "\t" + token + "\t" + String.join("\t", dbArgs), null).get(0);
+		dbId = Gpr.parseIntSafe(response);
+	}
+
+	/**
+	 * Send a request and read the response
+	 * @param lines : Lines to send after the request (can be null)
+	 * @return Response data lines (for 'OK\t<value>' responses without data lines, the value)
+	 */
+	List<String> request(String request, List<String> lines) {
+		if (debug) Gpr.debug("Request: " + request);
+
+		try {
+			// Send request
+			out.write(request);
+			out.write('\n');
+			if (lines != null) {
+				for (String line : lines) {
+					out.write(line);
+					out.write('\n');
+				}
+			}
+			out.flush();
+
+			// Read response
+			String status = in.readLine();
+			if (status == null) throw new RuntimeException("Annotation server closed the connection");
+
+			String fields[] = status.split("\t", 2);
+			if (!fields[0].equals(AnnotateServer.RESPONSE_OK)) throw new RuntimeException("Annotation server error: " + (fields.length > 1 ? fields[1] : status));
+
+			List<String> response = new ArrayList<>();
+			String value = fields.length > 1 ? fields[1] : "";
+			if (request.startsWith(AnnotateServer.CMD_OPEN)) {
+				response.add(value);
+			} else {
+				int numLines = Gpr.parseIntSafe(value);
+				for (int i = 0; i < numLines; i++) {
+					String line = in.readLine();
+					if (line == null) throw new RuntimeException("Annotation server closed the connection");
+					response.add(line);
+				}
+			}
+
+			return response;
+		} catch (IOException e) {
+			throw new RuntimeException("Error communicating with annotation server on port " + port, e);
+		}
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+}
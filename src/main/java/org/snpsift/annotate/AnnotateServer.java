@@ -0,0 +1,400 @@
+package org.snpsift.annotate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.util.Gpr;
+import org.snpeff.util.Timer;
+import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfHeader;
+import org.snpsift.util.VcfPipeline;
+
+/**
+ * Annotation server: Keeps annotation databases open and annotates
+ * VCF entries sent by clients (see AnnotateClient).
+ *
+ * This avoids opening the database (reading indexes, warming up caches)
+ * every time 'SnpSift annotate' is invoked.
+ *
+ * The server only listens on the loopback interface (local clients). When the
+ * server starts, it writes a random token to a file only readable by the user
+ * (see 'tokenFile'). Clients must send the token to open a database, so only
+ * processes that can read the file can use the server.
+ *
+ * Protocol: Text lines (UTF-8), fields are tab separated. Each request is
+ * answered either with 'OK' (optionally followed by data lines) or with 'ERROR\t<message>'
+ *
+ *     OPEN\t<token>\t<arg_1>\t...\t<arg_N>	: Open a database using 'annotate' command line options (the last one is the database file)
+ *                                          Response: 'OK\t<dbId>'
+ *     HEADER\t<dbId>					: Database's VCF header
+ *                                          Response: 'OK\t<numLines>' followed by the header lines
+ *     ANNOTATE\t<dbId>\t<numLines>		: Annotate VCF entries. The request is followed by 'numLines' VCF lines (first eight columns, at most MAX_ANNOTATE_LINES)
+ *                                          Response: 'OK\t<numLines>' followed by one line per entry (see AnnotateServerEntry)
+ *     QUIT								: Close connection
+ *
+ * Databases opened using the same options are shared by all clients. The
+ * database factory decides which databases and options are allowed.
+ * A connection can only use databases it has opened. A rejected ANNOTATE
+ * request closes the connection, since its VCF lines are not read.
+ *
+ * Note: AnnotateVcfDb objects are not thread safe, so each connection
+ * annotates using its own copy of the database (see AnnotateVcfDb.workerCopy).
+ * Read-only data (e.g. indexes) is shared, so connections are processed in parallel.
+ *
+ * @author pcingola
+ */
+public class AnnotateServer {
+
+	public static final int DEFAULT_PORT = 9455;
+
+	public static final String CMD_ANNOTATE = "ANNOTATE";
+	public static final String CMD_HEADER = "HEADER";
+	public static final String CMD_OPEN = "OPEN";
+	public static final String CMD_QUIT = "QUIT";
+	public static final String RESPONSE_OK = "OK";
+	public static final String RESPONSE_ERROR = "ERROR";
+	public static final int TOKEN_BYTES = 32;
+	public static final int MAX_ANNOTATE_LINES = 10 * VcfPipeline.DEFAULT_BATCH_SIZE; // Maximum number of VCF lines in an 'ANNOTATE' request
+
+	boolean verbose, debug;
+	int port;
+	String token; // Clients must send this token to open a database
+	String tokenFile; // File where the token is written (only readable by the user)
+	ServerSocket serverSocket;
+	ExecutorService executor;
+	Function<List<String>, AnnotateVcfDb> dbFactory; // Create and open a database from 'annotate' command line options
+	List<AnnotateVcfDb> databases; // Open databases (index is 'dbId')
+	Map<String, Integer> dbIdByArgs; // Database ID, indexed by command line options
+
+	public AnnotateServer(int port, Function<List<String>, AnnotateVcfDb> dbFactory) {
+		this.port = port;
+		this.dbFactory = dbFactory;
+		databases = new ArrayList<>();
+		dbIdByArgs = new HashMap<>();
+	}
+
+	/**
+	 * Default token file for a server listening on 'port'
+	 */
+	public static String defaultTokenFile(int port) {
+		return new File(System.getProperty("user.home"), ".snpSift_annotateServer_" + port + ".token").getPath();
+	}
+
+	/**
+	 * Read a token file (see 'writeToken')
+	 */
+	public static String readToken(String tokenFile) {
+		try {
+			return new String(Files.readAllBytes(new File(tokenFile).toPath()), StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read annotation server token file '" + tokenFile + "'", e);
+		}
+	}
+
+	/**
+	 * Annotate VCF lines using database 'annotateDb'
+	 * @return Response lines (one per VCF line)
+	 */
+	List<String> annotate(AnnotateVcfDb annotateDb, List<String> lines, VcfFileIterator vcfFileIterator) {
+		// Parse entries
+		List<AnnotateServerEntry> vcfEntries = new ArrayList<>(lines.size());
+		List<VcfEntry> variantEntries = new ArrayList<>(lines.size());
+		int lineNum = 0;
+		for (String line : lines) {
+			AnnotateServerEntry ve = new AnnotateServerEntry(vcfFileIterator, line, lineNum++);
+			vcfEntries.add(ve);
+			if (ve.isVariant()) variantEntries.add(ve);
+		}
+
+		// Annotate
+		List<List<QueryResult>> queryResults = annotateDb.queryBatch(variantEntries);
+		for (int i = 0; i < variantEntries.size(); i++) {
+			AnnotateServerEntry ve = (AnnotateServerEntry) variantEntries.get(i);
+			ve.setAnnotated(annotateDb.annotate(ve, queryResults.get(i)));
+		}
+
+		// Create response
+		List<String> response = new ArrayList<>(vcfEntries.size());
+		for (AnnotateServerEntry ve : vcfEntries)
+			response.add(ve.toStringAnnotations());
+		return response;
+	}
+
+	public void close() {
+		try {
+			if (serverSocket != null) serverSocket.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		serverSocket = null;
+
+		if (executor != null) executor.shutdownNow();
+		executor = null;
+
+		synchronized (this) {
+			for (AnnotateVcfDb annotateDb : databases)
+				annotateDb.close();
+			databases.clear();
+			dbIdByArgs.clear();
+		}
+
+		if (tokenFile != null) new File(tokenFile).delete();
+	}
+
+	/**
+	 * Database 'dbId', as used by a connection
+	 * @param connectionDbs : Databases opened by the connection
+	 */
+	AnnotateVcfDb getConnectionDatabase(Map<Integer, AnnotateVcfDb> connectionDbs, int dbId) {
+		AnnotateVcfDb annotateDb = connectionDbs.get(dbId);
+		if (annotateDb == null) throw new RuntimeException("Database ID " + dbId + " has not been opened by this connection");
+		return annotateDb;
+	}
+
+	synchronized AnnotateVcfDb getDatabase(int dbId) {
+		if (dbId < 0 || dbId >= databases.size()) throw new RuntimeException("Unknown database ID " + dbId);
+		return databases.get(dbId);
+	}
+
+	public int getPort() {
+		return serverSocket != null ? serverSocket.getLocalPort() : port;
+	}
+
+	/**
+	 * Handle all requests from a client
+	 */
+	void handle(Socket socket) {
+		if (verbose) Timer.showStdErr("Client connected: " + socket);
+		VcfFileIterator vcfFileIterator = new VcfFileIterator(); // Used to parse VCF lines
+		vcfFileIterator.setVcfHeader(new VcfHeader());
+		Map<Integer, AnnotateVcfDb> connectionDbs = new HashMap<>(); // Databases used by this connection (by dbId)
+
+		try (Socket s = socket; //
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)); //
+				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) //
+		) {
+			for (String request = in.readLine(); request != null; request = in.readLine()) {
+				if (debug) Gpr.debug("Request: " + request);
+				String fields[] = request.split("\t", -1);
+				List<String> response;
+				boolean closeConnection = false; // Close connection after sending the response
+
+				try {
+					switch (fields[0]) {
+					case CMD_OPEN:
+						if (fields.length < 3 || !isValidToken(fields[1])) throw new RuntimeException("Invalid token");
+						int dbId = open(Arrays.asList(fields).subList(2, fields.length));
+						if (!connectionDbs.containsKey(dbId)) connectionDbs.put(dbId, getDatabase(dbId).workerCopy());
+
+						response = new ArrayList<>();
+						response.add(RESPONSE_OK + "\t" + dbId);
+						break;
+
+					case CMD_HEADER:
+						response = header(getConnectionDatabase(connectionDbs, Gpr.parseIntSafe(fields[1])));
+						break;
+
+					case CMD_ANNOTATE:
+						// Check request before reading VCF lines (if rejected, lines are not read so the connection is closed)
+						closeConnection = true;
+						AnnotateVcfDb annotateDb = getConnectionDatabase(connectionDbs, Gpr.parseIntSafe(fields[1]));
+						int numLines = Gpr.parseIntSafe(fields[2]);
+						if (numLines < 0 || numLines > MAX_ANNOTATE_LINES) throw new RuntimeException("Invalid number of lines " + numLines + ", maximum " + MAX_ANNOTATE_LINES);
+
+						// Read VCF lines
+						List<String> lines = new ArrayList<>(numLines);
+						for (int i = 0; i < numLines; i++) {
+							String line = in.readLine();
+							if (line == null) throw new IOException("Unexpected end of request");
+							lines.add(line);
+						}
+						closeConnection = false;
+
+						response = annotate(annotateDb, lines, vcfFileIterator);
+						response.add(0, RESPONSE_OK + "\t" + response.size());
+						break;
+
+					case CMD_QUIT:
+						return;
+
+					default:
+						throw new RuntimeException("Unknown request '" + fields[0] + "'");
+					}
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					if (verbose) e.printStackTrace();
+					response = new ArrayList<>();
+					response.add(RESPONSE_ERROR + "\t" + String.valueOf(e.getMessage()).replace('\n', ' ').replace('\t', ' '));
+				}
+
+				// Send response
+				for (String line : response) {
+					out.write(line);
+					out.write('\n');
+				}
+				out.flush();
+				if (closeConnection) return;
+			}
+		} catch (IOException e) {
+			if (verbose) e.printStackTrace();
+		} finally {
+			// Close this connection's copies (shared data is only closed by the original database)
+			for (AnnotateVcfDb annotateDb : connectionDbs.values())
+				annotateDb.close();
+			if (verbose) Timer.showStdErr("Client disconnected: " + socket);
+		}
+	}
+
+	/**
+	 * VCF header lines from database 'annotateDb'
+	 */
+	List<String> header(AnnotateVcfDb annotateDb) {
+		List<String> response = new ArrayList<>();
+		VcfHeader vcfHeader = annotateDb.getVcfHeader();
+		if (vcfHeader != null) {
+			for (String line : vcfHeader.toString().split("\n"))
+				if (!line.isEmpty()) response.add(line);
+		}
+
+		response.add(0, RESPONSE_OK + "\t" + response.size());
+		return response;
+	}
+
+	/**
+	 * Compare tokens (constant time)
+	 */
+	boolean isValidToken(String clientToken) {
+		return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), clientToken.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Start listening (only on the loopback interface) and write the token file
+	 */
+	public void open() {
+		try {
+			serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot open server socket on port " + port, e);
+		}
+
+		// Create a random token
+		byte random[] = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : random)
+			sb.append(String.format("%02x", b));
+		token = sb.toString();
+
+		if (tokenFile == null) tokenFile = defaultTokenFile(getPort());
+		writeToken();
+
+		// Connection threads should not prevent the JVM from exiting
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "AnnotateServer");
+			t.setDaemon(true);
+			return t;
+		});
+
+		if (verbose) Timer.showStdErr("Annotation server listening on port " + getPort() + ", token file '" + tokenFile + "'");
+	}
+
+	/**
+	 * Open a database (or find one that has already been opened with the same arguments)
+	 * @return Database ID
+	 */
+	public synchronized int open(List<String> args) {
+		String key = String.join("\t", args);
+		Integer dbId = dbIdByArgs.get(key);
+		if (dbId != null) return dbId;
+
+		if (verbose) Timer.showStdErr("Opening database, arguments: " + args);
+		AnnotateVcfDb annotateDb = dbFactory.apply(args);
+		dbId = databases.size();
+		databases.add(annotateDb);
+		dbIdByArgs.put(key, dbId);
+		return dbId;
+	}
+
+	/**
+	 * Accept connections until the server is closed
+	 */
+	public void run() {
+		ServerSocket ss = serverSocket;
+		while (ss != null && !ss.isClosed()) {
+			try {
+				Socket socket = ss.accept();
+				executor.submit(() -> handle(socket));
+			} catch (SocketException e) {
+				// Server socket closed
+				break;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	/**
+	 * Write the token to this file (default: see 'defaultTokenFile')
+	 * Note: Must be set before the server is opened
+	 */
+	public void setTokenFile(String tokenFile) {
+		this.tokenFile = tokenFile;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Write token to 'tokenFile', only readable (and writable) by the user.
+	 * The file is re-created, so it never has more permissive permissions
+	 */
+	void writeToken() {
+		try {
+			Path path = new File(tokenFile).toPath();
+			Files.deleteIfExists(path);
+			if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+				Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			} else {
+				File file = Files.createFile(path).toFile();
+				file.setReadable(false, false);
+				file.setWritable(false, false);
+				file.setReadable(true, true);
+				file.setWritable(true, true);
+			}
+			Files.write(path, (token + "\n").getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot write annotation server token file '" + tokenFile + "'", e);
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package org.snpsift.annotate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.vcf.VcfEntry;
+
+/**
+ * A VCF entry annotated by AnnotateServer: All changes made by the
+ * annotation process are recorded, so that they can be sent back to
+ * the client and applied to the original entry (see AnnotateClient).
+ *
+ * Annotations are encoded as a single line (tab separated):
+ *     annotated \t id \t info_1 \t ... \t info_N
+ *
+ * where 'annotated' is '1' or '0', 'id' is the (new) ID field and each
+ * 'info_i' is an INFO field added, either as 'name=value' or as 'name' (flags).
+ *
+ * @author pcingola
+ */
+public class AnnotateServerEntry extends VcfEntry {
+
+	boolean annotated;
+	List<String> infoAdded;
+
+	/**
+	 * Apply annotations (see 'toStringAnnotations') to a VCF entry
+	 * @return True if the entry was annotated
+	 */
+	public static boolean applyAnnotations(VcfEntry vcfEntry, String annotations) {
+		String fields[] = annotations.split("\t", -1);
+		if (fields.length < 2) throw new RuntimeException("Invalid annotation line: '" + annotations + "'");
+
+		if (!fields[1].equals(vcfEntry.getId())) vcfEntry.setId(fields[1]);
+
+		for (int i = 2; i < fields.length; i++) {
+			int idx = fields[i].indexOf('=');
+			if (idx < 0) vcfEntry.addInfo(fields[i], null);
+			else vcfEntry.addInfo(fields[i].substring(0, idx), fields[i].substring(idx + 1));
+		}
+
+		return fields[0].equals("1");
+	}
+
+	public AnnotateServerEntry(VcfFileIterator vcfFileIterator, String line, int lineNum) {
+		super(vcfFileIterator, line, lineNum, true);
+	}
+
+	@Override
+	public void addInfo(String name, String value) {
+		if (infoAdded == null) infoAdded = new ArrayList<>();
+		infoAdded.add(value == null ? name : name + "=" + value);
+		super.addInfo(name, value);
+	}
+
+	public void setAnnotated(boolean annotated) {
+		this.annotated = annotated;
+	}
+
+	/**
+	 * Encode annotations as a single line
+	 */
+	public String toStringAnnotations() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(annotated ? '1' : '0');
+		sb.append('\t');
+		sb.append(getId());
+
+		if (infoAdded != null) {
+			for (String info : infoAdded)
+				sb.append('\t').append(info);
+		}
+
+		return sb.toString();
+	}
+
+}
@@ -16,6 +16,7 @@ import org.snpeff.interval.Variant;
 import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VariantVcfEntry;
 import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfHeader;
 import org.snpeff.vcf.VcfHeaderInfo;
 
 /**
@@ -44,41 +45,60 @@ public abstract class AnnotateVcfDb {
 	protected Set<String> infoFields; // Use only these INFO fields
 	protected Map<String, Boolean> vcfInfoPerAllele = new HashMap<>(); // Is a VCF INFO field annotated 'per allele' basis?
 	protected Map<String, Boolean> vcfInfoPerAlleleRef = new HashMap<>(); // Is a VCF INFO field annotated 'per allele' basis AND requires reference to be annotated (i.e. VCF header has Number=R)?
+	protected InfoFieldSlots infoFieldSlots; // INFO fields resolved into slots (re-created when new INFO fields are discovered)
+	protected Set<String> idSet = new HashSet<>(); // Re-used for each VCF entry
+	protected List<VcfEntry> uniqueVcfEntries = new ArrayList<>(); // Re-used for each VCF entry
+	protected boolean sharedDbVcf; // Database is shared with another object, which closes it (see 'workerCopy')
 
 	public AnnotateVcfDb() {
 	}
 
+	/**
+	 * Copy all settings from an open 'annotateVcfDb', using a database that can be queried from another thread
+	 * (see 'workerCopy'). Objects updated while annotating (e.g. INFO fields discovered, slots) are not shared
+	 */
+	protected AnnotateVcfDb(AnnotateVcfDb annotateVcfDb) {
+		verbose = annotateVcfDb.verbose;
+		debug = annotateVcfDb.debug;
+		annotateEmpty = annotateVcfDb.annotateEmpty;
+		hasVcfInfoPerAlleleRef = annotateVcfDb.hasVcfInfoPerAlleleRef;
+		useId = annotateVcfDb.useId;
+		useInfoFields = annotateVcfDb.useInfoFields;
+		useAllInfoFields = annotateVcfDb.useAllInfoFields;
+		useRefAlt = annotateVcfDb.useRefAlt;
+		existsInfoField = annotateVcfDb.existsInfoField;
+		prependInfoFieldName = annotateVcfDb.prependInfoFieldName;
+		infoFields = (annotateVcfDb.infoFields != null ? new HashSet<>(annotateVcfDb.infoFields) : null);
+		vcfInfoPerAllele = new HashMap<>(annotateVcfDb.vcfInfoPerAllele);
+		vcfInfoPerAlleleRef = new HashMap<>(annotateVcfDb.vcfInfoPerAlleleRef);
+
+		dbVcf = annotateVcfDb.dbVcf.workerCopy();
+		sharedDbVcf = (dbVcf == annotateVcfDb.dbVcf);
+	}
+
 	/**
 	 * Annotate a VCF entry
 	 */
 	public boolean annotate(VcfEntry vcfEntry) throws IOException {
+		return annotate(vcfEntry, queryResults(vcfEntry));
+	}
+
+	/**
+	 * Annotate a VCF entry using the database query results for each of its variants
+	 * (see 'queryResults' and 'queryBatch')
+	 */
+	public boolean annotate(VcfEntry vcfEntry, List<QueryResult> queryResults) {
 		boolean annotated = false;
-		Set<String> idSet = new HashSet<>();
-		Map<String, String> infos = new HashMap<>();
 		boolean exists = false;
-
-		//---
-		// Find all matching database entries
-		// Note that QueryResult.variantVcfEntry can be 'null'
-		//---
-		List<QueryResult> queryResults = new LinkedList<>();
-		Set<VcfEntry> uniqueVcfEntries = new HashSet<>();
-		for (Variant var : vcfEntry.variants()) {
-			// Skip huge structural variants
-			if (var.isStructuralHuge()) continue;
-
-			// Query database
-			Collection<VariantVcfEntry> results = query(var);
-
-			// Make sure we add all found VcfEntries
-			for (VariantVcfEntry dbEntry : results)
-				uniqueVcfEntries.add(dbEntry.getVcfEntry());
-
-			// Add query and result
-			QueryResult qr = new QueryResult(var, results);
-			queryResults.add(qr);
-			if (debug) Gpr.debug("Adding QueryResult: " + qr);
-		}
+		idSet.clear();
+
+		// Make sure we add all found VcfEntries (usually only a few, so a list is faster than a set)
+		uniqueVcfEntries.clear();
+		for (QueryResult qr : queryResults)
+			for (VariantVcfEntry dbEntry : qr.results) {
+				VcfEntry ve = dbEntry.getVcfEntry();
+				if (!containsSame(uniqueVcfEntries, ve)) uniqueVcfEntries.add(ve);
+			}
 
 		// Try to find INFO fields that we might have not seen before
 		if (useAllInfoFields) {
@@ -87,7 +107,11 @@ public abstract class AnnotateVcfDb {
 		}
 
 		// Add INFO fields using 'REF' data
-		findDbInfoRef(infos, uniqueVcfEntries);
+		InfoFieldSlots slots = useInfoFields ? infoFieldSlots() : null;
+		if (slots != null) {
+			slots.clear();
+			slots.addRef(uniqueVcfEntries);
+		}
 
 		//---
 		// Annotate all fields
@@ -97,12 +121,12 @@ public abstract class AnnotateVcfDb {
 
 			if (useId) findDbId(idSet, qr);
 			if (existsInfoField != null) exists |= findDbExists(qr);
-			if (useInfoFields) findDbInfo(infos, qr);
+			if (slots != null) slots.add(qr);
 		}
 
 		// Annotate input vcfEntry
 		annotated |= annotateIds(vcfEntry, idSet);
-		annotated |= annotateInfo(vcfEntry, infos);
+		if (slots != null) annotated |= slots.annotate(vcfEntry);
 		if (exists) annotated |= annotateExists(vcfEntry);
 
 		return annotated;
@@ -137,36 +161,17 @@ public abstract class AnnotateVcfDb {
 		return annotated;
 	}
 
-	/**
-	 * Add INFO fields.
-	 */
-	protected boolean annotateInfo(VcfEntry vcfEntry, Map<String, String> info) {
-		if (info == null || info.isEmpty()) return false;
-		boolean annotated = false;
-
-		// Sort keys alphabetically
-		ArrayList<String> keys = new ArrayList<>();
-		keys.addAll(info.keySet());
-		Collections.sort(keys);
-
-		// Add keys sorted alphabetically
-		for (String key : keys) {
-			String value = info.get(key);
-
-			// Skip empty fields?
-			if (!annotateEmpty && VcfEntry.isEmpty(value)) continue;
-
-			// Add INFO entry
-			if (prependInfoFieldName != null) key = prependInfoName(key);
-			vcfEntry.addInfo(key, value);
-			annotated = true;
-		}
-
-		return annotated;
+	public void close() {
+		if (!sharedDbVcf) dbVcf.close();
 	}
 
-	public void close() {
-		dbVcf.close();
+	/**
+	 * Is this exact object in the list?
+	 */
+	boolean containsSame(List<VcfEntry> vcfEntries, VcfEntry ve) {
+		for (VcfEntry v : vcfEntries)
+			if (v == ve) return true;
+		return false;
 	}
 
 	protected void discoverInfoFields() {
@@ -242,100 +247,20 @@ public abstract class AnnotateVcfDb {
 	}
 
 	/**
-	 * Find INFO fields for this VCF entry
+	 * Database's VCF header (available after the database is opened)
 	 */
-	protected void findDbInfo(Map<String, String> info, QueryResult qr) {
-		for (String infoFieldName : infoFields) {
-			// Is this a 'per allele' INFO field?
-			if (isVcfInfoPerAllele(infoFieldName)) {
-				// Append INFO values for each 'ALT'
-				String newValue = findDbInfoAlt(infoFieldName, qr);
-				findDbInfoAddValue(info, infoFieldName, newValue);
-			} else {
-				// Add only one INFO
-				if (!info.containsKey(infoFieldName)) {
-					String newValue = findDbInfo(infoFieldName, qr);
-					findDbInfoAddValue(info, infoFieldName, newValue);
-				} else {
-					// This INFO field has only one entry (not 'per allele') and
-					// we have already added the value in the previous 'variant'
-					// iteration, so we can skip it this time
-				}
-			}
-		}
+	public VcfHeader getVcfHeader() {
+		return dbVcf.getVcfHeader();
 	}
 
 	/**
-	 * Find all non-empty INFO fields 'infoFieldName' in results
+	 * INFO field slots, resolved when INFO fields change (i.e. new INFO fields are discovered)
 	 */
-	protected String findDbInfo(String infoFieldName, QueryResult qr) {
-		if (debug) Gpr.debug("Finding DB data for INFO field: " + infoFieldName);
-		StringBuilder sb = new StringBuilder();
-
-		for (VariantVcfEntry varVe : qr.results) {
-			if (varVe != null) {
-				String val = varVe.getVcfEntry().getInfo(infoFieldName);
-				if (!VcfEntry.isEmpty(val)) {
-					if (debug) Gpr.debug("\tFound: " + val);
-					if (sb.length() > 0) sb.append(',');
-					sb.append(val);
-				}
-			}
-		}
-
-		return sb.length() <= 0 ? null : sb.toString();
-	}
-
-	/**
-	 * Add a value to INFO hash for field 'infoFieldName'
-	 */
-	void findDbInfoAddValue(Map<String, String> info, String infoFieldName, String newValue) {
-		if (newValue == null && !annotateEmpty) return;
-		if (debug) Gpr.debug("\tINFO:" + infoFieldName + "\tnewValue: " + newValue);
-		String oldValue = info.get(infoFieldName);
-		String val = (oldValue == null ? "" : oldValue + ",") + (newValue != null ? newValue : ".");
-		info.put(infoFieldName, val);
-	}
-
-	/**
-	 * Find the first non-empty INFO field 'infoFieldName' in results
-	 * Note: ALT must match
-	 */
-	protected String findDbInfoAlt(String infoFieldName, QueryResult qr) {
-		for (VariantVcfEntry varVe : qr.results) {
-			if (varVe == null) continue;
-			String val = varVe.getVcfEntry().getInfo(infoFieldName, qr.variant);
-			if (!VcfEntry.isEmpty(val)) return val;
-		}
-
-		return VcfFileIterator.MISSING;
-	}
-
-	/**
-	 * Fill values for INFO fields requiring 'REF' value
-	 */
-	protected void findDbInfoRef(Map<String, String> info, Set<VcfEntry> uniqueVcfEntries) {
-		if (!useInfoFields || !hasVcfInfoPerAlleleRef) return; // Nothing to do
-
-		for (String infoFieldName : infoFields) {
-			// Does this field require 'REF' annotation?
-			if (!isVcfInfoPerAlleleRef(infoFieldName)) continue;
-
-			// Try to find 'REF' information in any entry
-			String val = null;
-			for (VcfEntry dbVcfEntry : uniqueVcfEntries) {
-				val = dbVcfEntry.getInfo(infoFieldName, dbVcfEntry.getRef());
-
-				if (VcfEntry.isEmpty(val)) val = null; // Only add non-empty
-				else break; // We need only one value
-			}
-
-			// Nothing found? Use 'MISSING' value
-			if (val == null) val = VcfFileIterator.MISSING;
-
-			// Store value
-			info.put(infoFieldName, val);
+	protected InfoFieldSlots infoFieldSlots() {
+		if (infoFieldSlots == null || infoFieldSlots.size() != infoFields.size()) {
+			infoFieldSlots = new InfoFieldSlots(infoFields, this::isVcfInfoPerAllele, this::isVcfInfoPerAlleleRef, prependInfoFieldName, annotateEmpty);
 		}
+		return infoFieldSlots;
 	}
 
 	/**
@@ -397,27 +322,52 @@ public abstract class AnnotateVcfDb {
 	}
 
 	/**
-	 * Prepend 'prependInfoFieldName' to all info fields
+	 * Query database and find results matching 'variant'
 	 */
-	protected String prependInfoName(String infoStr) {
-		if (infoStr == null || infoStr.isEmpty()) return infoStr;
-
-		StringBuilder sb = new StringBuilder();
-		for (String f : infoStr.split(";"))
-			sb.append((sb.length() > 0 ? ";" : "") + prependInfoFieldName + f);
-		return sb.toString();
-
+	protected Collection<VariantVcfEntry> query(Variant variant) {
+		return queryMatch(variant, dbVcf.query(variant));
 	}
 
 	/**
-	 * Query database and find results matching 'variant'
+	 * Query database for all variants in a list of VCF entries, using
+	 * a single 'batched' database query (see DbMarker.query(List))
+	 *
+	 * @return Query results for each VCF entry (same order as 'vcfEntries')
 	 */
-	protected Collection<VariantVcfEntry> query(Variant variant) {
+	public List<List<QueryResult>> queryBatch(List<VcfEntry> vcfEntries) {
+		// Collect all variants
+		List<List<Variant>> variantsByEntry = new ArrayList<>(vcfEntries.size());
+		List<Variant> variants = new ArrayList<>();
+		for (VcfEntry vcfEntry : vcfEntries) {
+			List<Variant> vars = new ArrayList<>();
+			for (Variant var : vcfEntry.variants())
+				if (!var.isStructuralHuge()) vars.add(var); // Skip huge structural variants
+
+			variantsByEntry.add(vars);
+			variants.addAll(vars);
+		}
+
 		// Query database
-		Collection<VariantVcfEntry> results = dbVcf.query(variant);
+		List<Collection<VariantVcfEntry>> results = dbVcf.query(variants);
+
+		// Split results by VCF entry
+		List<List<QueryResult>> queryResultsByEntry = new ArrayList<>(vcfEntries.size());
+		int i = 0;
+		for (List<Variant> vars : variantsByEntry) {
+			List<QueryResult> queryResults = new ArrayList<>(vars.size());
+			for (Variant var : vars)
+				queryResults.add(new QueryResult(var, queryMatch(var, results.get(i++))));
+			queryResultsByEntry.add(queryResults);
+		}
 
-		// Filter results to match 'variant'
-		List<VariantVcfEntry> list = new LinkedList<>();
+		return queryResultsByEntry;
+	}
+
+	/**
+	 * Filter database results that match 'variant'
+	 */
+	protected Collection<VariantVcfEntry> queryMatch(Variant variant, Collection<VariantVcfEntry> results) {
+		List<VariantVcfEntry> list = new ArrayList<>(results.size());
 		for (VariantVcfEntry dbEntry : results) {
 			if (match(variant, dbEntry)) {
 				if (debug) Gpr.debug("dbEntry matches query\n\tvariant: " + variant + "\n\tdbEntry: " + dbEntry);
@@ -432,8 +382,29 @@ public abstract class AnnotateVcfDb {
 		return list;
 	}
 
+	/**
+	 * Find all matching database entries for each variant in 'vcfEntry'
+	 * Note that QueryResult.variantVcfEntry can be 'null'
+	 */
+	protected List<QueryResult> queryResults(VcfEntry vcfEntry) {
+		List<Variant> vars = vcfEntry.variants();
+		List<QueryResult> queryResults = new ArrayList<>(vars.size());
+		for (Variant var : vars) {
+			// Skip huge structural variants
+			if (var.isStructuralHuge()) continue;
+
+			// Query database
+			QueryResult qr = new QueryResult(var, query(var));
+			queryResults.add(qr);
+			if (debug) Gpr.debug("Adding QueryResult: " + qr);
+		}
+
+		return queryResults;
+	}
+
 	public void setAnnotateEmpty(boolean annotateEmpty) {
 		this.annotateEmpty = annotateEmpty;
+		infoFieldSlots = null;
 	}
 
 	public void setDebug(boolean debug) {
@@ -448,6 +419,7 @@ public abstract class AnnotateVcfDb {
 	public void setInfoFields(boolean useInfoFields, Collection<String> infoFields) {
 		this.useInfoFields = useInfoFields;
 		useAllInfoFields = false;
+		infoFieldSlots = null;
 
 		if (useInfoFields) {
 			if (infoFields == null) {
@@ -467,6 +439,7 @@ public abstract class AnnotateVcfDb {
 
 	public void setPrependInfoFieldName(String prependInfoFieldName) {
 		this.prependInfoFieldName = prependInfoFieldName;
+		infoFieldSlots = null;
 	}
 
 	public void setUseId(boolean useId) {
@@ -528,4 +501,12 @@ public abstract class AnnotateVcfDb {
 
 		if (count < MAX_ERRORS) System.err.println("WARNING: " + warn);
 	}
+
+	/**
+	 * An object annotating from another thread (e.g. an annotation worker, see SnpSiftCmdAnnotate).
+	 * All settings are copied. Databases that are read-only once opened (e.g. in memory databases,
+	 * memory mapped indexes) are shared, stateful readers are created for each copy (see DbVcf.workerCopy)
+	 * Note: This object must be open, the copy is already open
+	 */
+	public abstract AnnotateVcfDb workerCopy();
 }
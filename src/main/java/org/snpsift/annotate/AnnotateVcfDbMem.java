@@ -14,4 +14,16 @@ public class AnnotateVcfDbMem extends AnnotateVcfDb {
 		dbVcf = new DbVcfMem(dbFileName);
 	}
 
+	/**
+	 * Annotate from another thread (see AnnotateVcfDb.workerCopy)
+	 */
+	protected AnnotateVcfDbMem(AnnotateVcfDbMem annotateVcfDb) {
+		super(annotateVcfDb);
+	}
+
+	@Override
+	public AnnotateVcfDb workerCopy() {
+		return new AnnotateVcfDbMem(this);
+	}
+
 }
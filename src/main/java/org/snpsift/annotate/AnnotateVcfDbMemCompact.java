@@ -0,0 +1,66 @@
+package org.snpsift.annotate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.snpeff.interval.Variant;
+import org.snpeff.vcf.VariantVcfEntry;
+import org.snpeff.vcf.VcfEntry;
+
+/**
+ * Annotate using a VCF "database" loaded into memory, using
+ * a compact representation (see DbVcfMemCompact)
+ *
+ * Note: Reads and loads the whole VCF file into memory. When using
+ * multiple threads, the database is loaded only once and shared by
+ * all workers.
+ *
+ * @author pcingola
+ */
+public class AnnotateVcfDbMemCompact extends AnnotateVcfDb {
+
+	public AnnotateVcfDbMemCompact(String dbFileName) {
+		super();
+		dbVcf = new DbVcfMemCompact(dbFileName);
+	}
+
+	/**
+	 * Annotate from another thread, sharing the (already loaded) database (see AnnotateVcfDb.workerCopy)
+	 */
+	protected AnnotateVcfDbMemCompact(AnnotateVcfDbMemCompact annotateVcfDb) {
+		super(annotateVcfDb);
+	}
+
+	@Override
+	public void open() {
+		// Only store INFO fields we are going to use
+		((DbVcfMemCompact) dbVcf).setInfoFields(useInfoFields ? infoFields : new ArrayList<String>());
+		super.open();
+	}
+
+	/**
+	 * Only database entries having the same coordinates (and REF/ALT hash) are parsed
+	 */
+	@Override
+	protected Collection<VariantVcfEntry> query(Variant variant) {
+		return queryMatch(variant, ((DbVcfMemCompact) dbVcf).queryExact(variant, useRefAlt));
+	}
+
+	/**
+	 * No need to batch queries: Exact match lookups are already fast for in-memory databases
+	 */
+	@Override
+	public List<List<QueryResult>> queryBatch(List<VcfEntry> vcfEntries) {
+		List<List<QueryResult>> queryResultsByEntry = new ArrayList<>(vcfEntries.size());
+		for (VcfEntry vcfEntry : vcfEntries)
+			queryResultsByEntry.add(queryResults(vcfEntry));
+		return queryResultsByEntry;
+	}
+
+	@Override
+	public AnnotateVcfDb workerCopy() {
+		return new AnnotateVcfDbMemCompact(this);
+	}
+
+}
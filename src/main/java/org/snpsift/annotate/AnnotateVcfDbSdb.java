@@ -0,0 +1,29 @@
+package org.snpsift.annotate;
+
+/**
+ * Annotate using a '.sdb' file (compact binary annotation database)
+ *
+ * Note: The database is created from a sorted VCF file using 'SnpSift annotate -buildDb'
+ *
+ * @author pcingola
+ */
+public class AnnotateVcfDbSdb extends AnnotateVcfDb {
+
+	public AnnotateVcfDbSdb(String dbFileName) {
+		super();
+		dbVcf = new DbVcfSdb(dbFileName);
+	}
+
+	/**
+	 * Annotate from another thread (see AnnotateVcfDb.workerCopy)
+	 */
+	protected AnnotateVcfDbSdb(AnnotateVcfDbSdb annotateVcfDb) {
+		super(annotateVcfDb);
+	}
+
+	@Override
+	public AnnotateVcfDb workerCopy() {
+		return new AnnotateVcfDbSdb(this);
+	}
+
+}
@@ -14,10 +14,47 @@ package org.snpsift.annotate;
 public class AnnotateVcfDbSorted extends AnnotateVcfDb {
 
 	public AnnotateVcfDbSorted(String dbFileName, int maxBlockSize) {
+		this(dbFileName, maxBlockSize, 1);
+	}
+
+	/**
+	 * Constructor
+	 * @param numWorkers : Number of threads used to create the index (if needed)
+	 */
+	public AnnotateVcfDbSorted(String dbFileName, int maxBlockSize, int numWorkers) {
 		super();
 		DbVcfSorted dbVcfSorted = new DbVcfSorted(dbFileName);
 		dbVcfSorted.setMaxBlockSize(maxBlockSize);
+		dbVcfSorted.setNumWorkers(numWorkers);
 		dbVcf = dbVcfSorted;
 	}
 
+	/**
+	 * Annotate from another thread (see AnnotateVcfDb.workerCopy)
+	 */
+	protected AnnotateVcfDbSorted(AnnotateVcfDbSorted annotateVcfDb) {
+		super(annotateVcfDb);
+	}
+
+	/**
+	 * Maximum number of VCF entries in index cache
+	 */
+	public void setCacheSize(int cacheSize) {
+		((DbVcfSorted) dbVcf).setCacheSize(cacheSize);
+	}
+
+	/**
+	 * Only look for exact matches (same position, REF and ALT) using a
+	 * hash index (created alongside the interval index, if needed).
+	 * Note: Only makes sense when using REF and ALT to match entries
+	 */
+	public void setExactOnly(boolean exactOnly) {
+		((DbVcfSorted) dbVcf).setExactOnly(exactOnly);
+	}
+
+	@Override
+	public AnnotateVcfDb workerCopy() {
+		return new AnnotateVcfDbSorted(this);
+	}
+
 }
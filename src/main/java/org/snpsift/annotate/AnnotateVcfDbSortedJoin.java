@@ -0,0 +1,60 @@
+package org.snpsift.annotate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.snpeff.vcf.VcfEntry;
+
+/**
+ * Annotate using a VCF "database", reading the database and the
+ * input VCF file together (i.e. a 'merge-join'). No index is required.
+ *
+ * Note: Assumes that both the VCF database file and the input VCF file are sorted.
+ *       Each VCF entry should be sorted according to position.
+ *       Chromosome order does not matter, but entries for the same chromosome should be together.
+ *       An exception is thrown if either file is not sorted.
+ *
+ * @author pcingola
+ */
+public class AnnotateVcfDbSortedJoin extends AnnotateVcfDb {
+
+	public AnnotateVcfDbSortedJoin(String dbFileName) {
+		super();
+		dbVcf = new DbVcfSortedJoin(dbFileName);
+	}
+
+	/**
+	 * Annotate from another thread (see AnnotateVcfDb.workerCopy)
+	 */
+	protected AnnotateVcfDbSortedJoin(AnnotateVcfDbSortedJoin annotateVcfDb) {
+		super(annotateVcfDb);
+	}
+
+	@Override
+	public boolean annotate(VcfEntry vcfEntry) throws IOException {
+		// Note: We use the entry's start, since variants (e.g. in multi-allelic
+		// entries) are not necessarily sorted by start position
+		((DbVcfSortedJoin) dbVcf).advance(vcfEntry.getChromosomeName(), vcfEntry.getStart());
+		return super.annotate(vcfEntry);
+	}
+
+	/**
+	 * Entries are queried one by one, since the database is read sequentially
+	 */
+	@Override
+	public List<List<QueryResult>> queryBatch(List<VcfEntry> vcfEntries) {
+		List<List<QueryResult>> queryResultsByEntry = new ArrayList<>(vcfEntries.size());
+		for (VcfEntry vcfEntry : vcfEntries) {
+			((DbVcfSortedJoin) dbVcf).advance(vcfEntry.getChromosomeName(), vcfEntry.getStart());
+			queryResultsByEntry.add(queryResults(vcfEntry));
+		}
+		return queryResultsByEntry;
+	}
+
+	@Override
+	public AnnotateVcfDb workerCopy() {
+		return new AnnotateVcfDbSortedJoin(this);
+	}
+
+}
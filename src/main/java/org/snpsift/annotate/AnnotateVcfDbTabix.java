@@ -12,4 +12,24 @@ public class AnnotateVcfDbTabix extends AnnotateVcfDb {
 		super();
 		dbVcf = new DbVcfTabix(dbFileName);
 	}
+
+	/**
+	 * Annotate from another thread (see AnnotateVcfDb.workerCopy)
+	 */
+	protected AnnotateVcfDbTabix(AnnotateVcfDbTabix annotateVcfDb) {
+		super(annotateVcfDb);
+	}
+
+	/**
+	 * Decompress BGZF blocks using 'numThreads' threads (zero means no 'read ahead')
+	 */
+	public void setReadAhead(int numThreads, int blocksInFlight) {
+		((DbVcfTabix) dbVcf).setReadAhead(numThreads, blocksInFlight);
+	}
+
+	@Override
+	public AnnotateVcfDb workerCopy() {
+		return new AnnotateVcfDbTabix(this);
+	}
+
 }
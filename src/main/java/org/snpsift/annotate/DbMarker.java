@@ -1,6 +1,8 @@
 package org.snpsift.annotate;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import org.snpeff.interval.Marker;
 
@@ -31,6 +33,20 @@ public interface DbMarker<Q extends Marker, R extends Marker> {
 	 */
 	public abstract Collection<R> query(Q queryMarker);
 
+	/**
+	 * Find matching entries in the database for a list of queries ('batched' query)
+	 * Implementations can sort and coalesce the queries (see QueryRegion), so
+	 * that each database region is read only once.
+	 *
+	 * @return A list having the results for each query (same order as 'queryMarkers')
+	 */
+	public default List<Collection<R>> query(List<Q> queryMarkers) {
+		List<Collection<R>> results = new ArrayList<>(queryMarkers.size());
+		for (Q q : queryMarkers)
+			results.add(query(q));
+		return results;
+	}
+
 	public void setDebug(boolean debug);
 
 	public void setVerbose(boolean verbose);
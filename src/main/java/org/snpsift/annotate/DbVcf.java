@@ -1,6 +1,9 @@
 package org.snpsift.annotate;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.snpeff.interval.Variant;
 import org.snpeff.vcf.VariantVcfEntry;
@@ -48,6 +51,16 @@ public abstract class DbVcf implements DbMarker<Variant, VariantVcfEntry> {
 		return vcfHeader;
 	}
 
+	/**
+	 * Create an (empty) result list for each query
+	 */
+	protected List<Collection<VariantVcfEntry>> newResults(int size) {
+		List<Collection<VariantVcfEntry>> results = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			results.add(new LinkedList<VariantVcfEntry>());
+		return results;
+	}
+
 	@Override
 	public abstract void open();
 
@@ -67,4 +80,15 @@ public abstract class DbVcf implements DbMarker<Variant, VariantVcfEntry> {
 		this.verbose = verbose;
 	}
 
+	/**
+	 * A database to be queried from another thread (e.g. an annotation worker, see SnpSiftCmdAnnotate).
+	 * Read-only data (e.g. entries loaded in memory, memory mapped indexes) is shared, objects
+	 * holding state (e.g. file readers, caches) are created for the new database.
+	 *
+	 * Note: This database must be open, the one returned is already open.
+	 * Note: Databases that are read-only once loaded return 'this'. A shared database is
+	 *       only closed by the object that opened it (see AnnotateVcfDb.workerCopy)
+	 */
+	public abstract DbVcf workerCopy();
+
 }
@@ -1,5 +1,6 @@
 package org.snpsift.annotate;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -97,4 +98,29 @@ public class DbVcfMem extends DbVcf {
 		return list;
 	}
 
+	/**
+	 * Batched query: Queries are coalesced into regions and the interval tree is queried once per region
+	 */
+	@Override
+	public List<Collection<VariantVcfEntry>> query(List<Variant> variants) {
+		List<Collection<VariantVcfEntry>> results = newResults(variants.size());
+
+		for (QueryRegion region : QueryRegion.coalesce(variants)) {
+			for (Marker m : itree.query(region.toVariant())) {
+				VariantVcfEntry varVe = (VariantVcfEntry) m;
+				region.intersecting(variants, varVe.getStart(), varVe.getEnd(), idx -> results.get(idx).add(varVe));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Once loaded, the interval tree is only read, so the database is shared by all workers
+	 */
+	@Override
+	public DbVcf workerCopy() {
+		return this;
+	}
+
 }
@@ -0,0 +1,439 @@
+package org.snpsift.annotate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.interval.Chromosome;
+import org.snpeff.interval.Variant;
+import org.snpeff.util.Timer;
+import org.snpeff.vcf.VariantVcfEntry;
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.util.ByteBufferArena;
+
+/**
+ * Loads a VCF file into memory, using a compact representation
+ * (as opposed to DbVcfMem, which keeps every entry as a VariantVcfEntry
+ * object in an interval tree).
+ *
+ * For each chromosome we keep sorted primitive arrays:
+ *   - start, end	: Variant's coordinates (sorted by start)
+ *   - refAltHash	: Hash of variant's REF and ALT (used to discard non-matching entries without parsing them)
+ *   - offset		: Position of the VCF line in an off-heap arena
+ *
+ * VCF lines are stored in an off-heap arena (see ByteBufferArena), only
+ * the first eight columns are kept (no genotypes) and only the INFO fields
+ * selected by 'setInfoFields' (by default all INFO fields are kept).
+ * VcfEntries are parsed only for entries matching a query.
+ *
+ * Queries are binary searches on the 'start' array. Entries are grouped in blocks
+ * of BLOCK_SIZE entries, having the maximum end of each block, so long entries
+ * (e.g. structural variants) only require scanning the blocks that contain them
+ * (same as '.sdb' files, see VcfSdbChromo.findLongBlocks)
+ *
+ * Note: Once loaded, the index arrays and the arena are read-only, so they are
+ * shared by all annotation workers. Each worker parses VCF lines using its own
+ * VcfFileIterator (see 'workerCopy'). Workers never release the shared memory,
+ * the object that loaded the database does.
+ *
+ * @author pcingola
+ */
+public class DbVcfMemCompact extends DbVcf {
+
+	public static final int SHOW = 10000;
+	public static final int SHOW_LINES = 100 * SHOW;
+	public static final int INITIAL_CAPACITY = 1024;
+	public static final int BLOCK_SIZE = 64; // Number of entries per block (see Chromo.blockMaxEnd)
+
+	/**
+	 * All variants in one chromosome
+	 */
+	class Chromo {
+
+		String chromosomeName;
+		int size;
+		int start[], end[], refAltHash[];
+		long offset[];
+		int numBlocks;
+		int blockMaxEnd[]; // Maximum end position of all entries in each block
+		int longBlocks[]; // Blocks having entries that reach beyond the start of the block two positions ahead
+
+		Chromo(String chromosomeName) {
+			this.chromosomeName = chromosomeName;
+			start = new int[INITIAL_CAPACITY];
+			end = new int[INITIAL_CAPACITY];
+			refAltHash = new int[INITIAL_CAPACITY];
+			offset = new long[INITIAL_CAPACITY];
+		}
+
+		void add(VariantVcfEntry varVe, long off) {
+			if (size >= start.length) {
+				int newCapacity = 2 * start.length;
+				start = Arrays.copyOf(start, newCapacity);
+				end = Arrays.copyOf(end, newCapacity);
+				refAltHash = Arrays.copyOf(refAltHash, newCapacity);
+				offset = Arrays.copyOf(offset, newCapacity);
+			}
+
+			start[size] = varVe.getStart();
+			end[size] = varVe.getEnd();
+			refAltHash[size] = refAltHash(varVe.getReference(), varVe.getAlt());
+			offset[size] = off;
+			size++;
+		}
+
+		/**
+		 * Sort by start position (stable, i.e. entries having the same
+		 * start are kept in file order) and trim arrays
+		 */
+		void build() {
+			long keys[] = new long[size];
+			for (int i = 0; i < size; i++)
+				keys[i] = (((long) start[i]) << 32) | i;
+			Arrays.sort(keys);
+
+			int newStart[] = new int[size], newEnd[] = new int[size], newRefAltHash[] = new int[size];
+			long newOffset[] = new long[size];
+			for (int i = 0; i < size; i++) {
+				int idx = (int) keys[i];
+				newStart[i] = start[idx];
+				newEnd[i] = end[idx];
+				newRefAltHash[i] = refAltHash[idx];
+				newOffset[i] = offset[idx];
+			}
+
+			start = newStart;
+			end = newEnd;
+			refAltHash = newRefAltHash;
+			offset = newOffset;
+
+			// Maximum end for each block
+			numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			blockMaxEnd = new int[numBlocks];
+			Arrays.fill(blockMaxEnd, Integer.MIN_VALUE);
+			for (int i = 0; i < size; i++)
+				blockMaxEnd[i / BLOCK_SIZE] = Math.max(blockMaxEnd[i / BLOCK_SIZE], end[i]);
+
+			findLongBlocks();
+		}
+
+		int blockStart(int b) {
+			return start[b * BLOCK_SIZE];
+		}
+
+		/**
+		 * Find the last block starting before 'pos' (same as VcfSdbChromo.findBlock)
+		 */
+		int findBlock(int pos) {
+			int lo = 0, hi = numBlocks;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (blockStart(mid) < pos) lo = mid + 1;
+				else hi = mid;
+			}
+			return Math.max(0, lo - 1);
+		}
+
+		/**
+		 * Find blocks having entries that reach beyond the start of the block two
+		 * positions ahead (see VcfSdbChromo.findLongBlocks)
+		 */
+		void findLongBlocks() {
+			int n = 0;
+			longBlocks = new int[numBlocks];
+			for (int b = 0; b + 2 < numBlocks; b++)
+				if (blockMaxEnd[b] >= blockStart(b + 2)) longBlocks[n++] = b;
+			longBlocks = Arrays.copyOf(longBlocks, n);
+		}
+
+		/**
+		 * Index of the first entry having start >= pos
+		 */
+		int findStart(int pos) {
+			int lo = 0, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (start[mid] < pos) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * Memory used by arrays (in bytes)
+		 */
+		long memory() {
+			return 3L * 4 * start.length + 8L * offset.length + 4L * (blockMaxEnd.length + longBlocks.length);
+		}
+	}
+
+	Map<String, Chromo> chromos; // Chromosomes (by chromosome simple name)
+	ByteBufferArena arena;
+	Set<String> infoFields; // INFO fields to store (null means all INFO fields)
+	VcfFileIterator vcfFileIterator; // Holds the VCF header for all VcfEntries
+	int count; // Number of variants loaded
+	boolean shared; // Chromosomes and arena are shared with the object that loaded them (see 'workerCopy')
+
+	/**
+	 * Hash for REF and ALT (case insensitive, as in AnnotateVcfDb.match)
+	 */
+	public static int refAltHash(String ref, String alt) {
+		int h = 0;
+		for (int i = 0; i < ref.length(); i++)
+			h = 31 * h + Character.toUpperCase(ref.charAt(i));
+		h = 31 * h + '\t';
+		for (int i = 0; i < alt.length(); i++)
+			h = 31 * h + Character.toUpperCase(alt.charAt(i));
+		return h;
+	}
+
+	public DbVcfMemCompact(String dbFileName) {
+		super(dbFileName);
+	}
+
+	/**
+	 * Release the database (off-heap memory is released when the arena is garbage collected)
+	 * Note: Only the object that loaded the database closes the arena, worker copies don't
+	 */
+	@Override
+	public void close() {
+		if (arena != null && !shared) arena.close();
+		arena = null;
+		chromos = null;
+		vcfFileIterator = null;
+	}
+
+	/**
+	 * Line to store: First seven columns from the original VCF line and the selected INFO fields
+	 */
+	String compactLine(VcfEntry vcfEntry) {
+		String line = vcfEntry.toStringNoGt();
+
+		// Find the end of the first seven columns
+		int idx = -1;
+		for (int col = 0; col < 7; col++) {
+			idx = line.indexOf('\t', idx + 1);
+			if (idx < 0) return line; // Not enough columns, store the line as it is
+		}
+
+		// Filter INFO fields
+		int infoEnd = line.indexOf('\t', idx + 1);
+		String info = line.substring(idx + 1, infoEnd < 0 ? line.length() : infoEnd);
+		if (infoFields != null) {
+			StringBuilder sb = new StringBuilder();
+			for (String kv : info.split(";")) {
+				int eq = kv.indexOf('=');
+				String key = eq < 0 ? kv : kv.substring(0, eq);
+				if (infoFields.contains(key)) {
+					if (sb.length() > 0) sb.append(';');
+					sb.append(kv);
+				}
+			}
+			info = sb.length() > 0 ? sb.toString() : ".";
+		}
+
+		return line.substring(0, idx + 1) + info;
+	}
+
+	/**
+	 * Parse a VCF line stored in the arena
+	 */
+	VcfEntry vcfEntry(long offset) {
+		return new VcfEntry(vcfFileIterator, arena.getString(offset), 0, true);
+	}
+
+	/**
+	 * Load the whole VCF 'database' file into memory
+	 */
+	void loadDatabase() {
+		if (verbose) Timer.showStdErr("Loading database: '" + dbFileName + "'" + (infoFields != null ? ", INFO fields: " + infoFields : ""));
+		VcfFileIterator dbFile = new VcfFileIterator(dbFileName);
+		dbFile.setDebug(debug);
+
+		chromos = new HashMap<>();
+		arena = new ByteBufferArena();
+		count = 0;
+		for (VcfEntry vcfDbEntry : dbFile) {
+			// Update header
+			if (vcfHeader == null) vcfHeader = dbFile.getVcfHeader();
+
+			String chr = Chromosome.simpleName(vcfDbEntry.getChromosomeName());
+			Chromo chromo = chromos.get(chr);
+			if (chromo == null) {
+				chromo = new Chromo(vcfDbEntry.getChromosomeName());
+				chromos.put(chr, chromo);
+			}
+
+			// Store line once, add all variants from the VcfEntry (e.g. multi-allelic VcfEntries)
+			long offset = arena.add(compactLine(vcfDbEntry));
+			for (VariantVcfEntry varVe : VariantVcfEntry.factory(vcfDbEntry)) {
+				chromo.add(varVe, offset);
+
+				count++;
+				if (verbose) {
+					if (count % SHOW_LINES == 0) System.err.print("\n" + count + "\t.");
+					else if (count % SHOW == 0) System.err.print('.');
+				}
+			}
+		}
+		if (vcfHeader == null) vcfHeader = dbFile.getVcfHeader(); // Empty database
+		dbFile.close();
+
+		// Sort entries
+		for (Chromo chromo : chromos.values())
+			chromo.build();
+
+		vcfFileIterator = new VcfFileIterator();
+		vcfFileIterator.setVcfHeader(vcfHeader);
+
+		if (verbose) {
+			System.err.println("");
+			Timer.showStdErr("Done. Added: " + count + " variants. " + toStringMemory());
+		}
+	}
+
+	/**
+	 * Open database annotation file
+	 * Note: The file is loaded only once (i.e. re-opening a loaded database has no effect)
+	 */
+	@Override
+	public void open() {
+		if (chromos == null) loadDatabase();
+	}
+
+	/**
+	 * Find all database entries intersecting 'variant'
+	 */
+	@Override
+	public List<VariantVcfEntry> query(Variant variant) {
+		List<VariantVcfEntry> list = new LinkedList<VariantVcfEntry>();
+
+		Chromo chromo = chromos.get(Chromosome.simpleName(variant.getChromosomeName()));
+		if (chromo == null) return list;
+
+		// Only 'long blocks' can have entries intersecting the query before block 'first' (see Chromo.findLongBlocks)
+		int start = variant.getStart(), end = variant.getEnd();
+		int first = Math.max(0, chromo.findBlock(start) - 1);
+		long offsets[] = new long[BLOCK_SIZE]; // VCF lines to parse
+		int n = 0;
+		for (int b : chromo.longBlocks) {
+			if (b >= first) break;
+			if (chromo.blockMaxEnd[b] < start) continue;
+			if (n + BLOCK_SIZE > offsets.length) offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+			n = queryBlock(chromo, b, start, end, offsets, n);
+		}
+
+		for (int b = first; b < chromo.numBlocks && chromo.blockStart(b) <= end; b++) {
+			if (chromo.blockMaxEnd[b] < start) continue;
+			if (n + BLOCK_SIZE > offsets.length) offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+			n = queryBlock(chromo, b, start, end, offsets, n);
+		}
+
+		// Parse each VCF line only once (variants from the same line have the same offset)
+		Arrays.sort(offsets, 0, n);
+		for (int i = 0; i < n; i++) {
+			if (i > 0 && offsets[i] == offsets[i - 1]) continue;
+			for (VariantVcfEntry varVe : VariantVcfEntry.factory(vcfEntry(offsets[i])))
+				if (varVe.getEnd() >= start && varVe.getStart() <= end) list.add(varVe);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Add offsets of all entries in block 'blockNum' intersecting [start, end] to 'offsets' (starting at 'n')
+	 * Note: 'offsets' must have room for one block
+	 * @return Number of offsets
+	 */
+	int queryBlock(Chromo chromo, int blockNum, int start, int end, long offsets[], int n) {
+		int max = Math.min(chromo.size, (blockNum + 1) * BLOCK_SIZE);
+		for (int i = blockNum * BLOCK_SIZE; i < max && chromo.start[i] <= end; i++)
+			if (chromo.end[i] >= start) offsets[n++] = chromo.offset[i];
+		return n;
+	}
+
+	/**
+	 * Find database entries having exactly the same coordinates as 'variant'
+	 * (and the same REF and ALT hash, if 'useRefAlt' is set).
+	 *
+	 * Note: Results are a superset of exact matches (e.g. other alleles from
+	 * the same multi-allelic VCF entry or hash collisions), so they still
+	 * need to be filtered (see AnnotateVcfDb.queryMatch)
+	 */
+	public List<VariantVcfEntry> queryExact(Variant variant, boolean useRefAlt) {
+		List<VariantVcfEntry> list = new LinkedList<VariantVcfEntry>();
+
+		Chromo chromo = chromos.get(Chromosome.simpleName(variant.getChromosomeName()));
+		if (chromo == null) return list;
+
+		int start = variant.getStart(), end = variant.getEnd();
+		int hash = useRefAlt ? refAltHash(variant.getReference(), variant.getAlt()) : 0;
+		long offsetPrev = -1;
+		for (int i = chromo.findStart(start); i < chromo.size && chromo.start[i] == start; i++) {
+			if (chromo.end[i] != end) continue;
+			if (useRefAlt && chromo.refAltHash[i] != hash) continue;
+
+			// Variants from the same VCF line are consecutive (same start, file order), parse the line only once
+			if (chromo.offset[i] == offsetPrev) continue;
+			offsetPrev = chromo.offset[i];
+
+			list.addAll(VariantVcfEntry.factory(vcfEntry(chromo.offset[i])));
+		}
+
+		return list;
+	}
+
+	/**
+	 * Only store these INFO fields (null means all INFO fields).
+	 * Note: This must be set before the database is opened
+	 */
+	public void setInfoFields(Collection<String> infoFields) {
+		this.infoFields = infoFields != null ? new HashSet<>(infoFields) : null;
+	}
+
+	@Override
+	public String toString() {
+		return "Database '" + dbFileName + "'" //
+				+ (chromos != null ? ", chromosomes: " + chromos.size() + ", variants: " + count + ". " + toStringMemory() : "") //
+		;
+	}
+
+	/**
+	 * Memory usage
+	 */
+	public String toStringMemory() {
+		long mem = 0;
+		for (Chromo chromo : chromos.values())
+			mem += chromo.memory();
+
+		return "Memory used: index " + mem + " bytes, off-heap " + arena.getCapacity() + " bytes (" + arena.size() + " bytes of VCF data)";
+	}
+
+	/**
+	 * Index arrays and arena are shared, each worker parses VCF lines using its own VcfFileIterator
+	 */
+	@Override
+	public DbVcf workerCopy() {
+		DbVcfMemCompact dbVcfMemCompact = new DbVcfMemCompact(dbFileName);
+		dbVcfMemCompact.setVerbose(verbose);
+		dbVcfMemCompact.setDebug(debug);
+
+		dbVcfMemCompact.vcfHeader = vcfHeader;
+		dbVcfMemCompact.infoFields = infoFields;
+		dbVcfMemCompact.chromos = chromos;
+		dbVcfMemCompact.arena = arena;
+		dbVcfMemCompact.count = count;
+		dbVcfMemCompact.shared = true;
+		dbVcfMemCompact.vcfFileIterator = new VcfFileIterator();
+		dbVcfMemCompact.vcfFileIterator.setVcfHeader(vcfHeader);
+
+		return dbVcfMemCompact;
+	}
+
+}
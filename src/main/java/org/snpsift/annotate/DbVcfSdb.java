@@ -0,0 +1,215 @@
+package org.snpsift.annotate;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.interval.Chromosome;
+import org.snpeff.interval.Variant;
+import org.snpeff.util.Gpr;
+import org.snpeff.util.Timer;
+import org.snpeff.vcf.VariantVcfEntry;
+import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfHeader;
+import org.snpsift.util.LruCache;
+
+/**
+ * Use a '.sdb' file (compact binary annotation database, see VcfSdb) as a database for annotations
+ *
+ * Queries use the block directory (start and maximum end of each block) to read
+ * only the blocks that may intersect the query. Blocks are decoded by column and
+ * VcfEntries are created only for database entries intersecting the query (no
+ * VCF text lines are parsed).
+ *
+ * Note: Only the INFO fields selected when the database was built are available
+ *
+ * @author pcingola
+ */
+public class DbVcfSdb extends DbVcf {
+
+	public static final int DEFAULT_CACHE_SIZE = 1000; // Maximum number of decoded blocks in cache
+
+	String sdbFileName;
+	RandomAccessFile raf;
+	String infoFields[];
+	String dictionary[];
+	Map<String, VcfSdbChromo> chromos; // Chromosome directory (by chromosome simple name)
+	VcfFileIterator vcfFileIterator; // Holds the VCF header for all VcfEntries
+	LruCache<Long, VcfSdbBlock> blockCache;
+	int cacheSize = DEFAULT_CACHE_SIZE;
+
+	public DbVcfSdb(String dbFileName) {
+		super(dbFileName);
+		sdbFileName = VcfSdb.sdbFileName(dbFileName);
+	}
+
+	@Override
+	public void close() {
+		if (verbose && blockCache != null) Timer.showStdErr("Database '" + sdbFileName + "', block cache: " + blockCache.toStringStats());
+
+		try {
+			if (raf != null) raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		raf = null;
+		blockCache = null;
+	}
+
+	/**
+	 * Get a block, read and decode it if it is not in the cache
+	 */
+	VcfSdbBlock getBlock(VcfSdbChromo chromo, int blockNum) {
+		long key = (((long) chromo.id) << 32) | blockNum;
+		VcfSdbBlock block = blockCache.get(key);
+		if (block != null) return block;
+
+		try {
+			byte bytes[] = new byte[chromo.blockLen[blockNum]];
+			raf.seek(chromo.blockFilePos[blockNum]);
+			raf.readFully(bytes);
+			block = new VcfSdbBlock(bytes, chromo, chromo.blockStart[blockNum], dictionary);
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading database file '" + sdbFileName + "'", e);
+		}
+
+		blockCache.put(key, block);
+		return block;
+	}
+
+	/**
+	 * Open database file and read the directory
+	 */
+	@Override
+	public void open() {
+		if (debug) Gpr.debug("Open database file:" + sdbFileName);
+
+		try {
+			raf = new RandomAccessFile(sdbFileName, "r");
+
+			// Check magic number and version
+			int magic = raf.readInt();
+			if (magic != VcfSdb.SDB_MAGIC) throw new RuntimeException("File '" + sdbFileName + "' is not an SnpSift database");
+			int version = raf.readInt();
+			if (version != VcfSdb.SDB_FORMAT_VERSION) throw new RuntimeException("Database file '" + sdbFileName + "' has version " + version + ", expected version " + VcfSdb.SDB_FORMAT_VERSION + ". Please rebuild the database.");
+
+			// Read footer
+			raf.seek(raf.length() - 8);
+			raf.seek(raf.readLong());
+
+			// VCF header
+			vcfHeader = new VcfHeader();
+			for (String line : VcfSdb.readLongString(raf).split("\n"))
+				if (!line.isEmpty()) vcfHeader.addLine(line);
+			vcfFileIterator = new VcfFileIterator();
+			vcfFileIterator.setVcfHeader(vcfHeader);
+
+			// INFO fields and dictionary
+			infoFields = new String[raf.readInt()];
+			for (int i = 0; i < infoFields.length; i++)
+				infoFields[i] = raf.readUTF();
+
+			dictionary = new String[raf.readInt()];
+			for (int i = 0; i < dictionary.length; i++)
+				dictionary[i] = raf.readUTF();
+
+			// Chromosome directory
+			int numChromos = raf.readInt();
+			chromos = new HashMap<>();
+			for (int i = 0; i < numChromos; i++) {
+				VcfSdbChromo chromo = new VcfSdbChromo(i, raf.readUTF());
+				chromo.read(raf);
+				chromos.put(Chromosome.simpleName(chromo.getChromosomeName()), chromo);
+				if (debug) Gpr.debug("\t" + chromo);
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("File not found '" + sdbFileName + "'");
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading database file '" + sdbFileName + "'", e);
+		}
+
+		blockCache = new LruCache<>(Math.max(cacheSize, 1));
+	}
+
+	/**
+	 * Find all database entries intersecting 'variant'
+	 */
+	@Override
+	public List<VariantVcfEntry> query(Variant variant) {
+		List<VariantVcfEntry> list = new LinkedList<VariantVcfEntry>();
+
+		VcfSdbChromo chromo = chromos.get(Chromosome.simpleName(variant.getChromosomeName()));
+		if (chromo == null) return list;
+
+		// Only 'long blocks' can have entries intersecting the query before block 'first' (see VcfSdbChromo.findLongBlocks)
+		int start = variant.getStart(), end = variant.getEnd();
+		int first = Math.max(0, chromo.findBlock(start) - 1);
+		for (int b : chromo.longBlocks) {
+			if (b >= first) break;
+			if (chromo.blockMaxEnd[b] >= start) queryBlock(chromo, b, start, end, list);
+		}
+
+		for (int b = first; b < chromo.getNumBlocks() && chromo.blockStart[b] <= end; b++)
+			if (chromo.blockMaxEnd[b] >= start) queryBlock(chromo, b, start, end, list);
+
+		return list;
+	}
+
+	/**
+	 * Add all entries in block 'blockNum' intersecting [start, end]
+	 */
+	void queryBlock(VcfSdbChromo chromo, int blockNum, int start, int end, List<VariantVcfEntry> list) {
+		VcfSdbBlock block = getBlock(chromo, blockNum);
+
+		for (int i = 0; i < block.size(); i++) {
+			if (block.getStart(i) > end) break;
+
+			if (block.getEnd(i) >= start) {
+				VcfEntry ve = block.vcfEntry(i, infoFields, vcfFileIterator);
+				list.addAll(VariantVcfEntry.factory(ve));
+			}
+		}
+	}
+
+	/**
+	 * Maximum number of decoded blocks in cache
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * The directory (chromosomes, dictionary and header) is shared, each worker uses its own file and block cache
+	 */
+	@Override
+	public DbVcf workerCopy() {
+		DbVcfSdb dbVcfSdb = new DbVcfSdb(dbFileName);
+		dbVcfSdb.setVerbose(verbose);
+		dbVcfSdb.setDebug(debug);
+		dbVcfSdb.cacheSize = cacheSize;
+
+		dbVcfSdb.vcfHeader = vcfHeader;
+		dbVcfSdb.infoFields = infoFields;
+		dbVcfSdb.dictionary = dictionary;
+		dbVcfSdb.chromos = chromos;
+		dbVcfSdb.vcfFileIterator = new VcfFileIterator();
+		dbVcfSdb.vcfFileIterator.setVcfHeader(vcfHeader);
+
+		try {
+			dbVcfSdb.raf = new RandomAccessFile(sdbFileName, "r");
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException("File not found '" + sdbFileName + "'", e);
+		}
+		dbVcfSdb.blockCache = new LruCache<>(Math.max(cacheSize, 1));
+
+		return dbVcfSdb;
+	}
+
+}
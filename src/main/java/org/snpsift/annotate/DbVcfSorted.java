@@ -1,5 +1,6 @@
 package org.snpsift.annotate;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -26,6 +27,9 @@ public class DbVcfSorted extends DbVcf {
 
 	VcfIndex vcfIndex;
 	int maxBlockSize = VcfIndexTree.DEFAULT_MAX_BLOCK_SIZE;
+	int numWorkers = 1; // Number of threads used to create the index
+	int cacheSize = VcfIndexTree.DEFAULT_CACHE_SIZE; // Maximum number of VCF entries in index cache
+	boolean exactOnly; // Only query exact matches, using the exact match index (see VcfIndexExact)
 
 	public DbVcfSorted(String dbFileName) {
 		super(dbFileName);
@@ -50,13 +54,23 @@ public class DbVcfSorted extends DbVcf {
 		vcfIndex.setVerbose(verbose);
 		vcfIndex.setDebug(debug);
 		if (maxBlockSize > 0) vcfIndex.setMaxBlockSize(maxBlockSize);
+		vcfIndex.setNumWorkers(numWorkers);
+		vcfIndex.setCacheSize(cacheSize);
+		vcfIndex.setExactIndex(exactOnly);
 		vcfIndex.open();
 		vcfHeader = vcfIndex.getVcf().getVcfHeader();
 		vcfIndex.index();
 	}
 
+	/**
+	 * Find all database entries intersecting 'variant'
+	 * Note: When 'exactOnly' is set, only entries matching 'variant' exactly are
+	 * returned (see 'queryExact')
+	 */
 	@Override
 	public List<VariantVcfEntry> query(Variant variant) {
+		if (exactOnly) return queryExact(variant);
+
 		Markers results = vcfIndex.query(variant);
 
 		List<VariantVcfEntry> list = new LinkedList<VariantVcfEntry>();
@@ -68,8 +82,86 @@ public class DbVcfSorted extends DbVcf {
 		return list;
 	}
 
+	/**
+	 * Batched query: Queries are coalesced into regions and the index is queried once per region
+	 */
+	@Override
+	public List<Collection<VariantVcfEntry>> query(List<Variant> variants) {
+		List<Collection<VariantVcfEntry>> results = newResults(variants.size());
+
+		if (exactOnly) {
+			// Hash lookups: Nothing to gain by coalescing queries
+			for (int i = 0; i < variants.size(); i++)
+				results.get(i).addAll(queryExact(variants.get(i)));
+			return results;
+		}
+
+		for (QueryRegion region : QueryRegion.coalesce(variants)) {
+			for (Marker m : vcfIndex.query(region.toVariant())) {
+				VcfEntry ve = (VcfEntry) m;
+
+				// Add to all intersecting queries
+				List<VariantVcfEntry> varVes = new LinkedList<>();
+				region.intersecting(variants, ve.getStart(), ve.getEnd(), idx -> {
+					if (varVes.isEmpty()) varVes.addAll(VariantVcfEntry.factory(ve));
+					results.get(idx).addAll(varVes);
+				});
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Find database entries matching 'variant' exactly (chromosome, start, end, REF and ALT)
+	 * using the exact match index. No interval tree is traversed, so entries overlapping
+	 * 'variant' (e.g. large deletions) are never read.
+	 *
+	 * Note: Results can include other variants from the same VCF line
+	 * (multi-allelic entries), so they still need to be filtered (see AnnotateVcfDb.queryMatch)
+	 */
+	public List<VariantVcfEntry> queryExact(Variant variant) {
+		List<VariantVcfEntry> list = new LinkedList<VariantVcfEntry>();
+		for (VcfEntry ve : vcfIndex.queryExact(variant))
+			list.addAll(VariantVcfEntry.factory(ve));
+		return list;
+	}
+
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Only query exact matches (must be set before the database is opened)
+	 */
+	public void setExactOnly(boolean exactOnly) {
+		this.exactOnly = exactOnly;
+	}
+
 	public void setMaxBlockSize(int maxBlockSize) {
 		this.maxBlockSize = maxBlockSize;
 	}
 
+	public void setNumWorkers(int numWorkers) {
+		this.numWorkers = numWorkers;
+	}
+
+	/**
+	 * Index trees (and the exact match index) are shared, each worker reads the VCF file using its own reader and cache
+	 */
+	@Override
+	public DbVcf workerCopy() {
+		DbVcfSorted dbVcfSorted = new DbVcfSorted(dbFileName);
+		dbVcfSorted.setVerbose(verbose);
+		dbVcfSorted.setDebug(debug);
+		dbVcfSorted.maxBlockSize = maxBlockSize;
+		dbVcfSorted.numWorkers = numWorkers;
+		dbVcfSorted.cacheSize = cacheSize;
+		dbVcfSorted.exactOnly = exactOnly;
+
+		dbVcfSorted.vcfIndex = new VcfIndex(vcfIndex);
+		dbVcfSorted.vcfHeader = dbVcfSorted.vcfIndex.getVcf().getVcfHeader();
+		return dbVcfSorted;
+	}
+
 }
@@ -0,0 +1,233 @@
+package org.snpsift.annotate;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.snpeff.fileIterator.SeekableBufferedReader;
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.interval.Chromosome;
+import org.snpeff.interval.Variant;
+import org.snpeff.util.Gpr;
+import org.snpeff.vcf.VariantVcfEntry;
+import org.snpeff.vcf.VcfEntry;
+
+/**
+ * Use a sorted and uncompressed VCF file as a database for annotations, without any index
+ *
+ * The database is read sequentially, together with the (sorted) input VCF
+ * file, i.e. a 'merge-join'. Only database entries that can still intersect
+ * the current or next queries are kept in memory (a 'sliding window').
+ *
+ * Note: Both the database and the queries must be sorted by position.
+ *       Chromosome order does not matter (e.g. all entries for chr10 can be before entries for chr2),
+ *       but entries for the same chromosome should be together.
+ *       If chromosome order is the same in the database and the input, the file is read strictly
+ *       sequentially. Otherwise we 'seek' to the first entry of the chromosome.
+ *
+ * Note: A 'NotSortedException' is thrown if either the database or the queries are not sorted
+ *
+ * Note: Queries are expected to be preceded by 'advance()' (see AnnotateVcfDbSortedJoin),
+ *       otherwise entries are only removed from the 'window' when the chromosome changes.
+ *
+ * @author pcingola
+ */
+public class DbVcfSortedJoin extends DbVcf {
+
+	/**
+	 * Database or queries are not sorted
+	 */
+	public static class NotSortedException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public NotSortedException(String message) {
+			super(message);
+		}
+	}
+
+	VcfFileIterator vcf;
+	Map<String, Long> chrFilePos; // File position of the first entry for each chromosome in the database
+	boolean chrFilePosComplete; // Have we reached the end of the database? (i.e. 'chrFilePos' has all chromosomes)
+	Set<String> chrQueryDone; // Chromosomes already queried
+	String chrQuery; // Current query chromosome
+	int startQuery; // Current query start
+	String chrDb; // Chromosome of the latest database entry read
+	int startDb; // Start of the latest database entry read
+	VcfEntry next; // Next database entry (not yet in the window)
+	LinkedList<VcfEntry> window; // Database entries that may intersect current or next queries
+
+	public DbVcfSortedJoin(String dbFileName) {
+		super(dbFileName);
+	}
+
+	/**
+	 * Move forward to query position 'chr:start'.
+	 * Database entries ending before 'start' are removed from the window,
+	 * since they cannot intersect any other query.
+	 */
+	public void advance(String chr, int start) {
+		chr = Chromosome.simpleName(chr);
+
+		if (!chr.equals(chrQuery)) {
+			// New chromosome
+			if (chrQueryDone.contains(chr)) throw new NotSortedException("Input VCF is not sorted: Entries for chromosome '" + chr + "' are not together (found at position " + (start + 1) + ")");
+			if (chrQuery != null) chrQueryDone.add(chrQuery);
+			chrQuery = chr;
+			jumpToChromosome(chr);
+		} else if (start < startQuery) {
+			throw new NotSortedException("Input VCF is not sorted: Position " + chr + ":" + (start + 1) + " is after " + chr + ":" + (startQuery + 1));
+		}
+		startQuery = start;
+
+		// Remove database entries that cannot intersect any other query
+		for (Iterator<VcfEntry> it = window.iterator(); it.hasNext();)
+			if (it.next().getEnd() < start) it.remove();
+	}
+
+	@Override
+	public void close() {
+		if (vcf != null) vcf.close();
+		vcf = null;
+		next = null;
+		window = null;
+	}
+
+	long getFilePointer() {
+		try {
+			return vcf.getFilePointer();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Position the database at the first entry of chromosome 'chr'
+	 */
+	void jumpToChromosome(String chr) {
+		window.clear();
+		if (chr.equals(chrDb)) return; // Already there: 'next' is the first entry in this chromosome
+
+		// Do we know where the chromosome starts?
+		Long pos = chrFilePos.get(chr);
+		if (pos != null) {
+			if (debug) Gpr.debug("Chromosome '" + chr + "': Seek to file position " + pos);
+			try {
+				vcf.seek(pos);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			chrDb = null;
+			next = readNext();
+			return;
+		}
+
+		// Chromosome not in database
+		if (chrFilePosComplete) {
+			next = null;
+			return;
+		}
+
+		// Skip entries until we find the chromosome (or the end of the file)
+		if (debug) Gpr.debug("Chromosome '" + chr + "': Reading database until chromosome is found");
+		while (next != null && !chr.equals(chrDb))
+			next = readNext();
+	}
+
+	/**
+	 * Open database file and read the first entry
+	 */
+	@Override
+	public void open() {
+		if (debug) Gpr.debug("Open database file:" + dbFileName);
+		if (dbFileName.endsWith(".gz") || dbFileName.endsWith(".bgz")) throw new RuntimeException("Database file '" + dbFileName + "' is compressed. Sorted join requires an uncompressed VCF file.");
+
+		try {
+			vcf = new VcfFileIterator(new SeekableBufferedReader(dbFileName));
+			vcfHeader = vcf.readHeader();
+		} catch (FileNotFoundException e) {
+			System.err.println("File not found '" + dbFileName + "'");
+			throw new RuntimeException(e);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		chrFilePos = new HashMap<>();
+		chrFilePosComplete = false;
+		chrQueryDone = new HashSet<>();
+		chrQuery = chrDb = null;
+		window = new LinkedList<>();
+		next = readNext();
+	}
+
+	/**
+	 * Find all database entries intersecting 'variant'
+	 */
+	@Override
+	public List<VariantVcfEntry> query(Variant variant) {
+		String chr = Chromosome.simpleName(variant.getChromosomeName());
+		if (!chr.equals(chrQuery)) advance(chr, variant.getStart());
+
+		// Add database entries that start before the end of the query
+		while (next != null && chr.equals(chrDb) && next.getStart() <= variant.getEnd()) {
+			window.add(next);
+			next = readNext();
+		}
+
+		// Find intersecting entries (all entries in the window are in the same chromosome)
+		List<VariantVcfEntry> list = new LinkedList<VariantVcfEntry>();
+		for (VcfEntry ve : window)
+			if (ve.getStart() <= variant.getEnd() && variant.getStart() <= ve.getEnd()) list.addAll(VariantVcfEntry.factory(ve));
+
+		return list;
+	}
+
+	/**
+	 * Read next database entry and check that the database is sorted
+	 * @return Next entry or null if there are no more entries
+	 */
+	VcfEntry readNext() {
+		long pos = getFilePointer();
+		if (!vcf.hasNext()) {
+			chrFilePosComplete = true;
+			chrDb = null;
+			return null;
+		}
+
+		VcfEntry ve = vcf.next();
+		String chr = Chromosome.simpleName(ve.getChromosomeName());
+		if (chr.equals(chrDb)) {
+			if (ve.getStart() < startDb) throw new NotSortedException("Database file '" + dbFileName + "' is not sorted: Position " + chr + ":" + (ve.getStart() + 1) + " is after " + chr + ":" + (startDb + 1));
+		} else {
+			// First entry in a chromosome
+			Long chrPos = chrFilePos.get(chr);
+			if (chrPos == null) chrFilePos.put(chr, pos);
+			else if (chrPos.longValue() != pos) throw new NotSortedException("Database file '" + dbFileName + "' is not sorted: Entries for chromosome '" + chr + "' are not together (found at position " + (ve.getStart() + 1) + ")");
+			chrDb = chr;
+		}
+
+		startDb = ve.getStart();
+		return ve;
+	}
+
+	/**
+	 * The database is read sequentially, so another reader is opened
+	 * Note: Workers would each stream the whole database, so sorted joins
+	 * are annotated using a single worker (see SnpSiftCmdAnnotate.annotate)
+	 */
+	@Override
+	public DbVcf workerCopy() {
+		DbVcfSortedJoin dbVcfSortedJoin = new DbVcfSortedJoin(dbFileName);
+		dbVcfSortedJoin.setVerbose(verbose);
+		dbVcfSortedJoin.setDebug(debug);
+		dbVcfSortedJoin.open();
+		return dbVcfSortedJoin;
+	}
+
+}
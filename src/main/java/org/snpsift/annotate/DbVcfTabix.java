@@ -1,27 +1,36 @@
 package org.snpsift.annotate;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.snpeff.fileIterator.VcfFileIterator;
 import org.snpeff.interval.Variant;
 import org.snpeff.util.Gpr;
+import org.snpeff.util.Timer;
 import org.snpeff.vcf.VariantVcfEntry;
 import org.snpeff.vcf.VcfEntry;
+import org.snpsift.util.BgzfReadAhead;
+import org.snpsift.util.TabixReadAhead;
 
-import net.sf.samtools.tabix.TabixIterator;
 import net.sf.samtools.tabix.TabixReader;
 
 /**
  * Use a bgzip-compressed, tabix indexed VCF file as a database for annotations
  *
+ * Note: If 'read ahead' threads are set, BGZF blocks are decompressed
+ * in a thread pool (see TabixReadAhead) instead of using TabixReader
+ *
  * @author pcingola
  */
 public class DbVcfTabix extends DbVcf {
 
 	protected TabixReader tabixReader;
+	protected TabixReadAhead tabixReadAhead;
 	protected VcfFileIterator vcf;
+	protected int readAheadThreads; // Number of threads used to decompress BGZF blocks (zero means no 'read ahead')
+	protected int readAheadBlocks = BgzfReadAhead.DEFAULT_BLOCKS_IN_FLIGHT; // Number of BGZF blocks decompressed ahead
 
 	public DbVcfTabix(String dbFileName) {
 		super(dbFileName);
@@ -32,6 +41,12 @@ public class DbVcfTabix extends DbVcf {
 		if (tabixReader != null) tabixReader.close();
 		tabixReader = null;
 
+		if (tabixReadAhead != null) {
+			if (verbose) Timer.showStdErr("Database '" + dbFileName + "', BGZF " + tabixReadAhead.toStringStats());
+			tabixReadAhead.close();
+		}
+		tabixReadAhead = null;
+
 		if (vcf != null) vcf.close();
 		vcf = null;
 		vcfHeader = null;
@@ -41,6 +56,11 @@ public class DbVcfTabix extends DbVcf {
 	 * Initialize tabix reader
 	 */
 	protected boolean initTabix(String fileName) {
+		if (readAheadThreads > 0) {
+			tabixReadAhead = new TabixReadAhead(fileName, readAheadThreads, readAheadBlocks);
+			return true;
+		}
+
 		try {
 			// Do we have a tabix file?
 			String indexFile = fileName + ".tbi";
@@ -73,12 +93,12 @@ public class DbVcfTabix extends DbVcf {
 	public List<VariantVcfEntry> query(Variant variant) {
 		List<VariantVcfEntry> results = new LinkedList<>();
 
-		// Query and parse results
-		TabixIterator ti = tabixReader.query(variant);
+		// Query and parse results (using 'read ahead' if available)
+		Iterable<String> lines = (tabixReadAhead != null ? tabixReadAhead.query(variant) : tabixReader.query(variant));
 
 		// Any results?
-		if (ti != null) {
-			for (String line : ti) {
+		if (lines != null) {
+			for (String line : lines) {
 				line = Gpr.removeBackslashR(line);
 				VcfEntry ve = vcf.parseVcfLine(line);
 				results.addAll(VariantVcfEntry.factory(ve));
@@ -88,4 +108,64 @@ public class DbVcfTabix extends DbVcf {
 		return results;
 	}
 
+	/**
+	 * Batched query: Queries are coalesced into regions, each region is read only once.
+	 * Only lines intersecting at least one query are parsed.
+	 */
+	@Override
+	public List<Collection<VariantVcfEntry>> query(List<Variant> variants) {
+		List<Collection<VariantVcfEntry>> results = newResults(variants.size());
+
+		for (QueryRegion region : QueryRegion.coalesce(variants)) {
+			Variant regionVariant = region.toVariant();
+			Iterable<String> lines = (tabixReadAhead != null ? tabixReadAhead.query(regionVariant) : tabixReader.query(regionVariant));
+			if (lines == null) continue;
+
+			List<Integer> queryIdx = region.getQueryIdx();
+			int interval[] = new int[2];
+			for (String line : lines) {
+				// Entry's coordinates, same as a single query (i.e. tabix), without parsing the whole line
+				if (TabixReadAhead.intervalVcf(line, interval) == null) continue;
+				int start = interval[0];
+				int end = interval[1] - 1;
+
+				// Add to all intersecting queries (parse the line only once)
+				List<VariantVcfEntry> varVes = null;
+				for (int i = region.firstIntersecting(variants, start); i < queryIdx.size(); i++) {
+					int idx = queryIdx.get(i);
+					Variant variant = variants.get(idx);
+					if (variant.getStart() > end) break; // Past the entry? We are done
+					if (variant.getEnd() < start) continue;
+
+					if (varVes == null) varVes = VariantVcfEntry.factory(vcf.parseVcfLine(Gpr.removeBackslashR(line)));
+					results.get(idx).addAll(varVes);
+				}
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Decompress BGZF blocks using 'numThreads' threads, keeping up to 'blocksInFlight' blocks ahead
+	 * Note: Must be set before opening the database
+	 */
+	public void setReadAhead(int numThreads, int blocksInFlight) {
+		readAheadThreads = numThreads;
+		readAheadBlocks = blocksInFlight;
+	}
+
+	/**
+	 * Tabix readers are not thread safe, so another reader is opened
+	 */
+	@Override
+	public DbVcf workerCopy() {
+		DbVcfTabix dbVcfTabix = new DbVcfTabix(dbFileName);
+		dbVcfTabix.setVerbose(verbose);
+		dbVcfTabix.setDebug(debug);
+		dbVcfTabix.setReadAhead(readAheadThreads, readAheadBlocks);
+		dbVcfTabix.open();
+		return dbVcfTabix;
+	}
+
 }
@@ -0,0 +1,264 @@
+package org.snpsift.annotate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.vcf.VariantVcfEntry;
+import org.snpeff.vcf.VcfEntry;
+
+/**
+ * INFO fields used to annotate, resolved once into 'slots'
+ * (sorted alphabetically, so annotations are added in the same
+ * order without sorting keys on every VCF entry).
+ *
+ * Values are accumulated in re-usable buffers, only slots present
+ * in database entries are processed (see 'add').
+ *
+ * 'Per allele' fields get one value per query result (i.e. per ALT),
+ * using '.' for query results without a value. Other fields use the
+ * values from the first query result having any (see AnnotateVcfDb.annotate)
+ *
+ * Note: This class is not thread safe (buffers are re-used)
+ *
+ * @author pcingola
+ */
+public class InfoFieldSlots {
+
+	boolean annotateEmpty;
+	int size;
+	String names[]; // INFO field names, sorted alphabetically
+	String outNames[]; // Names used when annotating (e.g. prepended names)
+	boolean perAllele[], perAlleleRef[];
+	int refSlots[]; // Slots requiring 'REF' value (VCF header has 'Number=R')
+	Map<String, Integer> slotByName;
+
+	// Buffers (values for one VCF entry)
+	StringBuilder values[];
+	boolean hasValue[];
+	int numAlleleValues[]; // Number of 'per allele' values added
+	int lastQueryResult[]; // Last query result processed (see 'queryResultId')
+	int touched[]; // Slots having values
+	int numTouched;
+	int numQueryResults; // Query results added for the current VCF entry
+	int queryResultId; // Unique ID for each query result added (so 'lastQueryResult' never needs to be reset)
+
+	/**
+	 * Resolve slots for 'infoFields'
+	 * @param isPerAllele : Is the INFO field annotated on a 'per allele' basis?
+	 * @param isPerAlleleRef : Does the INFO field also require the 'REF' value?
+	 * @param prependInfoFieldName : Prepend this to annotated INFO names (can be null)
+	 */
+	public InfoFieldSlots(Collection<String> infoFields, Predicate<String> isPerAllele, Predicate<String> isPerAlleleRef, String prependInfoFieldName, boolean annotateEmpty) {
+		this.annotateEmpty = annotateEmpty;
+		size = infoFields.size();
+		names = infoFields.toArray(new String[0]);
+		Arrays.sort(names);
+
+		outNames = new String[size];
+		perAllele = new boolean[size];
+		perAlleleRef = new boolean[size];
+		slotByName = new HashMap<>();
+		int numRef = 0;
+		for (int i = 0; i < size; i++) {
+			outNames[i] = prependInfoFieldName != null ? prependInfoFieldName + names[i] : names[i];
+			perAllele[i] = isPerAllele.test(names[i]);
+			perAlleleRef[i] = isPerAlleleRef.test(names[i]);
+			slotByName.put(names[i], i);
+			if (perAlleleRef[i]) numRef++;
+		}
+
+		refSlots = new int[numRef];
+		for (int i = 0, j = 0; i < size; i++)
+			if (perAlleleRef[i]) refSlots[j++] = i;
+
+		values = new StringBuilder[size];
+		hasValue = new boolean[size];
+		numAlleleValues = new int[size];
+		lastQueryResult = new int[size];
+		touched = new int[size];
+	}
+
+	/**
+	 * Add values from a query result (query results must be added in order)
+	 */
+	public void add(QueryResult qr) {
+		int qrIdx = numQueryResults++;
+		int qrId = ++queryResultId;
+
+		// Only process INFO fields present in database entries
+		for (VariantVcfEntry varVe : qr.results) {
+			if (varVe == null) continue;
+
+			for (String key : varVe.getVcfEntry().getInfoKeys()) {
+				Integer slot = slotByName.get(key);
+				if (slot == null || lastQueryResult[slot] == qrId) continue;
+				lastQueryResult[slot] = qrId;
+
+				if (perAllele[slot]) {
+					// Append first non-empty value matching ALT
+					padAlleleValues(slot, qrIdx);
+					appendValue(slot, findAlt(slot, qr));
+					numAlleleValues[slot]++;
+				} else if (!hasValue[slot]) {
+					// Only one value (if 'annotateEmpty', the first query result already set an empty value)
+					if (annotateEmpty && qrIdx > 0) continue;
+					String val = findAll(slot, qr);
+					if (val != null) appendValue(slot, val);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add 'REF' values for fields requiring them (Number=R). These
+	 * values must be added before any query result
+	 */
+	public void addRef(List<VcfEntry> dbVcfEntries) {
+		for (int slot : refSlots) {
+			// Try to find 'REF' information in any entry
+			String val = null;
+			for (VcfEntry dbVcfEntry : dbVcfEntries) {
+				val = dbVcfEntry.getInfo(names[slot], dbVcfEntry.getRef());
+				if (VcfEntry.isEmpty(val)) val = null; // Only add non-empty
+				else break; // We need only one value
+			}
+
+			// Nothing found? Use 'MISSING' value
+			appendValue(slot, val != null ? val : VcfFileIterator.MISSING);
+		}
+	}
+
+	/**
+	 * Add values to INFO fields in 'vcfEntry' (sorted alphabetically)
+	 * @return True if any INFO field was added
+	 */
+	public boolean annotate(VcfEntry vcfEntry) {
+		finish();
+
+		// Slots are sorted alphabetically, so sorting slot numbers sorts INFO names
+		Arrays.sort(touched, 0, numTouched);
+
+		boolean annotated = false;
+		for (int i = 0; i < numTouched; i++) {
+			int slot = touched[i];
+			String value = values[slot].toString();
+
+			// Skip empty fields?
+			if (!annotateEmpty && VcfEntry.isEmpty(value)) continue;
+
+			vcfEntry.addInfo(outNames[slot], value);
+			annotated = true;
+		}
+
+		return annotated;
+	}
+
+	void appendValue(int slot, String value) {
+		if (!hasValue[slot]) {
+			if (values[slot] == null) values[slot] = new StringBuilder();
+			hasValue[slot] = true;
+			touched[numTouched++] = slot;
+		} else values[slot].append(',');
+
+		values[slot].append(value);
+	}
+
+	/**
+	 * Clear buffers before processing a new VCF entry
+	 */
+	public void clear() {
+		for (int i = 0; i < numTouched; i++) {
+			int slot = touched[i];
+			values[slot].setLength(0);
+			hasValue[slot] = false;
+			numAlleleValues[slot] = 0;
+		}
+
+		numTouched = 0;
+		numQueryResults = 0;
+	}
+
+	/**
+	 * All non-empty values in results, comma separated (null if there are no values)
+	 */
+	String findAll(int slot, QueryResult qr) {
+		String first = null;
+		StringBuilder sb = null;
+
+		for (VariantVcfEntry varVe : qr.results) {
+			if (varVe == null) continue;
+
+			String val = varVe.getVcfEntry().getInfo(names[slot]);
+			if (VcfEntry.isEmpty(val)) continue;
+
+			if (first == null) first = val;
+			else {
+				if (sb == null) sb = new StringBuilder(first);
+				sb.append(',').append(val);
+			}
+		}
+
+		return sb != null ? sb.toString() : first;
+	}
+
+	/**
+	 * First non-empty value matching ALT ('MISSING' if none)
+	 */
+	String findAlt(int slot, QueryResult qr) {
+		for (VariantVcfEntry varVe : qr.results) {
+			if (varVe == null) continue;
+			String val = varVe.getVcfEntry().getInfo(names[slot], qr.variant);
+			if (!VcfEntry.isEmpty(val)) return val;
+		}
+
+		return VcfFileIterator.MISSING;
+	}
+
+	/**
+	 * Add missing values for all query results processed (values for fields not
+	 * present in any database entry are 'missing' or empty)
+	 */
+	void finish() {
+		if (numQueryResults <= 0) return;
+
+		// Are fields not found in any database entry annotated?
+		if (annotateEmpty || !VcfEntry.isEmpty(missingValues(numQueryResults))) {
+			for (int slot = 0; slot < size; slot++) {
+				if (perAllele[slot]) padAlleleValues(slot, numQueryResults);
+				else if (annotateEmpty && !hasValue[slot]) appendValue(slot, VcfFileIterator.MISSING);
+			}
+		} else {
+			// Only fields already having values
+			for (int i = 0; i < numTouched; i++)
+				if (perAllele[touched[i]]) padAlleleValues(touched[i], numQueryResults);
+		}
+	}
+
+	/**
+	 * 'MISSING' values for 'n' query results
+	 */
+	String missingValues(int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			sb.append(i > 0 ? "," : "").append(VcfFileIterator.MISSING);
+		return sb.toString();
+	}
+
+	/**
+	 * Add 'MISSING' values for query results not having a value, up to 'n'
+	 */
+	void padAlleleValues(int slot, int n) {
+		for (; numAlleleValues[slot] < n; numAlleleValues[slot]++)
+			appendValue(slot, VcfFileIterator.MISSING);
+	}
+
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,152 @@
+package org.snpsift.annotate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import org.snpeff.interval.Marker;
+import org.snpeff.interval.Variant;
+
+/**
+ * A genomic region covering several (nearby) queries.
+ * Used for batched database queries (see DbMarker.query(List)): Queries
+ * are sorted and coalesced into regions, then each region is read from
+ * the database only once.
+ *
+ * @author pcingola
+ */
+public class QueryRegion {
+
+	public static final int MAX_GAP = 1000; // Queries closer than this are coalesced into the same region
+	public static final int MAX_REGION_SIZE = 1000 * 1000; // Regions are not extended beyond this size
+
+	final Marker first; // First query in the region
+	final String chromosomeName;
+	final int start;
+	int end;
+	int maxLength; // Maximum query length (end - start)
+	final List<Integer> queryIdx; // Query numbers (position in the original list, sorted by start)
+
+	/**
+	 * Sort queries and coalesce them into regions
+	 */
+	public static <Q extends Marker> List<QueryRegion> coalesce(List<Q> queries) {
+		// Sort query indexes by chromosome and position
+		List<Integer> idxs = new ArrayList<>(queries.size());
+		for (int i = 0; i < queries.size(); i++)
+			idxs.add(i);
+
+		Collections.sort(idxs, (i1, i2) -> {
+			Q q1 = queries.get(i1), q2 = queries.get(i2);
+			int comp = q1.getChromosomeName().compareTo(q2.getChromosomeName());
+			if (comp != 0) return comp;
+			return q1.getStart() - q2.getStart();
+		});
+
+		// Create regions
+		List<QueryRegion> regions = new LinkedList<>();
+		QueryRegion region = null;
+		for (int idx : idxs) {
+			Q q = queries.get(idx);
+			if (region == null || !region.canAdd(q)) {
+				region = new QueryRegion(q);
+				regions.add(region);
+			}
+			region.add(idx, q);
+		}
+
+		return regions;
+	}
+
+	QueryRegion(Marker first) {
+		this.first = first;
+		chromosomeName = first.getChromosomeName();
+		start = first.getStart();
+		end = first.getEnd();
+		queryIdx = new ArrayList<>();
+	}
+
+	void add(int idx, Marker query) {
+		queryIdx.add(idx);
+		end = Math.max(end, query.getEnd());
+		maxLength = Math.max(maxLength, query.getEnd() - query.getStart());
+	}
+
+	/**
+	 * Can we add 'query' to this region?
+	 */
+	boolean canAdd(Marker query) {
+		return chromosomeName.equals(query.getChromosomeName()) //
+				&& query.getStart() <= end + MAX_GAP //
+				&& (Math.max(end, query.getEnd()) - start) <= MAX_REGION_SIZE //
+				;
+	}
+
+	public String getChromosomeName() {
+		return chromosomeName;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public List<Integer> getQueryIdx() {
+		return queryIdx;
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * Position (in 'getQueryIdx()') of the first query that may intersect a
+	 * database entry starting at 'start'. Queries are sorted by start, so callers
+	 * can iterate from this position until a query starts after the entry's end.
+	 *
+	 * @param queries : Original list of queries (the same used to create the region)
+	 */
+	public <Q extends Marker> int firstIntersecting(List<Q> queries, int start) {
+		int minStart = start - maxLength;
+		int lo = 0, hi = queryIdx.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (queries.get(queryIdx.get(mid)).getStart() < minStart) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Invoke 'action' on each query (number) in this region that intersects [start, end]
+	 * Note: Only coordinates are checked (the chromosome is assumed to be the same)
+	 *
+	 * @param queries : Original list of queries (the same used to create the region)
+	 */
+	public <Q extends Marker> void intersecting(List<Q> queries, int start, int end, IntConsumer action) {
+		for (int i = firstIntersecting(queries, start); i < queryIdx.size(); i++) {
+			int idx = queryIdx.get(i);
+			Q q = queries.get(idx);
+			if (q.getStart() > end) break; // Past the end? We are done
+			if (q.getEnd() >= start) action.accept(idx);
+		}
+	}
+
+	public int size() {
+		return queryIdx.size();
+	}
+
+	@Override
+	public String toString() {
+		return chromosomeName + ":" + (start + 1) + "-" + (end + 1) + "\tqueries: " + queryIdx.size();
+	}
+
+	/**
+	 * A variant covering the whole region (used to query the database)
+	 */
+	public Variant toVariant() {
+		return new Variant(first.getParent(), start, Math.max(start, end), "");
+	}
+
+}
@@ -1,5 +1,6 @@
 package org.snpsift.annotate;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -7,6 +8,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -14,8 +16,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.snpeff.fileIterator.SeekableBufferedReader;
 import org.snpeff.fileIterator.VcfFileIterator;
@@ -27,15 +32,25 @@ import org.snpeff.interval.Variant;
 import org.snpeff.util.Gpr;
 import org.snpeff.util.Timer;
 import org.snpeff.vcf.VcfEntry;
+import org.snpsift.util.LruCache;
 
 /**
  * An index for a VCF file
  *
+ * Index file formats:
+ * 		- Version 1: Gzipped, all trees are loaded into arrays
+ * 		- Version 2: Uncompressed, starts with 'INDEX_MAGIC' and version number. Trees are
+ * 		  memory mapped, so opening an index does not depend on its size (see VcfIndexTree)
+ *
+ * Index files are always created using the latest version, but
+ * older (version 1) index files can still be loaded
+ *
  * @author pcingola
  */
 public class VcfIndex {
 
-	public static int INDEX_FORMAT_VERSION = 1;
+	public static int INDEX_FORMAT_VERSION = 2;
+	public static final int INDEX_MAGIC = 0x53494458; // 'SIDX' (version 1 files start with the GZIP magic number)
 	public static int SHOW_EVERY = 1000000;
 
 	public static final String INDEX_EXT = "sidx";
@@ -43,9 +58,15 @@ public class VcfIndex {
 	boolean verbose;
 	boolean debug;
 	int maxBlockSize = VcfIndexTree.DEFAULT_MAX_BLOCK_SIZE;
+	int numWorkers = 1; // Number of threads used to create the index
+	int cacheSize = VcfIndexTree.DEFAULT_CACHE_SIZE; // Maximum number of VCF entries in leaf nodes cache
+	LruCache<Long, List<VcfEntry>> leafCache; // Leaf nodes cache, shared by all trees
 	String fileName;
 	Map<String, VcfIndexDataChromo> vcfIndexByChromo;
 	Map<String, VcfIndexTree> forest; // A hash of trees
+	VcfIndexExact exactIndex; // Exact match index (null if not used)
+	boolean createExactIndex; // Add variants to exact match index while reading the VCF file
+	boolean sharedIndex; // Index is shared with another VcfIndex, which closes it
 	Genome genome;
 	VcfFileIterator vcf;
 
@@ -53,14 +74,49 @@ public class VcfIndex {
 		this.fileName = fileName;
 	}
 
+	/**
+	 * Share the index (trees and exact match index) from another (open) index, using
+	 * our own VCF file reader and leaf nodes cache (e.g. to query the index from another thread)
+	 */
+	public VcfIndex(VcfIndex vcfIndex) {
+		this(vcfIndex.fileName);
+		verbose = vcfIndex.verbose;
+		debug = vcfIndex.debug;
+		maxBlockSize = vcfIndex.maxBlockSize;
+		numWorkers = vcfIndex.numWorkers;
+		cacheSize = vcfIndex.cacheSize;
+		exactIndex = vcfIndex.exactIndex;
+		sharedIndex = true;
+
+		open();
+		forest = new HashMap<>();
+		for (VcfIndexTree vcfTree : vcfIndex.forest.values())
+			forest.put(vcfTree.getChromosome(), new VcfIndexTree(vcfTree));
+		setVcfTree(vcf);
+	}
+
+	/**
+	 * Add a tree to the forest
+	 */
+	void addTree(VcfIndexTree vcfTree) {
+		if (verbose) System.err.println("\t" + vcfTree);
+		forest.put(vcfTree.getChromosome(), vcfTree);
+	}
+
 	/**
 	 * Add an interval parse from 'line'
 	 */
 	public void add(VcfEntry ve, long filePos) {
-		VcfIndexDataChromo vidc = getOrCreate(ve.getChromosomeName());
-
 		List<Variant> vars = ve.variants();
 
+		if (createExactIndex) {
+			for (Variant var : vars)
+				exactIndex.add(var, filePos);
+		}
+
+		if (vcfIndexByChromo == null) return; // Only creating the exact match index
+		VcfIndexDataChromo vidc = getOrCreate(ve.getChromosomeName());
+
 		if (vars.size() == 1) {
 			// This is the most common case
 			Variant var = vars.get(0);
@@ -93,38 +149,74 @@ public class VcfIndex {
 	 * Close file and free memory
 	 */
 	public void close() {
+		if (verbose && leafCache != null) Timer.showStdErr("Index leaf nodes cache. " + leafCache.toStringStats());
 		if (vcf != null) vcf.close();
+		if (exactIndex != null && !sharedIndex) exactIndex.close();
 		vcf = null;
 		vcfIndexByChromo = null;
 		forest = null;
+		leafCache = null;
 	}
 
 	/**
 	 * Create interval forest
+	 * Trees are independent, so they are built in parallel (one chromosome per thread)
 	 */
 	void createIntervalForest() {
-		if (verbose) Timer.showStdErr("Creating interval forest:");
+		if (verbose) Timer.showStdErr("Creating interval forest" + (numWorkers > 1 ? ", using " + numWorkers + " threads" : "") + ":");
 
 		forest = new HashMap<>();
 
-		// For each 'IntervalFileChromo'...
-		for (String chr : chromosomes()) {
-			VcfIndexDataChromo vic = getVcfIndexChromo(chr);
-			VcfIndexTree vcfTree = new VcfIndexTree(vcf, vic);
-			vcfTree.setMaxBlockSize(maxBlockSize);
-			vcfTree.build();
-			if (verbose) System.err.println("\t" + vcfTree);
+		// Build largest chromosomes first
+		List<String> chrs = chromosomes();
+		chrs.sort((c1, c2) -> getVcfIndexChromo(c2).size() - getVcfIndexChromo(c1).size());
 
-			forest.put(chr, vcfTree);
+		if (numWorkers <= 1) {
+			// For each 'IntervalFileChromo'...
+			for (String chr : chrs)
+				addTree(createIntervalTree(chr));
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+			try {
+				List<Future<VcfIndexTree>> futures = new ArrayList<>();
+				for (String chr : chrs)
+					futures.add(executor.submit(() -> createIntervalTree(chr)));
+
+				for (Future<VcfIndexTree> future : futures)
+					addTree(future.get());
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
+			} finally {
+				executor.shutdown();
+			}
 		}
 
 		if (verbose) Timer.showStdErr("Creating interval forest: Done");
 	}
 
+	/**
+	 * Create interval tree for one chromosome
+	 */
+	VcfIndexTree createIntervalTree(String chr) {
+		VcfIndexDataChromo vic = getVcfIndexChromo(chr);
+		VcfIndexTree vcfTree = new VcfIndexTree(vcf, vic);
+		vcfTree.setMaxBlockSize(maxBlockSize);
+		vcfTree.build();
+		return vcfTree;
+	}
+
 	public Genome getGenome() {
 		return genome;
 	}
 
+	public VcfIndexExact getExactIndex() {
+		return exactIndex;
+	}
+
+	public LruCache<Long, List<VcfEntry>> getLeafCache() {
+		return leafCache;
+	}
+
 	/**
 	 * Get IntervalFileChromo by chromosome name.
 	 * Create a new one if it doesn't exists
@@ -173,24 +265,83 @@ public class VcfIndex {
 		// Load a pre-existing index file?
 		String indexFile = fileName + "." + INDEX_EXT;
 		if (verbose) Timer.showStdErr("Checking index file '" + indexFile + "'");
-		if (hasValidIndex(fileName, indexFile)) {
+		boolean validIndex = hasValidIndex(fileName, indexFile);
+		createExactIndex = (exactIndex != null && !exactIndex.hasValidIndex());
+
+		if (validIndex) {
 			loadIndex(indexFile);
-			setVcfTree(vcf);
-			return;
+			if (createExactIndex) loadIntervals(false); // Only the exact match index needs to be created
+		} else {
+			// Create index
+			loadIntervals(true);
+			createIntervalForest();
+			vcfIndexByChromo = null; // Clear data objects, won't be used any more
+			save(indexFile);
+		}
+
+		// Exact match index is created alongside the interval index
+		if (exactIndex != null) {
+			if (createExactIndex) exactIndex.create();
+			else exactIndex.load();
+			createExactIndex = false;
 		}
 
-		// Create index
-		loadIntervals();
-		createIntervalForest();
-		vcfIndexByChromo = null; // Clear data objects, won't be used any more
-		save(indexFile);
 		setVcfTree(vcf);
 	}
 
+	/**
+	 * Index file format version (version 1 files do not have a header)
+	 */
+	int indexFormatVersion(String indexFile) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+			if (in.readInt() != INDEX_MAGIC) return 1;
+			return in.readInt();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Load index form a file
 	 */
 	protected void loadIndex(String indexFile) {
+		int version = indexFormatVersion(indexFile);
+		if (version == 1) loadIndexV1(indexFile);
+		else if (version == 2) loadIndexMapped(indexFile);
+		else throw new RuntimeException("Unknown index format version " + version + " in file '" + indexFile + "'");
+	}
+
+	/**
+	 * Load index form a file: Trees are memory mapped (index format version 2)
+	 */
+	protected void loadIndexMapped(String indexFile) {
+		if (verbose) Timer.showStdErr("Mapping index file '" + indexFile + "'");
+
+		forest = new HashMap<>();
+		if (genome == null) genome = new Genome("genome");
+
+		// Note: Mapped buffers are still valid after the file is closed
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+			raf.readInt(); // Magic number
+			raf.readInt(); // Version
+
+			// Map data for each chromosome
+			while (true) {
+				VcfIndexTree vcfTree = new VcfIndexTree();
+				vcfTree.setVerbose(verbose);
+				vcfTree.setDebug(debug);
+				if (!vcfTree.load(raf)) break;
+				forest.put(vcfTree.getChromosome(), vcfTree);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Load index form a gzipped file (index format version 1)
+	 */
+	protected void loadIndexV1(String indexFile) {
 		if (verbose) Timer.showStdErr("Loading index file '" + indexFile + "'");
 
 		DataInputStream in = null;
@@ -226,13 +377,14 @@ public class VcfIndex {
 
 	/**
 	 * Parse input VCF file and load intervals
+	 * @param intervals : Create intervals (if false, variants are only added to the exact match index)
 	 */
-	void loadIntervals() {
+	void loadIntervals(boolean intervals) {
 		if (verbose) Timer.showStdErr("Create index: Reading variants from file '" + fileName + "'");
 
 		try {
 			open(); // Open VCF file
-			vcfIndexByChromo = new HashMap<>();
+			vcfIndexByChromo = intervals ? new HashMap<>() : null;
 
 			// Read the whole file
 			boolean title = true;
@@ -274,7 +426,7 @@ public class VcfIndex {
 
 				// Prepare for next iteration
 				pos = vcf.getFilePointer();
-				getVcfIndexChromo(ve.getChromosomeName()).setFilePosEnd(pos);
+				if (intervals) getVcfIndexChromo(ve.getChromosomeName()).setFilePosEnd(pos);
 			}
 
 			// After index is create, the file is queried. We'll be
@@ -284,7 +436,7 @@ public class VcfIndex {
 			throw new RuntimeException(e);
 		}
 
-		if (verbose) Timer.showStdErr("Loading intervals: Done\n" + this);
+		if (verbose) Timer.showStdErr("Loading intervals: Done" + (intervals ? "\n" + this : ""));
 	}
 
 	/**
@@ -315,6 +467,19 @@ public class VcfIndex {
 		return tree.query(marker);
 	}
 
+	/**
+	 * Find VCF entries matching 'variant' exactly, using the exact match index
+	 * (no interval tree is traversed). Entries having other variants (e.g.
+	 * multi-allelic entries) are also returned, so results must still
+	 * be compared to 'variant'
+	 */
+	public List<VcfEntry> queryExact(Variant variant) {
+		List<VcfEntry> vcfEntries = new ArrayList<>(1);
+		for (long filePos : exactIndex.query(variant))
+			vcfEntries.add(read(filePos));
+		return vcfEntries;
+	}
+
 	/**
 	 * Read a VcfEntry at position 'fileIdx'
 	 */
@@ -335,14 +500,16 @@ public class VcfIndex {
 	}
 
 	/**
-	 * Save index file
+	 * Save index file (uncompressed, so it can be memory mapped)
 	 */
 	public void save(String indexFile) {
 		if (verbose) Timer.showStdErr("Saving index to file '" + indexFile + "'");
 
 		DataOutputStream out = null;
 		try {
-			out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(indexFile)));
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_FORMAT_VERSION);
 
 			// Save each chromosome index
 			for (String chr : chromosomes())
@@ -361,6 +528,10 @@ public class VcfIndex {
 		if (verbose) Timer.showStdErr("Saving index: Done.");
 	}
 
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 
@@ -370,16 +541,38 @@ public class VcfIndex {
 		}
 	}
 
+	/**
+	 * Use (and create if needed) an exact match index. Must be set before invoking 'index()'
+	 */
+	public void setExactIndex(boolean exact) {
+		if (!exact) exactIndex = null;
+		else if (exactIndex == null) {
+			exactIndex = new VcfIndexExact(fileName);
+			exactIndex.setVerbose(verbose);
+			exactIndex.setDebug(debug);
+		}
+	}
+
 	public void setMaxBlockSize(int maxBlockSize) {
 		this.maxBlockSize = maxBlockSize;
 	}
 
+	public void setNumWorkers(int numWorkers) {
+		this.numWorkers = numWorkers;
+	}
+
 	/**
-	 * Set VCF in tree structures
+	 * Set VCF and leaf nodes cache in tree structures
 	 */
 	void setVcfTree(VcfFileIterator vcf) {
-		for (String chr : chromosomes())
-			getTree(chr).setVcf(vcf);
+		leafCache = VcfIndexTree.newLeafCache(cacheSize);
+
+		int treeId = 0;
+		for (String chr : chromosomes()) {
+			VcfIndexTree vcfTree = getTree(chr);
+			vcfTree.setVcf(vcf);
+			vcfTree.setLeafCache(leafCache, treeId++);
+		}
 	}
 
 	public void setVerbose(boolean verbose) {
@@ -0,0 +1,273 @@
+package org.snpsift.annotate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.snpeff.interval.Chromosome;
+import org.snpeff.interval.Variant;
+import org.snpeff.util.Gpr;
+import org.snpeff.util.Timer;
+
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Exact match index for a VCF file: A hash table mapping
+ * (chromosome, start, end, REF, ALT) to the position of the
+ * VCF line in the file.
+ *
+ * It is used to find entries matching a variant exactly without
+ * traversing interval trees (see VcfIndex.queryExact). Interval
+ * queries return every overlapping entry (e.g. large deletions
+ * spanning the variant), which are then discarded when REF and
+ * ALT are compared.
+ *
+ * File format (uncompressed, so it can be memory mapped):
+ * 		- Header: INDEX_MAGIC, version, number of entries, number of slots
+ * 		- Slots: Open addressing (linear probing) hash table. Each slot has a 64 bit
+ * 		  key and the file position plus one (zero means 'empty slot')
+ *
+ * Note: Keys are hashes, so there can be (very unlikely) false positives.
+ * Results must be compared to the query (see AnnotateVcfDb.match)
+ *
+ * @author pcingola
+ */
+public class VcfIndexExact {
+
+	public static final int INDEX_FORMAT_VERSION = 1;
+	public static final int INDEX_MAGIC = 0x53484458; // 'SHDX'
+	public static final String INDEX_EXT = "shidx";
+
+	public static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+	public static final int SLOT_SIZE = 8 + 8; // Key and file position
+	public static final int SEGMENT_BITS = 26; // Slots per mapped segment (2^26 slots = 1GB)
+	public static final double MAX_LOAD_FACTOR = 0.5;
+
+	boolean verbose;
+	boolean debug;
+	String fileName; // VCF file
+	String indexFile;
+	long numEntries;
+	long capacity; // Number of slots (power of two)
+	MappedByteBuffer segments[];
+	TLongArrayList keys, filePositions; // Entries added while creating the index
+
+	/**
+	 * Key for a variant (case insensitive REF and ALT, as in AnnotateVcfDb.match)
+	 */
+	public static long key(Variant var) {
+		long h = 0xcbf29ce484222325L; // FNV-1a
+		h = hash(h, Chromosome.simpleName(var.getChromosomeName()), false);
+		h = (h ^ var.getStart()) * 0x100000001b3L;
+		h = (h ^ var.getEnd()) * 0x100000001b3L;
+		h = hash(h, var.getReference(), true);
+		h = (h ^ '\t') * 0x100000001b3L;
+		h = hash(h, var.getAlt(), true);
+		return h;
+	}
+
+	static long hash(long h, String str, boolean upperCase) {
+		if (str == null) return h;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			h = (h ^ (upperCase ? Character.toUpperCase(c) : c)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Mix key bits before using them as a slot number
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public VcfIndexExact(String fileName) {
+		this.fileName = fileName;
+		indexFile = fileName + "." + INDEX_EXT;
+	}
+
+	/**
+	 * Add a variant (while creating the index)
+	 */
+	public void add(Variant var, long filePos) {
+		if (keys == null) {
+			keys = new TLongArrayList();
+			filePositions = new TLongArrayList();
+		}
+
+		keys.add(key(var));
+		filePositions.add(filePos);
+	}
+
+	public void close() {
+		segments = null;
+		keys = filePositions = null;
+	}
+
+	/**
+	 * Create index file from entries added (see 'add') and map it
+	 */
+	public void create() {
+		numEntries = keys != null ? keys.size() : 0;
+		capacity = 1;
+		while (capacity * MAX_LOAD_FACTOR < numEntries)
+			capacity <<= 1;
+
+		if (verbose) Timer.showStdErr("Creating exact match index file '" + indexFile + "', entries: " + numEntries + ", slots: " + capacity);
+
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+			raf.setLength(0);
+			raf.writeInt(INDEX_MAGIC);
+			raf.writeInt(INDEX_FORMAT_VERSION);
+			raf.writeLong(numEntries);
+			raf.writeLong(capacity);
+			raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE); // Zero filled, i.e. all slots are empty
+
+			// Insert entries directly in the mapped file (the table is never fully loaded into the heap)
+			segments = map(raf, MapMode.READ_WRITE);
+			long mask = capacity - 1;
+			for (int i = 0; i < numEntries; i++) {
+				long key = keys.get(i);
+				long slot = mix(key) & mask;
+				while (getFilePos(slot) != 0)
+					slot = (slot + 1) & mask;
+				set(slot, key, filePositions.get(i) + 1);
+			}
+
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		keys = filePositions = null; // Not needed any more
+		if (verbose) Timer.showStdErr("Creating exact match index: Done. " + this);
+	}
+
+	long getFilePos(long slot) {
+		return segments[(int) (slot >>> SEGMENT_BITS)].getLong(slotOffset(slot) + 8);
+	}
+
+	long getKey(long slot) {
+		return segments[(int) (slot >>> SEGMENT_BITS)].getLong(slotOffset(slot));
+	}
+
+	public String getIndexFile() {
+		return indexFile;
+	}
+
+	/**
+	 * Is the index file valid?
+	 * (i.e. exists and has been created after the VCF file)
+	 */
+	public boolean hasValidIndex() {
+		if (!Gpr.exists(indexFile)) return false;
+		return new File(indexFile).lastModified() > new File(fileName).lastModified();
+	}
+
+	/**
+	 * Map index file
+	 */
+	public void load() {
+		if (verbose) Timer.showStdErr("Mapping exact match index file '" + indexFile + "'");
+
+		// Note: Mapped buffers are still valid after the file is closed
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+			if (raf.readInt() != INDEX_MAGIC) throw new RuntimeException("File '" + indexFile + "' is not an exact match index file");
+			int version = raf.readInt();
+			if (version != INDEX_FORMAT_VERSION) throw new RuntimeException("Unknown index format version " + version + " in file '" + indexFile + "'");
+			numEntries = raf.readLong();
+			capacity = raf.readLong();
+			segments = map(raf, MapMode.READ_ONLY);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		if (verbose) Timer.showStdErr("Mapping exact match index: Done. " + this);
+	}
+
+	/**
+	 * Map hash table slots, in segments of (at most) 2^SEGMENT_BITS slots
+	 */
+	MappedByteBuffer[] map(RandomAccessFile raf, MapMode mode) throws IOException {
+		long slotsPerSegment = 1L << SEGMENT_BITS;
+		int numSegments = (int) ((capacity + slotsPerSegment - 1) / slotsPerSegment);
+		MappedByteBuffer segs[] = new MappedByteBuffer[numSegments];
+
+		FileChannel channel = raf.getChannel();
+		for (int i = 0; i < numSegments; i++) {
+			long slots = Math.min(slotsPerSegment, capacity - i * slotsPerSegment);
+			segs[i] = channel.map(mode, HEADER_SIZE + i * slotsPerSegment * SLOT_SIZE, slots * SLOT_SIZE);
+		}
+
+		return segs;
+	}
+
+	/**
+	 * Size of the hash table (in bytes). The table is memory mapped (it does not use heap memory)
+	 */
+	public long memory() {
+		return capacity * SLOT_SIZE;
+	}
+
+	/**
+	 * File positions of all VCF lines having a variant matching 'var' exactly
+	 * (chromosome, start, end, REF and ALT). Each position is reported only once.
+	 */
+	public List<Long> query(Variant var) {
+		List<Long> filePositions = new ArrayList<>(1);
+		if (numEntries == 0) return filePositions;
+
+		long key = key(var);
+		long mask = capacity - 1;
+		for (long slot = mix(key) & mask;; slot = (slot + 1) & mask) {
+			long filePos = getFilePos(slot);
+			if (filePos == 0) break; // Empty slot: No more entries
+
+			if (getKey(slot) == key && !filePositions.contains(filePos - 1)) filePositions.add(filePos - 1);
+		}
+
+		return filePositions;
+	}
+
+	void set(long slot, long key, long filePosPlusOne) {
+		MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+		int offset = slotOffset(slot);
+		segment.putLong(offset, key);
+		segment.putLong(offset + 8, filePosPlusOne);
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	int slotOffset(long slot) {
+		return (int) (slot & ((1L << SEGMENT_BITS) - 1)) * SLOT_SIZE;
+	}
+
+	@Override
+	public String toString() {
+		return "Exact match index '" + indexFile + "'" //
+				+ ", entries: " + numEntries //
+				+ ", slots: " + capacity //
+				+ String.format(", load factor: %.2f", capacity > 0 ? ((double) numEntries) / capacity : 0.0) //
+				+ ", memory: " + memory() + " bytes (memory mapped)" //
+		;
+	}
+
+}
@@ -4,6 +4,10 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -21,6 +25,7 @@ import org.snpeff.interval.tree.Itree;
 import org.snpeff.util.Gpr;
 import org.snpeff.util.Timer;
 import org.snpeff.vcf.VcfEntry;
+import org.snpsift.util.LruCache;
 
 import gnu.trove.list.array.TIntArrayList;
 
@@ -29,14 +34,34 @@ import gnu.trove.list.array.TIntArrayList;
  * The whole tree is stored in a single class as a set of arrays.
  * Nodes are referenced by index in the array
  *
+ * Index file format (version 2) for each tree is uncompressed, so that it
+ * can be memory mapped instead of loaded into arrays (see 'load(RandomAccessFile)'):
+ *
+ * 		chromosome            : UTF string
+ * 		size                  : int
+ * 		intersectSize         : int (total number of file blocks)
+ * 		left[size]            : int
+ * 		right[size]           : int
+ * 		mid[size]             : int
+ * 		intersectIdx[size + 1]: int (file blocks for node 'i' are 'intersectIdx[i]' to 'intersectIdx[i+1] - 1')
+ * 		filePosStart[intersectSize]: long
+ * 		filePosEnd[intersectSize]  : long
+ *
+ * Index data is mapped in segments of 2^SEGMENT_BITS bytes, so trees can be larger than 2GB.
+ * Consecutive segments overlap by 8 bytes, so a value never crosses a segment boundary.
+ *
  * @author pcingola
  */
 public class VcfIndexTree implements Itree {
 
+	public static final int DEFAULT_CACHE_SIZE = 10 * 1000; // Maximum number of VCF entries in leaf nodes cache
 	public static final int COLLAPSE_MAX_NUM_ENTRIES = 4; // This number cannot be less then 3 (see comment in code below)
 	public static final int DEFAULT_MAX_BLOCK_SIZE = 16 * 1024; // Minimum file size to index
 	public static final int INITIAL_CAPACITY = 1024; // Initial capacity for arrays
 	public static final int MAX_DIFF_COLLAPSE = 2; // We only allow 2 characters difference to collapse entries ('\r\n')
+	public static final int SEGMENT_BITS = 30; // Bytes per mapped segment (2^30 bytes = 1GB)
+	public static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+	public static final int SEGMENT_OVERLAP = 8; // Bytes shared by consecutive segments (size of the largest value)
 
 	boolean debug;
 	boolean verbose;
@@ -53,8 +78,10 @@ public class VcfIndexTree implements Itree {
 	int size; // Arrays size (index of first unused element in the arrays)
 	int maxBlockSize = DEFAULT_MAX_BLOCK_SIZE;
 	List<VcfEntry> intersect[]; // Cache entries for non-leaf nodes
-	int cachedLeafNodeIdx = -1;
-	List<VcfEntry> cachedLeafNode = null;
+	LruCache<Long, List<VcfEntry>> leafCache; // Cache entries for leaf nodes (can be shared by several trees)
+	int treeId; // Used to create leaf cache keys (unique for trees sharing a cache)
+	MappedByteBuffer mapped[]; // Memory mapped index data segments (format version 2). If not null, arrays are not used
+	int intersectSize; // Total number of file blocks in memory mapped index
 
 	public VcfIndexTree() {
 		this(null, null);
@@ -72,6 +99,42 @@ public class VcfIndexTree implements Itree {
 		intersectFilePosEnd = new long[INITIAL_CAPACITY][];
 		intersect = new List[INITIAL_CAPACITY];
 		size = 0;
+		leafCache = newLeafCache(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Share index data from another tree (e.g. to query the same index from another thread).
+	 * Index data is only read once loaded, but caches and the VCF file reader are not
+	 * shared (see 'setVcf' and 'setLeafCache')
+	 */
+	@SuppressWarnings("unchecked")
+	public VcfIndexTree(VcfIndexTree vcfTree) {
+		debug = vcfTree.debug;
+		verbose = vcfTree.verbose;
+		inSync = vcfTree.inSync;
+		chromosome = vcfTree.chromosome;
+		vcfIndexChromo = vcfTree.vcfIndexChromo;
+		maxBlockSize = vcfTree.maxBlockSize;
+		size = vcfTree.size;
+
+		left = vcfTree.left;
+		right = vcfTree.right;
+		mid = vcfTree.mid;
+		intersectFilePosStart = vcfTree.intersectFilePosStart;
+		intersectFilePosEnd = vcfTree.intersectFilePosEnd;
+		mapped = vcfTree.mapped;
+		intersectSize = vcfTree.intersectSize;
+
+		intersect = new List[vcfTree.intersect.length];
+		leafCache = newLeafCache(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Create a cache for leaf nodes
+	 * @param cacheSize : Maximum number of VCF entries in the cache
+	 */
+	public static LruCache<Long, List<VcfEntry>> newLeafCache(int cacheSize) {
+		return new LruCache<Long, List<VcfEntry>>(cacheSize, List::size);
 	}
 
 	@Override
@@ -151,6 +214,7 @@ public class VcfIndexTree implements Itree {
 	}
 
 	int capacity() {
+		if (mapped != null) return size;
 		if (left == null) return 0;
 		return left.length;
 	}
@@ -214,11 +278,42 @@ public class VcfIndexTree implements Itree {
 		return chromosome;
 	}
 
+	/**
+	 * File position (end) of the i-th file block intersecting node 'idx'
+	 */
+	long getIntersectFilePosEnd(int idx, int i) {
+		if (mapped != null) return mappedLong(offsetFilePosEnd() + 8L * (mappedInt(offsetIntersectIdx() + 4L * idx) + i));
+		return intersectFilePosEnd[idx][i];
+	}
+
+	/**
+	 * File position (start) of the i-th file block intersecting node 'idx'
+	 */
+	long getIntersectFilePosStart(int idx, int i) {
+		if (mapped != null) return mappedLong(offsetFilePosStart() + 8L * (mappedInt(offsetIntersectIdx() + 4L * idx) + i));
+		return intersectFilePosStart[idx][i];
+	}
+
 	@Override
 	public Markers getIntervals() {
 		throw new RuntimeException("Unimplemented! This IntervalTree is backed by a VcfIndexDataChromo class instead of a set of markers");
 	}
 
+	int getLeft(int idx) {
+		if (mapped != null) return mappedInt(4L * idx);
+		return left[idx];
+	}
+
+	int getMid(int idx) {
+		if (mapped != null) return mappedInt(offsetMid() + 4L * idx);
+		return mid[idx];
+	}
+
+	int getRight(int idx) {
+		if (mapped != null) return mappedInt(offsetRight() + 4L * idx);
+		return right[idx];
+	}
+
 	void grow() {
 		int oldCapacity = capacity();
 		int newCapacity = oldCapacity + (oldCapacity >> 1);
@@ -231,6 +326,18 @@ public class VcfIndexTree implements Itree {
 		intersect = Arrays.copyOf(intersect, newCapacity);
 	}
 
+	/**
+	 * Number of file blocks intersecting node 'idx'
+	 */
+	int intersectLen(int idx) {
+		if (mapped != null) {
+			long offset = offsetIntersectIdx() + 4L * idx;
+			return mappedInt(offset + 4) - mappedInt(offset);
+		}
+
+		return intersectFilePosStart[idx] != null ? intersectFilePosStart[idx].length : 0;
+	}
+
 	/**
 	 * Find all interval indexes from intervals within [startIdx, endIdx] that intersect 'pos'
 	 */
@@ -272,7 +379,7 @@ public class VcfIndexTree implements Itree {
 	 * Is node 'idx' a leaf node?
 	 */
 	boolean isLeaf(int idx) {
-		return (left[idx] == -1) && (right[idx] == -1);
+		return (getLeft(idx) == -1) && (getRight(idx) == -1);
 	}
 
 	@Override
@@ -281,7 +388,7 @@ public class VcfIndexTree implements Itree {
 	}
 
 	/**
-	 * Read data from input stream
+	 * Read data from input stream (index format version 1, see 'VcfIndex.loadIndex()')
 	 * @return true on success
 	 */
 	@SuppressWarnings("unchecked")
@@ -333,11 +440,74 @@ public class VcfIndexTree implements Itree {
 		return true;
 	}
 
+	/**
+	 * Memory map index data from file (index format version 2)
+	 * @return true on success, false if there are no more trees in the file
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean load(RandomAccessFile raf) {
+		try {
+			if (raf.getFilePointer() >= raf.length()) return false;
+
+			chromosome = raf.readUTF();
+			size = raf.readInt();
+			intersectSize = raf.readInt();
+			if (verbose) Timer.showStdErr("\tMapping index for chromosome '" + chromosome + "' (index size: " + size + " )");
+
+			// Map arrays data
+			long pos = raf.getFilePointer();
+			long len = offsetFilePosEnd() + 8L * intersectSize;
+			mapped = map(raf, pos, len);
+			raf.seek(pos + len);
+
+			// Arrays are not used
+			left = right = mid = null;
+			intersectFilePosStart = intersectFilePosEnd = null;
+			intersect = new List[size];
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		return true;
+	}
+
 	@Override
 	public void load(String fileName, Genome genome) {
 		throw new RuntimeException("Unimplemented! This IntervalTree is loaded as part of a whole index");
 	}
 
+	/**
+	 * Map 'len' bytes starting at file position 'pos', in segments of (at most)
+	 * 2^SEGMENT_BITS bytes, plus an overlap with the next segment
+	 */
+	MappedByteBuffer[] map(RandomAccessFile raf, long pos, long len) throws IOException {
+		long segmentSize = 1L << SEGMENT_BITS;
+		int numSegments = (int) Math.max(1, (len + segmentSize - 1) / segmentSize);
+		MappedByteBuffer segs[] = new MappedByteBuffer[numSegments];
+
+		FileChannel channel = raf.getChannel();
+		for (int i = 0; i < numSegments; i++) {
+			long start = i * segmentSize;
+			segs[i] = channel.map(MapMode.READ_ONLY, pos + start, Math.min(segmentSize + SEGMENT_OVERLAP, len - start));
+		}
+
+		return segs;
+	}
+
+	/**
+	 * Read an int from memory mapped data
+	 */
+	int mappedInt(long offset) {
+		return mapped[(int) (offset >>> SEGMENT_BITS)].getInt((int) (offset & SEGMENT_MASK));
+	}
+
+	/**
+	 * Read a long from memory mapped data
+	 */
+	long mappedLong(long offset) {
+		return mapped[(int) (offset >>> SEGMENT_BITS)].getLong((int) (offset & SEGMENT_MASK));
+	}
+
 	/**
 	 * Mean coordinates from entries indexed by 'idxs'
 	 */
@@ -365,6 +535,29 @@ public class VcfIndexTree implements Itree {
 		return size++;
 	}
 
+	/**
+	 * Offsets within memory mapped data (see index file format)
+	 */
+	long offsetFilePosEnd() {
+		return offsetFilePosStart() + 8L * intersectSize;
+	}
+
+	long offsetFilePosStart() {
+		return offsetIntersectIdx() + 4L * (size + 1);
+	}
+
+	long offsetIntersectIdx() {
+		return 12L * size;
+	}
+
+	long offsetMid() {
+		return 8L * size;
+	}
+
+	long offsetRight() {
+		return 4L * size;
+	}
+
 	/**
 	 * Query index to find all VCF entries intersecting 'marker'
 	 * Store VCF entries in 'results'
@@ -373,7 +566,7 @@ public class VcfIndexTree implements Itree {
 	public Markers query(Interval queryMarker) {
 		Markers results = new Markers();
 		if (debug) Gpr.debug("Query: " + queryMarker.getChromosomeName() + ":" + queryMarker.getStart() + "-" + queryMarker.getEnd() + "\t" + queryMarker);
-		query(queryMarker, 0, results);
+		if (size > 0) query(queryMarker, 0, results);
 		return results;
 	}
 
@@ -391,13 +584,13 @@ public class VcfIndexTree implements Itree {
 		queryIntersects(queryMarker, idx, results);
 
 		// Recurse left or right
-		int midPos = mid[idx];
-		if ((queryMarker.getEnd() < midPos) && (left[idx] >= 0)) {
-			query(queryMarker, left[idx], results);
+		int midPos = getMid(idx);
+		if ((queryMarker.getEnd() < midPos) && (getLeft(idx) >= 0)) {
+			query(queryMarker, getLeft(idx), results);
 		}
 
-		if ((midPos < queryMarker.getStart()) && (right[idx] >= 0)) {
-			query(queryMarker, right[idx], results);
+		if ((midPos < queryMarker.getStart()) && (getRight(idx) >= 0)) {
+			query(queryMarker, getRight(idx), results);
 		}
 	}
 
@@ -405,7 +598,7 @@ public class VcfIndexTree implements Itree {
 	 * Query VCF entries intersecting 'marker' at node 'idx'
 	 */
 	protected void queryIntersects(Interval queryMarker, int idx, Markers results) {
-		if (intersectFilePosStart[idx] == null) return;
+		if (intersectLen(idx) == 0) return;
 		if (debug) Gpr.debug("queryIntersects\tidx: " + idx);
 
 		// Read entries from disk
@@ -428,24 +621,35 @@ public class VcfIndexTree implements Itree {
 		}
 	}
 
+	/**
+	 * Key used to cache leaf node 'idx'
+	 */
+	Long leafCacheKey(int idx) {
+		return (((long) treeId) << 32) | idx;
+	}
+
 	List<VcfEntry> readEntries(int idx) {
 		// Cached?
-		if (cachedLeafNodeIdx == idx) return cachedLeafNode;
 		List<VcfEntry> vcfEntries = intersect[idx];
 		if (vcfEntries != null) return vcfEntries;
 
+		boolean leaf = isLeaf(idx);
+		if (leaf) {
+			vcfEntries = leafCache.get(leafCacheKey(idx));
+			if (vcfEntries != null) return vcfEntries;
+		}
+
 		try {
 			// There might be several non-contiguous file regions
-			int len = intersectFilePosStart[idx].length;
+			int len = intersectLen(idx);
 
 			// Read each file region
 			vcfEntries = new ArrayList<VcfEntry>();
 			Set<VcfEntry> added = new HashSet<>();
 			for (int i = 0; i < len; i++) {
-				if (debug) Gpr.debug("\tintersect[" + idx + "][" + i + "]:\t[" + intersectFilePosStart[idx][i] + " , " + intersectFilePosEnd[idx][i] + " ]");
-
-				long startPos = intersectFilePosStart[idx][i];
-				long endPos = intersectFilePosEnd[idx][i];
+				long startPos = getIntersectFilePosStart(idx, i);
+				long endPos = getIntersectFilePosEnd(idx, i);
+				if (debug) Gpr.debug("\tintersect[" + idx + "][" + i + "]:\t[" + startPos + " , " + endPos + " ]");
 
 				// No cache? Read from file
 				vcf.seek(startPos);
@@ -463,9 +667,8 @@ public class VcfIndexTree implements Itree {
 			}
 
 			// Cache data
-			if (isLeaf(idx)) {
-				cachedLeafNodeIdx = idx;
-				cachedLeafNode = vcfEntries;
+			if (leaf) {
+				leafCache.put(leafCacheKey(idx), vcfEntries);
 			} else if (intersect[idx] == null) {
 				// Cache non-leaf nodes, which have very few intersect entries
 				intersect[idx] = vcfEntries;
@@ -478,28 +681,43 @@ public class VcfIndexTree implements Itree {
 	}
 
 	/**
-	 * Save to output stream
+	 * Save to output stream (index format version 2)
 	 */
 	public void save(DataOutputStream out) {
 		try {
+			int intersectSize = 0;
+			for (int i = 0; i < size; i++)
+				intersectSize += intersectLen(i);
+
 			out.writeUTF(chromosome);
 			out.writeInt(size);
+			out.writeInt(intersectSize);
 
 			// Dump array data
-			for (int i = 0; i < size; i++) {
-				out.writeInt(left[i]);
-				out.writeInt(right[i]);
-				out.writeInt(mid[i]);
+			for (int i = 0; i < size; i++)
+				out.writeInt(getLeft(i));
 
-				// Intersect data
+			for (int i = 0; i < size; i++)
+				out.writeInt(getRight(i));
 
-				int len = intersectFilePosStart[i] != null ? intersectFilePosStart[i].length : 0;
-				out.writeInt(len);
-				for (int j = 0; j < len; j++) {
-					out.writeLong(intersectFilePosStart[i][j]);
-					out.writeLong(intersectFilePosEnd[i][j]);
-				}
+			for (int i = 0; i < size; i++)
+				out.writeInt(getMid(i));
+
+			// Intersect data
+			int intersectIdx = 0;
+			for (int i = 0; i < size; i++) {
+				out.writeInt(intersectIdx);
+				intersectIdx += intersectLen(i);
 			}
+			out.writeInt(intersectIdx);
+
+			for (int i = 0; i < size; i++)
+				for (int j = 0; j < intersectLen(i); j++)
+					out.writeLong(getIntersectFilePosStart(i, j));
+
+			for (int i = 0; i < size; i++)
+				for (int j = 0; j < intersectLen(i); j++)
+					out.writeLong(getIntersectFilePosEnd(i, j));
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -548,6 +766,15 @@ public class VcfIndexTree implements Itree {
 		this.debug = debug;
 	}
 
+	/**
+	 * Use a (shared) leaf nodes cache
+	 * @param treeId : A unique number for each tree using 'leafCache'
+	 */
+	public void setLeafCache(LruCache<Long, List<VcfEntry>> leafCache, int treeId) {
+		this.leafCache = leafCache;
+		this.treeId = treeId;
+	}
+
 	public void setMaxBlockSize(int maxBlockSize) {
 		this.maxBlockSize = maxBlockSize;
 	}
@@ -583,15 +810,16 @@ public class VcfIndexTree implements Itree {
 
 		StringBuilder sb = new StringBuilder();
 		sb.append(idx //
-				+ "\tleftIdx: " + left[idx] //
-				+ "\trightIdx: " + right[idx] //
-				+ "\tmidPos: " + mid[idx] //
+				+ "\tleftIdx: " + getLeft(idx) //
+				+ "\trightIdx: " + getRight(idx) //
+				+ "\tmidPos: " + getMid(idx) //
 		);
 
-		if (intersectFilePosStart[idx] != null) {
-			sb.append("\tintersect: (" + intersectFilePosStart[idx].length + "): ");
-			for (int i = 0; i < intersectFilePosStart[idx].length; i++)
-				sb.append("\t[" + intersectFilePosStart[idx][i] + ", " + intersectFilePosEnd[idx][i] + "] size " + (intersectFilePosEnd[idx][i] - intersectFilePosStart[idx][i] + 1));
+		int len = intersectLen(idx);
+		if (len > 0) {
+			sb.append("\tintersect: (" + len + "): ");
+			for (int i = 0; i < len; i++)
+				sb.append("\t[" + getIntersectFilePosStart(idx, i) + ", " + getIntersectFilePosEnd(idx, i) + "] size " + (getIntersectFilePosEnd(idx, i) - getIntersectFilePosStart(idx, i) + 1));
 		}
 
 		if (intersect[idx] != null) sb.append("\tCache: " + intersect[idx].size());
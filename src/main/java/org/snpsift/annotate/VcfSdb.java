@@ -0,0 +1,140 @@
+package org.snpsift.annotate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary (columnar) annotation database: '.sdb' files
+ *
+ * File format:
+ * 		- Magic number and format version
+ * 		- Blocks: Up to BLOCK_SIZE VCF entries from the same chromosome, stored 'by column' (see below)
+ * 		- Footer: VCF header, INFO fields, REF/ALT dictionary and chromosome directory (blocks start, max end and file offset)
+ * 		- Footer's file position (last 8 bytes in the file)
+ *
+ * Columns in each block:
+ * 		- Start positions, delta encoded
+ * 		- Entry length (i.e. end - start)
+ * 		- REF and ALT, dictionary encoded (long alleles are stored 'inline')
+ * 		- ID
+ * 		- Number of INFO columns (INFO fields not in the VCF header are added as they are found)
+ * 		- One column for each INFO field. Column encoding is chosen for each block:
+ * 		  int, float, flag or string (or 'empty' if no entry has the field).
+ * 		  A 'presence' bitmap indicates which entries have a value.
+ * 		  Float columns also store the original text of values that cannot be converted
+ * 		  back to the same string (e.g. '1e-05'), as a list of entry number and string.
+ *
+ * Integers are stored using a variable length encoding (7 bits per byte).
+ *
+ * @author pcingola
+ */
+public class VcfSdb {
+
+	public static final int SDB_MAGIC = 0x53534442; // 'SSDB'
+	public static final int SDB_FORMAT_VERSION = 2;
+	public static final String SDB_EXT = "sdb";
+
+	public static final int BLOCK_SIZE = 1024; // Number of VCF entries per block
+	public static final int MAX_DICTIONARY_SIZE = 1024 * 1024; // Maximum number of REF/ALT strings in dictionary
+	public static final int MAX_DICTIONARY_STRING_LEN = 16; // Longer REF/ALT strings are not added to the dictionary
+
+	// INFO column encodings
+	public static final byte COLUMN_EMPTY = 0;
+	public static final byte COLUMN_STRING = 1;
+	public static final byte COLUMN_INT = 2;
+	public static final byte COLUMN_FLOAT = 3;
+	public static final byte COLUMN_FLAG = 4;
+
+	/**
+	 * Read a (long) UTF8 string
+	 * Note: DataInput.readUTF() is limited to 64KB strings (VCF headers can be longer)
+	 */
+	public static String readLongString(DataInput in) throws IOException {
+		byte bytes[] = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read a string, null if missing
+	 */
+	public static String readString(ByteBuffer buffer) {
+		int len = readVarInt(buffer) - 1;
+		if (len < 0) return null;
+		String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + len);
+		return str;
+	}
+
+	/**
+	 * Read a variable length integer
+	 */
+	public static int readVarInt(ByteBuffer buffer) {
+		int value = 0;
+		byte b;
+		for (int shift = 0;; shift += 7) {
+			b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) return value;
+		}
+	}
+
+	/**
+	 * Read a variable length signed integer
+	 */
+	public static int readVarIntSigned(ByteBuffer buffer) {
+		int zigzag = readVarInt(buffer);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * Database file name for a VCF file
+	 */
+	public static String sdbFileName(String vcfFileName) {
+		if (vcfFileName.endsWith("." + SDB_EXT)) return vcfFileName;
+		return vcfFileName + "." + SDB_EXT;
+	}
+
+	public static void writeLongString(DataOutput out, String str) throws IOException {
+		byte bytes[] = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Write a string, null values are allowed
+	 */
+	public static void writeString(ByteArrayOutputStream out, String str) {
+		if (str == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+
+		byte bytes[] = str.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write a variable length integer
+	 */
+	public static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Write a variable length signed integer ('zig-zag' encoding, so that small negative numbers use few bytes)
+	 */
+	public static void writeVarIntSigned(ByteArrayOutputStream out, int value) {
+		writeVarInt(out, (value << 1) ^ (value >> 31));
+	}
+
+}
@@ -0,0 +1,195 @@
+package org.snpsift.annotate;
+
+import java.nio.ByteBuffer;
+
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.vcf.VcfEntry;
+
+/**
+ * A decoded block from a '.sdb' file (see VcfSdb for details on the format)
+ *
+ * @author pcingola
+ */
+public class VcfSdbBlock {
+
+	/**
+	 * Values for one INFO field
+	 */
+	static class Column {
+
+		byte encoding;
+		boolean present[];
+		int ints[];
+		float floats[];
+		String strings[]; // Note: A null value means that the field is a 'flag' (i.e. it has no value). For float columns, original text (if needed)
+
+		/**
+		 * Decode a column
+		 */
+		Column(ByteBuffer buffer, int size) {
+			encoding = buffer.get();
+			if (encoding == VcfSdb.COLUMN_EMPTY) return;
+
+			// Presence bitmap
+			present = new boolean[size];
+			for (int i = 0; i < size; i += 8) {
+				int bits = buffer.get();
+				for (int j = 0; j < 8 && (i + j) < size; j++)
+					present[i + j] = (bits & (1 << j)) != 0;
+			}
+
+			// Values
+			switch (encoding) {
+			case VcfSdb.COLUMN_INT:
+				ints = new int[size];
+				for (int i = 0; i < size; i++)
+					if (present[i]) ints[i] = VcfSdb.readVarIntSigned(buffer);
+				break;
+
+			case VcfSdb.COLUMN_FLOAT:
+				floats = new float[size];
+				for (int i = 0; i < size; i++)
+					if (present[i]) floats[i] = buffer.getFloat();
+
+				// Original text for values not converted back to the same string
+				for (int n = VcfSdb.readVarInt(buffer); n > 0; n--) {
+					if (strings == null) strings = new String[size];
+					int i = VcfSdb.readVarInt(buffer);
+					strings[i] = VcfSdb.readString(buffer);
+				}
+				break;
+
+			case VcfSdb.COLUMN_STRING:
+				strings = new String[size];
+				for (int i = 0; i < size; i++)
+					if (present[i]) strings[i] = VcfSdb.readString(buffer);
+				break;
+
+			case VcfSdb.COLUMN_FLAG:
+				break;
+
+			default:
+				throw new RuntimeException("Unknown column encoding " + encoding);
+			}
+		}
+
+		boolean isPresent(int i) {
+			return present != null && present[i];
+		}
+
+		/**
+		 * Append 'name=value' (or just 'name' for flags) to an INFO string
+		 */
+		void toStringInfo(StringBuilder sb, String name, int i) {
+			if (sb.length() > 0) sb.append(';');
+			sb.append(name);
+
+			switch (encoding) {
+			case VcfSdb.COLUMN_INT:
+				sb.append('=').append(ints[i]);
+				break;
+
+			case VcfSdb.COLUMN_FLOAT:
+				sb.append('=');
+				if (strings != null && strings[i] != null) sb.append(strings[i]);
+				else sb.append(floats[i]);
+				break;
+
+			case VcfSdb.COLUMN_STRING:
+				if (strings[i] != null) sb.append('=').append(strings[i]);
+				break;
+
+			default:
+				break;
+			}
+		}
+	}
+
+	VcfSdbChromo chromo;
+	int size;
+	int start[], end[];
+	String ref[], alt[], id[];
+	Column info[];
+	VcfEntry vcfEntries[]; // VcfEntries created so far (lazy initialization)
+
+	/**
+	 * Decode a block
+	 * @param dictionary : REF/ALT dictionary
+	 */
+	public VcfSdbBlock(byte bytes[], VcfSdbChromo chromo, int blockStart, String dictionary[]) {
+		this.chromo = chromo;
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		size = VcfSdb.readVarInt(buffer);
+
+		// Positions
+		start = new int[size];
+		int pos = blockStart;
+		for (int i = 0; i < size; i++) {
+			pos += VcfSdb.readVarInt(buffer);
+			start[i] = pos;
+		}
+
+		end = new int[size];
+		for (int i = 0; i < size; i++)
+			end[i] = start[i] + VcfSdb.readVarInt(buffer);
+
+		// REF, ALT and ID
+		ref = readAlleles(buffer, dictionary);
+		alt = readAlleles(buffer, dictionary);
+		id = new String[size];
+		for (int i = 0; i < size; i++)
+			id[i] = VcfSdb.readString(buffer);
+
+		// INFO fields. Note: Columns for fields that were added after this block was created are empty
+		info = new Column[VcfSdb.readVarInt(buffer)];
+		for (int i = 0; i < info.length; i++)
+			info[i] = new Column(buffer, size);
+	}
+
+	public int getEnd(int i) {
+		return end[i];
+	}
+
+	public int getStart(int i) {
+		return start[i];
+	}
+
+	/**
+	 * INFO string for entry 'i'
+	 */
+	public String infoStr(int i, String infoFields[]) {
+		StringBuilder sb = new StringBuilder();
+		for (int j = 0; j < info.length; j++)
+			if (info[j].isPresent(i)) info[j].toStringInfo(sb, infoFields[j], i);
+
+		return sb.length() > 0 ? sb.toString() : ".";
+	}
+
+	/**
+	 * Read REF or ALT column: Either a dictionary index or an 'inline' string
+	 */
+	String[] readAlleles(ByteBuffer buffer, String dictionary[]) {
+		String alleles[] = new String[size];
+		for (int i = 0; i < size; i++) {
+			int code = VcfSdb.readVarInt(buffer);
+			alleles[i] = code > 0 ? dictionary[code - 1] : VcfSdb.readString(buffer);
+		}
+		return alleles;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get (or create) a VcfEntry for entry number 'i'
+	 * The entry is created from decoded columns (no VCF line is created or parsed).
+	 * Note: QUAL and FILTER are not stored in the database
+	 */
+	public VcfEntry vcfEntry(int i, String infoFields[], VcfFileIterator vcfFileIterator) {
+		if (vcfEntries == null) vcfEntries = new VcfEntry[size];
+		if (vcfEntries[i] == null) vcfEntries[i] = new VcfEntry(vcfFileIterator, chromo.getChromosome(), chromo.getChromosomeName(), start[i], id[i], ref[i], alt[i], 0.0, ".", infoStr(i, infoFields), null);
+		return vcfEntries[i];
+	}
+
+}
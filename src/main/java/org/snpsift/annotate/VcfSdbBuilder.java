@@ -0,0 +1,457 @@
+package org.snpsift.annotate;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.snpeff.interval.Chromosome;
+import org.snpeff.util.Gpr;
+import org.snpeff.util.Timer;
+import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfHeader;
+import org.snpeff.vcf.VcfHeaderInfo;
+import org.snpsift.fileIterator.VcfNoGtFileIterator;
+
+/**
+ * Create a '.sdb' file (compact binary annotation database) from a sorted VCF file
+ *
+ * Only the first eight VCF columns are used and only the selected INFO
+ * fields are stored (see VcfSdb for details on the format)
+ *
+ * @author pcingola
+ */
+public class VcfSdbBuilder {
+
+	public static final int SHOW_EVERY = 100 * 1000;
+	static final int ROW_ID = 0, ROW_REF = 1, ROW_ALT = 2, ROW_INFO = 3;
+	static final Pattern INFO_ID = Pattern.compile("^##INFO=<ID=([^,>]+)");
+
+	boolean debug, verbose;
+	String vcfFileName, sdbFileName;
+	boolean allInfoFields; // Store all INFO fields (including fields not in the VCF header)
+	List<String> infoFields; // INFO fields to store (null means all INFO fields)
+	Map<String, Integer> infoFieldNum; // INFO field name to column number
+	List<Byte> infoTypes; // Preferred column encoding for each INFO field
+	VcfHeader vcfHeader;
+	Map<String, Integer> dictionary; // REF / ALT dictionary
+	List<String> dictionaryList;
+	Map<String, VcfSdbChromo> chromos; // Chromosome directory (by chromosome simple name)
+	VcfSdbChromo chromo; // Current chromosome
+	List<String[]> block; // Current block: ID, REF, ALT and selected 'key=value' INFO items for each VCF entry
+	List<VcfEntry> blockEntries;
+	int startPrev;
+	long filePos;
+	DataOutputStream out;
+
+	public VcfSdbBuilder(String vcfFileName) {
+		this.vcfFileName = vcfFileName;
+		sdbFileName = VcfSdb.sdbFileName(vcfFileName);
+	}
+
+	/**
+	 * Add a VCF entry to the current block
+	 */
+	void add(VcfEntry ve) throws IOException {
+		String chr = Chromosome.simpleName(ve.getChromosomeName());
+
+		if (chromo == null || !chr.equals(Chromosome.simpleName(chromo.getChromosomeName()))) {
+			// New chromosome
+			writeBlock();
+			if (chromos.containsKey(chr)) throw new RuntimeException("VCF file '" + vcfFileName + "' is not sorted: Entries for chromosome '" + chr + "' are not together (found at position " + (ve.getStart() + 1) + ")");
+			chromo = new VcfSdbChromo(chromos.size(), ve.getChromosomeName());
+			chromos.put(chr, chromo);
+			if (verbose) Timer.showStdErr("Chromosome: '" + ve.getChromosomeName() + "'");
+		} else if (ve.getStart() < startPrev) {
+			throw new RuntimeException("VCF file '" + vcfFileName + "' is not sorted: Position " + chr + ":" + (ve.getStart() + 1) + " is after " + chr + ":" + (startPrev + 1));
+		}
+		startPrev = ve.getStart();
+
+		block.add(row(ve));
+		blockEntries.add(ve);
+		if (block.size() >= VcfSdb.BLOCK_SIZE) writeBlock();
+	}
+
+	/**
+	 * Create database file
+	 */
+	public void build() {
+		if (verbose) Timer.showStdErr("Creating database '" + sdbFileName + "' from VCF file '" + vcfFileName + "'");
+
+		dictionary = new HashMap<>();
+		dictionaryList = new ArrayList<>();
+		chromos = new LinkedHashMap<>();
+		block = new ArrayList<>(VcfSdb.BLOCK_SIZE);
+		blockEntries = new ArrayList<>(VcfSdb.BLOCK_SIZE);
+		chromo = null;
+
+		VcfNoGtFileIterator vcf = new VcfNoGtFileIterator(vcfFileName, false);
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sdbFileName)));
+			out.writeInt(VcfSdb.SDB_MAGIC);
+			out.writeInt(VcfSdb.SDB_FORMAT_VERSION);
+			filePos = 8;
+
+			int count = 0;
+			for (VcfEntry ve : vcf) {
+				if (infoTypes == null) initInfoFields(vcf.getVcfHeader()); // VCF header has been read
+				add(ve);
+				if (verbose) Gpr.showMark(++count, SHOW_EVERY);
+			}
+			if (infoTypes == null) initInfoFields(vcf.getVcfHeader()); // Empty VCF file
+
+			writeBlock();
+			writeFooter();
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error creating database file '" + sdbFileName + "'", e);
+		} finally {
+			vcf.close();
+		}
+
+		if (verbose) Timer.showStdErr("Done. Database file '" + sdbFileName + "', blocks size " + filePos + " bytes, dictionary size " + dictionaryList.size());
+	}
+
+	/**
+	 * Encode an INFO column
+	 */
+	void encodeInfo(ByteArrayOutputStream bytes, int fieldNum) {
+		int nameLen = infoFields.get(fieldNum).length();
+		int size = block.size();
+
+		// Find values. Note: Flags have a null value
+		boolean present[] = new boolean[size];
+		String values[] = new String[size];
+		boolean any = false, flagsOnly = true;
+		for (int i = 0; i < size; i++) {
+			String row[] = block.get(i);
+			String kv = (ROW_INFO + fieldNum) < row.length ? row[ROW_INFO + fieldNum] : null; // Fields added after this row was created are missing
+			if (kv == null) continue;
+
+			present[i] = any = true;
+			values[i] = kv.length() > nameLen ? kv.substring(nameLen + 1) : null;
+			flagsOnly &= (values[i] == null);
+		}
+
+		// Nothing to store
+		if (!any) {
+			bytes.write(VcfSdb.COLUMN_EMPTY);
+			return;
+		}
+
+		// Choose the column encoding: Values must be converted back exactly to the same
+		// string (floats keep their original text when needed, see 'floatText')
+		byte encoding = infoTypes.get(fieldNum);
+		for (int i = 0; i < size && encoding != VcfSdb.COLUMN_STRING; i++) {
+			if (!present[i]) continue;
+			if (encoding == VcfSdb.COLUMN_FLAG && !flagsOnly) encoding = VcfSdb.COLUMN_STRING;
+			else if (encoding == VcfSdb.COLUMN_INT && !isInt(values[i])) encoding = VcfSdb.COLUMN_STRING;
+			else if (encoding == VcfSdb.COLUMN_FLOAT && !isFloat(values[i])) encoding = VcfSdb.COLUMN_STRING;
+		}
+		bytes.write(encoding);
+
+		// Presence bitmap
+		for (int i = 0; i < size; i += 8) {
+			int bits = 0;
+			for (int j = 0; j < 8 && (i + j) < size; j++)
+				if (present[i + j]) bits |= 1 << j;
+			bytes.write(bits);
+		}
+
+		// Values
+		int numFloatTexts = 0;
+		for (int i = 0; i < size; i++) {
+			if (!present[i]) continue;
+
+			switch (encoding) {
+			case VcfSdb.COLUMN_INT:
+				VcfSdb.writeVarIntSigned(bytes, Integer.parseInt(values[i]));
+				break;
+
+			case VcfSdb.COLUMN_FLOAT:
+				int bits = Float.floatToIntBits(Float.parseFloat(values[i]));
+				bytes.write(bits >>> 24);
+				bytes.write(bits >>> 16);
+				bytes.write(bits >>> 8);
+				bytes.write(bits);
+				if (floatText(values[i]) != null) numFloatTexts++;
+				break;
+
+			case VcfSdb.COLUMN_STRING:
+				VcfSdb.writeString(bytes, values[i]);
+				break;
+
+			default:
+				break;
+			}
+		}
+
+		// Original text for float values that are not converted back to the same string
+		if (encoding == VcfSdb.COLUMN_FLOAT) {
+			VcfSdb.writeVarInt(bytes, numFloatTexts);
+			for (int i = 0; i < size; i++) {
+				String text = present[i] ? floatText(values[i]) : null;
+				if (text == null) continue;
+				VcfSdb.writeVarInt(bytes, i);
+				VcfSdb.writeString(bytes, text);
+			}
+		}
+	}
+
+	/**
+	 * Original text for a float value, or null if the value is converted back to the same string
+	 */
+	String floatText(String value) {
+		return Float.toString(Float.parseFloat(value)).equals(value) ? null : value;
+	}
+
+	/**
+	 * Add an INFO field and find its preferred column encoding
+	 * @return Column number
+	 */
+	int addInfoField(String name) {
+		byte encoding = VcfSdb.COLUMN_STRING;
+
+		VcfHeaderInfo vcfInfo = vcfHeader.getVcfHeaderInfo(name);
+		if (vcfInfo != null) {
+			switch (vcfInfo.getVcfInfoType()) {
+			case Flag:
+				encoding = VcfSdb.COLUMN_FLAG;
+				break;
+
+			case Integer:
+				if (vcfInfo.getNumber() == 1) encoding = VcfSdb.COLUMN_INT;
+				break;
+
+			case Float:
+				if (vcfInfo.getNumber() == 1) encoding = VcfSdb.COLUMN_FLOAT;
+				break;
+
+			default:
+				break;
+			}
+		}
+
+		int num = infoTypes.size();
+		if (num >= infoFields.size()) infoFields.add(name);
+		infoFieldNum.put(name, num);
+		infoTypes.add(encoding);
+		return num;
+	}
+
+	/**
+	 * Initialize INFO fields
+	 */
+	void initInfoFields(VcfHeader vcfHeader) {
+		this.vcfHeader = vcfHeader;
+		infoFieldNum = new HashMap<>();
+		infoTypes = new ArrayList<>();
+
+		if (infoFields == null) {
+			// Use all INFO fields in the header. Fields not in the header are added when found
+			allInfoFields = true;
+			infoFields = new ArrayList<>();
+			for (VcfHeaderInfo vcfInfo : vcfHeader.getVcfHeaderInfo())
+				if (!vcfInfo.isImplicit()) addInfoField(vcfInfo.getId());
+		} else {
+			infoFields = new ArrayList<>(infoFields);
+			for (String infoField : infoFields)
+				addInfoField(infoField);
+		}
+
+		if (verbose) Timer.showStdErr("INFO fields: " + infoFields);
+	}
+
+	/**
+	 * Can this value be stored as an 'int' and converted back to the same string?
+	 */
+	boolean isInt(String value) {
+		if (value == null || value.isEmpty() || value.length() > 11) return false;
+		try {
+			return Integer.toString(Integer.parseInt(value)).equals(value);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Can this value be stored as a 'float'? (see 'floatText')
+	 */
+	boolean isFloat(String value) {
+		if (value == null || value.isEmpty()) return false;
+		try {
+			Float.parseFloat(value);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Columns stored for a VCF entry: ID, REF, ALT and 'key=value' for each selected INFO field (null if missing)
+	 */
+	String[] row(VcfEntry ve) {
+		String fields[] = ve.toString().split("\t", 9);
+		String row[] = new String[ROW_INFO + infoFields.size()];
+		row[ROW_ID] = fields[2];
+		row[ROW_REF] = fields[3];
+		row[ROW_ALT] = fields[4];
+
+		if (fields.length > 7) {
+			for (String kv : fields[7].split(";")) {
+				int idx = kv.indexOf('=');
+				String key = idx < 0 ? kv : kv.substring(0, idx);
+				if (key.isEmpty() || key.equals(".")) continue;
+
+				Integer num = infoFieldNum.get(key);
+				if (num == null) {
+					if (!allInfoFields) continue;
+					num = addInfoField(key);
+					row = Arrays.copyOf(row, ROW_INFO + infoFields.size());
+				}
+
+				if (row[ROW_INFO + num] == null) row[ROW_INFO + num] = kv;
+			}
+		}
+
+		return row;
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	/**
+	 * Store only these INFO fields (null means all INFO fields)
+	 */
+	public void setInfoFields(List<String> infoFields) {
+		this.infoFields = infoFields;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * VCF header lines, removing INFO fields that are not stored in the database
+	 */
+	String vcfHeaderStr() {
+		Set<String> stored = new HashSet<>(infoFields);
+		StringBuilder sb = new StringBuilder();
+		for (String line : vcfHeader.toString().split("\n")) {
+			Matcher matcher = INFO_ID.matcher(line);
+			if (matcher.find() && !stored.contains(matcher.group(1))) continue;
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write REF or ALT: Either a dictionary index or an 'inline' string
+	 */
+	void writeAllele(ByteArrayOutputStream bytes, String allele) {
+		Integer code = dictionary.get(allele);
+
+		if (code == null && allele.length() <= VcfSdb.MAX_DICTIONARY_STRING_LEN && dictionaryList.size() < VcfSdb.MAX_DICTIONARY_SIZE) {
+			dictionaryList.add(allele);
+			code = dictionaryList.size();
+			dictionary.put(allele, code);
+		}
+
+		if (code != null) {
+			VcfSdb.writeVarInt(bytes, code);
+		} else {
+			VcfSdb.writeVarInt(bytes, 0);
+			VcfSdb.writeString(bytes, allele);
+		}
+	}
+
+	/**
+	 * Encode current block (column by column) and write it to the file
+	 */
+	void writeBlock() throws IOException {
+		if (block.isEmpty()) return;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int size = block.size();
+		VcfSdb.writeVarInt(bytes, size);
+
+		// Positions: Start (delta encoded) and length
+		int blockStart = blockEntries.get(0).getStart();
+		int prev = blockStart;
+		for (VcfEntry ve : blockEntries) {
+			VcfSdb.writeVarInt(bytes, ve.getStart() - prev);
+			prev = ve.getStart();
+		}
+
+		int maxEnd = blockStart;
+		for (VcfEntry ve : blockEntries) {
+			int span = ve.getEnd() - ve.getStart();
+			VcfSdb.writeVarInt(bytes, span);
+			chromo.maxSpan = Math.max(chromo.maxSpan, span);
+			maxEnd = Math.max(maxEnd, ve.getEnd());
+		}
+
+		// REF, ALT and ID columns
+		for (String row[] : block)
+			writeAllele(bytes, row[ROW_REF]);
+
+		for (String row[] : block)
+			writeAllele(bytes, row[ROW_ALT]);
+
+		for (String row[] : block)
+			VcfSdb.writeString(bytes, row[ROW_ID]);
+
+		// INFO columns. Note: The number of columns can increase in later blocks
+		VcfSdb.writeVarInt(bytes, infoFields.size());
+		for (int i = 0; i < infoFields.size(); i++)
+			encodeInfo(bytes, i);
+
+		// Write block
+		byte data[] = bytes.toByteArray();
+		out.write(data);
+		chromo.addBlock(blockStart, maxEnd, filePos, data.length, size);
+		filePos += data.length;
+		if (debug) Gpr.debug("Block " + chromo.getChromosomeName() + ":" + (blockStart + 1) + ", entries: " + size + ", bytes: " + data.length);
+
+		block.clear();
+		blockEntries.clear();
+	}
+
+	/**
+	 * Write VCF header, INFO fields, dictionary and chromosome directory
+	 */
+	void writeFooter() throws IOException {
+		long footerPos = filePos;
+
+		VcfSdb.writeLongString(out, vcfHeaderStr());
+
+		out.writeInt(infoFields.size());
+		for (String infoField : infoFields)
+			out.writeUTF(infoField);
+
+		out.writeInt(dictionaryList.size());
+		for (String allele : dictionaryList)
+			out.writeUTF(allele);
+
+		out.writeInt(chromos.size());
+		for (VcfSdbChromo vc : chromos.values()) {
+			vc.write(out);
+			if (verbose) System.err.println("\t" + vc);
+		}
+
+		out.writeLong(footerPos);
+	}
+
+}
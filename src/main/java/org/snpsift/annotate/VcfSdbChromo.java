@@ -0,0 +1,144 @@
+package org.snpsift.annotate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.snpeff.interval.Chromosome;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Directory of all blocks for one chromosome in a '.sdb' file
+ *
+ * @author pcingola
+ */
+public class VcfSdbChromo {
+
+	int id; // Chromosome number (in the order it was added to the file)
+	String chromosomeName;
+	Chromosome chromosome; // Parent for all VcfEntries in this chromosome
+	int count; // Number of VCF entries
+	int maxSpan; // Maximum VCF entry length (i.e. max(end - start))
+	int numBlocks;
+	int blockStart[]; // Start position of the first entry in each block
+	int blockMaxEnd[]; // Maximum end position of all entries in each block
+	long blockFilePos[]; // File position where each block starts
+	int blockLen[]; // Block length in bytes
+	int longBlocks[]; // Blocks having entries that reach beyond the start of the block two positions ahead
+
+	public VcfSdbChromo(int id, String chromosomeName) {
+		this.id = id;
+		this.chromosomeName = chromosomeName;
+		chromosome = new Chromosome(null, 0, 0, chromosomeName);
+		blockStart = new int[16];
+		blockMaxEnd = new int[16];
+		blockFilePos = new long[16];
+		blockLen = new int[16];
+	}
+
+	public void addBlock(int start, int maxEnd, long filePos, int len, int numEntries) {
+		if (numBlocks >= blockStart.length) {
+			int newLen = 2 * blockStart.length;
+			blockStart = Arrays.copyOf(blockStart, newLen);
+			blockMaxEnd = Arrays.copyOf(blockMaxEnd, newLen);
+			blockFilePos = Arrays.copyOf(blockFilePos, newLen);
+			blockLen = Arrays.copyOf(blockLen, newLen);
+		}
+
+		blockStart[numBlocks] = start;
+		blockMaxEnd[numBlocks] = maxEnd;
+		blockFilePos[numBlocks] = filePos;
+		blockLen[numBlocks] = len;
+		numBlocks++;
+		count += numEntries;
+	}
+
+	/**
+	 * Find the first block that may have entries starting at 'pos' or after
+	 * (i.e. the last block starting before 'pos')
+	 * Note: Several blocks may start at the same position
+	 */
+	public int findBlock(int pos) {
+		int idx = Arrays.binarySearch(blockStart, 0, numBlocks, pos);
+		if (idx < 0) idx = -idx - 1; // Insertion point
+
+		while (idx > 0 && (idx >= numBlocks || blockStart[idx] >= pos))
+			idx--;
+
+		return idx;
+	}
+
+	/**
+	 * Find blocks having entries that reach beyond the start of the block two
+	 * positions ahead (e.g. long deletions or structural variants).
+	 *
+	 * A block 'b' can only have entries intersecting position 'pos' if it is one of
+	 * these 'long blocks' or if 'b >= findBlock(pos) - 1', so queries do not need
+	 * to scan blocks backwards (see DbVcfSdb.query)
+	 */
+	void findLongBlocks() {
+		TIntArrayList longs = new TIntArrayList();
+		for (int b = 0; b + 2 < numBlocks; b++)
+			if (blockMaxEnd[b] >= blockStart[b + 2]) longs.add(b);
+		longBlocks = longs.toArray();
+	}
+
+	public Chromosome getChromosome() {
+		return chromosome;
+	}
+
+	public String getChromosomeName() {
+		return chromosomeName;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getMaxSpan() {
+		return maxSpan;
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	public void read(DataInput in) throws IOException {
+		count = in.readInt();
+		maxSpan = in.readInt();
+		numBlocks = in.readInt();
+		blockStart = new int[numBlocks];
+		blockMaxEnd = new int[numBlocks];
+		blockFilePos = new long[numBlocks];
+		blockLen = new int[numBlocks];
+		for (int i = 0; i < numBlocks; i++) {
+			blockStart[i] = in.readInt();
+			blockMaxEnd[i] = in.readInt();
+			blockFilePos[i] = in.readLong();
+			blockLen[i] = in.readInt();
+		}
+
+		findLongBlocks();
+	}
+
+	@Override
+	public String toString() {
+		return chromosomeName + "\tentries: " + count + "\tblocks: " + numBlocks + "\tmax length: " + maxSpan + "\tlong blocks: " + (longBlocks != null ? longBlocks.length : 0);
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeUTF(chromosomeName);
+		out.writeInt(count);
+		out.writeInt(maxSpan);
+		out.writeInt(numBlocks);
+		for (int i = 0; i < numBlocks; i++) {
+			out.writeInt(blockStart[i]);
+			out.writeInt(blockMaxEnd[i]);
+			out.writeLong(blockFilePos[i]);
+			out.writeInt(blockLen[i]);
+		}
+	}
+
+}
@@ -2,6 +2,8 @@ package org.snpsift.fileIterator;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -16,6 +18,10 @@ import org.snpeff.util.Gpr;
 import org.snpeff.util.Timer;
 import org.snpeff.vcf.VcfInfoType;
 import org.snpsift.annotate.DbMarker;
+import org.snpsift.annotate.QueryRegion;
+import org.snpsift.util.BgzfReadAhead;
+import org.snpsift.util.LruCache;
+import org.snpsift.util.TabixReadAhead;
 
 import net.sf.samtools.tabix.TabixIterator;
 import net.sf.samtools.tabix.TabixReader;
@@ -36,6 +42,7 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 
 	public static final String HEADER_PREFIX = "#";
 	public static final String COLUMN_SEPARATOR = "\t";
+	public static final char COLUMN_SEPARATOR_CHAR = '\t';
 
 	public static final char SUBFIELD_SEPARATOR_CHAR = ';'; // Sub-field separator
 	public static final String SUBFIELD_SEPARATOR = "" + SUBFIELD_SEPARATOR_CHAR;
@@ -49,6 +56,8 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 	public static final String ALT_NAME = "alt";
 	public static final String REF_NAME = "ref";
 
+	public static final int DEFAULT_CACHE_SIZE = 10 * 1000; // Maximum number of parsed entries in cache
+
 	protected String fileName;
 	protected boolean debug;
 	protected boolean multipleValues[] = null; // Does this column have multiple columns?
@@ -62,18 +71,49 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 	protected Genome genome;
 	protected HashMap<String, Integer> names2index; // Map column name to index
 	protected TabixReader tabixReader;
-	protected String latestTabixIteratorBlocks = "";
-	protected List<DbNsfpEntry> latestResults;
+	protected TabixReadAhead tabixReadAhead; // Used instead of 'tabixReader' when 'read ahead' is enabled
+	protected int readAheadThreads; // Number of threads used to decompress BGZF blocks (zero means no 'read ahead')
+	protected int readAheadBlocks = BgzfReadAhead.DEFAULT_BLOCKS_IN_FLIGHT; // Number of BGZF blocks decompressed ahead
+	protected int columnSlots[]; // Slot in 'DbNsfpEntry.values' for each column (-1 if the column is not parsed)
+	protected int numSlots; // Number of columns parsed
+	protected int lastColumn; // Last column needed when parsing a line (see DbNsfpEntry.parse)
+	protected char parseBuffer[]; // Buffer used when parsing lines (see DbNsfpEntry.parse)
+	protected LruCache<String, List<DbNsfpEntry>> cache; // Parsed entries, indexed by tabix blocks
 
 	public DbNsfp(String fileName) {
 		this.fileName = fileName;
 		genome = new Genome();
+		setCacheSize(DEFAULT_CACHE_SIZE);
 	}
 
 	@Override
 	public void close() {
 		if (tabixReader != null) tabixReader.close();
 		tabixReader = null;
+
+		if (verbose) Timer.showStdErr("Database '" + fileName + "', parsed entries " + cache.toStringStats());
+		cache.clear();
+
+		if (tabixReadAhead != null) {
+			if (verbose) Timer.showStdErr("Database '" + fileName + "', BGZF " + tabixReadAhead.toStringStats());
+			tabixReadAhead.close();
+		}
+		tabixReadAhead = null;
+	}
+
+	/**
+	 * Get column number 'idx' from a line (without splitting the whole line)
+	 */
+	protected String column(String line, int idx) {
+		int start = 0;
+		for (int i = 0; i < idx && start >= 0; i++) {
+			start = line.indexOf(COLUMN_SEPARATOR_CHAR, start);
+			if (start >= 0) start++;
+		}
+		if (start < 0) return "";
+
+		int end = line.indexOf(COLUMN_SEPARATOR_CHAR, start);
+		return line.substring(start, end >= 0 ? end : line.length());
 	}
 
 	/**
@@ -120,6 +160,10 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 		return chromosomeIdx;
 	}
 
+	public LruCache<String, List<DbNsfpEntry>> getCache() {
+		return cache;
+	}
+
 	public int getFieldCount() {
 		return fieldNames.length;
 	}
@@ -144,10 +188,33 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 		return names2index;
 	}
 
+	public int getLastColumn() {
+		return lastColumn;
+	}
+
+	public int getNumSlots() {
+		return numSlots;
+	}
+
 	public int getRefIdx() {
 		return refIdx;
 	}
 
+	/**
+	 * Slot in 'DbNsfpEntry.values' for column number 'idx' (-1 if the column is not parsed)
+	 */
+	public int getSlot(int idx) {
+		return columnSlots[idx];
+	}
+
+	/**
+	 * Slot in 'DbNsfpEntry.values' for column 'fieldName' (-1 if the column does not exist or is not parsed)
+	 */
+	public int getSlot(String fieldName) {
+		Integer idx = names2index.get(fieldName);
+		return idx != null ? columnSlots[idx] : -1;
+	}
+
 	public int getStartIdx() {
 		return startIdx;
 	}
@@ -303,6 +370,11 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 
 			// Open tabix reader
 			if (verbose) Timer.showStdErr("Opening database file and loading index");
+			if (readAheadThreads > 0) {
+				tabixReadAhead = new TabixReadAhead(fileName, readAheadThreads, readAheadBlocks);
+				return true;
+			}
+
 			tabixReader = new TabixReader(fileName, debug);
 			tabixReader.setShowHeader(false); // Don't show header line in query results
 		} catch (IOException e) {
@@ -387,10 +459,20 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 	@Override
 	public void open() {
 		dataTypes();
+		setFields(null);
 
 		initTabix(fileName);
 	}
 
+	/**
+	 * A buffer of at least 'size' characters, used to parse lines
+	 * Note: The buffer is re-used (DbNsfp is not thread safe)
+	 */
+	char[] parseBuffer(int size) {
+		if (parseBuffer == null || parseBuffer.length < size) parseBuffer = new char[Math.max(size, 2 * (parseBuffer != null ? parseBuffer.length : 0))];
+		return parseBuffer;
+	}
+
 	/**
 	 * Parse header line
 	 */
@@ -421,6 +503,8 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 
 	@Override
 	public Collection<DbNsfpEntry> query(Variant variant) {
+		if (tabixReadAhead != null) return queryReadAhead(variant);
+
 		// Query and parse results
 		TabixIterator tabixIterator = tabixReader.query(variant);
 
@@ -431,28 +515,79 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 		// Do we have a cached result?
 		//---
 		String tiblocks = tabixIterator.toStringBlocks();
-		if (tiblocks.equals(latestTabixIteratorBlocks)) {
-			// Used cached entries
-			LinkedList<DbNsfpEntry> results = new LinkedList<>();
-
-			for (DbNsfpEntry de : latestResults) {
-				if (match(variant, de)) results.add(de);
-				else if (variant.getEnd() < de.getStart()) break; // Past query end? No need to continue.
-			}
-
-			return results;
-		}
+		List<DbNsfpEntry> entries = cache.get(tiblocks);
+		if (entries != null) return queryCached(variant, entries);
 
 		//---
 		// Not in cache.
 		// Read and parse all entries, select the ones the match query
 		//---
 		tabixIterator.setReadBlock(true);
-		latestResults = new LinkedList<>();
+		return queryParse(variant, tiblocks, tabixIterator);
+	}
+
+	/**
+	 * Batched query: Queries are coalesced into regions, each region is read only once.
+	 * Only lines matching the start position of a query are parsed.
+	 *
+	 * Note: The cache is not used (nor updated)
+	 */
+	@Override
+	public List<Collection<DbNsfpEntry>> query(List<Variant> variants) {
+		List<Collection<DbNsfpEntry>> results = new ArrayList<>(variants.size());
+		for (int i = 0; i < variants.size(); i++)
+			results.add(new LinkedList<DbNsfpEntry>());
+
+		for (QueryRegion region : QueryRegion.coalesce(variants)) {
+			Variant regionVariant = region.toVariant();
+			Iterable<String> lines = (tabixReadAhead != null ? tabixReadAhead.query(regionVariant) : tabixReader.query(regionVariant));
+			if (lines == null) continue;
+
+			List<Integer> queryIdx = region.getQueryIdx();
+			for (String line : lines) {
+				// Parse only the position
+				int start = Gpr.parseIntSafe(column(line, startIdx)) - 1;
+
+				// Parse the whole entry only if a query intersects it
+				DbNsfpEntry dbEntry = null;
+				for (int i = region.firstIntersecting(variants, start); i < queryIdx.size(); i++) {
+					int idx = queryIdx.get(i);
+					Variant variant = variants.get(idx);
+					if (variant.getStart() > start) break; // Past the entry? We are done
+					if (variant.getEnd() < start) continue;
+
+					if (dbEntry == null) dbEntry = new DbNsfpEntry(this, Gpr.removeBackslashR(line));
+					if (match(variant, dbEntry)) results.get(idx).add(dbEntry);
+				}
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Select entries matching 'variant' from cached entries
+	 */
+	protected Collection<DbNsfpEntry> queryCached(Variant variant, List<DbNsfpEntry> entries) {
+		LinkedList<DbNsfpEntry> results = new LinkedList<>();
+
+		for (DbNsfpEntry de : entries) {
+			if (match(variant, de)) results.add(de);
+			else if (variant.getEnd() < de.getStart()) break; // Past query end? No need to continue.
+		}
+
+		return results;
+	}
+
+	/**
+	 * Parse all lines, select the ones the match query.
+	 * All parsed entries are cached (using 'tiblocks' as key)
+	 */
+	protected Collection<DbNsfpEntry> queryParse(Variant variant, String tiblocks, Iterable<String> lines) {
+		ArrayList<DbNsfpEntry> entries = new ArrayList<>();
 		LinkedList<DbNsfpEntry> results = new LinkedList<>();
-		latestTabixIteratorBlocks = tiblocks;
 		int numLines = 0;
-		for (String line : tabixIterator) {
+		for (String line : lines) {
 			// Parse
 			line = Gpr.removeBackslashR(line);
 			if (debug) Gpr.debug("Query: Parse line " + line);
@@ -460,15 +595,33 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 
 			// Add
 			if (match(variant, de)) results.add(de);
-			latestResults.add(de);
+			entries.add(de);
 			numLines++;
 		}
 
+		cache.put(tiblocks, entries);
+
 		if (debug) Gpr.debug("Query: " + variant.toStr() + "\tParsed lines: " + numLines);
 
 		return results;
 	}
 
+	/**
+	 * Query using 'read ahead' (BGZF blocks are decompressed in a thread pool).
+	 * All entries from the index chunks are parsed, so we can use the
+	 * chunks as a 'cache key' (same as TabixIterator's blocks)
+	 */
+	protected Collection<DbNsfpEntry> queryReadAhead(Variant variant) {
+		long chunks[] = tabixReadAhead.chunks(variant);
+		if (chunks == null) return null;
+
+		String tiblocks = Arrays.toString(chunks);
+		List<DbNsfpEntry> entries = cache.get(tiblocks);
+		if (entries != null) return queryCached(variant, entries);
+
+		return queryParse(variant, tiblocks, tabixReadAhead.readLines(chunks));
+	}
+
 	/**
 	 * Save data types to cache file
 	 */
@@ -482,6 +635,39 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 		Gpr.toFile(cacheFileName, sb);
 	}
 
+	/**
+	 * Maximum number of parsed entries kept in cache
+	 */
+	public void setCacheSize(int cacheSize) {
+		cache = new LruCache<>(cacheSize, List::size);
+	}
+
+	/**
+	 * Decompress BGZF blocks using 'numThreads' threads, keeping up to 'blocksInFlight' blocks ahead
+	 * Note: Must be set before opening the database
+	 */
+	public void setReadAhead(int numThreads, int blocksInFlight) {
+		readAheadThreads = numThreads;
+		readAheadBlocks = blocksInFlight;
+	}
+
+	/**
+	 * Only parse (and keep) values for columns in 'fieldNames' (null means all columns).
+	 * Columns after the last one needed (including chr, pos, ref and alt) are not tokenized
+	 * Note: Must be invoked after opening the database
+	 */
+	public void setFields(Collection<String> fieldNames) {
+		columnSlots = new int[this.fieldNames.length];
+		numSlots = 0;
+		lastColumn = Math.max(Math.max(chromosomeIdx, startIdx), Math.max(refIdx, altIdx));
+		for (int i = 0; i < columnSlots.length; i++) {
+			columnSlots[i] = (fieldNames == null || fieldNames.contains(this.fieldNames[i]) ? numSlots++ : -1);
+			if (columnSlots[i] >= 0) lastColumn = Math.max(lastColumn, i);
+		}
+
+		cache.clear(); // Cached entries have been parsed using previous slots
+	}
+
 	@Override
 	public void setDebug(boolean debug) {
 		this.debug = debug;
@@ -519,4 +705,34 @@ public class DbNsfp implements DbMarker<Variant, DbNsfpEntry> {
 		}
 	}
 
+	/**
+	 * A database to be queried from another thread (e.g. an annotation worker, see SnpSiftCmdDbNsfp).
+	 * Column names, types and selected fields are shared (they are only read once the database is open),
+	 * all settings are copied. Tabix reader, parse buffer and cache are created for the new database.
+	 * Note: This database must be open, the one returned is already open
+	 */
+	public DbNsfp workerCopy() {
+		DbNsfp dbNsfp = new DbNsfp(fileName);
+		dbNsfp.debug = debug;
+		dbNsfp.verbose = verbose;
+		dbNsfp.readAheadThreads = readAheadThreads;
+		dbNsfp.readAheadBlocks = readAheadBlocks;
+		dbNsfp.setCacheSize(cache.getMaxSize());
+
+		dbNsfp.chromosomeIdx = chromosomeIdx;
+		dbNsfp.startIdx = startIdx;
+		dbNsfp.altIdx = altIdx;
+		dbNsfp.refIdx = refIdx;
+		dbNsfp.fieldNames = fieldNames;
+		dbNsfp.types = types;
+		dbNsfp.multipleValues = multipleValues;
+		dbNsfp.names2index = names2index;
+		dbNsfp.columnSlots = columnSlots;
+		dbNsfp.numSlots = numSlots;
+		dbNsfp.lastColumn = lastColumn;
+
+		dbNsfp.initTabix(fileName);
+		return dbNsfp;
+	}
+
 }
@@ -1,8 +1,5 @@
 package org.snpsift.fileIterator;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import org.snpeff.interval.Variant;
 import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VcfEntry;
@@ -17,7 +14,7 @@ public class DbNsfpEntry extends Variant {
 	private static final long serialVersionUID = -3275792763917755927L;
 
 	DbNsfp dbNsfp;
-	Map<String, String> values;
+	String values[]; // Values for parsed columns, indexed by slot (see DbNsfp.getSlot)
 
 	public static String[] splitValuesField(String value) {
 		if (value.indexOf(DbNsfp.SUBFIELD_SEPARATOR_2) >= 0) return value.split(DbNsfp.SUBFIELD_SEPARATOR_2);
@@ -31,9 +28,17 @@ public class DbNsfpEntry extends Variant {
 	}
 
 	/**
-	 * Add a value
+	 * Add a value (ignored if the column is not parsed)
 	 */
 	public void add(String columnName, String valuesToAdd) {
+		int slot = dbNsfp.getSlot(columnName);
+		if (slot >= 0) add(slot, valuesToAdd);
+	}
+
+	/**
+	 * Add a value to slot 'slot'
+	 */
+	void add(int slot, String valuesToAdd) {
 		// Represent empty values as '.'
 		if (valuesToAdd.isEmpty()) valuesToAdd = ".";
 		else {
@@ -43,7 +48,7 @@ public class DbNsfpEntry extends Variant {
 		}
 
 		// Add value
-		values.put(columnName, valuesToAdd);
+		values[slot] = valuesToAdd;
 	}
 
 	@Override
@@ -56,7 +61,10 @@ public class DbNsfpEntry extends Variant {
 	 * Get data in a VCF INFO field compatible format
 	 */
 	public String getVcfInfo(String key) {
-		String val = values.get(key);
+		int slot = dbNsfp.getSlot(key);
+		if (slot < 0) return null;
+
+		String val = values[slot];
 		if (val == null) return null;
 
 		if (val.indexOf('\t') < 0) return VcfEntry.vcfInfoValueSafe(val);
@@ -76,32 +84,58 @@ public class DbNsfpEntry extends Variant {
 	 * Do we have values for this allele
 	 */
 	public boolean hasValues(String allele) {
-		return values.containsKey(allele);
+		int slot = dbNsfp.getSlot(allele);
+		return slot >= 0 && values[slot] != null;
 	}
 
 	/**
 	 * Parse dbSNFP values (could be from multiple lines)
 	 */
 	protected void parse(String line) {
-		// Initialize DbNsfpEntry
-		String[] vals = line.split(DbNsfp.COLUMN_SEPARATOR, -1);
+		int len = line.length();
+		char chars[] = dbNsfp.parseBuffer(len);
+		line.getChars(0, len, chars, 0);
+
+		int chrIdx = dbNsfp.getChromosomeIdx();
+		int startIdx = dbNsfp.getStartIdx();
+		int refIdx = dbNsfp.getRefIdx();
+		int altIdx = dbNsfp.getAltIdx();
+		int lastColumn = dbNsfp.getLastColumn();
+		String chromosome = null, posStr = null;
+		values = new String[dbNsfp.getNumSlots()];
+
+		// Tokenize the line in one pass, only columns in the projection
+		// are converted to strings (no need to go beyond the last one)
+		int col = 0, colStart = 0;
+		char subfieldSep = 0; // Sub-field separator found in current column
+		for (int i = 0; i <= len && col <= lastColumn; i++) {
+			char c = (i < len ? chars[i] : DbNsfp.COLUMN_SEPARATOR_CHAR);
+
+			if (c == DbNsfp.COLUMN_SEPARATOR_CHAR) {
+				// End of column
+				if (col == chrIdx) chromosome = new String(chars, colStart, i - colStart);
+				if (col == startIdx) posStr = new String(chars, colStart, i - colStart);
+				if (col == refIdx) ref = new String(chars, colStart, i - colStart);
+				if (col == altIdx) alt = new String(chars, colStart, i - colStart);
+
+				int slot = dbNsfp.getSlot(col);
+				if (slot >= 0) values[slot] = value(chars, colStart, i, subfieldSep);
+
+				col++;
+				colStart = i + 1;
+				subfieldSep = 0;
+			} else if (c == DbNsfp.SUBFIELD_SEPARATOR_CHAR) subfieldSep = c;
+			else if (c == DbNsfp.SUBFIELD_SEPARATOR_CHAR_2 && subfieldSep == 0) subfieldSep = c;
+		}
 
-		String chromosome = vals[dbNsfp.getChromosomeIdx()];
-		parent = dbNsfp.getChromosome(chromosome);
+		if (col <= lastColumn) throw new RuntimeException("Error parsing dbNSFP line: Expected at least " + (lastColumn + 1) + " columns, found " + col + "\n\tLine: " + line);
 
-		start = parsePosition(vals[dbNsfp.getStartIdx()]);
+		parent = dbNsfp.getChromosome(chromosome);
+		start = parsePosition(posStr);
 		end = start;
 
-		// Add all entries
 		variantType = VariantType.SNP;
-		ref = vals[dbNsfp.getRefIdx()];
-		alt = vals[dbNsfp.getAltIdx()];
 		genotype = alt;
-
-		// Add 'key=value' pairs
-		values = new HashMap<>();
-		for (int i = 0; i < dbNsfp.getFieldCount(); i++)
-			add(dbNsfp.getFieldName(i), vals[i]);
 	}
 
 	/**
@@ -118,9 +152,27 @@ public class DbNsfpEntry extends Variant {
 		sb.append(toStr() + "\t");
 		sb.append('\n');
 
-		for (String key : values.keySet())
-			sb.append("\t" + key + ": '" + values.get(key) + "'\n");
+		for (int i = 0; i < dbNsfp.getFieldCount(); i++) {
+			int slot = dbNsfp.getSlot(i);
+			if (slot >= 0 && values[slot] != null) sb.append("\t" + dbNsfp.getFieldName(i) + ": '" + values[slot] + "'\n");
+		}
 
 		return sb.toString();
 	}
+
+	/**
+	 * Value from characters 'chars[start]' to 'chars[end-1]', same as 'add'
+	 * (i.e. empty values are '.' and sub-field separators are replaced by '\t')
+	 * Note: Sub-field separators are replaced in 'chars'
+	 */
+	String value(char chars[], int start, int end, char subfieldSep) {
+		if (start == end) return ".";
+
+		if (subfieldSep != 0) {
+			for (int i = start; i < end; i++)
+				if (chars[i] == subfieldSep) chars[i] = '\t';
+		}
+
+		return new String(chars, start, end - start);
+	}
 }
@@ -0,0 +1,99 @@
+package org.snpsift.fileIterator;
+
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.util.PackedGenotypes;
+
+/**
+ * A VCF entry where genotype columns (FORMAT and samples) are not parsed.
+ *
+ * The raw genotype columns can be kept, so that the entry is shown
+ * exactly as in the original VCF line (including any changes to the
+ * first eight columns). Genotype calls can be obtained from the raw
+ * columns without parsing genotypes (see 'getPackedGenotypes').
+ *
+ * @author pcingola
+ */
+public class VcfEntryNoGt extends VcfEntry {
+
+	public static final int NUM_COLUMNS_NO_GT = 8; // CHROM, POS, ID, REF, ALT, QUAL, FILTER, INFO
+
+	int lineNumber;
+	String genotypesStr; // Raw genotype columns, null if not available
+	PackedGenotypes packedGenotypes; // Genotype calls (created on first use)
+
+	/**
+	 * Position of the tab separating INFO from genotype columns, or -1 if there are no genotype columns
+	 */
+	static int genotypesTabIndex(String line) {
+		int idx = -1;
+		for (int i = 0; i < NUM_COLUMNS_NO_GT; i++) {
+			idx = line.indexOf('\t', idx + 1);
+			if (idx < 0) return -1;
+		}
+		return idx;
+	}
+
+	/**
+	 * Remove genotype columns from a VCF line
+	 */
+	static String noGenotypes(String line) {
+		int idx = genotypesTabIndex(line);
+		return idx < 0 ? line : line.substring(0, idx);
+	}
+
+	/**
+	 * Create an entry
+	 * @param keepGenotypes : Keep the raw genotype columns (e.g. to show the entry)
+	 */
+	public VcfEntryNoGt(VcfFileIterator vcfFileIterator, String line, int lineNum, boolean keepGenotypes) {
+		super(vcfFileIterator, noGenotypes(line), lineNum, true);
+		lineNumber = lineNum;
+
+		if (keepGenotypes) {
+			int idx = genotypesTabIndex(line);
+			if (idx >= 0) genotypesStr = line.substring(idx + 1);
+		}
+	}
+
+	/**
+	 * Raw genotype columns (FORMAT and samples, tab separated), null if not available
+	 */
+	public String getGenotypesStr() {
+		return genotypesStr;
+	}
+
+	/**
+	 * Genotype calls packed from raw genotype columns (null if raw genotype columns are not available)
+	 */
+	public PackedGenotypes getPackedGenotypes() {
+		if (packedGenotypes == null && genotypesStr != null) packedGenotypes = new PackedGenotypes(this, genotypesStr);
+		return packedGenotypes;
+	}
+
+	/**
+	 * Set raw genotype columns (e.g. after changing some samples)
+	 */
+	public void setGenotypesStr(String genotypesStr) {
+		this.genotypesStr = genotypesStr;
+		packedGenotypes = null;
+	}
+
+	/**
+	 * Create a 'full' VcfEntry (i.e. parsing genotypes)
+	 *
+	 * Note: This parses the whole line again, so it should not be used on
+	 * every entry. Commands that need genotypes should iterate using a
+	 * VcfFileIterator instead (see 'SnpSiftCmdFilter' or 'SnpSiftCmdFilterGt').
+	 */
+	public VcfEntry toVcfEntry() {
+		return new VcfEntry(getVcfFileIterator(), toString(), lineNumber, true);
+	}
+
+	@Override
+	public String toString() {
+		String str = super.toString();
+		return genotypesStr == null ? str : str + "\t" + genotypesStr;
+	}
+
+}
@@ -0,0 +1,35 @@
+package org.snpsift.fileIterator;
+
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.vcf.VcfEntry;
+
+/**
+ * A VCF file iterator that does not parse genotype columns (see VcfEntryNoGt).
+ *
+ * This is much faster than a VcfFileIterator on files with many samples,
+ * when the genotypes are not needed (e.g. a filter that only uses INFO fields).
+ * Header and line handling is the same as in VcfFileIterator, only data lines
+ * are parsed differently.
+ *
+ * @author pcingola
+ */
+public class VcfNoGtFileIterator extends VcfFileIterator {
+
+	boolean keepGenotypes; // Keep raw genotype columns (e.g. to show the entries)
+
+	public VcfNoGtFileIterator(String fileName, boolean keepGenotypes) {
+		super(fileName);
+		this.keepGenotypes = keepGenotypes;
+	}
+
+	/**
+	 * Parse a line: Header lines are handled by VcfFileIterator, data lines
+	 * create entries without parsing genotype columns
+	 */
+	@Override
+	public VcfEntry parseVcfLine(String line) {
+		if (line.isEmpty() || line.startsWith("#")) return super.parseVcfLine(line);
+		return new VcfEntryNoGt(this, line, getLineNum(), keepGenotypes);
+	}
+
+}
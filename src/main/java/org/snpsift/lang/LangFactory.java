@@ -65,6 +65,7 @@ import org.snpsift.lang.function.CountRef;
 import org.snpsift.lang.function.CountVariant;
 import org.snpsift.lang.function.Function;
 import org.snpsift.lang.function.FunctionBoolGenotype;
+import org.snpsift.lang.function.HasAny;
 import org.snpsift.lang.function.In;
 import org.snpsift.lang.function.IsHet;
 import org.snpsift.lang.function.IsHom;
@@ -83,6 +84,7 @@ public class LangFactory {
 	ArrayList<HashSet<String>> sets = new ArrayList<HashSet<String>>();
 	EffFormatVersion formatVersion;
 	boolean exceptionIfNotFound = false;
+	ReferencedFields referencedFields = new ReferencedFields(); // Fields referenced by all expressions created by this factory
 
 	public LangFactory() {
 		sets = new ArrayList<HashSet<String>>(); // No sets
@@ -210,6 +212,9 @@ public class LangFactory {
 			else if (op.equals("has")) expression = new Has(left, right);
 			else throw new RuntimeException("Unknown operator '" + op + "'");
 
+			// Regular expression is a literal? Compile it only once
+			if (expression instanceof Match) ((Match) expression).compilePattern();
+
 		} else if (leaveClass == ExpressionExistsContext.class) { // Exists operators
 			String op = ((ExpressionExistsContext) tree).op.getText();
 			Expression expr = expressionFactory(tree.getChild(1));
@@ -310,7 +315,10 @@ public class LangFactory {
 		if (leaveClass == VarReferenceContext.class) {
 			String name = tree.getChild(0).getText();
 			if (FieldConstant.isConstantField(name)) field = FieldConstant.factory(name);
-			else field = new Field(name);
+			else {
+				field = new Field(name);
+				referencedFields.add(name);
+			}
 		} else if (leaveClass == VarReferenceListContext.class) {
 			String name = tree.getChild(0).getText();
 			Expression idxExpr = expressionFactory(tree.getChild(2));
@@ -320,6 +328,10 @@ public class LangFactory {
 			else if (name.equalsIgnoreCase("lof")) field = new FieldLof(null, idxExpr);
 			else if (name.equalsIgnoreCase("nmd")) field = new FieldNmd(null, idxExpr);
 			else field = new FieldSub(name, idxExpr);
+
+			if (name.equalsIgnoreCase("gen")) referencedFields.addGenotype(null);
+			else if (field.getClass() == FieldSub.class) referencedFields.addInfo(name);
+			else referencedFields.addInfo(name.toUpperCase()); // ANN, EFF, LOF or NMD
 		} else if (leaveClass == VarReferenceListSubContext.class) {
 			String name = tree.getChild(0).getText();
 			Expression idxExpr = expressionFactory(tree.getChild(2));
@@ -332,6 +344,7 @@ public class LangFactory {
 				// Element is also an array/list? => This is a "List.Sub.Sub" field
 				Expression idxExpr2 = expressionFactory(subTree.getChild(2));
 				field = new FieldGenotypeSub(subName, idxExpr, idxExpr2);
+				referencedFields.addGenotype(subName);
 			} else {
 				// This is a 'normal' list.sub field
 				if (name.equalsIgnoreCase("gen")) field = new FieldGenotype(subName, idxExpr);
@@ -339,6 +352,9 @@ public class LangFactory {
 				else if (name.equalsIgnoreCase("lof")) field = new FieldLof(subName, idxExpr);
 				else if (name.equalsIgnoreCase("nmd")) field = new FieldNmd(subName, idxExpr);
 				else throw new RuntimeException("Could not create field '" + tree.getText() + "'");
+
+				if (name.equalsIgnoreCase("gen")) referencedFields.addGenotype(subName);
+				else referencedFields.addInfo(name.toUpperCase()); // ANN, EFF, LOF or NMD
 			}
 		} else throw new RuntimeException("Unknown field '" + leaveName + "'");
 
@@ -346,6 +362,13 @@ public class LangFactory {
 		return field;
 	}
 
+	/**
+	 * Fields referenced by all expressions created by this factory
+	 */
+	public ReferencedFields getReferencedFields() {
+		return referencedFields;
+	}
+
 	/**
 	 * Create FunctionBoolGenotype from AST
 	 */
@@ -378,6 +401,7 @@ public class LangFactory {
 			fun = new IsVariant(exprGenIdx);
 		} else throw new RuntimeException("Unknown expression '" + leaveName + "'");
 
+		referencedFields.addGenotypeCalls();
 		return fun;
 	}
 
@@ -400,11 +424,25 @@ public class LangFactory {
 				|| leaveName.equalsIgnoreCase("countVariant") //
 		) {
 			return functionVcfEntryFactory(tree);
+		} else if (leaveName.equalsIgnoreCase("hasAny")) {
+			return functionSetFactory(tree);
 		} else {
 			throw new RuntimeException("Unknown function '" + leaveName + "'");
 		}
 	}
 
+	/**
+	 * Create set functions, e.g. 'hasAny(EFF, 0)'
+	 */
+	public Function functionSetFactory(ParseTree tree) {
+		String leaveName = tree.getChild(0).getText();
+		if (tree.getChildCount() != 6) throw new RuntimeException("Function '" + leaveName + "' requires two arguments: expression and set number");
+
+		Expression expr = expressionFactory(tree.getChild(2));
+		Expression exprSetIdx = expressionFactory(tree.getChild(4));
+		return new HasAny(sets, expr, exprSetIdx);
+	}
+
 	/**
 	 * Create Functions from tree
 	 * Note: These functions that are calculated on the whole VcfEntry.
@@ -433,6 +471,7 @@ public class LangFactory {
 			func = new CountVariant();
 		} else throw new RuntimeException("Unknown expression '" + leaveName + "'");
 
+		referencedFields.addGenotypeCalls();
 		if (debug) Gpr.debug("vcfExpression: " + func);
 		return func;
 	}
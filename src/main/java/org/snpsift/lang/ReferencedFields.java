@@ -0,0 +1,112 @@
+package org.snpsift.lang;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Fields referenced by expressions: VCF columns, INFO fields and genotype fields
+ *
+ * This is used to parse only the parts of a VCF entry that an expression
+ * actually needs (e.g. do not parse genotypes if they are not used)
+ *
+ * @author pcingola
+ */
+public class ReferencedFields {
+
+	public static final String VCF_COLUMNS[] = { "CHROM", "POS", "ID", "REF", "ALT", "QUAL", "FILTER", "FORMAT" };
+
+	Set<String> columns; // Fixed VCF columns (e.g. 'CHROM', 'POS')
+	Set<String> infoFields; // INFO fields (e.g. 'DP', 'ANN')
+	Set<String> genotypeFields; // Genotype fields (e.g. 'GT', 'DP')
+	boolean genotypes; // Are genotypes used? (e.g. 'GEN[0]' or 'countHet()')
+	boolean genotypeObjects; // Are genotypes used other than genotype calls in functions? (e.g. 'GEN[0].DP', but not 'countHet()')
+
+	/**
+	 * Is 'name' a fixed VCF column?
+	 */
+	public static boolean isVcfColumn(String name) {
+		for (String col : VCF_COLUMNS)
+			if (col.equals(name)) return true;
+		return false;
+	}
+
+	public ReferencedFields() {
+		columns = new TreeSet<>();
+		infoFields = new TreeSet<>();
+		genotypeFields = new TreeSet<>();
+		genotypes = false;
+		genotypeObjects = false;
+	}
+
+	/**
+	 * Add a field name: Either a VCF column or an INFO field
+	 */
+	public void add(String name) {
+		if (isVcfColumn(name)) addColumn(name);
+		else addInfo(name);
+	}
+
+	public void addColumn(String name) {
+		columns.add(name);
+
+		// Genotype columns are not parsed if genotypes are not used
+		if (name.equals("FORMAT")) genotypes = genotypeObjects = true;
+	}
+
+	/**
+	 * Add a genotype field
+	 * @param name : Genotype field name (e.g. 'GT'), null means the whole genotype
+	 */
+	public void addGenotype(String name) {
+		genotypes = genotypeObjects = true;
+		if (name != null) genotypeFields.add(name);
+	}
+
+	/**
+	 * Add genotype calls used by functions (e.g. 'countHet()' or 'isHom(GEN[0])').
+	 * These can be evaluated without parsing genotypes (see PackedGenotypes)
+	 */
+	public void addGenotypeCalls() {
+		genotypes = true;
+		genotypeFields.add("GT");
+	}
+
+	public void addInfo(String name) {
+		infoFields.add(name);
+	}
+
+	public Set<String> getColumns() {
+		return columns;
+	}
+
+	public Set<String> getGenotypeFields() {
+		return genotypeFields;
+	}
+
+	public Set<String> getInfoFields() {
+		return infoFields;
+	}
+
+	/**
+	 * Are genotypes used?
+	 */
+	public boolean isGenotypes() {
+		return genotypes;
+	}
+
+	/**
+	 * Are genotypes only used as genotype calls in functions (e.g. 'countHet()')?
+	 */
+	public boolean isGenotypeCallsOnly() {
+		return genotypes && !genotypeObjects;
+	}
+
+	@Override
+	public String toString() {
+		return "Columns: " + columns //
+				+ ", INFO: " + infoFields //
+				+ ", Genotypes: " + (genotypes ? "yes " + genotypeFields + (genotypeObjects ? "" : " (calls only)") : "no") //
+		;
+	}
+
+}
@@ -3,6 +3,19 @@ package org.snpsift.lang;
 import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VcfInfoType;
 
+/**
+ * A value (i.e. the result of evaluating an expression)
+ *
+ * Values are stored in primitive slots (long, double, boolean) with a type tag,
+ * so that numeric values do not need to be boxed.
+ *
+ * Note: Values created using a constructor are immutable. Prepared expressions
+ * use mutable values, stored in the evaluation state (see 'Expression.result'),
+ * to avoid creating new objects on every evaluation. A mutable value is only
+ * valid until the same expression is evaluated again using the same state.
+ *
+ * @author pcingola
+ */
 public class Value {
 
 	public static boolean debug = false;
@@ -11,40 +24,153 @@ public class Value {
 	public static final Value TRUE = new Value(true);
 	public static final Value NULL = new Value(null);
 
-	final Object value;
+	final boolean mutable;
+	VcfInfoType type; // Value type (null means 'null' value)
+	boolean boolValue;
+	long intValue;
+	double floatValue;
+	String strValue;
+
+	/**
+	 * Boolean values are shared
+	 */
+	public static Value valueOf(boolean b) {
+		return b ? TRUE : FALSE;
+	}
+
+	/**
+	 * Create a mutable value (initialized to 'null')
+	 */
+	public Value() {
+		mutable = true;
+	}
+
+	public Value(boolean b) {
+		mutable = false;
+		assign(b);
+	}
+
+	public Value(double d) {
+		mutable = false;
+		assign(d);
+	}
+
+	public Value(long l) {
+		mutable = false;
+		assign(l);
+	}
 
 	public Value(Object value) {
-		this.value = value;
-		sanityCheck();
+		mutable = false;
+
+		if (value == null) assignNull();
+		else if (value instanceof Boolean) assign(((Boolean) value).booleanValue());
+		else if (value instanceof Long) assign(((Long) value).longValue());
+		else if (value instanceof Double) assign(((Double) value).doubleValue());
+		else if (value instanceof String) assign((String) value);
+		else throw new RuntimeException("Cannot assign value type '" + value.getClass().getSimpleName() + "'");
 	}
 
 	public boolean asBool() {
-		if (value == null) return false;
-		if (isBool()) return (Boolean) value;
-		if (isInt()) return (asInt() != 0L);
-		if (isFloat()) return (asFloat() != 0.0);
-		return !asString().isEmpty();
+		if (type == null) return false;
+
+		switch (type) {
+		case Flag:
+			return boolValue;
+
+		case Integer:
+			return intValue != 0L;
+
+		case Float:
+			return floatValue != 0.0;
+
+		default:
+			return !strValue.isEmpty();
+		}
 	}
 
 	public double asFloat() {
-		if (value == null) return 0.0;
-		if (isBool()) return asBool() ? 1.0 : 0.0;
-		if (isInt()) return asInt();
-		if (isFloat()) return (Double) value;
-		return Gpr.parseDoubleSafe(value.toString());
+		if (type == null) return 0.0;
+
+		switch (type) {
+		case Flag:
+			return boolValue ? 1.0 : 0.0;
+
+		case Integer:
+			return intValue;
+
+		case Float:
+			return floatValue;
+
+		default:
+			return Gpr.parseDoubleSafe(strValue);
+		}
 	}
 
 	public long asInt() {
-		if (value == null) return 0L;
-		if (isBool()) return asBool() ? 1L : 0L;
-		if (isInt()) return (Long) value;
-		if (isFloat()) return ((long) asFloat());
-		return Gpr.parseIntSafe(value.toString());
+		if (type == null) return 0L;
+
+		switch (type) {
+		case Flag:
+			return boolValue ? 1L : 0L;
+
+		case Integer:
+			return intValue;
+
+		case Float:
+			return (long) floatValue;
+
+		default:
+			return Gpr.parseIntSafe(strValue);
+		}
 	}
 
 	public String asString() {
-		if (value == null) return "";
-		return value.toString();
+		if (type == null) return "";
+
+		switch (type) {
+		case Flag:
+			return Boolean.toString(boolValue);
+
+		case Integer:
+			return Long.toString(intValue);
+
+		case Float:
+			return Double.toString(floatValue);
+
+		default:
+			return strValue;
+		}
+	}
+
+	void assign(boolean b) {
+		type = VcfInfoType.Flag;
+		boolValue = b;
+	}
+
+	void assign(double d) {
+		type = VcfInfoType.Float;
+		floatValue = d;
+	}
+
+	void assign(long l) {
+		type = VcfInfoType.Integer;
+		intValue = l;
+	}
+
+	void assign(String s) {
+		if (s == null) {
+			assignNull();
+			return;
+		}
+
+		type = VcfInfoType.String;
+		strValue = s;
+	}
+
+	void assignNull() {
+		type = null;
+		strValue = null;
 	}
 
 	public boolean canBeFloat() {
@@ -62,6 +188,10 @@ public class Value {
 		return !(isNull() || val.isNull());
 	}
 
+	void checkMutable() {
+		if (!mutable) throw new RuntimeException("Cannot modify an immutable value");
+	}
+
 	public int compareTo(Value val) {
 		// Compare null
 		if (isNull() && val.isNull()) return 0;
@@ -69,15 +199,16 @@ public class Value {
 		if (!isNull() && val.isNull()) return 1;
 
 		// One of them is float?
-		if (canBeFloat() || val.canBeFloat()) return ((Double) asFloat()).compareTo(val.asFloat());
-		if (canBeInt() || val.canBeInt()) return ((Long) asInt()).compareTo(val.asInt());
-		if (isBool() || val.isBool()) return ((Boolean) asBool()).compareTo(val.asBool());
+		if (canBeFloat() || val.canBeFloat()) return Double.compare(asFloat(), val.asFloat());
+		if (canBeInt() || val.canBeInt()) return Long.compare(asInt(), val.asInt());
+		if (isBool() || val.isBool()) return Boolean.compare(asBool(), val.asBool());
 		return asString().compareTo(val.asString());
 	}
 
 	@Override
 	public boolean equals(Object o) {
-		if (value == o) return true;
+		if (this == o) return true;
+		if (!(o instanceof Value)) return false;
 
 		Value val = (Value) o;
 
@@ -86,44 +217,106 @@ public class Value {
 		if (isNull() && !val.isNull()) return false;
 		if (!isNull() && val.isNull()) return false;
 
-		return value.equals(val.value);
+		// Different types are never equal
+		if (type != val.type) return false;
+
+		switch (type) {
+		case Flag:
+			return boolValue == val.boolValue;
+
+		case Integer:
+			return intValue == val.intValue;
+
+		case Float:
+			return Double.doubleToLongBits(floatValue) == Double.doubleToLongBits(val.floatValue);
+
+		default:
+			return strValue.equals(val.strValue);
+		}
 	}
 
 	@Override
 	public int hashCode() {
-		if (value == null) return 0;
-		return value.hashCode();
+		if (type == null) return 0;
+
+		switch (type) {
+		case Flag:
+			return Boolean.hashCode(boolValue);
+
+		case Integer:
+			return Long.hashCode(intValue);
+
+		case Float:
+			return Double.hashCode(floatValue);
+
+		default:
+			return strValue.hashCode();
+		}
 	}
 
 	public boolean isBool() {
-		return value instanceof Boolean;
+		return type == VcfInfoType.Flag;
 	}
 
 	public boolean isFloat() {
-		return value instanceof Double;
+		return type == VcfInfoType.Float;
 	}
 
 	public boolean isInt() {
-		return value instanceof Long || value instanceof Integer;
+		return type == VcfInfoType.Integer;
 	}
 
 	public boolean isNull() {
-		return value == null;
+		return type == null;
 	}
 
 	public boolean isString() {
-		return value instanceof String;
+		return type == VcfInfoType.String;
+	}
+
+	/**
+	 * Set a boolean value (mutable values only)
+	 */
+	public Value set(boolean b) {
+		checkMutable();
+		assign(b);
+		return this;
 	}
 
-	void sanityCheck() {
-		if (value == null //
-				|| value instanceof Boolean //
-				|| value instanceof Long //
-				|| value instanceof Double //
-				|| value instanceof String //
-		) return;
+	/**
+	 * Set a float value (mutable values only)
+	 */
+	public Value set(double d) {
+		checkMutable();
+		assign(d);
+		return this;
+	}
 
-		throw new RuntimeException("Cannot assign value type '" + value.getClass().getSimpleName() + "'");
+	/**
+	 * Set an integer value (mutable values only)
+	 */
+	public Value set(long l) {
+		checkMutable();
+		assign(l);
+		return this;
+	}
+
+	/**
+	 * Set a string value, a null string sets a 'null' value (mutable values only)
+	 */
+	public Value set(String s) {
+		checkMutable();
+		assign(s);
+		return this;
+	}
+
+	/**
+	 * Set a 'null' value (mutable values only)
+	 */
+	public Value setNull() {
+		checkMutable();
+		assignNull();
+		return this;
 	}
 
 	@Override
@@ -1,6 +1,8 @@
 package org.snpsift.lang.expression;
 
 import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.Value;
 
 /**
@@ -15,24 +17,93 @@ public class And extends ExpressionBinary {
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
-		Value lval = left.eval(vcfEntry);
+	public CompiledExpression compile() {
+		CompiledExpression l = left.compile();
+		CompiledExpression r = right != null ? right.compile() : null;
+
+		return (vcfEntry, fieldIterator) -> {
+			Value lval = l.eval(vcfEntry, fieldIterator);
+
+			// Boolean? Try short-circuit operator
+			if (lval.isBool()) {
+				if (!lval.asBool()) return Value.FALSE;
+			}
+
+			Value rval = r != null ? r.eval(vcfEntry, fieldIterator) : null;
+
+			return evalOp(lval, rval, result(fieldIterator));
+		};
+	}
+
+	@Override
+	public CompiledGenotypeExpression compileGenotype(VcfHeader vcfHeader, GenotypeFields genotypeFields) {
+		CompiledGenotypeExpression l = left.compileGenotype(vcfHeader, genotypeFields);
+		CompiledGenotypeExpression r = right != null ? right.compileGenotype(vcfHeader, genotypeFields) : null;
+		if (l == null || (right != null && r == null)) return null;
+
+		return gf -> {
+			Value lval = l.eval(gf);
+
+			// Boolean? Try short-circuit operator
+			if (lval.isBool()) {
+				if (!lval.asBool()) return Value.FALSE;
+			}
+
+			Value rval = r != null ? r.eval(gf) : null;
+
+			return evalOp(lval, rval, result(gf));
+		};
+	}
+
+	@Override
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		Value lval = left.eval(vcfEntry, fieldIterator);
+
+		// Boolean? Try short-circuit operator
+		if (lval.isBool()) {
+			if (!lval.asBool()) return Value.FALSE;
+		}
+
+		Value rval = right != null ? right.eval(vcfEntry, fieldIterator) : null;
+
+		return evalOp(lval, rval, result(fieldIterator));
+	}
+
+	@Override
+	public Value eval(VcfGenotype gt, FieldIterator fieldIterator) {
+		Value lval = left.eval(gt, fieldIterator);
 
 		// Boolean? Try short-circuit operator
 		if (lval.isBool()) {
 			if (!lval.asBool()) return Value.FALSE;
 		}
 
-		Value rval = right != null ? right.eval(vcfEntry) : null;
+		Value rval = right != null ? right.eval(gt, fieldIterator) : null;
 
-		return evalOp(lval, rval);
+		return evalOp(lval, rval, result(fieldIterator));
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
-		if (lval.isBool() && rval.isBool()) return new Value(lval.asBool() && rval.asBool());
-		if (lval.canBeInt() && rval.canBeInt()) return new Value(lval.asInt() & rval.asInt());
+	protected Value evalOp(Value lval, Value rval, Value result) {
+		if (lval.isBool() && rval.isBool()) return Value.valueOf(lval.asBool() && rval.asBool());
+		if (lval.canBeInt() && rval.canBeInt()) return result.set(lval.asInt() & rval.asInt());
 		throw new RuntimeException("Cannot peroform '&' between " + lval.type() + " and " + rval.type());
 	}
 
+	@Override
+	public boolean isReorderable() {
+		return isReorderableOperands();
+	}
+
+	/**
+	 * Evaluate cheaper operand first, so that the expensive one can be skipped
+	 * (short-circuit) as often as possible
+	 */
+	@Override
+	public Expression optimize() {
+		super.optimize();
+		swapIfCheaper();
+		return this;
+	}
+
 }
@@ -0,0 +1,22 @@
+package org.snpsift.lang.expression;
+
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.lang.Value;
+
+/**
+ * A 'compiled' expression: A tree of specialized lambdas created from
+ * an expression tree (see 'Expression.compile()')
+ *
+ * Compiled expressions return exactly the same values as 'Expression.eval()'
+ *
+ * @author pcingola
+ */
+@FunctionalInterface
+public interface CompiledExpression {
+
+	/**
+	 * Evaluate expression using VcfEntry
+	 */
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator);
+
+}
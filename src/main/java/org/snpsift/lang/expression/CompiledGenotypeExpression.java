@@ -0,0 +1,21 @@
+package org.snpsift.lang.expression;
+
+import org.snpsift.lang.Value;
+
+/**
+ * A 'compiled' genotype expression: A tree of specialized lambdas, evaluated
+ * on one sample's genotype fields (see 'Expression.compileGenotype()')
+ *
+ * Compiled expressions return exactly the same values as 'Expression.eval(VcfGenotype)'
+ *
+ * @author pcingola
+ */
+@FunctionalInterface
+public interface CompiledGenotypeExpression {
+
+	/**
+	 * Evaluate expression using the current sample in 'genotypeFields'
+	 */
+	public Value eval(GenotypeFields genotypeFields);
+
+}
@@ -14,11 +14,16 @@ public class Eq extends ExpressionBinary {
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
+	protected Value evalOp(Value lval, Value rval, Value result) {
 		// Cannot be compared? Return false
 		if (!lval.canCompare(rval)) return Value.FALSE;
 
 		boolean eq = lval.equals(rval);
-		return new Value(negated ? !eq : eq);
+		return Value.valueOf(negated ? !eq : eq);
+	}
+
+	@Override
+	public boolean isReorderable() {
+		return isReorderableOperands();
 	}
 }
@@ -18,6 +18,6 @@ public class Exists extends ExpressionUnary {
 		if (val.isBool()) return val; // A 'flag' only exists (i.e. is present) in the VCF INFO field when it's set to 'true'
 
 		boolean ret = !val.asString().isEmpty();
-		return new Value(negated ? !ret : ret);
+		return Value.valueOf(negated ? !ret : ret);
 	}
 }
@@ -2,6 +2,7 @@ package org.snpsift.lang.expression;
 
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.Value;
 
 /**
@@ -16,6 +17,7 @@ public abstract class Expression {
 
 	protected boolean negated;
 	protected String operator;
+	protected int resultIdx = -1; // Index of this node's result value in the evaluation state (see 'prepare'), -1 if not assigned
 
 	public Expression() {
 		operator = "";
@@ -27,15 +29,131 @@ public abstract class Expression {
 		negated = false;
 	}
 
+	/**
+	 * Compile expression into a tree of specialized lambdas.
+	 * By default, the compiled expression simply invokes 'eval()'
+	 */
+	public CompiledExpression compile() {
+		return this::eval;
+	}
+
+	/**
+	 * Compile expression into a tree of specialized lambdas, evaluated on
+	 * genotype fields split from raw genotype columns (see GenotypeFields).
+	 * Fields used are added to 'genotypeFields' slots.
+	 * @return A compiled expression or null if the expression cannot be compiled (use 'eval(VcfGenotype)')
+	 */
+	public CompiledGenotypeExpression compileGenotype(VcfHeader vcfHeader, GenotypeFields genotypeFields) {
+		return null;
+	}
+
+	/**
+	 * Estimated (relative) cost of evaluating this expression.
+	 * Reading a fixed VCF column (e.g. 'POS') costs 1, literals are free.
+	 * It is used to evaluate cheaper operands first (see 'optimize()')
+	 */
+	public int cost() {
+		return 10;
+	}
+
 	/**
 	 * Evaluate expression using VcfEntry
 	 */
-	public abstract Value eval(VcfEntry vcfEntry);
+	public Value eval(VcfEntry vcfEntry) {
+		return eval(vcfEntry, new FieldIterator());
+	}
+
+	/**
+	 * Evaluate expression using VcfEntry
+	 *
+	 * Note: For prepared expressions (see 'prepare'), the value returned is stored
+	 * in 'fieldIterator', so it is only valid until the expression is evaluated
+	 * again using the same 'fieldIterator'
+	 *
+	 * @param fieldIterator : Evaluation state (e.g. iteration on 'ANN[*]' or 'GEN[?]').
+	 *                        It is not shared between threads
+	 */
+	public abstract Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator);
+
+	/**
+	 * Evaluate expression using genotype
+	 */
+	public Value eval(VcfGenotype vcfGenotype) {
+		return eval(vcfGenotype, new FieldIterator());
+	}
 
 	/**
 	 * Evaluate expression using genotype
+	 * @param fieldIterator : Iteration state for this evaluation
+	 */
+	public abstract Value eval(VcfGenotype vcfGenotype, FieldIterator fieldIterator);
+
+	/**
+	 * Does 'compile()' create a specialized lambda for this node? Otherwise, the
+	 * compiled expression simply invokes 'eval()' (e.g. sub-fields and functions)
 	 */
-	public abstract Value eval(VcfGenotype vcfGenotype);
+	public boolean isCompilable() {
+		return false;
+	}
+
+	/**
+	 * Can evaluating this expression iterate over values (e.g. 'ANN[*]' or 'GEN[?]')?
+	 * If false, the expression only needs to be evaluated once per VCF entry.
+	 * By default, expressions are assumed to iterate
+	 */
+	public boolean isIterable() {
+		return true;
+	}
+
+	/**
+	 * Can this expression be evaluated before (or instead of) other operands?
+	 * I.e. it does not iterate (e.g. 'ANN[*]'), it does not change the evaluation
+	 * state and it does not fail on missing values (e.g. division by zero)
+	 */
+	public boolean isReorderable() {
+		return false;
+	}
+
+	/**
+	 * Optimize expression, e.g. evaluate cheaper 'And' / 'Or' operands first.
+	 * The result of evaluating an optimized expression is the same
+	 * @return Optimized expression
+	 */
+	public Expression optimize() {
+		return this;
+	}
+
+	/**
+	 * Prepare expression before evaluating it (e.g. from several threads):
+	 *   - Field types are resolved using the VCF header, instead of on first evaluation
+	 *   - Each node is assigned a result index, so that results are stored in the
+	 *     evaluation state (see 'result') instead of creating new values
+	 *
+	 * @param vcfHeader : VCF header (field types are not resolved if null)
+	 * @param genotype : Is the expression evaluated on genotypes (i.e. fields are genotype fields)?
+	 * @param resultIdx : First result index available
+	 * @return Next result index available
+	 */
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		this.resultIdx = resultIdx;
+		return resultIdx + 1;
+	}
+
+	/**
+	 * A (mutable) value to hold this expression's result, stored in the evaluation
+	 * state, so it is never shared between threads. A new value is created if
+	 * the expression has not been prepared (see 'prepare')
+	 */
+	protected Value result(FieldIterator fieldIterator) {
+		return resultIdx >= 0 ? fieldIterator.result(resultIdx) : new Value();
+	}
+
+	/**
+	 * A (mutable) value to hold this expression's result (compiled genotype expressions)
+	 */
+	protected Value result(GenotypeFields genotypeFields) {
+		return resultIdx >= 0 ? genotypeFields.result(resultIdx) : new Value();
+	}
 
 	public void setNegated(boolean negated) {
 		this.negated = negated;
@@ -2,6 +2,7 @@ package org.snpsift.lang.expression;
 
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.Value;
 
 /**
@@ -21,20 +22,93 @@ public abstract class ExpressionBinary extends Expression {
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
-		Value lval = left.eval(vcfEntry);
-		Value rval = right != null ? right.eval(vcfEntry) : null;
-		return evalOp(lval, rval);
+	public CompiledExpression compile() {
+		CompiledExpression l = left.compile();
+		if (right == null) return (vcfEntry, fieldIterator) -> evalOp(l.eval(vcfEntry, fieldIterator), null, result(fieldIterator));
+
+		CompiledExpression r = right.compile();
+		return (vcfEntry, fieldIterator) -> evalOp(l.eval(vcfEntry, fieldIterator), r.eval(vcfEntry, fieldIterator), result(fieldIterator));
+	}
+
+	@Override
+	public CompiledGenotypeExpression compileGenotype(VcfHeader vcfHeader, GenotypeFields genotypeFields) {
+		CompiledGenotypeExpression l = left.compileGenotype(vcfHeader, genotypeFields);
+		if (l == null) return null;
+		if (right == null) return gf -> evalOp(l.eval(gf), null, result(gf));
+
+		CompiledGenotypeExpression r = right.compileGenotype(vcfHeader, genotypeFields);
+		if (r == null) return null;
+		return gf -> evalOp(l.eval(gf), r.eval(gf), result(gf));
+	}
+
+	@Override
+	public int cost() {
+		return 1 + left.cost() + (right != null ? right.cost() : 0);
+	}
+
+	@Override
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		Value lval = left.eval(vcfEntry, fieldIterator);
+		Value rval = right != null ? right.eval(vcfEntry, fieldIterator) : null;
+		return evalOp(lval, rval, result(fieldIterator));
+	}
+
+	@Override
+	public Value eval(VcfGenotype gt, FieldIterator fieldIterator) {
+		Value lval = left.eval(gt, fieldIterator);
+		Value rval = right != null ? right.eval(gt, fieldIterator) : null;
+		return evalOp(lval, rval, result(fieldIterator));
+	}
+
+	/**
+	 * Evaluate operator
+	 * @param result : A mutable value to store the result (see 'Expression.result'), if needed
+	 */
+	protected abstract Value evalOp(Value lval, Value rval, Value result);
+
+	@Override
+	public boolean isCompilable() {
+		return true;
+	}
+
+	@Override
+	public boolean isIterable() {
+		return left.isIterable() || (right != null && right.isIterable());
+	}
+
+	/**
+	 * Are both operands reorderable?
+	 * Note: Only operators that never fail (e.g. comparisons) should use this in 'isReorderable()'
+	 */
+	protected boolean isReorderableOperands() {
+		return left.isReorderable() && (right == null || right.isReorderable());
 	}
 
 	@Override
-	public Value eval(VcfGenotype gt) {
-		Value lval = left.eval(gt);
-		Value rval = right != null ? right.eval(gt) : null;
-		return evalOp(lval, rval);
+	public Expression optimize() {
+		left = left.optimize();
+		if (right != null) right = right.optimize();
+		return this;
 	}
 
-	protected abstract Value evalOp(Value lval, Value rval);
+	@Override
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		resultIdx = super.prepare(vcfHeader, genotype, resultIdx);
+		resultIdx = left.prepare(vcfHeader, genotype, resultIdx);
+		if (right != null) resultIdx = right.prepare(vcfHeader, genotype, resultIdx);
+		return resultIdx;
+	}
+
+	/**
+	 * Evaluate the right operand first if it is cheaper (commutative operators only)
+	 */
+	protected void swapIfCheaper() {
+		if (right == null || !right.isReorderable() || right.cost() >= left.cost()) return;
+
+		Expression tmp = left;
+		left = right;
+		right = tmp;
+	}
 
 	@Override
 	public String toString() {
@@ -0,0 +1,117 @@
+package org.snpsift.lang.expression;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
+import org.snpsift.lang.Value;
+
+/**
+ * Count the number of times an expression is evaluated (e.g. 'filter -explain')
+ *
+ * Counters are added to every node in an expression tree (see 'instrument()'),
+ * so that we can see which operands are skipped by short-circuit operators
+ *
+ * @author pcingola
+ */
+public class ExpressionCounter extends Expression {
+
+	Expression expr;
+	LongAdder count; // Note: Expressions can be evaluated from several threads
+
+	/**
+	 * Add counters to all nodes in an expression tree
+	 * @return Root node counter
+	 */
+	public static ExpressionCounter instrument(Expression expr) {
+		if (expr instanceof ExpressionBinary) {
+			ExpressionBinary exprBin = (ExpressionBinary) expr;
+			exprBin.left = instrument(exprBin.left);
+			if (exprBin.right != null) exprBin.right = instrument(exprBin.right);
+		} else if (expr instanceof ExpressionUnary) {
+			ExpressionUnary exprUn = (ExpressionUnary) expr;
+			exprUn.expr = instrument(exprUn.expr);
+		}
+
+		return new ExpressionCounter(expr);
+	}
+
+	public ExpressionCounter(Expression expr) {
+		this.expr = expr;
+		count = new LongAdder();
+	}
+
+	@Override
+	public int cost() {
+		return expr.cost();
+	}
+
+	@Override
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		count.increment();
+		return expr.eval(vcfEntry, fieldIterator);
+	}
+
+	@Override
+	public Value eval(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
+		count.increment();
+		return expr.eval(vcfGenotype, fieldIterator);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public boolean isIterable() {
+		return expr.isIterable();
+	}
+
+	@Override
+	public boolean isReorderable() {
+		return expr.isReorderable();
+	}
+
+	/**
+	 * Counters do not store results, the counted expression does
+	 */
+	@Override
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		return expr.prepare(vcfHeader, genotype, resultIdx);
+	}
+
+	@Override
+	public String toString() {
+		return expr.toString();
+	}
+
+	/**
+	 * Show expression tree: One node per line, including
+	 * number of evaluations and estimated cost
+	 */
+	public String toStringTree() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%12s\t%6s\t%s\n", "Evaluations", "Cost", "Expression"));
+		toStringTree(sb, "");
+		return sb.toString();
+	}
+
+	void toStringTree(StringBuilder sb, String indent) {
+		Expression left = null, right = null;
+		String node = expr.toString();
+		if (expr instanceof ExpressionBinary) {
+			left = ((ExpressionBinary) expr).left;
+			right = ((ExpressionBinary) expr).right;
+			node = expr.operator;
+		} else if (expr instanceof ExpressionUnary) {
+			left = ((ExpressionUnary) expr).expr;
+			node = expr.operator;
+		}
+
+		sb.append(String.format("%12d\t%6d\t%s%s\n", getCount(), cost(), indent, node));
+		if (left instanceof ExpressionCounter) ((ExpressionCounter) left).toStringTree(sb, indent + "    ");
+		if (right instanceof ExpressionCounter) ((ExpressionCounter) right).toStringTree(sb, indent + "    ");
+	}
+
+}
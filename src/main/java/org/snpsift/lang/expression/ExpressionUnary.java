@@ -2,6 +2,7 @@ package org.snpsift.lang.expression;
 
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.Value;
 
 /**
@@ -20,19 +21,64 @@ public abstract class ExpressionUnary extends Expression {
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
-		Value val = expr.eval(vcfEntry);
+	public CompiledExpression compile() {
+		CompiledExpression e = expr.compile();
+		return (vcfEntry, fieldIterator) -> evalOp(e.eval(vcfEntry, fieldIterator));
+	}
+
+	@Override
+	public CompiledGenotypeExpression compileGenotype(VcfHeader vcfHeader, GenotypeFields genotypeFields) {
+		CompiledGenotypeExpression e = expr.compileGenotype(vcfHeader, genotypeFields);
+		if (e == null) return null;
+		return gf -> evalOp(e.eval(gf));
+	}
+
+	@Override
+	public int cost() {
+		return 1 + expr.cost();
+	}
+
+	@Override
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		Value val = expr.eval(vcfEntry, fieldIterator);
 		return evalOp(val);
 	}
 
 	@Override
-	public Value eval(VcfGenotype gt) {
-		Value val = expr.eval(gt);
+	public Value eval(VcfGenotype gt, FieldIterator fieldIterator) {
+		Value val = expr.eval(gt, fieldIterator);
 		return evalOp(val);
 	}
 
 	protected abstract Value evalOp(Value val);
 
+	@Override
+	public boolean isCompilable() {
+		return true;
+	}
+
+	@Override
+	public boolean isIterable() {
+		return expr.isIterable();
+	}
+
+	@Override
+	public boolean isReorderable() {
+		return expr.isReorderable();
+	}
+
+	@Override
+	public Expression optimize() {
+		expr = expr.optimize();
+		return this;
+	}
+
+	@Override
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		resultIdx = super.prepare(vcfHeader, genotype, resultIdx);
+		return expr.prepare(vcfHeader, genotype, resultIdx);
+	}
+
 	@Override
 	public String toString() {
 		return "( " + operator + " " + expr + " )";
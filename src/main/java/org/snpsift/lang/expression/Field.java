@@ -8,6 +8,7 @@ import org.snpeff.vcf.VcfHeaderFormat;
 import org.snpeff.vcf.VcfHeaderInfo;
 import org.snpeff.vcf.VcfHeaderInfo.VcfInfoNumber;
 import org.snpeff.vcf.VcfInfoType;
+import org.snpsift.lang.ReferencedFields;
 import org.snpsift.lang.Value;
 import org.snpsift.lang.expression.FieldConstant.FieldConstantNames;
 
@@ -28,6 +29,8 @@ public class Field extends Expression {
 	protected VcfHeaderInfo vcfInfo;
 	protected int number = -1;
 	protected VcfInfoNumber vcfInfoNumber;
+	protected boolean infoField; // Type resolved from an INFO header (see 'prepare'), values can be compiled into direct lookups
+	protected boolean multipleValues; // Can the field have multiple (comma separated) values, according to the header's 'Number'?
 
 	public Field(String name) {
 		this.name = name;
@@ -57,23 +60,155 @@ public class Field extends Expression {
 	//		//		return VcfInfoType.String;
 	//	}
 
+	/**
+	 * Compile field: Fields from the first VCF columns are resolved only once.
+	 * INFO fields are compiled into direct lookups, if their types have been
+	 * resolved using the VCF header (see 'prepare')
+	 * Note: Sub-classes (e.g. 'ANN[*].GENE' or 'GEN[0].DP') use the interpreter
+	 */
+	@Override
+	public CompiledExpression compile() {
+		if (!isCompilable()) return super.compile();
+		if (infoField) return compileInfo();
+
+		switch (name) {
+		case "CHROM":
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(vcfEntry.getChromosomeNameOri());
+
+		case "ID":
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(vcfEntry.getId());
+
+		case "REF":
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(vcfEntry.getRef());
+
+		case "ALT":
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(vcfEntry.getAltsStr());
+
+		case "FILTER":
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(vcfEntry.getFilter());
+
+		case "FORMAT":
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(vcfEntry.getFormat());
+
+		case "POS":
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(vcfEntry.getStart() + 1L);
+
+		case "QUAL":
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(vcfEntry.getQuality());
+
+		default:
+			return super.compile();
+		}
+	}
+
+	/**
+	 * Compile INFO field: Type and number of values are already known, so values
+	 * are parsed directly from 'VcfEntry.getInfo()'. Types are the same as
+	 * in 'eval(VcfEntry)', i.e. multiple values are strings
+	 */
+	CompiledExpression compileInfo() {
+		boolean single = (number == 0 || number == 1);
+
+		switch (returnType) {
+		case Integer:
+			return (vcfEntry, fieldIterator) -> {
+				String value = getInfo(vcfEntry);
+				if (value == null) return result(fieldIterator).setNull();
+				if (!single && isMultiple(value)) return result(fieldIterator).set(value);
+				return result(fieldIterator).set(Gpr.parseLongSafe(value));
+			};
+
+		case Float:
+			return (vcfEntry, fieldIterator) -> {
+				String value = getInfo(vcfEntry);
+				if (value == null) return result(fieldIterator).setNull();
+				if (!single && isMultiple(value)) return result(fieldIterator).set(value);
+				return result(fieldIterator).set(Gpr.parseDoubleSafe(value));
+			};
+
+		case Flag:
+			return (vcfEntry, fieldIterator) -> {
+				String value = getInfo(vcfEntry);
+				if (!single && isMultiple(value)) return result(fieldIterator).set(value);
+				return Value.valueOf(value != null && !value.isEmpty());
+			};
+
+		case Character:
+		case String:
+			return (vcfEntry, fieldIterator) -> result(fieldIterator).set(getInfo(vcfEntry));
+
+		default:
+			return super.compile();
+		}
+	}
+
+	/**
+	 * Compile genotype field: Values are found by FORMAT index (see GenotypeFields).
+	 * Types are the same as in 'eval(VcfGenotype)', i.e. multiple values are strings.
+	 * Note: 'GT', sub-classes (e.g. 'GEN[0].DP') and fields failing when missing use the interpreter
+	 */
+	@Override
+	public CompiledGenotypeExpression compileGenotype(VcfHeader vcfHeader, GenotypeFields genotypeFields) {
+		if (getClass() != Field.class || name == null || name.equals("GT") || exceptionIfNotFound) return null;
+
+		VcfHeaderFormat vcfFormat = vcfHeader.getVcfHeaderFormat(name);
+		if (vcfFormat == null) return null;
+
+		int slot = genotypeFields.slot(name);
+		switch (vcfFormat.getVcfInfoType()) {
+		case Integer:
+			return gf -> {
+				String value = gf.get(slot);
+				if (value == null) return result(gf).setNull();
+				if (isMultiple(value)) return result(gf).set(value);
+				return result(gf).set(Gpr.parseLongSafe(value));
+			};
+
+		case Float:
+			return gf -> {
+				String value = gf.get(slot);
+				if (value == null) return result(gf).setNull();
+				if (isMultiple(value)) return result(gf).set(value);
+				return result(gf).set(Gpr.parseDoubleSafe(value));
+			};
+
+		case Flag:
+			return gf -> Value.valueOf(gf.get(slot) != null);
+
+		case Character:
+		case String:
+			return gf -> result(gf).set(gf.get(slot));
+
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Fixed VCF columns are already parsed, INFO fields require a lookup
+	 */
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
+	public int cost() {
+		return ReferencedFields.isVcfColumn(name) ? 1 : 5;
+	}
 
-		switch (getReturnType(vcfEntry)) {
+	@Override
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+
+		switch (getReturnType(vcfEntry, fieldIterator)) {
 
 		case Integer:
-			return new Value(getFieldInt(vcfEntry));
+			return getFieldInt(vcfEntry, fieldIterator, result(fieldIterator));
 
 		case Float:
-			return new Value(getFieldFloat(vcfEntry));
+			return getFieldFloat(vcfEntry, fieldIterator, result(fieldIterator));
 
 		case Flag:
-			return new Value(getFieldFlag(vcfEntry));
+			return Value.valueOf(getFieldFlag(vcfEntry, fieldIterator));
 
 		case Character:
 		case String:
-			return new Value(getFieldString(vcfEntry));
+			return result(fieldIterator).set(getFieldString(vcfEntry, fieldIterator));
 
 		default:
 			throw new RuntimeException("Unknown return type '" + returnType + "'");
@@ -81,21 +216,21 @@ public class Field extends Expression {
 	}
 
 	@Override
-	public Value eval(VcfGenotype vcfGenotype) {
-		switch (getReturnType(vcfGenotype)) {
+	public Value eval(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
+		switch (getReturnType(vcfGenotype, fieldIterator)) {
 
 		case Integer:
-			return new Value(getFieldInt(vcfGenotype));
+			return getFieldInt(vcfGenotype, fieldIterator, result(fieldIterator));
 
 		case Float:
-			return new Value(getFieldFloat(vcfGenotype));
+			return getFieldFloat(vcfGenotype, fieldIterator, result(fieldIterator));
 
 		case Flag:
-			return new Value(getFieldString(vcfGenotype) != null);
+			return Value.valueOf(getFieldString(vcfGenotype, fieldIterator) != null);
 
 		case Character:
 		case String:
-			return new Value(getFieldString(vcfGenotype));
+			return result(fieldIterator).set(getFieldString(vcfGenotype, fieldIterator));
 
 		default:
 			throw new RuntimeException("Unknown return type '" + returnType + "'");
@@ -117,67 +252,79 @@ public class Field extends Expression {
 	 *
 	 * Note: 'Int' according to VCF spec., not according to java (that is why it returns a long)
 	 */
-	Boolean getFieldFlag(VcfEntry vcfEntry) {
-		String value = getFieldString(vcfEntry);
+	boolean getFieldFlag(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		String value = getFieldString(vcfEntry, fieldIterator);
 		return value != null && !value.isEmpty();
 	}
 
 	/**
-	 * Get a field (as a Float) from VcfEntry
+	 * Get a field (as a Float) from VcfEntry and set it to 'result' ('null' if not found)
 	 *
-	 * Note: 'Float' according to VCF spec., not according to java (that is why it returns a double)
+	 * Note: 'Float' according to VCF spec., not according to java (that is why it is a double)
 	 */
-	Double getFieldFloat(VcfEntry vcfEntry) {
-		if (name.equals("QUAL")) return vcfEntry.getQuality();
+	Value getFieldFloat(VcfEntry vcfEntry, FieldIterator fieldIterator, Value result) {
+		if (name.equals("QUAL")) return result.set(vcfEntry.getQuality());
 
-		String value = getFieldString(vcfEntry);
-		if (value == null) return (Double) fieldNotFound(vcfEntry);
-		return Gpr.parseDoubleSafe(value);
+		String value = getFieldString(vcfEntry, fieldIterator);
+		if (value == null) {
+			fieldNotFound(vcfEntry);
+			return result.setNull();
+		}
+		return result.set(Gpr.parseDoubleSafe(value));
 	}
 
 	/**
-	 * Get a field (as a Float) from VcfGenotype
+	 * Get a field (as a Float) from VcfGenotype and set it to 'result' ('null' if not found)
 	 *
-	 * Note: 'Float' according to VCF spec., not according to java (that is why it returns a double)
+	 * Note: 'Float' according to VCF spec., not according to java (that is why it is a double)
 	 */
-	Double getFieldFloat(VcfGenotype vcfGenotype) {
-		String value = getFieldString(vcfGenotype);
-		if (value == null) return (Double) gtFieldNotFound(vcfGenotype);
-		return Gpr.parseDoubleSafe(value);
+	Value getFieldFloat(VcfGenotype vcfGenotype, FieldIterator fieldIterator, Value result) {
+		String value = getFieldString(vcfGenotype, fieldIterator);
+		if (value == null) {
+			gtFieldNotFound(vcfGenotype);
+			return result.setNull();
+		}
+		return result.set(Gpr.parseDoubleSafe(value));
 	}
 
 	/**
-	 * Get a field (as an Integer) from VcfEntry
+	 * Get a field (as an Integer) from VcfEntry and set it to 'result' ('null' if not found)
 	 *
-	 * Note: 'Int' according to VCF spec., not according to java (that is why it returns a long)
+	 * Note: 'Int' according to VCF spec., not according to java (that is why it is a long)
 	 */
-	Long getFieldInt(VcfEntry vcfEntry) {
-		if (name.equals("POS")) return vcfEntry.getStart() + 1L;
+	Value getFieldInt(VcfEntry vcfEntry, FieldIterator fieldIterator, Value result) {
+		if (name.equals("POS")) return result.set(vcfEntry.getStart() + 1L);
 
-		if (isSampleName(vcfEntry, name)) return (long) getSampleNum(vcfEntry, name);
+		if (isSampleName(vcfEntry, name)) return result.set((long) getSampleNum(vcfEntry, name));
 
-		String value = getFieldString(vcfEntry);
-		if (value == null) return (Long) fieldNotFound(vcfEntry);
-		return Gpr.parseLongSafe(value);
+		String value = getFieldString(vcfEntry, fieldIterator);
+		if (value == null) {
+			fieldNotFound(vcfEntry);
+			return result.setNull();
+		}
+		return result.set(Gpr.parseLongSafe(value));
 	}
 
 	/**
-	 * Get a field (as an Integer) from VcfEntry
+	 * Get a field (as an Integer) from VcfGenotype and set it to 'result' ('null' if not found)
 	 *
-	 * Note: 'Int' according to VCF spec., not according to java (that is why it returns a long)
+	 * Note: 'Int' according to VCF spec., not according to java (that is why it is a long)
 	 */
-	Long getFieldInt(VcfGenotype vcfGenotype) {
-		if (name.equals("GT")) return (long) vcfGenotype.getGenotypeCode();
+	Value getFieldInt(VcfGenotype vcfGenotype, FieldIterator fieldIterator, Value result) {
+		if (name.equals("GT")) return result.set((long) vcfGenotype.getGenotypeCode());
 
-		String value = getFieldString(vcfGenotype);
-		if (value == null) return (Long) gtFieldNotFound(vcfGenotype);
-		return Gpr.parseLongSafe(value);
+		String value = getFieldString(vcfGenotype, fieldIterator);
+		if (value == null) {
+			gtFieldNotFound(vcfGenotype);
+			return result.setNull();
+		}
+		return result.set(Gpr.parseLongSafe(value));
 	}
 
 	/**
 	 * Get a field (as a String) from VcfEntry
 	 */
-	String getFieldString(VcfEntry vcfEntry) {
+	String getFieldString(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		// Field from first 10 columns
 		// if (name.equals("CHROM")) return vcfEntry.getChromosomeName();
 		if (name.equals("CHROM")) return vcfEntry.getChromosomeNameOri();
@@ -190,10 +337,7 @@ public class Field extends Expression {
 		if (name.equals("QUAL")) return "" + vcfEntry.getQuality();
 
 		// Is there a filed 'name'
-		if (vcfInfo == null) {
-			vcfInfo = vcfEntry.getVcfFileIterator().getVcfHeader().getVcfHeaderInfo(name);
-			if (vcfInfo == null) return (String) fieldHeaderNotFound(vcfEntry);
-		}
+		if (vcfInfo == null && vcfEntry.getVcfFileIterator().getVcfHeader().getVcfHeaderInfo(name) == null) return (String) fieldHeaderNotFound(vcfEntry);
 
 		// Get field value
 		String value = vcfEntry.getInfo(name);
@@ -202,7 +346,7 @@ public class Field extends Expression {
 		return value;
 	}
 
-	public String getFieldString(VcfGenotype vcfGenotype) {
+	public String getFieldString(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
 		// Special fields
 		if (name.equals("GT")) return vcfGenotype.getGenotypeStr();
 
@@ -212,56 +356,42 @@ public class Field extends Expression {
 		return value;
 	}
 
+	/**
+	 * Get an INFO field value (compiled expressions). Missing values invoke 'fieldNotFound'
+	 */
+	String getInfo(VcfEntry vcfEntry) {
+		String value = vcfEntry.getInfo(name);
+		if (value == null) fieldNotFound(vcfEntry);
+		return value;
+	}
+
 	public String getName() {
 		return name;
 	}
 
 	/**
-	 * Calculate return 'type' for this field
+	 * Return type resolved so far (UNKNOWN if not resolved, see 'prepare')
+	 * Note: Fields having multiple values are evaluated as strings (see 'isMultipleValues')
 	 */
-	VcfInfoType getReturnType(VcfEntry vcfEntry) {
-		if (returnType != VcfInfoType.UNKNOWN) return returnType(vcfEntry);
-
-		VcfHeader vcfHeader = vcfEntry.getVcfFileIterator().getVcfHeader();
+	public VcfInfoType getReturnType() {
+		return returnType;
+	}
 
-		// Is there a filed 'name'
-		vcfInfo = vcfHeader.getVcfHeaderInfo(name);
-		if (vcfInfo != null) {
-			returnType = vcfInfo.getVcfInfoType();
-			number = vcfInfo.getNumber();
-			vcfInfoNumber = vcfInfo.getVcfInfoNumber();
-		} else {
-			// Is there a genotype 'name'
-			VcfHeaderFormat vcfFormat = vcfHeader.getVcfHeaderFormat(name);
-			if (vcfFormat != null) {
-				returnType = vcfFormat.getVcfInfoType();
-			} else {
-				// Is this a special field name?
-				if (FieldConstant.isConstantField(name)) returnType = FieldConstantNames.valueOf(name).getType();
-				else if (isSampleName(vcfEntry, name)) returnType = VcfInfoType.Integer;
-				else throw new RuntimeException("INFO field '" + name + "' not found in VCF header");
-			}
+	/**
+	 * Calculate return 'type' for this field
+	 */
+	VcfInfoType getReturnType(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		if (returnType == VcfInfoType.UNKNOWN && !resolveReturnType(vcfEntry.getVcfFileIterator().getVcfHeader(), false)) {
+			throw new RuntimeException("INFO field '" + name + "' not found in VCF header");
 		}
-
-		return returnType(vcfEntry);
+		return returnType(vcfEntry, fieldIterator);
 	}
 
-	public VcfInfoType getReturnType(VcfGenotype vcfGenotype) {
-		if (returnType == VcfInfoType.UNKNOWN) {
-			// Is there a field 'name'
-			VcfHeader vcfHeader = vcfGenotype.getVcfEntry().getVcfFileIterator().getVcfHeader();
-			vcfInfo = vcfHeader.getVcfHeaderFormat(name);
-			if (vcfInfo == null) {
-				// Is this a special field name?
-				if (FieldConstant.isConstantField(name)) returnType = FieldConstantNames.valueOf(name).getType();
-				else if (isSampleName(vcfGenotype.getVcfEntry(), name)) returnType = VcfInfoType.Integer;
-				else throw new RuntimeException("Genotype field '" + name + "' not found in VCF header"); // Error: Not found
-			}
-
-			returnType = vcfInfo.getVcfInfoType();
+	public VcfInfoType getReturnType(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
+		if (returnType == VcfInfoType.UNKNOWN && !resolveReturnType(vcfGenotype.getVcfEntry().getVcfFileIterator().getVcfHeader(), true)) {
+			throw new RuntimeException("Genotype field '" + name + "' not found in VCF header");
 		}
-
-		return returnType(vcfGenotype);
+		return returnType(vcfGenotype, fieldIterator);
 	}
 
 	protected int getSampleNum(VcfEntry vcfEntry, String name) {
@@ -282,6 +412,23 @@ public class Field extends Expression {
 		return Integer.toString(index);
 	}
 
+	/**
+	 * Fixed VCF columns are always compiled, INFO fields only once their types are resolved (see 'prepare')
+	 */
+	@Override
+	public boolean isCompilable() {
+		if (getClass() != Field.class || name == null) return false;
+		return infoField || ReferencedFields.isVcfColumn(name);
+	}
+
+	/**
+	 * Can a field defined by this header have multiple values? (same criteria as 'returnType')
+	 */
+	static boolean hasMultipleValues(VcfHeaderInfo vcfHeaderInfo) {
+		int num = vcfHeaderInfo.getNumber();
+		return num != 0 && num != 1;
+	}
+
 	/**
 	 * Does this field contain many values (e.g. 'Number' in VCF header)
 	 */
@@ -290,6 +437,31 @@ public class Field extends Expression {
 		return val.indexOf(VcfEntry.WITHIN_FIELD_SEP) >= 0;
 	}
 
+	/**
+	 * Can this field have multiple (comma separated) values, e.g. 'Number=A' in the VCF header?
+	 * Note: Sub-fields (e.g. 'AF[0]', 'GEN[0].AD[1]') have a single value
+	 */
+	public boolean isMultipleValues() {
+		return multipleValues && !isSub();
+	}
+
+	/**
+	 * Fields without index (e.g. 'DP') do not iterate, see FieldSub
+	 */
+	@Override
+	public boolean isIterable() {
+		return false;
+	}
+
+	/**
+	 * Note: Missing fields fail if 'exceptionIfNotFound' is set
+	 */
+	@Override
+	public boolean isReorderable() {
+		if (name == null) return false;
+		return ReferencedFields.isVcfColumn(name) || !exceptionIfNotFound;
+	}
+
 	protected boolean isSampleName(VcfEntry vcfEntry, String name) {
 		return vcfEntry.getVcfFileIterator().getVcfHeader().getSampleNum(name) >= 0;
 	}
@@ -309,25 +481,67 @@ public class Field extends Expression {
 		return Gpr.parseIntSafe(text);
 	}
 
-	public VcfInfoType returnType(VcfEntry vcfEntry) {
+	/**
+	 * Field types are resolved before evaluating the expression, so
+	 * that they are never updated while it is being evaluated
+	 */
+	@Override
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		if (vcfHeader != null && returnType == VcfInfoType.UNKNOWN) resolveReturnType(vcfHeader, genotype); // Not found: Fails when evaluated
+		return super.prepare(vcfHeader, genotype, resultIdx);
+	}
+
+	/**
+	 * Resolve return type (and number of values) using the VCF header
+	 * @param genotype : Is this a genotype field (i.e. FORMAT) or an INFO field?
+	 * @return False if the field is not found
+	 */
+	protected boolean resolveReturnType(VcfHeader vcfHeader, boolean genotype) {
+		VcfHeaderInfo vcfHeaderInfo = genotype ? vcfHeader.getVcfHeaderFormat(name) : vcfHeader.getVcfHeaderInfo(name);
+		if (vcfHeaderInfo != null) {
+			// Note: Set 'returnType' last, it is used to check whether the type has been resolved
+			vcfInfo = vcfHeaderInfo;
+			if (!genotype) {
+				number = vcfHeaderInfo.getNumber();
+				vcfInfoNumber = vcfHeaderInfo.getVcfInfoNumber();
+				infoField = vcfHeader.getSampleNum(name) < 0; // Integer fields having a sample's name are sample numbers
+			}
+			multipleValues = hasMultipleValues(vcfHeaderInfo);
+			returnType = vcfHeaderInfo.getVcfInfoType();
+			return true;
+		}
+
+		// Is there a genotype 'name'
+		VcfHeaderFormat vcfFormat = genotype ? null : vcfHeader.getVcfHeaderFormat(name);
+		if (vcfFormat != null) {
+			multipleValues = hasMultipleValues(vcfFormat);
+			returnType = vcfFormat.getVcfInfoType();
+		} else if (FieldConstant.isConstantField(name)) returnType = FieldConstantNames.valueOf(name).getType(); // Is this a special field name?
+		else if (vcfHeader.getSampleNum(name) >= 0) returnType = VcfInfoType.Integer;
+		else return false;
+
+		return true;
+	}
+
+	public VcfInfoType returnType(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		if (returnType == null || returnType == VcfInfoType.String) return VcfInfoType.String;
 		if (number == 0 || number == 1) return returnType;
 
 		// If there can be multiple items, but there is only one, then
 		// it's a 'returnType'. Otherwise it's a String
-		String val = getFieldString(vcfEntry);
+		String val = getFieldString(vcfEntry, fieldIterator);
 		if (isMultiple(val)) return VcfInfoType.String;
 
 		return returnType;
 	}
 
-	public VcfInfoType returnType(VcfGenotype vcfGenotype) {
+	public VcfInfoType returnType(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
 		if (returnType == null || returnType == VcfInfoType.String) return VcfInfoType.String;
 		if (number == 0 || number == 1) return returnType;
 
 		// If there can be multiple items, but there is only one, then
 		// it's a 'returnType'. Otherwise it's a String
-		String val = getFieldString(vcfGenotype);
+		String val = getFieldString(vcfGenotype, fieldIterator);
 		if (isMultiple(val)) return VcfInfoType.String;
 
 		return returnType;
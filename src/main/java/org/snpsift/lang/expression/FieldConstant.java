@@ -52,4 +52,14 @@ public class FieldConstant extends Field {
 		super(name);
 	}
 
+	@Override
+	public int cost() {
+		return 0;
+	}
+
+	@Override
+	public boolean isReorderable() {
+		return true;
+	}
+
 }
@@ -20,13 +20,13 @@ public class FieldConstantFloat extends FieldConstant {
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		return value;
 	}
 
 	@Override
-	public Double getFieldFloat(VcfEntry vcfEntry) {
-		return value.asFloat();
+	public Value getFieldFloat(VcfEntry vcfEntry, FieldIterator fieldIterator, Value result) {
+		return value;
 	}
 
 }
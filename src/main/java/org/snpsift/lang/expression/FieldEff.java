@@ -40,17 +40,25 @@ public class FieldEff extends FieldSub {
 		return (formatVersion.isAnn() ? "ANN" : "EFF");
 	}
 
+	/**
+	 * Effects have to be parsed
+	 */
+	@Override
+	public int cost() {
+		return 50 + super.cost();
+	}
+
 	/**
 	 * Get a field from VcfEntry
 	 */
 	@Override
-	public String getFieldString(VcfEntry vcfEntry) {
+	public String getFieldString(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		// Get all effects
 		List<VcfEffect> effects = vcfEntry.getVcfEffects(formatVersion);
 		if (effects.size() <= 0) return null;
 
 		// Find index value
-		int index = evalIndex(vcfEntry);
+		int index = evalIndex(vcfEntry, fieldIterator);
 
 		// Find field
 		if (index >= effects.size()) return null;
@@ -58,9 +66,9 @@ public class FieldEff extends FieldSub {
 		// Is this field 'iterable'?
 		int idx = index;
 		if (index < 0) {
-			FieldIterator.get().setMax(IteratorType.EFFECT, effects.size() - 1);
-			FieldIterator.get().setType(index);
-			idx = FieldIterator.get().get(IteratorType.EFFECT);
+			fieldIterator.setMax(IteratorType.EFFECT, effects.size() - 1);
+			fieldIterator.setType(index);
+			idx = fieldIterator.get(IteratorType.EFFECT);
 		}
 
 		// Find sub-field
@@ -75,18 +83,11 @@ public class FieldEff extends FieldSub {
 	}
 
 	@Override
-	public VcfInfoType getReturnType(VcfEntry vcfEntry) {
+	public VcfInfoType getReturnType(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		if (name == null) return VcfInfoType.String;
-		if (returnType != VcfInfoType.UNKNOWN) return returnType;
-
-		VcfHeader vcfHeader = vcfEntry.getVcfFileIterator().getVcfHeader();
-
-		// Is there a field 'name'
-		String headerName = annEff() + "." + name;
-		VcfHeaderInfo vcfInfo = vcfHeader.getVcfHeaderInfo(headerName);
-		if (vcfInfo != null) returnType = vcfInfo.getVcfInfoType();
-		else throw new RuntimeException("Sub-field '" + headerName + "' not found in VCF header");
-
+		if (returnType == VcfInfoType.UNKNOWN && !resolveReturnType(vcfEntry.getVcfFileIterator().getVcfHeader(), false)) {
+			throw new RuntimeException("Sub-field '" + annEff() + "." + name + "' not found in VCF header");
+		}
 		return returnType;
 	}
 
@@ -105,6 +106,20 @@ public class FieldEff extends FieldSub {
 		return value;
 	}
 
+	/**
+	 * Sub-field types are defined in the header as 'ANN.name' (or 'EFF.name')
+	 */
+	@Override
+	protected boolean resolveReturnType(VcfHeader vcfHeader, boolean genotype) {
+		if (name == null) return true;
+
+		VcfHeaderInfo vcfInfo = vcfHeader.getVcfHeaderInfo(annEff() + "." + name);
+		if (vcfInfo == null) return false;
+
+		returnType = vcfInfo.getVcfInfoType();
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return annEff() + "[" + indexExpr + "]" + (name != null ? "." + name : "");
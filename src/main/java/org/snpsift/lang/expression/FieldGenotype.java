@@ -16,12 +16,20 @@ public class FieldGenotype extends FieldSub {
 		super(name, indexExpr);
 	}
 
+	/**
+	 * Genotypes have to be parsed
+	 */
+	@Override
+	public int cost() {
+		return 100 + super.cost();
+	}
+
 	/**
 	 * Evaluate expressions and return VcfGenotype
 	 */
-	protected VcfGenotype evalGenotype(VcfEntry vcfEntry) {
+	protected VcfGenotype evalGenotype(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		// Find index value
-		int genotypeIndex = evalIndex(vcfEntry);
+		int genotypeIndex = evalIndex(vcfEntry, fieldIterator);
 
 		// Sanity check
 		int maxIdx = vcfEntry.getVcfGenotypes().size() - 1;
@@ -30,9 +38,9 @@ public class FieldGenotype extends FieldSub {
 		// Is this field 'iterable'?
 		int idx = genotypeIndex;
 		if (genotypeIndex < 0) {
-			FieldIterator.get().setMax(IteratorType.GENOTYPE, vcfEntry.getVcfGenotypes().size() - 1);
-			FieldIterator.get().setType(genotypeIndex);
-			idx = FieldIterator.get().get(IteratorType.GENOTYPE);
+			fieldIterator.setMax(IteratorType.GENOTYPE, vcfEntry.getVcfGenotypes().size() - 1);
+			fieldIterator.setType(genotypeIndex);
+			idx = fieldIterator.get(IteratorType.GENOTYPE);
 		}
 
 		// Genotype field => Look for genotype and then field
@@ -44,9 +52,9 @@ public class FieldGenotype extends FieldSub {
 	 * Get a field from VcfEntry
 	 */
 	@Override
-	public String getFieldString(VcfEntry vcfEntry) {
+	public String getFieldString(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		// Genotype field => Look for genotype and then field
-		VcfGenotype vcfGenotype = evalGenotype(vcfEntry);
+		VcfGenotype vcfGenotype = evalGenotype(vcfEntry, fieldIterator);
 
 		// Find value
 		String value = getValue(vcfGenotype);
@@ -61,7 +69,7 @@ public class FieldGenotype extends FieldSub {
 	 * Get a field (as a Float) from VcfEntry
 	 */
 	@Override
-	public String getFieldString(VcfGenotype vcfGenotype) {
+	public String getFieldString(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
 		// Find value
 		String value = getValue(vcfGenotype);
 
@@ -2,6 +2,7 @@ package org.snpsift.lang.expression;
 
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.expression.FieldIterator.IteratorType;
 
 /**
@@ -23,22 +24,22 @@ public class FieldGenotypeSub extends FieldGenotype {
 	 * Get a field from VcfEntry
 	 */
 	@Override
-	public String getFieldString(VcfEntry vcfEntry) {
-		VcfGenotype vcfGenotype = evalGenotype(vcfEntry);
+	public String getFieldString(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		VcfGenotype vcfGenotype = evalGenotype(vcfEntry, fieldIterator);
 		String value = vcfGenotype.get(name);
 		if (value == null) return (String) fieldNotFound(vcfEntry);
 
 		String sub[] = value.split(",");
 
 		// Find second index value
-		int index = evalIndex(vcfGenotype, indexExpr2);
+		int index = evalIndex(vcfGenotype, indexExpr2, fieldIterator);
 
 		// Is this field 'iterable'?
 		int idx = index;
 		if (index < 0) {
-			FieldIterator.get().setMax(IteratorType.GENOTYPE_VAR, sub.length - 1);
-			FieldIterator.get().setType(index);
-			idx = FieldIterator.get().get(IteratorType.GENOTYPE_VAR);
+			fieldIterator.setMax(IteratorType.GENOTYPE_VAR, sub.length - 1);
+			fieldIterator.setType(index);
+			idx = fieldIterator.get(IteratorType.GENOTYPE_VAR);
 		}
 
 		if (sub.length <= idx) return "";
@@ -49,31 +50,42 @@ public class FieldGenotypeSub extends FieldGenotype {
 	 * Get a field from VcfGenotype
 	 */
 	@Override
-	public String getFieldString(VcfGenotype vcfGenotype) {
-		String value = super.getFieldString(vcfGenotype);
+	public String getFieldString(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
+		String value = super.getFieldString(vcfGenotype, fieldIterator);
 		if (value == null) return (String) gtFieldNotFound(vcfGenotype);
 		String sub[] = value.split(",");
 
 		// Find second index value
-		int index = evalIndex(vcfGenotype, indexExpr2);
+		int index = evalIndex(vcfGenotype, indexExpr2, fieldIterator);
 
 		// Is this field 'iterable'?
 		int idx = index;
 		if (index < 0) {
-			FieldIterator.get().setMax(IteratorType.GENOTYPE_VAR, sub.length - 1);
-			FieldIterator.get().setType(index);
-			idx = FieldIterator.get().get(IteratorType.GENOTYPE_VAR);
+			fieldIterator.setMax(IteratorType.GENOTYPE_VAR, sub.length - 1);
+			fieldIterator.setType(index);
+			idx = fieldIterator.get(IteratorType.GENOTYPE_VAR);
 		}
 
 		if (sub.length <= idx) return "";
 		return sub[idx];
 	}
 
+	@Override
+	public boolean isIterable() {
+		return super.isIterable() || isIterableIndex(indexExpr2);
+	}
+
 	@Override
 	protected boolean isSub() {
 		return true;
 	}
 
+	@Override
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		resultIdx = super.prepare(vcfHeader, genotype, resultIdx);
+		return indexExpr2.prepare(vcfHeader, genotype, resultIdx);
+	}
+
 	@Override
 	public String toString() {
 		return "GEN[" + indexExpr + "]." + name + "[" + indexExpr2 + "]";
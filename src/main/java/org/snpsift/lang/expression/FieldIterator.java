@@ -1,9 +1,18 @@
 package org.snpsift.lang.expression;
 
+import java.util.Arrays;
+
+import org.snpsift.lang.Value;
+
 /**
  * Iterates on fields / sub-fields
- * It's a singleton
- * 
+ *
+ * Note: This is the evaluation state of an expression, so a new FieldIterator
+ * should be used for each evaluation (i.e. it is not shared between threads).
+ * It also holds the (mutable) values used to store each node's result (see
+ * 'Expression.prepare'), so a thread can re-use the same
+ * FieldIterator for every entry
+ *
  * @author pcingola
  */
 public class FieldIterator {
@@ -12,8 +21,6 @@ public class FieldIterator {
 		VAR, EFFECT, GENOTYPE, GENOTYPE_VAR, LOF, NMD
 	}
 
-	private static final FieldIterator fieldIterator = new FieldIterator();
-
 	int type = 0;
 	SimpleIterator var = new SimpleIterator();
 	SimpleIterator gentype = new SimpleIterator();
@@ -21,10 +28,7 @@ public class FieldIterator {
 	SimpleIterator gentypeVar = new SimpleIterator();
 	SimpleIterator lof = new SimpleIterator();
 	SimpleIterator nmd = new SimpleIterator();
-
-	public static FieldIterator get() {
-		return fieldIterator;
-	}
+	Value results[] = new Value[0]; // Result values, by node index (see 'Expression.result')
 
 	/**
 	 * Set 'max' parameter for an iterator
@@ -133,6 +137,17 @@ public class FieldIterator {
 		var.reset();
 	}
 
+	/**
+	 * Mutable value holding the result for node 'resultIdx' (created on first use)
+	 */
+	public Value result(int resultIdx) {
+		if (resultIdx >= results.length) results = Arrays.copyOf(results, resultIdx + 1);
+
+		Value result = results[resultIdx];
+		if (result == null) results[resultIdx] = result = new Value();
+		return result;
+	}
+
 	/**
 	 * Set 'max' parameter for an iterator
 	 * @param starType
@@ -25,17 +25,22 @@ public class FieldLof extends FieldSub {
 		init();
 	}
 
+	@Override
+	public int cost() {
+		return 20 + super.cost();
+	}
+
 	/**
 	 * Get a field from VcfEntry
 	 */
 	@Override
-	public String getFieldString(VcfEntry vcfEntry) {
+	public String getFieldString(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		// Genotype field => Look for genotype and then field
 		String infoStr = vcfEntry.getInfo(infoFieldName);
 		if (infoStr == null) return (String) fieldNotFound(vcfEntry);
 
 		// Find index value
-		int index = evalIndex(vcfEntry);
+		int index = evalIndex(vcfEntry, fieldIterator);
 
 		// Find field
 		String lofEntries[] = infoStr.split(",");
@@ -44,9 +49,9 @@ public class FieldLof extends FieldSub {
 		// Is this field 'iterable'?
 		int idx = index;
 		if (index < 0) {
-			FieldIterator.get().setMax(IteratorType.LOF, lofEntries.length - 1);
-			FieldIterator.get().setType(index);
-			idx = FieldIterator.get().get(IteratorType.LOF);
+			fieldIterator.setMax(IteratorType.LOF, lofEntries.length - 1);
+			fieldIterator.setType(index);
+			idx = fieldIterator.get(IteratorType.LOF);
 		}
 
 		// Find sub-field
@@ -60,18 +65,11 @@ public class FieldLof extends FieldSub {
 	}
 
 	@Override
-	public VcfInfoType getReturnType(VcfEntry vcfEntry) {
+	public VcfInfoType getReturnType(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		if (name == null) return VcfInfoType.String;
-		if (returnType != VcfInfoType.UNKNOWN) return returnType;
-
-		VcfHeader vcfHeader = vcfEntry.getVcfFileIterator().getVcfHeader();
-
-		// Is there a field 'name'
-		String headerName = infoFieldName + "." + name;
-		VcfHeaderInfo vcfInfo = vcfHeader.getVcfHeaderInfo(headerName);
-		if (vcfInfo != null) returnType = vcfInfo.getVcfInfoType();
-		else throw new RuntimeException("Sub-field '" + headerName + "' not found in VCF header");
-
+		if (returnType == VcfInfoType.UNKNOWN && !resolveReturnType(vcfEntry.getVcfFileIterator().getVcfHeader(), false)) {
+			throw new RuntimeException("Sub-field '" + infoFieldName + "." + name + "' not found in VCF header");
+		}
 		return returnType;
 	}
 
@@ -100,6 +98,20 @@ public class FieldLof extends FieldSub {
 		}
 	}
 
+	/**
+	 * Sub-field types are defined in the header as 'LOF.name' (or 'NMD.name')
+	 */
+	@Override
+	protected boolean resolveReturnType(VcfHeader vcfHeader, boolean genotype) {
+		if (name == null) return true;
+
+		VcfHeaderInfo vcfInfo = vcfHeader.getVcfHeaderInfo(infoFieldName + "." + name);
+		if (vcfInfo == null) return false;
+
+		returnType = vcfInfo.getVcfInfoType();
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return infoFieldName + "[" + indexExpr + "]" + (name != null ? "." + name : "");
@@ -2,6 +2,7 @@ package org.snpsift.lang.expression;
 
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.Value;
 import org.snpsift.lang.expression.FieldIterator.IteratorType;
 
@@ -20,19 +21,27 @@ public class FieldSub extends Field {
 		this.indexExpr = indexExpr;
 	}
 
+	/**
+	 * Sub-fields have to be split (and may iterate, e.g. 'AF[*]')
+	 */
+	@Override
+	public int cost() {
+		return 10 + indexExpr.cost();
+	}
+
 	/**
 	 * Evaluate index expression
 	 */
-	protected int evalIndex(VcfEntry vcfEntry) {
-		return evalIndex(vcfEntry, indexExpr);
+	protected int evalIndex(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		return evalIndex(vcfEntry, indexExpr, fieldIterator);
 	}
 
 	/**
 	 * Evaluate index expression (VCF entry)
 	 */
-	protected int evalIndex(VcfEntry vcfEntry, Expression idxExpr) {
+	protected int evalIndex(VcfEntry vcfEntry, Expression idxExpr, FieldIterator fieldIterator) {
 		// Find index value
-		Value idxVal = idxExpr.eval(vcfEntry);
+		Value idxVal = idxExpr.eval(vcfEntry, fieldIterator);
 		int index = (int) (idxVal.isString() ? parseIndexField(idxVal.asString()) : idxVal.asInt());
 		return index;
 	}
@@ -40,16 +49,16 @@ public class FieldSub extends Field {
 	/**
 	 * Evaluate index expression (VCF genotype)
 	 */
-	protected int evalIndex(VcfGenotype vcfGenotype) {
-		return evalIndex(vcfGenotype, indexExpr);
+	protected int evalIndex(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
+		return evalIndex(vcfGenotype, indexExpr, fieldIterator);
 	}
 
 	/**
 	 * Evaluate index expression (VCF genotype)
 	 */
-	protected int evalIndex(VcfGenotype vcfGenotype, Expression idxExpr) {
+	protected int evalIndex(VcfGenotype vcfGenotype, Expression idxExpr, FieldIterator fieldIterator) {
 		// Find index value
-		Value idxVal = idxExpr.eval(vcfGenotype);
+		Value idxVal = idxExpr.eval(vcfGenotype, fieldIterator);
 		int index = (int) (idxVal.isString() ? parseIndexField(idxVal.asString()) : idxVal.asInt());
 		return index;
 	}
@@ -58,22 +67,22 @@ public class FieldSub extends Field {
 	 * Get a field from VcfEntry
 	 */
 	@Override
-	public String getFieldString(VcfEntry vcfEntry) {
-		String value = super.getFieldString(vcfEntry);
+	public String getFieldString(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		String value = super.getFieldString(vcfEntry, fieldIterator);
 
 		// Can this be split?
 		if (value == null) return (String) fieldNotFound(vcfEntry);
 		String sub[] = value.split(",");
 
 		// Find index value
-		int index = evalIndex(vcfEntry);
+		int index = evalIndex(vcfEntry, fieldIterator);
 
 		// Is this field 'iterable'?
 		int idx = index;
 		if (index < 0) {
-			FieldIterator.get().setMax(IteratorType.VAR, sub.length - 1);
-			FieldIterator.get().setType(index);
-			idx = FieldIterator.get().get(IteratorType.VAR);
+			fieldIterator.setMax(IteratorType.VAR, sub.length - 1);
+			fieldIterator.setType(index);
+			idx = fieldIterator.get(IteratorType.VAR);
 		}
 
 		if (sub.length <= idx) return "";
@@ -84,34 +93,61 @@ public class FieldSub extends Field {
 	 * Get a field from VcfEntry
 	 */
 	@Override
-	public String getFieldString(VcfGenotype vcfGenotype) {
-		String value = super.getFieldString(vcfGenotype);
+	public String getFieldString(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
+		String value = super.getFieldString(vcfGenotype, fieldIterator);
 
 		// Can this be split?
 		if (value == null) return (String) gtFieldNotFound(vcfGenotype);
 		String sub[] = value.split(",");
 
 		// Find index value
-		Value idxVal = indexExpr.eval(vcfGenotype);
+		Value idxVal = indexExpr.eval(vcfGenotype, fieldIterator);
 		int index = (int) (idxVal.isString() ? parseIndexField(idxVal.asString()) : idxVal.asInt());
 
 		// Is this field 'iterable'?
 		int idx = index;
 		if (index < 0) {
-			FieldIterator.get().setMax(IteratorType.GENOTYPE_VAR, sub.length - 1);
-			FieldIterator.get().setType(index);
-			idx = FieldIterator.get().get(IteratorType.VAR);
+			fieldIterator.setMax(IteratorType.GENOTYPE_VAR, sub.length - 1);
+			fieldIterator.setType(index);
+			idx = fieldIterator.get(IteratorType.VAR);
 		}
 
 		if (sub.length <= idx) return "";
 		return sub[idx];
 	}
 
+	@Override
+	public boolean isIterable() {
+		return isIterableIndex(indexExpr);
+	}
+
+	/**
+	 * Can index expression 'idxExpr' iterate? (e.g. '*', 'ANY', '?' or 'ALL').
+	 * Only literal indexes can be known before evaluating them
+	 */
+	protected boolean isIterableIndex(Expression idxExpr) {
+		if (!(idxExpr instanceof Literal)) return true;
+		Value idxVal = ((Literal) idxExpr).value;
+		long index = idxVal.isString() ? parseIndexField(idxVal.asString()) : idxVal.asInt();
+		return index < 0;
+	}
+
+	@Override
+	public boolean isReorderable() {
+		return false;
+	}
+
 	@Override
 	protected boolean isSub() {
 		return true;
 	}
 
+	@Override
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		resultIdx = super.prepare(vcfHeader, genotype, resultIdx);
+		return indexExpr.prepare(vcfHeader, genotype, resultIdx);
+	}
+
 	@Override
 	public String toString() {
 		return name + "[" + indexExpr + "]";
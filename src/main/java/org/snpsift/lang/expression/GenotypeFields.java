@@ -0,0 +1,131 @@
+package org.snpsift.lang.expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.snpsift.lang.Value;
+
+/**
+ * Genotype fields for one sample, split directly from raw genotype columns
+ * (i.e. no VcfGenotype objects are created).
+ *
+ * Fields used by compiled genotype expressions are resolved into 'slots' when
+ * the expression is compiled (see 'Expression.compileGenotype'). Their positions
+ * in the FORMAT column are resolved only when FORMAT changes (usually once per
+ * file), so values are found by index instead of by name (as in 'VcfGenotype.get').
+ * Only values for fields having a slot are created.
+ *
+ * Note: This class is not thread safe, each thread must use its own copy (see 'copy').
+ * It also holds the values used to store each node's result, as FieldIterator does
+ *
+ * @author pcingola
+ */
+public class GenotypeFields {
+
+	List<String> names; // Field names, one per slot (shared by all copies)
+	String format; // Current FORMAT column
+	String formatNames[]; // Field names in current FORMAT
+	int slotByFormatIdx[]; // Slot for each FORMAT field (-1 if not used)
+	String values[]; // Current sample's values, by slot (null if not available)
+	Value results[] = new Value[0]; // Result values, by node index (see 'Expression.result')
+
+	public GenotypeFields() {
+		names = new ArrayList<>();
+	}
+
+	/**
+	 * A copy using the same slots (e.g. for another thread)
+	 */
+	public GenotypeFields copy() {
+		GenotypeFields genotypeFields = new GenotypeFields();
+		genotypeFields.names = names;
+		return genotypeFields;
+	}
+
+	/**
+	 * Index of field 'name' in current FORMAT (-1 if not found)
+	 */
+	public int formatIndex(String name) {
+		for (int i = formatNames.length - 1; i >= 0; i--)
+			if (formatNames[i].equals(name)) return i;
+		return -1;
+	}
+
+	/**
+	 * Value for field in 'slot' (null if not available)
+	 */
+	public String get(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * Mutable value holding the result for node 'resultIdx' (created on first use)
+	 */
+	public Value result(int resultIdx) {
+		if (resultIdx >= results.length) results = Arrays.copyOf(results, resultIdx + 1);
+
+		Value result = results[resultIdx];
+		if (result == null) results[resultIdx] = result = new Value();
+		return result;
+	}
+
+	/**
+	 * Set FORMAT column, i.e. 'str[0]' to 'str[end-1]'
+	 */
+	public void setFormat(String str, int end) {
+		if (format != null && format.length() == end && str.startsWith(format)) return; // Same FORMAT as before
+
+		format = str.substring(0, end);
+		formatNames = format.split(":");
+		slotByFormatIdx = new int[formatNames.length];
+		for (int i = 0; i < formatNames.length; i++)
+			slotByFormatIdx[i] = names.indexOf(formatNames[i]);
+
+		values = new String[names.size()];
+	}
+
+	/**
+	 * Set current sample, i.e. 'str[start]' to 'str[end-1]'
+	 *
+	 * Note: Values are split the same way as VcfGenotype (i.e. 'String.split'),
+	 * so trailing empty values are not available
+	 */
+	public void setSample(String str, int start, int end) {
+		Arrays.fill(values, null);
+
+		// Trailing empty values are removed, unless there is only one value
+		int sep = str.indexOf(':', start);
+		boolean oneValue = (sep < 0 || sep >= end);
+		int trimEnd = end;
+		while (trimEnd > start && str.charAt(trimEnd - 1) == ':')
+			trimEnd--;
+
+		int idx = 0;
+		for (int i = start; i <= end && idx < slotByFormatIdx.length; idx++) {
+			int j = str.indexOf(':', i);
+			if (j < 0 || j > end) j = end;
+
+			int slot = slotByFormatIdx[idx];
+			if (slot >= 0 && (i < trimEnd || oneValue)) values[slot] = str.substring(i, j);
+
+			i = j + 1;
+		}
+	}
+
+	/**
+	 * Slot for field 'name' (a new slot is created if needed)
+	 */
+	public int slot(String name) {
+		int slot = names.indexOf(name);
+		if (slot >= 0) return slot;
+		names.add(name);
+		return names.size() - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "Genotype fields " + names + ", FORMAT: " + format;
+	}
+
+}
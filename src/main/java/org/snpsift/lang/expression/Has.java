@@ -16,7 +16,7 @@ public class Has extends ExpressionBinary {
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
+	protected Value evalOp(Value lval, Value rval, Value result) {
 		String lstr = lval.asString();
 		String rstr = rval.asString();
 
@@ -29,4 +29,14 @@ public class Has extends ExpressionBinary {
 
 		return Value.FALSE;
 	}
+
+	@Override
+	public int cost() {
+		return 10 + super.cost(); // Split string
+	}
+
+	@Override
+	public boolean isReorderable() {
+		return isReorderableOperands();
+	}
 }
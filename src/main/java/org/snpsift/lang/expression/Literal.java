@@ -2,6 +2,7 @@ package org.snpsift.lang.expression;
 
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.Value;
 
 public class Literal extends Expression {
@@ -25,15 +26,47 @@ public class Literal extends Expression {
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
+	public CompiledExpression compile() {
+		Value value = this.value;
+		return (vcfEntry, fieldIterator) -> value;
+	}
+
+	@Override
+	public CompiledGenotypeExpression compileGenotype(VcfHeader vcfHeader, GenotypeFields genotypeFields) {
+		Value value = this.value;
+		return gf -> value;
+	}
+
+	@Override
+	public int cost() {
+		return 0;
+	}
+
+	@Override
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		return value;
 	}
 
 	@Override
-	public Value eval(VcfGenotype vcfGenotype) {
+	public Value eval(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
 		return value;
 	}
 
+	@Override
+	public boolean isCompilable() {
+		return true;
+	}
+
+	@Override
+	public boolean isIterable() {
+		return false;
+	}
+
+	@Override
+	public boolean isReorderable() {
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return value.toString();
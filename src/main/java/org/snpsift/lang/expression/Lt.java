@@ -14,12 +14,17 @@ public class Lt extends ExpressionBinary {
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
+	protected Value evalOp(Value lval, Value rval, Value result) {
 		// Cannot be compared? Return false
 		if (!lval.canCompare(rval)) return Value.FALSE;
 
 		boolean retVal = (lval.compareTo(rval) < 0);
-		return new Value(negated ? !retVal : retVal);
+		return Value.valueOf(negated ? !retVal : retVal);
+	}
+
+	@Override
+	public boolean isReorderable() {
+		return isReorderableOperands();
 	}
 
 }
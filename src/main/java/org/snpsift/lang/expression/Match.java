@@ -4,20 +4,46 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.snpsift.lang.Value;
+import org.snpsift.util.LruCache;
 
 /**
  * Match a regular expression (string)
  *
+ * Regular expressions are compiled only once:
+ * 		- If the right hand side is a literal, it is compiled when the expression is created (see 'compilePattern()')
+ * 		- Otherwise, compiled patterns are kept in a (small) LRU cache
+ *
  * @author pcingola
  */
 public class Match extends ExpressionBinary {
 
+	public static final int PATTERN_CACHE_SIZE = 100;
+
+	Pattern pattern; // Pre-compiled pattern (right hand side is a literal)
+	LruCache<String, Pattern> patternCache; // Compiled patterns (right hand side is not a literal)
+
 	public Match(Expression left, Expression right) {
 		super(left, right, "~=");
+		setPatternCacheSize(PATTERN_CACHE_SIZE);
+	}
+
+	/**
+	 * Compile regular expression if the right hand side is a literal
+	 */
+	public void compilePattern() {
+		if (!(right instanceof Literal)) return;
+
+		Value rval = ((Literal) right).value;
+		if (!rval.isNull()) pattern = Pattern.compile(rval.asString());
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
+	public int cost() {
+		return 20 + super.cost(); // Regular expression
+	}
+
+	@Override
+	protected Value evalOp(Value lval, Value rval, Value result) {
 		if (lval.isNull() || rval.isNull()) return Value.FALSE;
 
 		String value = lval.asString();
@@ -28,14 +54,44 @@ public class Match extends ExpressionBinary {
 			// Empty doesn't match anything
 			retVal = false;
 		} else {
-			String regexp = rval.asString();
-
-			Pattern pattern = Pattern.compile(regexp);
-			Matcher matcher = pattern.matcher(value);
+			Matcher matcher = pattern(rval.asString()).matcher(value);
 			retVal = matcher.find();
 		}
 
-		return new Value(negated ? !retVal : retVal);
+		return Value.valueOf(negated ? !retVal : retVal);
+	}
+
+	/**
+	 * Note: Non-literal regular expressions may fail to compile
+	 */
+	@Override
+	public boolean isReorderable() {
+		return pattern != null && isReorderableOperands();
+	}
+
+	/**
+	 * Get a compiled pattern for 'regexp'
+	 */
+	protected Pattern pattern(String regexp) {
+		if (pattern != null) return pattern;
+		if (patternCache == null) return Pattern.compile(regexp);
+
+		// Note: Expressions can be evaluated from several threads
+		synchronized (patternCache) {
+			Pattern p = patternCache.get(regexp);
+			if (p == null) {
+				p = Pattern.compile(regexp);
+				patternCache.put(regexp, p);
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Maximum number of compiled patterns to cache (zero or less means no cache)
+	 */
+	public void setPatternCacheSize(int patternCacheSize) {
+		patternCache = patternCacheSize > 0 ? new LruCache<String, Pattern>(patternCacheSize) : null;
 	}
 
 }
@@ -18,15 +18,15 @@ public class Minus extends ExpressionBinary {
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
+	protected Value evalOp(Value lval, Value rval, Value result) {
 		if (rval != null) {
-			if (lval.isFloat() || rval.isFloat()) return new Value(lval.asFloat() - rval.asFloat());
-			if (lval.isInt() && rval.isInt()) return new Value(lval.asInt() - rval.asInt());
+			if (lval.isFloat() || rval.isFloat()) return result.set(lval.asFloat() - rval.asFloat());
+			if (lval.isInt() && rval.isInt()) return result.set(lval.asInt() - rval.asInt());
 			throw new RuntimeException("Cannot peroform '-' between " + lval.type() + " and " + rval.type());
 		}
 
-		if (lval.isFloat()) return new Value(-lval.asFloat());
-		if (lval.isInt()) return new Value(-lval.asInt());
+		if (lval.isFloat()) return result.set(-lval.asFloat());
+		if (lval.isInt()) return result.set(-lval.asInt());
 		throw new RuntimeException("Cannot peroform '-' between on " + lval.type());
 	}
 
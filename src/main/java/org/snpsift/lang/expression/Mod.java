@@ -14,8 +14,8 @@ public class Mod extends ExpressionBinary {
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
-		if (lval.isInt() && rval.isInt()) return new Value(lval.asInt() % rval.asInt());
+	protected Value evalOp(Value lval, Value rval, Value result) {
+		if (lval.isInt() && rval.isInt()) return result.set(lval.asInt() % rval.asInt());
 		throw new RuntimeException("Cannot peroform '%' between " + lval.type() + " and " + rval.type());
 	}
 
@@ -15,7 +15,7 @@ public class Not extends ExpressionUnary {
 
 	@Override
 	public Value evalOp(Value val) {
-		return new Value(!val.asBool());
+		return Value.valueOf(!val.asBool());
 	}
 
 }
@@ -18,11 +18,11 @@ public class Plus extends ExpressionBinary {
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
+	protected Value evalOp(Value lval, Value rval, Value result) {
 		if (rval != null) {
-			if (lval.isFloat() || rval.isFloat()) return new Value(lval.asFloat() + rval.asFloat());
-			if (lval.isInt() && rval.isInt()) return new Value(lval.asInt() + rval.asInt());
-			return new Value(lval.asString() + rval.asString());
+			if (lval.isFloat() || rval.isFloat()) return result.set(lval.asFloat() + rval.asFloat());
+			if (lval.isInt() && rval.isInt()) return result.set(lval.asInt() + rval.asInt());
+			return result.set(lval.asString() + rval.asString());
 		}
 
 		// Unary plus
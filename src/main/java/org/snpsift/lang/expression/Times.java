@@ -14,9 +14,9 @@ public class Times extends ExpressionBinary {
 	}
 
 	@Override
-	protected Value evalOp(Value lval, Value rval) {
-		if (lval.isFloat() || rval.isFloat()) return new Value(lval.asFloat() * rval.asFloat());
-		if (lval.isInt() && rval.isInt()) return new Value(lval.asInt() * rval.asInt());
+	protected Value evalOp(Value lval, Value rval, Value result) {
+		if (lval.isFloat() || rval.isFloat()) return result.set(lval.asFloat() * rval.asFloat());
+		if (lval.isInt() && rval.isInt()) return result.set(lval.asInt() * rval.asInt());
 		throw new RuntimeException("Cannot peroform '*' between " + lval.type() + " and " + rval.type());
 	}
 
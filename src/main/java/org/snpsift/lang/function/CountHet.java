@@ -3,6 +3,8 @@ package org.snpsift.lang.function;
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
 import org.snpsift.lang.Value;
+import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.util.PackedGenotypes;
 
 /**
  * Count number of heterozygous samples
@@ -16,17 +18,20 @@ public class CountHet extends Function {
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		PackedGenotypes packed = packedGenotypes(vcfEntry);
+		if (packed != null) return result(fieldIterator).set((long) packed.countHet());
+
 		long count = 0;
 		for (VcfGenotype gen : vcfEntry)
 			if (gen.isHeterozygous()) count++;
 
-		return new Value(count);
+		return result(fieldIterator).set(count);
 	}
 
 	@Override
-	public Value eval(VcfGenotype vcfGenotype) {
-		return new Value(vcfGenotype.isHeterozygous() ? 1L : 0L);
+	public Value eval(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
+		return result(fieldIterator).set(vcfGenotype.isHeterozygous() ? 1L : 0L);
 	}
 
 }
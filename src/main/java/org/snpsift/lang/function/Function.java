@@ -1,6 +1,9 @@
 package org.snpsift.lang.function;
 
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.fileIterator.VcfEntryNoGt;
 import org.snpsift.lang.expression.Expression;
+import org.snpsift.util.PackedGenotypes;
 
 /**
  * A function that returns an expression (i.e. a value with a type)
@@ -15,6 +18,29 @@ public abstract class Function extends Expression {
 		this.functionName = functionName;
 	}
 
+	/**
+	 * Functions on VCF entries iterate over all samples (e.g. 'countHet()')
+	 */
+	@Override
+	public int cost() {
+		return 100;
+	}
+
+	/**
+	 * Functions evaluate all samples at once, they do not iterate
+	 */
+	@Override
+	public boolean isIterable() {
+		return false;
+	}
+
+	/**
+	 * Packed genotype calls, if available (i.e. genotypes have not been parsed), null otherwise
+	 */
+	protected PackedGenotypes packedGenotypes(VcfEntry vcfEntry) {
+		return vcfEntry instanceof VcfEntryNoGt ? ((VcfEntryNoGt) vcfEntry).getPackedGenotypes() : null;
+	}
+
 	@Override
 	public String toString() {
 		return functionName + "()";
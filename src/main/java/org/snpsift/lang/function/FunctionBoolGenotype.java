@@ -2,8 +2,10 @@ package org.snpsift.lang.function;
 
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.Value;
 import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.FieldIterator;
 
 /**
  * A function that returns a bool type (i.e. true or false).
@@ -21,16 +23,38 @@ public abstract class FunctionBoolGenotype extends Function {
 		this.exprIdx = exprIdx;
 	}
 
+	@Override
+	public int cost() {
+		return 20 + exprIdx.cost();
+	}
+
 	/**
 	 * Evaluate index expression and obtein genotype
 	 */
-	protected VcfGenotype evalGenotype(VcfEntry vcfEntry) {
-		Value val = exprIdx.eval(vcfEntry);
-		int idx = (int) val.asInt();
-		VcfGenotype gen = vcfEntry.getVcfGenotype(idx);
+	protected VcfGenotype evalGenotype(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		VcfGenotype gen = vcfEntry.getVcfGenotype(evalGenotypeIdx(vcfEntry, fieldIterator));
 		return gen;
 	}
 
+	/**
+	 * Evaluate index expression
+	 */
+	protected int evalGenotypeIdx(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		Value val = exprIdx.eval(vcfEntry, fieldIterator);
+		return (int) val.asInt();
+	}
+
+	@Override
+	public boolean isIterable() {
+		return exprIdx.isIterable();
+	}
+
+	@Override
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		resultIdx = super.prepare(vcfHeader, genotype, resultIdx);
+		return exprIdx.prepare(vcfHeader, genotype, resultIdx);
+	}
+
 	@Override
 	public String toString() {
 		return operator + "( GEN[" + exprIdx + "] )";
@@ -0,0 +1,42 @@
+package org.snpsift.lang.function;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.Has;
+
+/**
+ * Does an expression have any of the values in a set?
+ * E.g. 'hasAny(EFF, 0)' is true if any gene name (or any other value) in the 'EFF' field is in SET[0]
+ *
+ * The value is split the same way as in the 'has' operator (see Has.SPLIT_REGEX), but
+ * it is scanned only once, looking up each token in the set index (no substrings are created)
+ *
+ * @author pcingola
+ */
+public class HasAny extends In {
+
+	public static final String SEPARATORS = "&+|,;:()[]"; // Same characters as Has.SPLIT_REGEX
+
+	public HasAny(ArrayList<HashSet<String>> sets, Expression expression, Expression setIdxExpr) {
+		super("hasAny", sets, expression, setIdxExpr);
+	}
+
+	@Override
+	protected boolean contains(int setIdx, String val) {
+		if (setIdx >= 0 && setIdx < setIndexes.length) return setIndexes[setIdx].containsAnyToken(val, SEPARATORS);
+
+		// Set added after this expression was created (or index out of bounds)
+		HashSet<String> set = sets.get(setIdx);
+		for (String v : val.split(Has.SPLIT_REGEX))
+			if (set.contains(v)) return true;
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return operator + "( " + expression + ", " + setIdxExpr + " )";
+	}
+
+}
@@ -2,54 +2,98 @@ package org.snpsift.lang.function;
 
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Set;
 
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpsift.lang.Value;
 import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.util.StringSetIndex;
 
 /**
  * Is an expression in a set?
  *
+ * Sets are looked up using an index (interned, pre-hashed keys in an open
+ * addressing table), created once for all sets (see StringSetIndex)
+ *
  * @author pablocingolani
  */
 public class In extends Function {
 
 	ArrayList<HashSet<String>> sets;
+	StringSetIndex setIndexes[];
 	Expression expression;
 	Expression setIdxExpr;
 
 	public In(ArrayList<HashSet<String>> sets, Expression expression, Expression setIdxExpr) {
-		super("in");
+		this("in", sets, expression, setIdxExpr);
+	}
+
+	protected In(String operator, ArrayList<HashSet<String>> sets, Expression expression, Expression setIdxExpr) {
+		super(operator);
 		this.sets = sets;
 		this.expression = expression;
 		this.setIdxExpr = setIdxExpr;
+
+		// Index all sets (sets are loaded before parsing expressions)
+		setIndexes = new StringSetIndex[sets.size()];
+		for (int i = 0; i < setIndexes.length; i++)
+			setIndexes[i] = new StringSetIndex(sets.get(i));
+	}
+
+	/**
+	 * Is 'val' in the set?
+	 */
+	protected boolean contains(int setIdx, String val) {
+		if (setIdx >= 0 && setIdx < setIndexes.length) return setIndexes[setIdx].contains(val);
+		return sets.get(setIdx).contains(val); // Set added after this expression was created (or index out of bounds)
+	}
+
+	@Override
+	public int cost() {
+		return 1 + expression.cost() + setIdxExpr.cost();
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
 		// Evaluate expression
-		String val = expression.eval(vcfEntry).asString();
+		String val = expression.eval(vcfEntry, fieldIterator).asString();
 
 		// Get set
-		Value idx = setIdxExpr.eval(vcfEntry);
-		Set<String> set = sets.get((int) idx.asInt());
+		Value idx = setIdxExpr.eval(vcfEntry, fieldIterator);
 
 		// Is 'expression' in set?
-		return set.contains(val) ? Value.TRUE : Value.FALSE;
+		return contains((int) idx.asInt(), val) ? Value.TRUE : Value.FALSE;
 	}
 
 	@Override
-	public Value eval(VcfGenotype gt) {
-		String val = expression.eval(gt).asString();
+	public Value eval(VcfGenotype gt, FieldIterator fieldIterator) {
+		String val = expression.eval(gt, fieldIterator).asString();
 
 		// Get set
-		Value idx = setIdxExpr.eval(gt);
-		Set<String> set = sets.get((int) idx.asInt());
+		Value idx = setIdxExpr.eval(gt, fieldIterator);
 
 		// Is 'expression' in set?
-		return set.contains(val) ? Value.TRUE : Value.FALSE;
+		return contains((int) idx.asInt(), val) ? Value.TRUE : Value.FALSE;
+	}
+
+	@Override
+	public boolean isIterable() {
+		return expression.isIterable() || setIdxExpr.isIterable();
+	}
+
+	@Override
+	public Expression optimize() {
+		expression = expression.optimize();
+		return this;
+	}
+
+	@Override
+	public int prepare(VcfHeader vcfHeader, boolean genotype, int resultIdx) {
+		resultIdx = super.prepare(vcfHeader, genotype, resultIdx);
+		resultIdx = expression.prepare(vcfHeader, genotype, resultIdx);
+		return setIdxExpr.prepare(vcfHeader, genotype, resultIdx);
 	}
 
 	@Override
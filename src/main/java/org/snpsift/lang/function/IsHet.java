@@ -4,6 +4,8 @@ import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
 import org.snpsift.lang.Value;
 import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.util.PackedGenotypes;
 
 /**
  * Is 'genotypeNum' heterozygous?
@@ -17,13 +19,16 @@ public class IsHet extends FunctionBoolGenotype {
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
-		VcfGenotype gen = evalGenotype(vcfEntry);
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		PackedGenotypes packed = packedGenotypes(vcfEntry);
+		if (packed != null) return packed.isHet(evalGenotypeIdx(vcfEntry, fieldIterator)) ? Value.TRUE : Value.FALSE;
+
+		VcfGenotype gen = evalGenotype(vcfEntry, fieldIterator);
 		return gen.isHeterozygous() ? Value.TRUE : Value.FALSE;
 	}
 
 	@Override
-	public Value eval(VcfGenotype vcfGenotype) {
+	public Value eval(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
 		return vcfGenotype.isHeterozygous() ? Value.TRUE : Value.FALSE;
 	}
 
@@ -4,6 +4,8 @@ import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
 import org.snpsift.lang.Value;
 import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.util.PackedGenotypes;
 
 /**
  * Is 'genotypeNum' reference?
@@ -17,13 +19,16 @@ public class IsRef extends FunctionBoolGenotype {
 	}
 
 	@Override
-	public Value eval(VcfEntry vcfEntry) {
-		VcfGenotype gen = evalGenotype(vcfEntry);
+	public Value eval(VcfEntry vcfEntry, FieldIterator fieldIterator) {
+		PackedGenotypes packed = packedGenotypes(vcfEntry);
+		if (packed != null) return !packed.isVariant(evalGenotypeIdx(vcfEntry, fieldIterator)) ? Value.TRUE : Value.FALSE;
+
+		VcfGenotype gen = evalGenotype(vcfEntry, fieldIterator);
 		return !gen.isVariant() ? Value.TRUE : Value.FALSE;
 	}
 
 	@Override
-	public Value eval(VcfGenotype vcfGenotype) {
+	public Value eval(VcfGenotype vcfGenotype, FieldIterator fieldIterator) {
 		return vcfGenotype.isRef() ? Value.TRUE : Value.FALSE;
 	}
 
@@ -12,6 +12,7 @@ import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VcfEntry;
 import org.snpsift.SnpSift;
 import org.snpsift.SnpSiftCmdAnnotate;
+import org.snpsift.annotate.VcfIndexExact;
 
 import junit.framework.TestCase;
 
@@ -133,10 +134,11 @@ public class TestCasesAnnotate extends TestCase {
 	}
 
 	void deleteIndexFile(String dbFileName) {
-		String indexFile = dbFileName + ".sidx";
-		File f = new File(indexFile);
-		if (f.delete()) {
-			if (verbose) Gpr.debug("Index file '" + indexFile + "' deleted before annotation test");
+		for (String indexFile : new String[] { dbFileName + ".sidx", dbFileName + "." + VcfIndexExact.INDEX_EXT }) {
+			File f = new File(indexFile);
+			if (f.delete()) {
+				if (verbose) Gpr.debug("Index file '" + indexFile + "' deleted before annotation test");
+			}
 		}
 	}
 
@@ -837,4 +839,21 @@ public class TestCasesAnnotate extends TestCase {
 		Assert.assertEquals("Expecting different value", expectedValue, value);
 	}
 
+	/**
+	 * Annotate using multiple threads: Results should be the same (and
+	 * in the same order) as single threaded annotations
+	 */
+	public void test_46() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_large.vcf";
+		String fileName = "./test/annotate_large.vcf";
+		String extraArgs[] = { "-cpus", "4" };
+		annotateTest(dbFileName, fileName, extraArgs);
+
+		// Compare outputs
+		String out = annotateOut(dbFileName, fileName, null);
+		String outMultiThread = annotateOut(dbFileName, fileName, extraArgs);
+		Assert.assertEquals(out, outMultiThread);
+	}
+
 }
@@ -0,0 +1,15 @@
+package org.snpsift.testCases;
+
+/**
+ * Annotate test case using an exact match index ('-sorted -exactOnly')
+ *
+ * @author pcingola
+ */
+public class TestCasesAnnotateExactOnly extends TestCasesAnnotate {
+
+	public TestCasesAnnotateExactOnly() {
+		String[] exactExtraArgs = { "-sorted", "-exactOnly" };
+		defaultExtraArgs = exactExtraArgs;
+	}
+
+}
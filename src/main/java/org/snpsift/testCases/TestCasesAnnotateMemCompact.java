@@ -0,0 +1,103 @@
+package org.snpsift.testCases;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.util.Gpr;
+import org.snpeff.vcf.VariantVcfEntry;
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.annotate.DbVcfMemCompact;
+
+/**
+ * Annotate test case using a compact in-memory database ('-memCompact')
+ *
+ * @author pcingola
+ */
+public class TestCasesAnnotateMemCompact extends TestCasesAnnotate {
+
+	public TestCasesAnnotateMemCompact() {
+		String[] memExtraArgs = { "-memCompact" };
+		defaultExtraArgs = memExtraArgs;
+	}
+
+	/**
+	 * Long entries (e.g. structural variants) before many blocks of short ones.
+	 * Multi-allelic entries are only reported once per allele
+	 */
+	public void test_memCompact_01_long_entries() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_memCompact_long.vcf";
+		String fileName = "./test/annotate_memCompact_long.vcf";
+		String header = "##fileformat=VCFv4.1\n" //
+				+ "##INFO=<ID=AF,Number=A,Type=Float,Description=\"Allele frequency\">\n" //
+				+ "##INFO=<ID=END,Number=1,Type=Integer,Description=\"End position\">\n" //
+				+ "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n";
+
+		// Database: A long deletion followed by several blocks of SNPs (and a multi-allelic entry)
+		StringBuilder db = new StringBuilder(header);
+		db.append("1\t100\tdel1\tA\t<DEL>\t.\t.\tAF=0.001;END=100000\n");
+		for (int i = 0; i < 5 * DbVcfMemCompact.BLOCK_SIZE; i++) {
+			int pos = 1000 + 10 * i;
+			db.append("1\t" + pos + "\t.\tA\tT\t.\t.\tAF=0.5\n");
+			if (pos == 1500) db.append("1\t1505\tmulti\tA\tT,C\t.\t.\tAF=0.1,0.2\n");
+		}
+		Gpr.toFile(dbFileName, db.toString());
+
+		// Query: Position 90000 is only covered by the deletion
+		Gpr.toFile(fileName, header //
+				+ "1\t1500\t.\tA\tT\t.\t.\t.\n" //
+				+ "1\t1505\t.\tA\tC\t.\t.\t.\n" //
+				+ "1\t90000\t.\tC\tG\t.\t.\t.\n" //
+		);
+		DbVcfMemCompact dbVcf = new DbVcfMemCompact(dbFileName);
+		dbVcf.setVerbose(verbose);
+		dbVcf.open();
+
+		VcfFileIterator vcf = new VcfFileIterator(fileName);
+		int expectedSizes[] = { 2, 3, 1 };
+		int n = 0;
+		for (VcfEntry ve : vcf) {
+			List<VariantVcfEntry> results = dbVcf.query(VariantVcfEntry.factory(ve).get(0));
+			if (verbose) System.out.println(ve.toStr() + "\t" + results);
+			Assert.assertEquals(expectedSizes[n++], results.size());
+			Assert.assertEquals("del1", results.get(0).getVcfEntry().getId());
+		}
+
+		vcf.close();
+		dbVcf.close();
+	}
+
+	/**
+	 * Worker copies share the loaded database (each one parses entries using
+	 * its own VcfFileIterator). Closing a copy does not release the database.
+	 * Note: Multi-threaded annotation ('-cpus') is tested in test_46
+	 */
+	public void test_memCompact_02_worker_copy() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_1.vcf";
+		DbVcfMemCompact dbVcf = new DbVcfMemCompact(dbFileName);
+		dbVcf.setVerbose(verbose);
+		dbVcf.open();
+
+		VcfFileIterator vcf = new VcfFileIterator(dbFileName);
+		List<VcfEntry> vcfEntries = vcf.load();
+		for (VcfEntry ve : vcfEntries) {
+			DbVcfMemCompact dbVcfCopy = (DbVcfMemCompact) dbVcf.workerCopy();
+			Assert.assertNotSame(dbVcf, dbVcfCopy);
+
+			VariantVcfEntry variant = VariantVcfEntry.factory(ve).get(0);
+			List<VariantVcfEntry> results = dbVcf.query(variant);
+			List<VariantVcfEntry> resultsCopy = dbVcfCopy.query(variant);
+			Assert.assertEquals(results.toString(), resultsCopy.toString());
+			Assert.assertFalse(results.isEmpty());
+
+			dbVcfCopy.close();
+		}
+
+		// Database can still be queried after closing the copies
+		Assert.assertFalse(dbVcf.query(VariantVcfEntry.factory(vcfEntries.get(0)).get(0)).isEmpty());
+		dbVcf.close();
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.snpsift.testCases;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.snpeff.util.Gpr;
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.SnpSift;
+import org.snpsift.SnpSiftCmdAnnotate;
+
+import junit.framework.TestCase;
+
+/**
+ * Annotate using several databases in one pass ('-and' command line option)
+ *
+ * @author pcingola
+ */
+public class TestCasesAnnotateMultiDb extends TestCase {
+
+	public static boolean debug = false;
+	public static boolean verbose = false || debug;
+
+	/**
+	 * Annotate using command line arguments 'args'
+	 */
+	List<VcfEntry> annotate(String args[]) {
+		SnpSift snpSift = new SnpSift(args);
+		SnpSiftCmdAnnotate snpSiftAnnotate = (SnpSiftCmdAnnotate) snpSift.cmd();
+
+		snpSiftAnnotate.setDebug(debug);
+		snpSiftAnnotate.setVerbose(verbose);
+		snpSiftAnnotate.setSuppressOutput(!verbose);
+		List<VcfEntry> results = snpSiftAnnotate.run(true);
+
+		Assert.assertTrue(results != null);
+		Assert.assertTrue(results.size() > 0);
+		return results;
+	}
+
+	/**
+	 * Check that all INFO fields in 'vcfEntry' (having prefix 'prefix') are also in 'vcfEntryMulti'
+	 */
+	void checkInfo(VcfEntry vcfEntry, VcfEntry vcfEntryMulti, String prefix) {
+		for (String key : vcfEntry.getInfoKeys()) {
+			if (!key.startsWith(prefix)) continue;
+			if (verbose) Gpr.debug("\t" + key + "\t" + vcfEntry.getInfo(key));
+			Assert.assertEquals("INFO field '" + key + "' differs", vcfEntry.getInfo(key), vcfEntryMulti.getInfo(key));
+		}
+	}
+
+	/**
+	 * Two databases, each one using its own options: Results should be the same as annotating one database at a time
+	 */
+	public void test_01() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_06.vcf";
+		String dbFileName2 = "./test/db_test_1.vcf";
+		String fileName = "./test/annotate_06.vcf";
+
+		List<VcfEntry> results1 = annotate(new String[] { "annotate", "-sorted", "-name", "DB1_", "-noId", dbFileName, fileName });
+		List<VcfEntry> results2 = annotate(new String[] { "annotate", "-mem", "-name", "DB2_", "-info", "AF,AN", "-exists", "IN_DB2", dbFileName, fileName });
+		List<VcfEntry> results3 = annotate(new String[] { "annotate", "-mem", "-noInfo", dbFileName2, fileName });
+		List<VcfEntry> resultsMulti = annotate(new String[] { "annotate" //
+				, "-sorted", "-name", "DB1_", "-noId", dbFileName //
+				, "-and", "-mem", "-name", "DB2_", "-info", "AF,AN", "-exists", "IN_DB2", dbFileName //
+				, "-and", "-mem", "-noInfo", dbFileName2 //
+				, fileName //
+		});
+
+		Assert.assertEquals(results1.size(), resultsMulti.size());
+		for (int i = 0; i < resultsMulti.size(); i++) {
+			VcfEntry veMulti = resultsMulti.get(i);
+			if (verbose) System.out.println(veMulti);
+
+			checkInfo(results1.get(i), veMulti, "DB1_");
+			checkInfo(results2.get(i), veMulti, "DB2_");
+			checkInfo(results2.get(i), veMulti, "IN_DB2");
+			Assert.assertEquals(results3.get(i).getId(), veMulti.getId()); // Only the third database annotates IDs
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.snpsift.testCases;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.util.Gpr;
+import org.snpeff.vcf.VariantVcfEntry;
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.SnpSift;
+import org.snpsift.SnpSiftCmdAnnotate;
+import org.snpsift.annotate.DbVcfSdb;
+import org.snpsift.annotate.VcfSdb;
+import org.snpsift.annotate.VcfSdbBuilder;
+
+/**
+ * Annotate test case using binary databases ('.sdb' files)
+ * Databases are created from the VCF file before each test
+ *
+ * @author pcingola
+ */
+public class TestCasesAnnotateSdb extends TestCasesAnnotate {
+
+	public TestCasesAnnotateSdb() {
+		String[] memExtraArgs = { "-sdb" };
+		defaultExtraArgs = memExtraArgs;
+	}
+
+	@Override
+	public List<VcfEntry> annotate(String dbFileName, String fileName, String[] extraArgs) {
+		buildSdb(dbFileName);
+		return super.annotate(dbFileName, fileName, extraArgs);
+	}
+
+	@Override
+	public String annotateOut(String dbFileName, String fileName, String[] extraArgs) {
+		buildSdb(dbFileName);
+		return super.annotateOut(dbFileName, fileName, extraArgs);
+	}
+
+	/**
+	 * Create binary database (storing all INFO fields)
+	 */
+	void buildSdb(String dbFileName) {
+		VcfSdbBuilder vcfSdbBuilder = new VcfSdbBuilder(dbFileName);
+		vcfSdbBuilder.setVerbose(verbose);
+		vcfSdbBuilder.setDebug(debug);
+		vcfSdbBuilder.build();
+	}
+
+	/**
+	 * Build a database using 'annotate -buildDb', storing only some INFO fields
+	 */
+	public void test_sdb_01_buildDb_info() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_06.vcf";
+		String fileName = "./test/annotate_06.vcf";
+
+		// Build database
+		String args[] = { "annotate", "-buildDb", "-info", "AF,AN", dbFileName };
+		SnpSift snpSift = new SnpSift(args);
+		SnpSiftCmdAnnotate snpSiftAnnotate = (SnpSiftCmdAnnotate) snpSift.cmd();
+		snpSiftAnnotate.setVerbose(verbose);
+		snpSiftAnnotate.setDebug(debug);
+		snpSiftAnnotate.run(true);
+		Assert.assertTrue(Gpr.exists(VcfSdb.sdbFileName(dbFileName)));
+
+		// Annotate using the database we've just created: Only stored INFO fields are added
+		List<VcfEntry> results = super.annotate(dbFileName, fileName, null);
+		Assert.assertEquals("PREVIOUS=annotation;TEST=yes;AF=0.002;AN=488", results.get(0).getInfoStr());
+	}
+
+	/**
+	 * Long entries (e.g. deletions) are found by queries far from their start
+	 * position, and float values keep their original text
+	 */
+	public void test_sdb_02_long_entries() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_sdb_long.vcf";
+		String fileName = "./test/annotate_sdb_long.vcf";
+		String header = "##fileformat=VCFv4.1\n" //
+				+ "##INFO=<ID=AF,Number=1,Type=Float,Description=\"Allele frequency\">\n" //
+				+ "##INFO=<ID=END,Number=1,Type=Integer,Description=\"End position\">\n" //
+				+ "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n";
+
+		// Database: A long deletion followed by several blocks of SNPs
+		StringBuilder db = new StringBuilder(header);
+		db.append("1\t100\tdel1\tA\t<DEL>\t.\t.\tAF=1e-05;END=100000\n");
+		for (int i = 0; i < 5 * VcfSdb.BLOCK_SIZE; i++)
+			db.append("1\t" + (1000 + 10 * i) + "\t.\tA\tT\t.\t.\tAF=0.5\n");
+		Gpr.toFile(dbFileName, db.toString());
+		buildSdb(dbFileName);
+
+		// Query: Position 90000 is only covered by the deletion, position 5000 also has a SNP
+		Gpr.toFile(fileName, header + "1\t5000\t.\tA\tT\t.\t.\t.\n1\t90000\t.\tC\tG\t.\t.\t.\n");
+		DbVcfSdb dbVcfSdb = new DbVcfSdb(dbFileName);
+		dbVcfSdb.open();
+
+		VcfFileIterator vcf = new VcfFileIterator(fileName);
+		int expectedSizes[] = { 2, 1 };
+		int n = 0;
+		for (VcfEntry ve : vcf) {
+			List<VariantVcfEntry> results = dbVcfSdb.query(VariantVcfEntry.factory(ve).get(0));
+			if (verbose) System.out.println(ve.toStr() + "\t" + results);
+			Assert.assertEquals(expectedSizes[n++], results.size());
+
+			VcfEntry del = results.get(0).getVcfEntry();
+			Assert.assertEquals("del1", del.getId());
+			Assert.assertEquals("1e-05", del.getInfo("AF"));
+			if (results.size() > 1) Assert.assertEquals("0.5", results.get(1).getVcfEntry().getInfo("AF"));
+		}
+
+		vcf.close();
+		dbVcfSdb.close();
+	}
+
+}
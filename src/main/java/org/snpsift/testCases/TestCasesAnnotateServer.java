@@ -0,0 +1,194 @@
+package org.snpsift.testCases;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.snpeff.util.Gpr;
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.SnpSift;
+import org.snpsift.SnpSiftCmdAnnotateServer;
+import org.snpsift.annotate.AnnotateClient;
+import org.snpsift.annotate.AnnotateServer;
+
+/**
+ * Annotate test case using an annotation server ('annotate -server')
+ * A server (on a free local port) serving the test's database is
+ * started for each annotation
+ *
+ * @author pcingola
+ */
+public class TestCasesAnnotateServer extends TestCasesAnnotate {
+
+	AnnotateServer annotateServer;
+	String tokenFile;
+
+	@Override
+	public List<VcfEntry> annotate(String dbFileName, String fileName, String[] extraArgs) {
+		startServer(dbFileName);
+		try {
+			return super.annotate(dbFileName, fileName, extraArgs);
+		} finally {
+			stopServer();
+		}
+	}
+
+	@Override
+	public String annotateOut(String dbFileName, String fileName, String[] extraArgs) {
+		startServer(dbFileName);
+		try {
+			return super.annotateOut(dbFileName, fileName, extraArgs);
+		} finally {
+			stopServer();
+		}
+	}
+
+	/**
+	 * Open a database using a client, the server's response must be an error
+	 */
+	void openError(String token, List<String> dbArgs, String expectedError) {
+		AnnotateClient client = new AnnotateClient(annotateServer.getPort(), token, dbArgs);
+		try {
+			client.open();
+			fail("Open should fail: " + dbArgs);
+		} catch (RuntimeException e) {
+			if (verbose) Gpr.debug("Expected error: " + e.getMessage());
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains(expectedError));
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Send a request using a raw connection, the server's response must be an error
+	 * and the server must close the connection
+	 * @param requests : Requests sent before the rejected one (their responses must be 'OK')
+	 */
+	void requestRejected(List<String> requests, String request, String expectedError) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), annotateServer.getPort()); //
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)); //
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8) //
+		) {
+			for (String req : requests) {
+				out.write(req + "\n");
+				out.flush();
+				String response = in.readLine();
+				Assert.assertTrue(response, response.startsWith(AnnotateServer.RESPONSE_OK));
+			}
+
+			out.write(request + "\n");
+			out.flush();
+			String response = in.readLine();
+			if (verbose) Gpr.debug("Expected error: " + response);
+			Assert.assertTrue(response, response.startsWith(AnnotateServer.RESPONSE_ERROR));
+			Assert.assertTrue(response, response.contains(expectedError));
+			Assert.assertNull("Connection should be closed", in.readLine());
+		}
+	}
+
+	/**
+	 * Start server (use any free port) serving 'dbFileName'
+	 */
+	void startServer(String dbFileName) {
+		try {
+			tokenFile = File.createTempFile("snpSift_annotateServer", ".token").getPath();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		String args[] = { "annotateServer", "-port", "0", "-tokenFile", tokenFile, dbFileName };
+		SnpSiftCmdAnnotateServer cmd = (SnpSiftCmdAnnotateServer) new SnpSift(args).cmd();
+		cmd.setVerbose(verbose);
+		cmd.setDebug(debug);
+		annotateServer = cmd.startServer();
+
+		Thread thread = new Thread(annotateServer::run);
+		thread.setDaemon(true);
+		thread.start();
+
+		String[] serverExtraArgs = { "-server", "" + annotateServer.getPort(), "-serverToken", tokenFile };
+		defaultExtraArgs = serverExtraArgs;
+	}
+
+	void stopServer() {
+		annotateServer.close();
+		annotateServer = null;
+	}
+
+	/**
+	 * Token file is only readable by the user, clients without a valid token are rejected
+	 */
+	public void test_server_01_token() throws IOException {
+		Gpr.debug("Test");
+		String dbFileName = new File("test/db_test_1.vcf").getAbsolutePath();
+		startServer(dbFileName);
+		try {
+			String perms = PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(tokenFile).toPath()));
+			Assert.assertEquals("rw-------", perms);
+
+			openError("0123456789abcdef", Arrays.asList(dbFileName), "Invalid token");
+			openError("", Arrays.asList(dbFileName), "Invalid token");
+		} finally {
+			stopServer();
+		}
+		Assert.assertFalse("Token file should be deleted when the server is closed", new File(tokenFile).exists());
+	}
+
+	/**
+	 * Only databases and options allowed by the server can be opened
+	 */
+	public void test_server_02_restricted() {
+		Gpr.debug("Test");
+		String dbFileName = new File("test/db_test_1.vcf").getAbsolutePath();
+		startServer(dbFileName);
+		try {
+			String token = AnnotateServer.readToken(tokenFile);
+			openError(token, Arrays.asList(new File("test/db_test_large.vcf").getAbsolutePath()), "is not served");
+			openError(token, Arrays.asList("-sortedJoin", dbFileName), "is not allowed");
+			openError(token, Arrays.asList("-dataDir", "/tmp", dbFileName), "is not allowed");
+			openError(token, Arrays.asList("-c", "snpEff.config", dbFileName), "is not allowed");
+			openError(token, Arrays.asList("-info", dbFileName), "Missing parameter");
+
+			// Allowed options
+			AnnotateClient client = new AnnotateClient(annotateServer.getPort(), token, Arrays.asList("-noId", "-info", "AF", dbFileName));
+			client.open();
+			Assert.assertNotNull(client.getVcfHeader());
+			client.close();
+		} finally {
+			stopServer();
+		}
+	}
+
+	/**
+	 * 'ANNOTATE' requests are rejected before reading any VCF line if the
+	 * database has not been opened or the number of lines is invalid
+	 */
+	public void test_server_03_annotate_rejected() throws IOException {
+		Gpr.debug("Test");
+		String dbFileName = new File("test/db_test_1.vcf").getAbsolutePath();
+		startServer(dbFileName);
+		try {
+			List<String> noRequests = Arrays.asList();
+			requestRejected(noRequests, AnnotateServer.CMD_ANNOTATE + "\t0\t" + Integer.MAX_VALUE, "has not been opened");
+
+			String token = AnnotateServer.readToken(tokenFile);
+			List<String> open = Arrays.asList(AnnotateServer.CMD_OPEN + "\t" + token + "\t" + dbFileName);
+			requestRejected(open, AnnotateServer.CMD_ANNOTATE + "\t0\t" + (AnnotateServer.MAX_ANNOTATE_LINES + 1), "Invalid number of lines");
+			requestRejected(open, AnnotateServer.CMD_ANNOTATE + "\t0\t-1", "Invalid number of lines");
+		} finally {
+			stopServer();
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package org.snpsift.testCases;
+
+import org.snpeff.util.Gpr;
+import org.snpsift.annotate.DbVcfSortedJoin;
+
+/**
+ * Annotate test case, reading the database and the input VCF together ('-sortedJoin')
+ *
+ * @author pcingola
+ */
+public class TestCasesAnnotateSortedJoin extends TestCasesAnnotate {
+
+	public TestCasesAnnotateSortedJoin() {
+		String[] memExtraArgs = { "-sortedJoin" };
+		defaultExtraArgs = memExtraArgs;
+	}
+
+	/**
+	 * Input VCF file is not sorted
+	 */
+	public void test_sortedJoin_01_unsorted_input() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_10.vcf";
+		String fileName = "./test/annotate_sortedJoin_unsorted.vcf";
+
+		try {
+			annotate(dbFileName, fileName, null);
+			fail("Unsorted input should throw an exception");
+		} catch (DbVcfSortedJoin.NotSortedException e) {
+			if (verbose) System.out.println("Expected exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Database file is not sorted
+	 */
+	public void test_sortedJoin_02_unsorted_db() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_sortedJoin_unsorted.vcf";
+		String fileName = "./test/annotate_10.vcf";
+
+		try {
+			annotate(dbFileName, fileName, null);
+			fail("Unsorted database should throw an exception");
+		} catch (DbVcfSortedJoin.NotSortedException e) {
+			if (verbose) System.out.println("Expected exception: " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,16 @@
+package org.snpsift.testCases;
+
+/**
+ * Annotate test case using TABIX indexed files, querying
+ * the database once for several entries (batched queries)
+ *
+ * @author pcingola
+ */
+public class TestCasesAnnotateTabixBatch extends TestCasesAnnotate {
+
+	public TestCasesAnnotateTabixBatch() {
+		String[] memExtraArgs = { "-tabix", "-queryBatch", "100" };
+		defaultExtraArgs = memExtraArgs;
+	}
+
+}
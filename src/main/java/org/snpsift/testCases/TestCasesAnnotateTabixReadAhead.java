@@ -0,0 +1,16 @@
+package org.snpsift.testCases;
+
+/**
+ * Annotate test case using TABIX indexed files, decompressing
+ * BGZF blocks ahead in a thread pool
+ *
+ * @author pcingola
+ */
+public class TestCasesAnnotateTabixReadAhead extends TestCasesAnnotate {
+
+	public TestCasesAnnotateTabixReadAhead() {
+		String[] memExtraArgs = { "-tabix", "-bgzfThreads", "2", "-bgzfBlocks", "4" };
+		defaultExtraArgs = memExtraArgs;
+	}
+
+}
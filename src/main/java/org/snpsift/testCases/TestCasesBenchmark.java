@@ -0,0 +1,270 @@
+package org.snpsift.testCases;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.snpeff.fileIterator.VcfFileIterator;
+import org.snpeff.util.Gpr;
+import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfGenotype;
+import org.snpsift.annotate.AnnotateVcfDb;
+import org.snpsift.annotate.AnnotateVcfDbMem;
+import org.snpsift.fileIterator.VcfEntryNoGt;
+import org.snpsift.lang.LangFactory;
+import org.snpsift.lang.expression.CompiledExpression;
+import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.Field;
+import org.snpsift.lang.expression.FieldEff;
+import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.lang.expression.Literal;
+import org.snpsift.lang.expression.Match;
+
+import junit.framework.TestCase;
+
+/**
+ * Benchmarks: Measure throughput before / after some optimizations.
+ * They only check that results are consistent.
+ *
+ * Note: These are not included in 'TestSuiteAll'
+ *
+ * @author pcingola
+ */
+public class TestCasesBenchmark extends TestCase {
+
+	public static boolean verbose = true;
+	public static final int REPEAT = 20;
+
+	/**
+	 * Annotate all entries 'REPEAT' times and show throughput
+	 * @return Annotated entries (last iteration)
+	 */
+	List<VcfEntry> benchmark(String title, AnnotateVcfDb annotateDb, String fileName) throws IOException {
+		List<VcfEntry> vcfEntries = null;
+		long elapsed = 0;
+		for (int i = 0; i <= REPEAT; i++) {
+			vcfEntries = readVcf(fileName); // Annotating modifies entries, so we need new ones every time
+
+			long start = System.nanoTime();
+			for (VcfEntry ve : vcfEntries)
+				annotateDb.annotate(ve);
+			if (i > 0) elapsed += System.nanoTime() - start; // First iteration is a warm up
+		}
+
+		double secs = elapsed / 1e9;
+		if (verbose) System.out.println(String.format("\t%-30s: %8.3f secs, %12.1f entries / sec", title, secs, (REPEAT * vcfEntries.size()) / secs));
+		return vcfEntries;
+	}
+
+	/**
+	 * Evaluate expression 'REPEAT' times on all entries and show throughput
+	 * @return Number of matching entries
+	 */
+	int benchmark(String title, Expression expr, List<VcfEntry> vcfEntries) {
+		return benchmark(title, expr::eval, vcfEntries);
+	}
+
+	/**
+	 * Evaluate (compiled) expression 'REPEAT' times on all entries and show throughput
+	 * @return Number of matching entries
+	 */
+	int benchmark(String title, CompiledExpression expr, List<VcfEntry> vcfEntries) {
+		evaluate(expr, vcfEntries); // Warm up
+
+		int count = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < REPEAT; i++)
+			count = evaluate(expr, vcfEntries);
+		double secs = (System.nanoTime() - start) / 1e9;
+
+		if (verbose) System.out.println(String.format("\t%-30s: %8.3f secs, %12.1f entries / sec", title, secs, (REPEAT * vcfEntries.size()) / secs));
+		return count;
+	}
+
+	/**
+	 * Evaluate expression on all entries, iterating over 'ANY' values as 'filter' does
+	 * @return Number of matching entries
+	 */
+	int evaluate(CompiledExpression expr, List<VcfEntry> vcfEntries) {
+		int count = 0;
+		FieldIterator fieldIterator = new FieldIterator();
+		for (VcfEntry ve : vcfEntries) {
+			fieldIterator.reset();
+			boolean any = false;
+			do {
+				any |= expr.eval(ve, fieldIterator).asBool();
+				if (any || !fieldIterator.hasNext()) break;
+				fieldIterator.next();
+			} while (true);
+
+			if (any) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Read all VCF entries
+	 */
+	List<VcfEntry> readVcf(String fileName) {
+		List<VcfEntry> vcfEntries = new ArrayList<>();
+		VcfFileIterator vcf = new VcfFileIterator(fileName);
+		for (VcfEntry ve : vcf)
+			vcfEntries.add(ve);
+		vcf.close();
+		return vcfEntries;
+	}
+
+	/**
+	 * Regular expression matching: Compiling the regex on every evaluation
+	 * vs. pre-compiled literal vs. cached (non-literal) pattern
+	 */
+	public void test_01_match_regex() {
+		Gpr.debug("Test");
+		List<VcfEntry> vcfEntries = readVcf("test/test03.ann.vcf");
+		String regex = "missense";
+
+		// Before: Compile pattern on every evaluation
+		Field field = new FieldEff("EFFECT", new Literal("*"), null, "ANN");
+		field.setExceptionIfNotFound(false);
+		Match exprNoCache = new Match(field, new Literal(regex)) {
+			@Override
+			protected Pattern pattern(String regexp) {
+				return Pattern.compile(regexp);
+			}
+		};
+
+		// After: Literal pattern is compiled only once
+		LangFactory langFactory = new LangFactory();
+		Expression exprLiteral = langFactory.compile("ANN[*].EFFECT =~ '" + regex + "'");
+
+		// After: Non-literal patterns are cached
+		Expression exprDynamic = langFactory.compile("ANN[*].EFFECT =~ ('miss' + 'ense')");
+
+		int countNoCache = benchmark("Compile on every evaluation", exprNoCache, vcfEntries);
+		int countLiteral = benchmark("Pre-compiled literal", exprLiteral, vcfEntries);
+		int countDynamic = benchmark("Cached patterns", exprDynamic, vcfEntries);
+
+		Assert.assertTrue(countNoCache > 0);
+		Assert.assertEquals(countNoCache, countLiteral);
+		Assert.assertEquals(countNoCache, countDynamic);
+	}
+
+	/**
+	 * Interpreted vs. compiled expressions
+	 */
+	public void test_02_compile() {
+		Gpr.debug("Test");
+		LangFactory langFactory = new LangFactory();
+
+		String vcfFile = null;
+		List<VcfEntry> vcfEntries = null;
+		for (String fileExpr[] : TestCasesFilter.FILE_EXPRESSIONS) {
+			if (!fileExpr[0].equals(vcfFile)) {
+				vcfFile = fileExpr[0];
+				vcfEntries = readVcf(vcfFile);
+			}
+
+			String expression = fileExpr[1];
+			if (verbose) System.out.println("File: " + vcfFile + "\tExpression: '" + expression + "'");
+
+			Expression expr = langFactory.compile(expression);
+			expr.prepare(vcfEntries.get(0).getVcfFileIterator().getVcfHeader(), false, 0);
+			int countInterpreted = benchmark("Interpreted", expr, vcfEntries);
+			int countCompiled = benchmark("Compiled", expr.compile(), vcfEntries);
+
+			Assert.assertEquals(countInterpreted, countCompiled);
+		}
+	}
+
+	/**
+	 * Numeric expressions: Results are held in primitive (re-used) values
+	 */
+	public void test_03_primitive_values() {
+		Gpr.debug("Test");
+		List<VcfEntry> vcfEntries = readVcf("test/test02.vcf");
+
+		// Expected result
+		int countExp = 0;
+		for (VcfEntry ve : vcfEntries) {
+			long countHet = 0;
+			for (VcfGenotype gen : ve)
+				if (gen.isHeterozygous()) countHet++;
+			if ((countHet + 1 > 2) && (ve.getQuality() * 2 > 30)) countExp++;
+		}
+
+		LangFactory langFactory = new LangFactory();
+		Expression expr = langFactory.compile("(countHet() + 1 > 2) & (QUAL * 2 > 30)");
+		expr.prepare(vcfEntries.get(0).getVcfFileIterator().getVcfHeader(), false, 0); // Results are stored in the evaluation state
+		int count = benchmark("Primitive values", expr, vcfEntries);
+		int countCompiled = benchmark("Primitive values, compiled", expr.compile(), vcfEntries);
+
+		Assert.assertEquals(countExp, count);
+		Assert.assertEquals(countExp, countCompiled);
+	}
+
+	/**
+	 * Annotate: INFO fields are merged using slots resolved once (no
+	 * per entry maps, sets or key sorting)
+	 */
+	public void test_04_annotate() throws IOException {
+		Gpr.debug("Test");
+		String dbFileName = "test/db_test_39.vcf";
+		String fileName = dbFileName; // Every entry is found in the database
+
+		// All INFO fields
+		AnnotateVcfDb annotateDb = new AnnotateVcfDbMem(dbFileName);
+		annotateDb.open();
+		List<VcfEntry> resultsAll = benchmark("Annotate, all INFO fields", annotateDb, fileName);
+		annotateDb.close();
+
+		// Only a few INFO fields
+		annotateDb = new AnnotateVcfDbMem(dbFileName);
+		annotateDb.setInfoFields(true, Arrays.asList("RS", "RSPOS", "RV"));
+		annotateDb.open();
+		List<VcfEntry> resultsSome = benchmark("Annotate, three INFO fields", annotateDb, fileName);
+		annotateDb.close();
+
+		// Re-used buffers must not leak values from one entry to the next: Annotating again must give the same results
+		annotateDb = new AnnotateVcfDbMem(dbFileName);
+		annotateDb.open();
+		List<VcfEntry> vcfEntries = readVcf(fileName);
+		int countAnnotated = 0;
+		for (int i = vcfEntries.size() - 1; i >= 0; i--) // Reverse order
+			if (annotateDb.annotate(vcfEntries.get(i))) countAnnotated++;
+		annotateDb.close();
+
+		Assert.assertTrue(countAnnotated > 0);
+		for (int i = 0; i < vcfEntries.size(); i++) {
+			Assert.assertEquals(vcfEntries.get(i).toString(), resultsAll.get(i).toString());
+			Assert.assertTrue(resultsAll.get(i).getInfoStr().length() >= resultsSome.get(i).getInfoStr().length());
+		}
+	}
+
+	/**
+	 * Genotype functions: Iterating over VcfGenotype objects vs. packed genotype calls
+	 */
+	public void test_05_packed_genotypes() {
+		Gpr.debug("Test");
+		String fileName = "test/test02.vcf";
+		List<VcfEntry> vcfEntries = readVcf(fileName);
+
+		// Same entries, genotypes are not parsed (only packed)
+		List<VcfEntry> vcfEntriesNoGt = new ArrayList<>();
+		VcfFileIterator vcf = new VcfFileIterator(fileName);
+		for (VcfEntry ve : vcfEntries)
+			vcfEntriesNoGt.add(new VcfEntryNoGt(vcf, ve.toString(), 0, true));
+		vcf.close();
+
+		LangFactory langFactory = new LangFactory();
+		Expression expr = langFactory.compile("(countHet() > 1) & (countVariant() > countRef()) | isHom(GEN[0])");
+		int count = benchmark("Genotype objects", expr, vcfEntries);
+		int countPacked = benchmark("Packed genotypes", expr, vcfEntriesNoGt);
+
+		Assert.assertTrue(count > 0);
+		Assert.assertEquals(count, countPacked);
+	}
+
+}
@@ -2,15 +2,21 @@ package org.snpsift.testCases;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 import org.junit.Assert;
+import org.snpeff.interval.Chromosome;
+import org.snpeff.interval.Genome;
+import org.snpeff.interval.Variant;
 import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VcfEntry;
 import org.snpsift.SnpSift;
 import org.snpsift.SnpSiftCmdDbNsfp;
 import org.snpsift.fileIterator.DbNsfp;
+import org.snpsift.fileIterator.DbNsfpEntry;
 
 import junit.framework.TestCase;
 
@@ -302,4 +308,37 @@ public class TestCasesDbNsfp extends TestCase {
 		Assert.assertEquals(".,1.0", vcfEntry.getInfo(SnpSiftCmdDbNsfp.DBNSFP_VCF_INFO_PREFIX + "Polyphen2_HDIV_score"));
 	}
 
+	/**
+	 * Only selected columns are parsed, parsed entries are cached
+	 */
+	public void test_12() {
+		Gpr.debug("Test");
+		String dbFileName = "test/dbNSFP2.0b3.chr1_69134.txt.gz";
+
+		DbNsfp dbNsfp = new DbNsfp(dbFileName);
+		dbNsfp.setVerbose(verbose);
+		dbNsfp.open();
+		dbNsfp.setFields(Arrays.asList("SIFT_score", "Uniprot_acc"));
+
+		Chromosome chr = new Genome().getOrCreateChromosome("1");
+		Variant variant = new Variant(chr, 69133, "A", "G");
+
+		for (int i = 0; i < 2; i++) {
+			Collection<DbNsfpEntry> dbEntries = dbNsfp.query(variant);
+			Assert.assertEquals(1, dbEntries.size());
+
+			DbNsfpEntry de = dbEntries.iterator().next();
+			Assert.assertEquals("0.090000", de.getVcfInfo("SIFT_score"));
+			Assert.assertEquals("Q8NH21", de.getVcfInfo("Uniprot_acc"));
+			Assert.assertNull(de.getVcfInfo("GERP++_RS")); // Column not parsed
+		}
+
+		// Second query uses cached entries
+		if (verbose) Gpr.debug(dbNsfp.getCache().toStringStats());
+		Assert.assertEquals(1, dbNsfp.getCache().getHits());
+		Assert.assertEquals(1, dbNsfp.getCache().getMisses());
+
+		dbNsfp.close();
+	}
+
 }
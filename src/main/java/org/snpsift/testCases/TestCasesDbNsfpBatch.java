@@ -0,0 +1,16 @@
+package org.snpsift.testCases;
+
+/**
+ * Test cases for dbNSFP database annotations
+ * Note: This class queries the database once for several entries (batched queries)
+ * 
+ * @author pcingola
+ */
+public class TestCasesDbNsfpBatch extends TestCasesDbNsfp {
+
+	public TestCasesDbNsfpBatch() {
+		String[] batchArgs = { "-queryBatch", "100" };
+		defaultExtraArgs = batchArgs;
+	}
+
+}
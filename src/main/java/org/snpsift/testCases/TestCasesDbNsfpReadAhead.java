@@ -0,0 +1,16 @@
+package org.snpsift.testCases;
+
+/**
+ * Test cases for dbNSFP database annotations
+ * Note: This class decompresses BGZF blocks ahead in a thread pool
+ * 
+ * @author pcingola
+ */
+public class TestCasesDbNsfpReadAhead extends TestCasesDbNsfp {
+
+	public TestCasesDbNsfpReadAhead() {
+		String[] readAheadArgs = { "-bgzfThreads", "2", "-bgzfBlocks", "4" };
+		defaultExtraArgs = readAheadArgs;
+	}
+
+}
@@ -1,5 +1,11 @@
 package org.snpsift.testCases;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.snpeff.util.Gpr;
@@ -8,6 +14,7 @@ import org.snpeff.vcf.VcfHeader;
 import org.snpeff.vcf.VcfHeaderInfo;
 import org.snpsift.SnpSift;
 import org.snpsift.SnpSiftCmdExtractFields;
+import org.snpsift.util.ArrowWriter;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -21,12 +28,25 @@ public class TestCasesExtractFields extends TestCase {
 
 	public static boolean debug = false;
 
+	protected String[] defaultExtraArgs = null;
+
 	/**
 	 * Extract fields and return the output lines
 	 */
-	List<String> extract(String vcfFileName, String fieldExpression) {
-		String args[] = { "extractFields", vcfFileName, fieldExpression };
-		SnpSift snpSift = new SnpSift(args);
+	List<String> extract(String vcfFileName, String... fieldExpressions) {
+		List<String> argsList = new ArrayList<>();
+		argsList.add("extractFields");
+
+		if (defaultExtraArgs != null) {
+			for (String arg : defaultExtraArgs)
+				argsList.add(arg);
+		}
+
+		argsList.add(vcfFileName);
+		for (String fieldExpression : fieldExpressions)
+			argsList.add(fieldExpression);
+
+		SnpSift snpSift = new SnpSift(argsList.toArray(new String[0]));
 		SnpSiftCmdExtractFields ssef = (SnpSiftCmdExtractFields) snpSift.cmd();
 
 		List<String> linesList = ssef.run(true);
@@ -39,6 +59,36 @@ public class TestCasesExtractFields extends TestCase {
 		return linesList;
 	}
 
+	/**
+	 * Extract fields as an Arrow IPC file
+	 * @return Arrow file (little endian)
+	 */
+	ByteBuffer extractArrow(int batchSize, String vcfFileName, String... fieldExpressions) {
+		List<String> argsList = new ArrayList<>();
+		argsList.add("extractFields");
+		argsList.add("-outFormat");
+		argsList.add("arrow");
+		argsList.add("-batchSize");
+		argsList.add("" + batchSize);
+		argsList.add(vcfFileName);
+		for (String fieldExpression : fieldExpressions)
+			argsList.add(fieldExpression);
+
+		SnpSift snpSift = new SnpSift(argsList.toArray(new String[0]));
+		SnpSiftCmdExtractFields ssef = (SnpSiftCmdExtractFields) snpSift.cmd();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ssef.setOutputStream(out);
+		ssef.run(true);
+
+		// Check magic numbers: 'ARROW1' at the start and the end of the file
+		byte bytes[] = out.toByteArray();
+		String magic = new String(ArrowWriter.MAGIC);
+		Assert.assertEquals(magic, new String(bytes, 0, 6));
+		Assert.assertEquals(magic, new String(bytes, bytes.length - 6, 6));
+
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
 	/**
 	 * Extract fields form a file and check that the line matches (only one line expected from the file)
 	 */
@@ -309,4 +359,261 @@ public class TestCasesExtractFields extends TestCase {
 		extractAndCheck("test/extractFields_35.vcf", "Field2", field2);
 	}
 
+	/**
+	 * Several expressions, plain (evaluated once) and iterable ones: Each
+	 * column must be the same as extracting the expression on its own
+	 */
+	public void test_36() {
+		Gpr.debug("Test");
+
+		String vcfFile = "test/test03.ann.vcf";
+		String fields[] = { "CHROM", "POS", "ANN[*].EFFECT", "ANN[0].GENE", "ANN[*].GENE", "REF" };
+		List<String> lines = extract(vcfFile, fields);
+
+		for (int i = 0; i < fields.length; i++) {
+			List<String> column = extract(vcfFile, fields[i]);
+			Assert.assertEquals(column.size(), lines.size());
+
+			for (int j = 0; j < lines.size(); j++) {
+				String col = lines.get(j).split("\t", -1)[i];
+				if (debug) Gpr.debug(fields[i] + "\t" + col);
+				Assert.assertEquals("Field '" + fields[i] + "', line " + j, column.get(j), col);
+			}
+		}
+	}
+
+	/**
+	 * Arrow output: Typed columns, lists for iterable fields and fields having multiple values
+	 */
+	public void test_37() {
+		Gpr.debug("Test");
+
+		// One record batch per entry
+		ByteBuffer file = extractArrow(1, "test/extractFields_35.vcf", "CHROM", "POS", "Field1", "REF");
+		int footer = fbFooter(file);
+		Assert.assertEquals(2, file.getInt(fbDeref(file, fbField(file, footer, 3)))); // Record batches
+		Assert.assertEquals("CHROM: Utf8, POS: Int, Field1: Bool, REF: Utf8", fbSchema(file, footer));
+
+		// Default batch size: One record batch
+		file = extractArrow(ArrowWriter.DEFAULT_BATCH_SIZE, "test/extractFields_35.vcf", "CHROM", "POS");
+		footer = fbFooter(file);
+		Assert.assertEquals(1, file.getInt(fbDeref(file, fbField(file, footer, 3))));
+
+		// Lists: Iterable fields, multiple values, both
+		file = extractArrow(1, "test/extractFields_27.vcf", "GEN[0].AD[0]", "GEN[0].AD", "GEN[*].AD", "GEN[*].GT");
+		Assert.assertEquals("GEN[0].AD[0]: Int, GEN[0].AD: List<Int>, GEN[*].AD: List<List<Int>>, GEN[*].GT: List<Utf8>", fbSchema(file, fbFooter(file)));
+	}
+
+	/**
+	 * Arrow output: Values decoded from the record batches (offsets, validity
+	 * bitmaps and list items) must be the same as the TSV output
+	 */
+	public void test_38() {
+		Gpr.debug("Test");
+		String vcfFile = "test/extractFields_38.vcf";
+		Gpr.toFile(vcfFile, "##fileformat=VCFv4.1\n" //
+				+ "##INFO=<ID=AC,Number=.,Type=Integer,Description=\"Allele count\">\n" //
+				+ "##INFO=<ID=VT,Number=1,Type=String,Description=\"Variant type\">\n" //
+				+ "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n" //
+				+ "1\t100\t.\tA\tG\t.\t.\tAC=1;VT=SNP\n" //
+				+ "1\t200\t.\tC\tT,G\t.\t.\tAC=3,4\n" //
+				+ "1\t300\t.\tCA\tC\t.\t.\tVT=DEL\n" //
+		);
+
+		// Two record batches: Two rows and one row
+		String fields[] = { "POS", "VT", "AC" };
+		ByteBuffer file = extractArrow(2, vcfFile, fields);
+		int footer = fbFooter(file);
+		Assert.assertEquals("POS: Int, VT: Utf8, AC: List<Int>", fbSchema(file, footer));
+
+		List<List<Object>> columns = arrowColumns(file, footer);
+		Assert.assertEquals(Arrays.asList(100L, 200L, 300L), columns.get(0));
+		Assert.assertEquals(Arrays.asList("SNP", null, "DEL"), columns.get(1));
+		Assert.assertEquals(Arrays.asList(Arrays.asList(1L), Arrays.asList(3L, 4L), null), columns.get(2));
+
+		// Compare to TSV output (nulls are empty, list items are comma separated)
+		List<String> lines = extract(vcfFile, fields);
+		Assert.assertEquals(lines.size(), columns.get(0).size());
+		for (int i = 0; i < fields.length; i++) {
+			for (int j = 0; j < lines.size(); j++) {
+				Object value = columns.get(i).get(j);
+				String valueStr = (value == null ? "" : value.toString());
+				if (value instanceof List) {
+					StringBuilder sb = new StringBuilder();
+					for (Object v : (List<?>) value)
+						sb.append(sb.length() > 0 ? "," : "").append(v);
+					valueStr = sb.toString();
+				}
+				Assert.assertEquals("Field '" + fields[i] + "', line " + j, lines.get(j).split("\t", -1)[i], valueStr);
+			}
+		}
+	}
+
+	/**
+	 * Decode all record batches in an Arrow file
+	 * @return One list of values per column (null values, lists for list columns)
+	 */
+	List<List<Object>> arrowColumns(ByteBuffer file, int footer) {
+		int schema = fbDeref(file, fbField(file, footer, 1));
+		int fields = fbDeref(file, fbField(file, schema, 1));
+		int numFields = file.getInt(fields);
+		List<List<Object>> columns = new ArrayList<>();
+		for (int i = 0; i < numFields; i++)
+			columns.add(new ArrayList<>());
+
+		// Blocks: Offset, metadata length, body length
+		int blocks = fbDeref(file, fbField(file, footer, 3));
+		for (int b = 0; b < file.getInt(blocks); b++) {
+			int block = blocks + 4 + 24 * b;
+			int offset = (int) file.getLong(block);
+			int body = offset + file.getInt(block + 8);
+
+			// Message (after continuation marker and metadata length): Header is a record batch
+			Assert.assertEquals(-1, file.getInt(offset));
+			int message = fbDeref(file, offset + 8);
+			int recordBatch = fbDeref(file, fbField(file, message, 2));
+			long length = file.getLong(fbField(file, recordBatch, 0));
+			int nodes = fbDeref(file, fbField(file, recordBatch, 1));
+			int buffers = fbDeref(file, fbField(file, recordBatch, 2));
+
+			int next[] = { 0, 0 }; // Next field node and buffer
+			for (int i = 0; i < numFields; i++) {
+				List<Object> values = arrowValues(file, fbDeref(file, fields + 4 + 4 * i), nodes, buffers, body, next);
+				Assert.assertEquals(length, values.size());
+				columns.get(i).addAll(values);
+			}
+		}
+
+		return columns;
+	}
+
+	/**
+	 * Decode a field's values (and its children's) from a record batch
+	 * @param next : Next field node and buffer to read (updated)
+	 */
+	List<Object> arrowValues(ByteBuffer file, int field, int nodes, int buffers, int body, int next[]) {
+		int node = nodes + 4 + 16 * next[0]++;
+		int len = (int) file.getLong(node);
+		long nullCount = file.getLong(node + 8);
+
+		// Validity bitmap (empty if there are no nulls)
+		int validity = body + (int) file.getLong(buffers + 4 + 16 * next[1]);
+		boolean hasValidity = file.getLong(buffers + 4 + 16 * next[1]++ + 8) > 0;
+		int nulls = 0;
+		boolean valid[] = new boolean[len];
+		for (int i = 0; i < len; i++) {
+			valid[i] = !hasValidity || (file.get(validity + i / 8) & (1 << (i % 8))) != 0;
+			if (!valid[i]) nulls++;
+		}
+		Assert.assertEquals(nullCount, nulls);
+
+		int typeType = file.get(fbField(file, field, 2));
+		int data = body + (int) file.getLong(buffers + 4 + 16 * next[1]++);
+		List<Object> values = new ArrayList<>();
+		switch (typeType) {
+		case 2: // Int64
+			for (int i = 0; i < len; i++)
+				values.add(valid[i] ? file.getLong(data + 8 * i) : null);
+			break;
+
+		case 3: // Float64
+			for (int i = 0; i < len; i++)
+				values.add(valid[i] ? file.getDouble(data + 8 * i) : null);
+			break;
+
+		case 5: // Utf8: Offsets and data
+			int strData = body + (int) file.getLong(buffers + 4 + 16 * next[1]++);
+			for (int i = 0; i < len; i++) {
+				int start = file.getInt(data + 4 * i), end = file.getInt(data + 4 * (i + 1));
+				byte bytes[] = new byte[end - start];
+				for (int j = 0; j < bytes.length; j++)
+					bytes[j] = file.get(strData + start + j);
+				values.add(valid[i] ? new String(bytes, StandardCharsets.UTF_8) : null);
+			}
+			break;
+
+		case 6: // Bool: Bitmap
+			for (int i = 0; i < len; i++)
+				values.add(valid[i] ? (file.get(data + i / 8) & (1 << (i % 8))) != 0 : null);
+			break;
+
+		case 12: // List: Offsets and child values
+			int children = fbDeref(file, fbField(file, field, 5));
+			List<Object> items = arrowValues(file, fbDeref(file, children + 4), nodes, buffers, body, next);
+			for (int i = 0; i < len; i++)
+				values.add(valid[i] ? items.subList(file.getInt(data + 4 * i), file.getInt(data + 4 * (i + 1))) : null);
+			break;
+
+		default:
+			throw new RuntimeException("Unknown type " + typeType);
+		}
+
+		return values;
+	}
+
+	/**
+	 * Follow a FlatBuffers offset
+	 */
+	int fbDeref(ByteBuffer bb, int pos) {
+		return pos + bb.getInt(pos);
+	}
+
+	/**
+	 * Position of the Arrow file's footer (root table), which is before its length (int) and the magic number
+	 */
+	int fbFooter(ByteBuffer file) {
+		int footerLen = file.getInt(file.limit() - 10);
+		return fbDeref(file, file.limit() - 10 - footerLen);
+	}
+
+	/**
+	 * Position of a FlatBuffers table's field (-1 if not present)
+	 */
+	int fbField(ByteBuffer bb, int table, int field) {
+		int vtable = table - bb.getInt(table);
+		if (4 + 2 * field >= bb.getShort(vtable)) return -1;
+		int offset = bb.getShort(vtable + 4 + 2 * field);
+		return offset != 0 ? table + offset : -1;
+	}
+
+	/**
+	 * Arrow fields (name and type) in footer's schema, as a string
+	 */
+	String fbSchema(ByteBuffer bb, int footer) {
+		int schema = fbDeref(bb, fbField(bb, footer, 1));
+		int fields = fbDeref(bb, fbField(bb, schema, 1));
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bb.getInt(fields); i++) {
+			int field = fbDeref(bb, fields + 4 + 4 * i);
+			int name = fbDeref(bb, fbField(bb, field, 0));
+			byte nameBytes[] = new byte[bb.getInt(name)];
+			for (int j = 0; j < nameBytes.length; j++)
+				nameBytes[j] = bb.get(name + 4 + j);
+			sb.append((i > 0 ? ", " : "") + new String(nameBytes) + ": " + fbType(bb, field));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Arrow field's type as a string (lists show their item's type)
+	 */
+	String fbType(ByteBuffer bb, int field) {
+		int typeType = bb.get(fbField(bb, field, 2));
+		switch (typeType) {
+		case 2:
+			return "Int";
+		case 3:
+			return "Float";
+		case 5:
+			return "Utf8";
+		case 6:
+			return "Bool";
+		case 12:
+			int children = fbDeref(bb, fbField(bb, field, 5));
+			return "List<" + fbType(bb, fbDeref(bb, children + 4)) + ">";
+		default:
+			return "Type" + typeType;
+		}
+	}
+
 }
@@ -0,0 +1,16 @@
+package org.snpsift.testCases;
+
+/**
+ * Extract fields test cases
+ * Note: This class extracts fields using several threads (output order must be preserved)
+ *
+ * @author pcingola
+ */
+public class TestCasesExtractFieldsParallel extends TestCasesExtractFields {
+
+	public TestCasesExtractFieldsParallel() {
+		String[] cpusArgs = { "-cpus", "4" };
+		defaultExtraArgs = cpusArgs;
+	}
+
+}
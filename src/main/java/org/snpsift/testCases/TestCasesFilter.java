@@ -2,15 +2,43 @@ package org.snpsift.testCases;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
+import org.snpeff.fileIterator.VcfFileIterator;
 import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VcfEffect;
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpeff.vcf.VcfHeader;
 import org.snpeff.vcf.VcfLof;
 import org.snpsift.SnpSift;
 import org.snpsift.SnpSiftCmdFilter;
+import org.snpsift.fileIterator.VcfEntryNoGt;
+import org.snpsift.lang.LangFactory;
+import org.snpsift.lang.ReferencedFields;
+import org.snpsift.lang.Value;
+import org.snpsift.lang.expression.And;
+import org.snpsift.lang.expression.CompiledExpression;
+import org.snpsift.lang.expression.Eq;
+import org.snpsift.lang.expression.Expression;
+import org.snpsift.lang.expression.ExpressionCounter;
+import org.snpsift.lang.expression.Field;
+import org.snpsift.lang.expression.FieldEff;
+import org.snpsift.lang.expression.FieldIterator;
+import org.snpsift.lang.expression.FieldSub;
+import org.snpsift.lang.expression.Gt;
+import org.snpsift.lang.expression.Has;
+import org.snpsift.lang.expression.Literal;
+import org.snpsift.lang.expression.Lt;
+import org.snpsift.lang.expression.Match;
+import org.snpsift.lang.expression.Or;
+import org.snpsift.lang.function.CountHet;
+import org.snpsift.lang.function.HasAny;
+import org.snpsift.util.PackedGenotypes;
+import org.snpsift.util.StringSetIndex;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -25,6 +53,32 @@ public class TestCasesFilter extends TestCase {
 	public static boolean verbose = false;
 	public static final int STDOUT_BUFFER_SIZE = 10 * 1024 * 1024;
 
+	// Expressions from test cases in this class: { vcfFile, expression }
+	public static final String[][] FILE_EXPRESSIONS = { //
+			{ "test/test01.vcf", "QUAL >= 50" } //
+			, { "test/test01.vcf", "(CHROM = '19')" } //
+			, { "test/test01.vcf", "(POS >= 10000) & (POS <= 20000)" } //
+			, { "test/test01.vcf", "(POS >= 10000) | (POS <= 20000)" } //
+			, { "test/test01.vcf", "( CHROM =~ 'NT_' )" } //
+			, { "test/test01.vcf", "( REF = 'C' ) & ( ALT = 'T') " } //
+			, { "test/test01.vcf", "( DP >= 5 ) " } //
+			, { "test/test01.vcf", "( exists INDEL ) " } //
+			, { "test/test01.vcf", "( GEN[0].PL[1] > 100 ) " } //
+			, { "test/test01.vcf", "( GEN[0].GT = '1/1' ) " } //
+			, { "test/test02.vcf", "isVariant ( GEN[1] ) & isHom( GEN[1] ) & isRef( GEN[2] )" } //
+			, { "test/test02.vcf", "GEN[*].GT = '1|1'" } //
+			, { "test/test02.vcf", "GEN[*].AP[*] > 0.95" } //
+			, { "test/test02.vcf", "( countHet() = 3 ) " } //
+			, { "test/test03.vcf", "EFF[*].EFFECT = 'SYNONYMOUS_CODING'" } //
+			, { "test/test03.ann.vcf", "ANN[*].EFFECT = 'missense_variant'" } //
+			, { "test/test03.ann.vcf", "ANN[*].BIOTYPE = 'protein_coding'" } //
+			, { "test/downstream.vcf", "(EFF[ALL].EFFECT = 'DOWNSTREAM')" } //
+			, { "test/test49.vcf", "( DP < (AC+4))" } //
+			, { "test/test_precedence.vcf", "ANN[*].IMPACT = 'LOW' | ANN[*].IMPACT = 'MODERATE'" } //
+			, { "test/test01.vcf", "(MQ >= 30) & (FQ < -50)" } //
+			, { "test/test01.vcf", "(AF1 > 0.5) | (CI95 =~ '^0,')" } //
+	};
+
 	List<VcfEntry> snpSiftFilter(String args[]) {
 		SnpSift snpSift = new SnpSift(args);
 		SnpSiftCmdFilter snpSiftFilter = (SnpSiftCmdFilter) snpSift.cmd();
@@ -1724,4 +1778,387 @@ public class TestCasesFilter extends TestCase {
 		Assert.assertEquals("Number of entries checkd does not match expected", countOk, 4);
 
 	}
+
+	/**
+	 * Filter using multiple threads: Results should be the same
+	 * (and in the same order) as single threaded version
+	 */
+	public void test_59_multiple_threads() {
+		Gpr.debug("Test");
+
+		// Iterate over effects, this used to be a shared (singleton) state
+		String expression = "ANN[*].EFFECT = 'synonymous_variant'";
+		String args[] = { "filter", "-f", "test/test03.ann.vcf", expression };
+		List<VcfEntry> list = snpSiftFilter(args);
+
+		String argsCpus[] = { "filter", "-cpus", "4", "-f", "test/test03.ann.vcf", expression };
+		List<VcfEntry> listCpus = snpSiftFilter(argsCpus);
+
+		// Compare results
+		Assert.assertTrue(list.size() > 0);
+		Assert.assertEquals(list.size(), listCpus.size());
+		for (int i = 0; i < list.size(); i++)
+			Assert.assertEquals(list.get(i).toString(), listCpus.get(i).toString());
+	}
+
+	/**
+	 * Compiled expressions must give exactly the same results as the interpreter
+	 */
+	public void test_60_compile() {
+		Gpr.debug("Test");
+
+		for (String fileExpr[] : FILE_EXPRESSIONS) {
+			String vcfFile = fileExpr[0];
+			String expression = fileExpr[1];
+			if (verbose) System.out.println("File: " + vcfFile + "\tExpression: '" + expression + "'");
+
+			String args[] = { "filter", "-f", vcfFile, expression };
+			List<VcfEntry> list = snpSiftFilter(args);
+
+			String argsCompile[] = { "filter", "-compile", "-f", vcfFile, expression };
+			List<VcfEntry> listCompile = snpSiftFilter(argsCompile);
+
+			// Compare results
+			Assert.assertEquals("Expression: " + expression, list.size(), listCompile.size());
+			for (int i = 0; i < list.size(); i++)
+				Assert.assertEquals(list.get(i).toString(), listCompile.get(i).toString());
+		}
+	}
+
+	/**
+	 * Genotypes should only be parsed if the expression uses them.
+	 * Results must be the same as parsing all fields
+	 */
+	public void test_61_parse_only_referenced_fields() {
+		Gpr.debug("Test");
+
+		for (String fileExpr[] : FILE_EXPRESSIONS) {
+			String vcfFile = fileExpr[0];
+			String expression = fileExpr[1];
+			if (verbose) System.out.println("File: " + vcfFile + "\tExpression: '" + expression + "'");
+
+			String args[] = { "filter", "-parseAll", "-f", vcfFile, expression };
+			List<VcfEntry> list = snpSiftFilter(args);
+
+			String argsLazy[] = { "filter", "-f", vcfFile, expression };
+			List<VcfEntry> listLazy = snpSiftFilter(argsLazy);
+
+			// Compare results
+			Assert.assertEquals("Expression: " + expression, list.size(), listLazy.size());
+			for (int i = 0; i < list.size(); i++)
+				Assert.assertEquals(list.get(i).toString(), listLazy.get(i).toString());
+		}
+	}
+
+	/**
+	 * Fields referenced by an expression
+	 */
+	public void test_62_referenced_fields() {
+		Gpr.debug("Test");
+
+		LangFactory langFactory = new LangFactory();
+		langFactory.compile("(QUAL > 30) & (DP > 5) & (ANN[*].EFFECT = 'missense_variant')");
+		ReferencedFields refs = langFactory.getReferencedFields();
+		if (verbose) System.out.println(refs);
+		Assert.assertTrue(refs.getColumns().contains("QUAL"));
+		Assert.assertTrue(refs.getInfoFields().contains("DP"));
+		Assert.assertTrue(refs.getInfoFields().contains("ANN"));
+		Assert.assertFalse(refs.isGenotypes());
+
+		langFactory = new LangFactory();
+		langFactory.compile("(GEN[*].DP > 10) & (countHet() > 1)");
+		refs = langFactory.getReferencedFields();
+		if (verbose) System.out.println(refs);
+		Assert.assertTrue(refs.isGenotypes());
+		Assert.assertFalse(refs.isGenotypeCallsOnly());
+		Assert.assertTrue(refs.getGenotypeFields().contains("DP"));
+		Assert.assertTrue(refs.getGenotypeFields().contains("GT"));
+		Assert.assertTrue(refs.getInfoFields().isEmpty());
+
+		langFactory = new LangFactory();
+		langFactory.compile("(countHet() > 1) & isVariant(GEN[0])");
+		refs = langFactory.getReferencedFields();
+		if (verbose) System.out.println(refs);
+		Assert.assertTrue(refs.isGenotypes());
+		Assert.assertTrue(refs.isGenotypeCallsOnly());
+	}
+
+	/**
+	 * Optimized expressions (cheaper 'And' / 'Or' operands first)
+	 * must produce the same results as non-optimized ones.
+	 * Expressions are only optimized when using '-optimize'
+	 */
+	public void test_63_optimize() throws Exception {
+		Gpr.debug("Test");
+
+		String fileExpressions[][] = { //
+				{ "test/test03.ann.vcf", "(ANN[*].EFFECT = 'missense_variant') & (POS > 100000)" } //
+				, { "test/test03.ann.vcf", "(ANN[*].IMPACT = 'LOW') | (QUAL < 50)" } //
+				, { "test/test02.vcf", "(countHet() > 1) | (QUAL > 50)" } //
+				, { "test/test01.vcf", "(GEN[0].GT = '1/1') & (DP >= 5)" } //
+				, { "test/test57.vcf", "(GEN[0067_3_D58].DP > 0) && ((GEN[0067_3_D58].AD[0] / GEN[0067_3_D58].DP) > 0.1)" } //
+		};
+
+		for (String fileExprs[][] : new String[][][] { FILE_EXPRESSIONS, fileExpressions }) {
+			for (String fileExpr[] : fileExprs) {
+				String vcfFile = fileExpr[0];
+				String expression = fileExpr[1];
+				if (verbose) System.out.println("File: " + vcfFile + "\tExpression: '" + expression + "'");
+
+				String args[] = { "filter", "-f", vcfFile, expression };
+				List<VcfEntry> list = snpSiftFilter(args);
+
+				String argsOpt[] = { "filter", "-optimize", "-f", vcfFile, expression };
+				List<VcfEntry> listOpt = snpSiftFilter(argsOpt);
+
+				// Compare results
+				Assert.assertEquals("Expression: " + expression, list.size(), listOpt.size());
+				for (int i = 0; i < list.size(); i++)
+					Assert.assertEquals(list.get(i).toString(), listOpt.get(i).toString());
+			}
+		}
+
+		// Optimizer only runs when using '-optimize': Cheaper operand ('POS') is evaluated first
+		String expression = "(ANN[*].EFFECT = 'missense_variant') & (POS > 100000)";
+		String args[] = { "filter", "-f", "test/test03.ann.vcf", expression };
+		SnpSiftCmdFilter snpSiftFilter = (SnpSiftCmdFilter) new SnpSift(args).cmd();
+		Assert.assertEquals("( ( ANN[*].EFFECT == missense_variant ) & ( POS > 100000 ) )", snpSiftFilter.parseExpression(expression).toString());
+
+		String argsOpt[] = { "filter", "-optimize", "-f", "test/test03.ann.vcf", expression };
+		SnpSiftCmdFilter snpSiftFilterOpt = (SnpSiftCmdFilter) new SnpSift(argsOpt).cmd();
+		Assert.assertEquals("( ( POS > 100000 ) & ( ANN[*].EFFECT == missense_variant ) )", snpSiftFilterOpt.parseExpression(expression).toString());
+	}
+
+	/**
+	 * Cheap operands are evaluated first, so expensive ones are skipped (short-circuit)
+	 */
+	public void test_64_optimize_explain() {
+		Gpr.debug("Test");
+
+		// Expression: "(ANN[*].EFFECT = 'missense_variant') & (POS < 0)"
+		Field fieldEff = new FieldEff("EFFECT", new Literal("*"), null, "ANN");
+		fieldEff.setExceptionIfNotFound(false);
+		ExpressionCounter exprEff = new ExpressionCounter(new Eq(fieldEff, new Literal("missense_variant")));
+		Field fieldPos = new Field("POS");
+		ExpressionCounter exprPos = new ExpressionCounter(new Lt(fieldPos, new Literal(0)));
+		Expression expr = new And(exprEff, exprPos).optimize();
+		if (verbose) System.out.println("Optimized expression: " + expr);
+		Assert.assertEquals("( ( POS < 0 ) & ( ANN[*].EFFECT == missense_variant ) )", expr.toString());
+
+		// Evaluate
+		int count = 0;
+		VcfFileIterator vcf = new VcfFileIterator("test/test03.ann.vcf");
+		for (VcfEntry ve : vcf) {
+			Assert.assertFalse(expr.eval(ve).asBool());
+			count++;
+		}
+		vcf.close();
+
+		// Expensive operand is never evaluated
+		Assert.assertEquals(count, exprPos.getCount());
+		Assert.assertEquals(0, exprEff.getCount());
+
+		// Show tree using 'explain'
+		LangFactory langFactory = new LangFactory();
+		ExpressionCounter exprExplain = ExpressionCounter.instrument(langFactory.compile("(ANN[*].EFFECT = 'missense_variant') & (POS < 0)").optimize());
+		vcf = new VcfFileIterator("test/test03.ann.vcf");
+		for (VcfEntry ve : vcf)
+			exprExplain.eval(ve);
+		vcf.close();
+
+		String tree = exprExplain.toStringTree();
+		if (verbose) System.out.println(tree);
+		Assert.assertEquals(count, exprExplain.getCount());
+		Assert.assertTrue(tree.contains("ANN[*].EFFECT"));
+	}
+
+	/**
+	 * Packed genotype calls must give the same results as VcfGenotypes
+	 */
+	public void test_65_packed_genotypes() {
+		Gpr.debug("Test");
+
+		for (String vcfFileName : new String[] { "test/test02.vcf", "test/gt_test.01.vcf", "test/test57.vcf", "test/caseContorlStudies.vcf" }) {
+			if (verbose) System.out.println("File: " + vcfFileName);
+			VcfFileIterator vcf = new VcfFileIterator(vcfFileName);
+			for (VcfEntry ve : vcf) {
+				PackedGenotypes packed = new VcfEntryNoGt(vcf, ve.toString(), 0, true).getPackedGenotypes();
+
+				int countHet = 0, countHom = 0, countVariant = 0, sampleNum = 0;
+				for (VcfGenotype gen : ve) {
+					Assert.assertEquals(gen.isHeterozygous(), packed.isHet(sampleNum));
+					Assert.assertEquals(gen.isHomozygous(), packed.isHom(sampleNum));
+					Assert.assertEquals(gen.isVariant(), packed.isVariant(sampleNum));
+
+					if (gen.isHeterozygous()) countHet++;
+					if (gen.isHomozygous()) countHom++;
+					if (gen.isVariant()) countVariant++;
+					sampleNum++;
+				}
+
+				Assert.assertEquals(sampleNum, packed.getNumSamples());
+				Assert.assertEquals(countHet, packed.countHet());
+				Assert.assertEquals(countHom, packed.countHom());
+				Assert.assertEquals(countVariant, packed.countVariant());
+				Assert.assertEquals(sampleNum - countVariant, packed.countRef());
+			}
+			vcf.close();
+		}
+	}
+
+	/**
+	 * Set lookups using set indexes: 'in SET[]' and 'hasAny()'
+	 */
+	public void test_66_sets() {
+		Gpr.debug("Test");
+		String setFile = "test/set_genes_test01.txt";
+		String vcfFile = "test/test03.ann.vcf";
+
+		HashSet<String> genes = new HashSet<>();
+		for (String gene : Gpr.readFile(setFile).split("\n"))
+			genes.add(gene.trim());
+
+		// Set index: Same lookups as HashSet
+		StringSetIndex setIndex = new StringSetIndex(genes);
+		Assert.assertEquals(genes.size(), setIndex.size());
+		for (String gene : genes) {
+			Assert.assertTrue(setIndex.contains(gene));
+			Assert.assertTrue(setIndex.contains("x" + gene + "x", 1, gene.length() + 1));
+			Assert.assertFalse(setIndex.contains(gene + "x"));
+			Assert.assertTrue(setIndex.containsAnyToken("A|" + gene + "|B", HasAny.SEPARATORS));
+			Assert.assertFalse(setIndex.containsAnyToken("A|" + gene + "x|B", HasAny.SEPARATORS));
+		}
+
+		// Empty tokens are the same as splitting the string (trailing empty tokens are removed)
+		HashSet<String> setEmpty = new HashSet<>(Arrays.asList("", "A"));
+		StringSetIndex setIndexEmpty = new StringSetIndex(setEmpty);
+		for (String str : new String[] { "", "B", ",B", "B,,C", "B,C,,", "(B)", "B|A", "AA" }) {
+			boolean expected = false;
+			for (String token : str.split(Has.SPLIT_REGEX))
+				expected |= setEmpty.contains(token);
+			Assert.assertEquals("String '" + str + "'", expected, setIndexEmpty.containsAnyToken(str, HasAny.SEPARATORS));
+		}
+
+		// Filter using 'hasAny': Same as splitting the whole 'ANN' field
+		SnpSiftCmdFilter snpsiftFilter = new SnpSiftCmdFilter();
+		snpsiftFilter.addSet(setFile);
+		List<VcfEntry> list = snpsiftFilter.filter(vcfFile, "hasAny(ANN, 0)", true);
+
+		// Filter using 'in SET[]' on each gene
+		snpsiftFilter = new SnpSiftCmdFilter();
+		snpsiftFilter.addSet(setFile);
+		List<VcfEntry> listGenes = snpsiftFilter.filter(vcfFile, "ANN[*].GENE in SET[0]", true);
+
+		int countAny = 0, countGenes = 0;
+		for (VcfEntry ve : new VcfFileIterator(vcfFile)) {
+			String ann = ve.getInfo("ANN");
+
+			boolean any = false;
+			for (String token : ann.split(Has.SPLIT_REGEX))
+				any |= genes.contains(token);
+			if (any) countAny++;
+
+			boolean gene = false;
+			for (String eff : ann.split(",")) {
+				String fields[] = eff.split("\\|");
+				gene |= fields.length > 3 && genes.contains(fields[3]);
+			}
+			if (gene) countGenes++;
+		}
+
+		if (verbose) System.out.println("Entries: hasAny " + countAny + ", in SET " + countGenes);
+		Assert.assertTrue(countGenes > 0);
+		Assert.assertEquals(countAny, list.size());
+		Assert.assertEquals(countGenes, listGenes.size());
+	}
+
+	/**
+	 * Prepared expressions: Field types are resolved using the VCF header and results are
+	 * stored in the evaluation state (i.e. FieldIterator, one per thread), never shared
+	 */
+	public void test_67_prepare() {
+		Gpr.debug("Test");
+		VcfFileIterator vcf = new VcfFileIterator("test/test01.vcf");
+		List<VcfEntry> vcfEntries = new ArrayList<>();
+		for (VcfEntry ve : vcf)
+			vcfEntries.add(ve);
+		vcf.close();
+
+		// Not prepared: Each evaluation creates a new value
+		LangFactory langFactory = new LangFactory();
+		Expression expr = langFactory.compile("DP + 1");
+		VcfEntry ve0 = vcfEntries.get(0);
+		Assert.assertNotSame(expr.eval(ve0), expr.eval(ve0));
+
+		// Prepare: One result per node ('+', 'DP' and '1')
+		Assert.assertEquals(3, expr.prepare(ve0.getVcfFileIterator().getVcfHeader(), false, 0));
+
+		// Each evaluation state holds its own results
+		FieldIterator fieldIterator = new FieldIterator();
+		FieldIterator fieldIteratorOther = new FieldIterator();
+		for (VcfEntry ve : vcfEntries) {
+			long dp = Gpr.parseLongSafe(ve0.getInfo("DP")) + 1;
+			Value value = expr.eval(ve0, fieldIterator);
+			Assert.assertSame(value, expr.eval(ve0, fieldIterator)); // Result is re-used
+
+			Value valueOther = expr.eval(ve, fieldIteratorOther);
+			Assert.assertEquals(dp, value.asInt()); // Not changed by evaluating using another state
+			Assert.assertEquals(Gpr.parseLongSafe(ve.getInfo("DP")) + 1, valueOther.asInt());
+		}
+	}
+
+	/**
+	 * Compiled nodes: Fixed VCF columns, INFO fields (once their types are resolved
+	 * using the VCF header), operators and literals. Sub-fields (e.g. 'DP4[0]',
+	 * 'ANN[*].GENE') and functions are evaluated using the interpreter
+	 */
+	public void test_68_compile_nodes() {
+		Gpr.debug("Test");
+		VcfFileIterator vcf = new VcfFileIterator("test/test01.vcf");
+		List<VcfEntry> vcfEntries = new ArrayList<>();
+		for (VcfEntry ve : vcf)
+			vcfEntries.add(ve);
+		vcf.close();
+		VcfHeader vcfHeader = vcfEntries.get(0).getVcfFileIterator().getVcfHeader();
+
+		// Expression: "((DP > 5) & (FQ < -50.0)) | ((CI95 =~ '^0,') | (DP4[0] > countHet()))"
+		Field dp = new Field("DP");
+		Field fq = new Field("FQ");
+		Field ci95 = new Field("CI95");
+		Field dp4 = new FieldSub("DP4", new Literal(0));
+		CountHet countHet = new CountHet();
+		Expression expr = new Or(new And(new Gt(dp, new Literal(5)), new Lt(fq, new Literal(-50.0))), new Or(new Match(ci95, new Literal("^0,")), new Gt(dp4, countHet)));
+
+		// INFO field types are only known once the expression is prepared
+		Assert.assertTrue(new Field("POS").isCompilable());
+		Assert.assertFalse(dp.isCompilable());
+		expr.prepare(vcfHeader, false, 0);
+
+		Assert.assertTrue(expr.isCompilable());
+		Assert.assertTrue(dp.isCompilable());
+		Assert.assertTrue(fq.isCompilable());
+		Assert.assertTrue(ci95.isCompilable());
+		Assert.assertFalse(dp4.isCompilable());
+		Assert.assertFalse(countHet.isCompilable());
+
+		// Compiled INFO fields have the same types and values as the interpreter
+		CompiledExpression compiled = expr.compile();
+		CompiledExpression dpCompiled = dp.compile();
+		CompiledExpression ci95Compiled = ci95.compile();
+		FieldIterator fieldIterator = new FieldIterator();
+		FieldIterator fieldIteratorCompiled = new FieldIterator();
+		int count = 0;
+		for (VcfEntry ve : vcfEntries) {
+			Assert.assertTrue(dpCompiled.eval(ve, fieldIteratorCompiled).isInt());
+			Assert.assertEquals(dp.eval(ve, fieldIterator).asInt(), dpCompiled.eval(ve, fieldIteratorCompiled).asInt());
+			Assert.assertTrue(ci95Compiled.eval(ve, fieldIteratorCompiled).isString()); // Multiple values
+			Assert.assertEquals(ci95.eval(ve, fieldIterator).asString(), ci95Compiled.eval(ve, fieldIteratorCompiled).asString());
+
+			boolean eval = expr.eval(ve, fieldIterator).asBool();
+			Assert.assertEquals(eval, compiled.eval(ve, fieldIteratorCompiled).asBool());
+			if (eval) count++;
+		}
+		Assert.assertTrue(count > 0);
+	}
+
 }
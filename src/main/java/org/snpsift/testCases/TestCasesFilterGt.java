@@ -6,6 +6,7 @@ import org.junit.Assert;
 import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VcfEntry;
 import org.snpeff.vcf.VcfGenotype;
+import org.snpsift.SnpSift;
 import org.snpsift.SnpSiftCmdFilterGt;
 
 import junit.framework.TestCase;
@@ -83,4 +84,32 @@ public class TestCasesFilterGt extends TestCase {
 		}
 	}
 
+	/**
+	 * Compiled expression (using several threads) must change
+	 * the same genotypes as evaluating the expression tree
+	 */
+	public void test_03() {
+		Gpr.debug("Test");
+		String expressions[] = { "(GQ < 50) | (DP < 20)", "!(GQ >= 50) & exists AD", "PL =~ '^0,'" };
+		String vcfFiles[] = { "test/testGtFilter01.vcf", "test/testGtFilter02.vcf" };
+
+		for (String vcfFile : vcfFiles) {
+			for (String expression : expressions) {
+				if (verbose) System.out.println(vcfFile + "\t" + expression);
+
+				String argsNoCompile[] = { "filterGt", "-noCompile", expression, vcfFile };
+				SnpSiftCmdFilterGt gtfilter = (SnpSiftCmdFilterGt) new SnpSift(argsNoCompile).cmd();
+				List<VcfEntry> expected = gtfilter.run(true);
+
+				String args[] = { "filterGt", "-cpus", "4", expression, vcfFile };
+				SnpSiftCmdFilterGt gtfilterCompiled = (SnpSiftCmdFilterGt) new SnpSift(args).cmd();
+				List<VcfEntry> list = gtfilterCompiled.run(true);
+
+				Assert.assertEquals(expected.size(), list.size());
+				for (int i = 0; i < list.size(); i++)
+					Assert.assertEquals("Expression '" + expression + "', line " + i, expected.get(i).toString(), list.get(i).toString());
+			}
+		}
+	}
+
 }
@@ -1,6 +1,10 @@
 package org.snpsift.testCases;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
 
 import org.snpeff.fileIterator.VcfFileIterator;
 import org.snpeff.interval.Marker;
@@ -9,6 +13,7 @@ import org.snpeff.interval.Variant;
 import org.snpeff.util.Gpr;
 import org.snpeff.vcf.VcfEntry;
 import org.snpsift.annotate.VcfIndex;
+import org.snpsift.util.LruCache;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -132,4 +137,109 @@ public class TestCasesIndex extends TestCase {
 		vcfIndex.close();
 	}
 
+	/**
+	 * Create index using several threads, then load it (memory mapped).
+	 * Query results must be the same
+	 */
+	public void test_03_parallel_mapped_index() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_index_01.vcf";
+
+		// Make sure index file is deleted
+		String indexFileName = dbFileName + "." + VcfIndex.INDEX_EXT;
+		(new File(indexFileName)).delete();
+
+		// Create index file (one chromosome per thread)
+		VcfIndex vcfIndex = new VcfIndex(dbFileName);
+		vcfIndex.setVerbose(verbose);
+		vcfIndex.setNumWorkers(4);
+		vcfIndex.open();
+		vcfIndex.index();
+
+		// Check index file format
+		try (DataInputStream in = new DataInputStream(new FileInputStream(indexFileName))) {
+			Assert.assertEquals(VcfIndex.INDEX_MAGIC, in.readInt());
+			Assert.assertEquals(VcfIndex.INDEX_FORMAT_VERSION, in.readInt());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Load (memory map) index file
+		VcfIndex vcfIndexMapped = new VcfIndex(dbFileName);
+		vcfIndexMapped.setVerbose(verbose);
+		vcfIndexMapped.open();
+		vcfIndexMapped.index();
+
+		// Compare results
+		if (verbose) Gpr.debug("Checking");
+		VcfFileIterator vcf = new VcfFileIterator(dbFileName);
+		for (VcfEntry ve : vcf) {
+			for (Variant var : ve.variants()) {
+				Markers results = vcfIndex.query(var);
+				Markers resultsMapped = vcfIndexMapped.query(var);
+
+				Assert.assertTrue("No results found for entry:\n\t" + ve, resultsMapped.size() > 0);
+				Assert.assertEquals("Number of results differ for entry:\n\t" + ve, results.size(), resultsMapped.size());
+				for (int i = 0; i < results.size(); i++)
+					Assert.assertEquals(results.get(i).toString(), resultsMapped.get(i).toString());
+			}
+		}
+
+		vcfIndex.close();
+		vcfIndexMapped.close();
+	}
+
+	/**
+	 * Leaf nodes cache: Querying the same entries again should not read the file
+	 */
+	public void test_04_leaf_cache() {
+		Gpr.debug("Test");
+		String dbFileName = "./test/db_test_index_01.vcf";
+
+		// Large cache (all leaf nodes fit) vs minimal cache (only the last leaf node is kept)
+		VcfIndex vcfIndex = new VcfIndex(dbFileName);
+		vcfIndex.setVerbose(verbose);
+		vcfIndex.setCacheSize(1000 * 1000);
+		vcfIndex.open();
+		vcfIndex.index();
+
+		VcfIndex vcfIndexNoCache = new VcfIndex(dbFileName);
+		vcfIndexNoCache.setVerbose(verbose);
+		vcfIndexNoCache.setCacheSize(0);
+		vcfIndexNoCache.open();
+		vcfIndexNoCache.index();
+
+		long misses = 0, missesNoCache = 0;
+		LruCache<Long, List<VcfEntry>> cache = vcfIndex.getLeafCache();
+		LruCache<Long, List<VcfEntry>> cacheNoCache = vcfIndexNoCache.getLeafCache();
+		for (int pass = 0; pass < 2; pass++) {
+			VcfFileIterator vcf = new VcfFileIterator(dbFileName);
+			for (VcfEntry ve : vcf) {
+				for (Variant var : ve.variants()) {
+					Markers results = vcfIndex.query(var);
+					Markers resultsNoCache = vcfIndexNoCache.query(var);
+
+					Assert.assertEquals("Number of results differ for entry:\n\t" + ve, resultsNoCache.size(), results.size());
+					for (int i = 0; i < results.size(); i++)
+						Assert.assertEquals(resultsNoCache.get(i).toString(), results.get(i).toString());
+				}
+			}
+
+			if (verbose) System.out.println("Pass " + pass + "\n\t" + cache.toStringStats() + "\n\t" + cacheNoCache.toStringStats());
+
+			if (pass == 0) {
+				misses = cache.getMisses();
+				missesNoCache = cacheNoCache.getMisses();
+				Assert.assertTrue(cacheNoCache.size() <= 1);
+			} else {
+				// All leaf nodes were cached in the first pass
+				Assert.assertEquals(misses, cache.getMisses());
+				Assert.assertTrue(cacheNoCache.getMisses() > missesNoCache);
+			}
+		}
+
+		vcfIndex.close();
+		vcfIndexNoCache.close();
+	}
+
 }
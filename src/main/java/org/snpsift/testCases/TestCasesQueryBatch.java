@@ -0,0 +1,244 @@
+package org.snpsift.testCases;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Assert;
+import org.snpeff.interval.Chromosome;
+import org.snpeff.interval.Genome;
+import org.snpeff.interval.Variant;
+import org.snpeff.util.Gpr;
+import org.snpeff.vcf.VcfEntry;
+import org.snpsift.SnpSift;
+import org.snpsift.SnpSiftCmdAnnotate;
+import org.snpsift.SnpSiftCmdDbNsfp;
+import org.snpsift.annotate.QueryRegion;
+import org.snpsift.fileIterator.DbNsfp;
+import org.snpsift.fileIterator.DbNsfpEntry;
+import org.snpsift.util.TabixReadAhead;
+
+import junit.framework.TestCase;
+
+/**
+ * Batched database queries: Coalescing queries into regions (QueryRegion)
+ * and comparing batched and unbatched results
+ *
+ * @author pcingola
+ */
+public class TestCasesQueryBatch extends TestCase {
+
+	public static boolean debug = false;
+	public static boolean verbose = false || debug;
+
+	Genome genome = new Genome();
+
+	/**
+	 * Annotate using 'annotate' command, return all entries as a string
+	 */
+	String annotate(String dbFileName, String fileName, String... extraArgs) {
+		List<String> args = new ArrayList<>();
+		args.add("annotate");
+		args.addAll(Arrays.asList(extraArgs));
+		args.add(dbFileName);
+		args.add(fileName);
+
+		SnpSift snpSift = new SnpSift(args.toArray(new String[0]));
+		SnpSiftCmdAnnotate cmd = (SnpSiftCmdAnnotate) snpSift.cmd();
+		cmd.setDebug(debug);
+		cmd.setVerbose(verbose);
+		cmd.setSuppressOutput(!verbose);
+		return toString(cmd.run(true));
+	}
+
+	/**
+	 * Compare batched and unbatched annotations
+	 */
+	void annotateCompare(String dbFileName, String fileName, String method) {
+		String expected = annotate(dbFileName, fileName, method);
+		String batch = annotate(dbFileName, fileName, method, "-queryBatch", "7");
+		if (verbose) System.out.println(batch);
+		Assert.assertEquals(expected, batch);
+	}
+
+	/**
+	 * Annotate using 'dbnsfp' command, return all entries as a string
+	 */
+	String annotateDbNsfp(String dbFileName, String fileName, String... extraArgs) {
+		List<String> args = new ArrayList<>();
+		args.add("dbNsfp");
+		args.addAll(Arrays.asList(extraArgs));
+		args.add(fileName);
+
+		SnpSift snpSift = new SnpSift(args.toArray(new String[0]));
+		SnpSiftCmdDbNsfp cmd = (SnpSiftCmdDbNsfp) snpSift.cmd();
+		cmd.setDbFileName(dbFileName);
+		cmd.setDebug(debug);
+		cmd.setVerbose(verbose);
+		cmd.setSuppressOutput(!verbose);
+		cmd.setTabixCheck(false);
+		return toString(cmd.run(true));
+	}
+
+	Variant snp(String chr, int pos) {
+		return new Variant(genome.getOrCreateChromosome(chr), pos, "A", "G");
+	}
+
+	String toString(List<VcfEntry> vcfEntries) {
+		Assert.assertTrue(vcfEntries != null && !vcfEntries.isEmpty());
+		StringBuilder sb = new StringBuilder();
+		for (VcfEntry ve : vcfEntries)
+			sb.append(ve + "\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Queries closer than MAX_GAP are coalesced (the limit is inclusive)
+	 */
+	public void test_01_coalesce_max_gap() {
+		Gpr.debug("Test");
+		List<Variant> queries = new ArrayList<>();
+		queries.add(snp("1", 100));
+		queries.add(snp("1", 100 + QueryRegion.MAX_GAP)); // Same region
+		queries.add(snp("1", 100 + 2 * QueryRegion.MAX_GAP + 1)); // One base too far: New region
+
+		List<QueryRegion> regions = QueryRegion.coalesce(queries);
+		if (verbose) Gpr.debug(regions);
+		Assert.assertEquals(2, regions.size());
+		Assert.assertEquals(Arrays.asList(0, 1), regions.get(0).getQueryIdx());
+		Assert.assertEquals(100, regions.get(0).getStart());
+		Assert.assertEquals(100 + QueryRegion.MAX_GAP, regions.get(0).getEnd());
+		Assert.assertEquals(Arrays.asList(2), regions.get(1).getQueryIdx());
+	}
+
+	/**
+	 * Regions are not extended beyond MAX_REGION_SIZE (the limit is inclusive)
+	 */
+	public void test_02_coalesce_max_region_size() {
+		Gpr.debug("Test");
+		Chromosome chr = genome.getOrCreateChromosome("1");
+		List<Variant> queries = new ArrayList<>();
+		queries.add(new Variant(chr, 0, 0, ""));
+		queries.add(new Variant(chr, 500, QueryRegion.MAX_REGION_SIZE, "")); // Region size is exactly MAX_REGION_SIZE: Same region
+		queries.add(new Variant(chr, QueryRegion.MAX_REGION_SIZE + 1, QueryRegion.MAX_REGION_SIZE + 1, "")); // Adjacent, but region would be too large
+		queries.add(new Variant(chr, QueryRegion.MAX_REGION_SIZE + 2, QueryRegion.MAX_REGION_SIZE + 2, ""));
+
+		List<QueryRegion> regions = QueryRegion.coalesce(queries);
+		if (verbose) Gpr.debug(regions);
+		Assert.assertEquals(2, regions.size());
+		Assert.assertEquals(Arrays.asList(0, 1), regions.get(0).getQueryIdx());
+		Assert.assertEquals(QueryRegion.MAX_REGION_SIZE, regions.get(0).getEnd() - regions.get(0).getStart());
+		Assert.assertEquals(Arrays.asList(2, 3), regions.get(1).getQueryIdx());
+	}
+
+	/**
+	 * Queries from different chromosomes (unsorted) are never coalesced,
+	 * each region keeps the original query numbers
+	 */
+	public void test_03_coalesce_chromosomes() {
+		Gpr.debug("Test");
+		List<Variant> queries = new ArrayList<>();
+		queries.add(snp("2", 200));
+		queries.add(snp("1", 150));
+		queries.add(snp("2", 100));
+		queries.add(snp("1", 100));
+
+		List<QueryRegion> regions = QueryRegion.coalesce(queries);
+		if (verbose) Gpr.debug(regions);
+		Assert.assertEquals(2, regions.size());
+
+		Assert.assertEquals("1", regions.get(0).getChromosomeName());
+		Assert.assertEquals(Arrays.asList(3, 1), regions.get(0).getQueryIdx());
+		Assert.assertEquals("2", regions.get(1).getChromosomeName());
+		Assert.assertEquals(Arrays.asList(2, 0), regions.get(1).getQueryIdx());
+
+		// Only queries in the region intersecting [150, 199] are found
+		List<Integer> found = new ArrayList<>();
+		regions.get(1).intersecting(queries, 150, 199, found::add);
+		Assert.assertTrue(found.isEmpty());
+		regions.get(1).intersecting(queries, 150, 200, found::add);
+		Assert.assertEquals(Arrays.asList(0), found);
+	}
+
+	/**
+	 * VCF entry intervals: Same as tabix (REF length, or INFO 'END' field)
+	 */
+	public void test_04_interval_vcf() {
+		Gpr.debug("Test");
+		int interval[] = new int[2];
+
+		Assert.assertEquals("1", TabixReadAhead.intervalVcf("1\t100\t.\tA\tG\t.\t.\tAF=0.1", interval));
+		Assert.assertArrayEquals(new int[] { 99, 100 }, interval);
+
+		Assert.assertEquals("1", TabixReadAhead.intervalVcf("1\t100\t.\tACGT\tA\t.\t.\t.", interval));
+		Assert.assertArrayEquals(new int[] { 99, 103 }, interval);
+
+		Assert.assertEquals("2", TabixReadAhead.intervalVcf("2\t100\tdel1\tN\t<DEL>\t.\t.\tSVTYPE=DEL;END=5000;AF=0.1", interval));
+		Assert.assertArrayEquals(new int[] { 99, 5000 }, interval);
+
+		// No INFO column
+		Assert.assertEquals("2", TabixReadAhead.intervalVcf("2\t100\t.\tAC\tA", interval));
+		Assert.assertArrayEquals(new int[] { 99, 101 }, interval);
+
+		Assert.assertNull(TabixReadAhead.intervalVcf("2\tpos\t.\tAC\tA", interval));
+	}
+
+	/**
+	 * Batched and unbatched annotations are the same
+	 */
+	public void test_05_annotate_batch() {
+		Gpr.debug("Test");
+		for (String method : new String[] { "-tabix", "-sorted", "-mem" }) {
+			if (verbose) Gpr.debug("Method: " + method);
+			annotateCompare("./test/db_test_1.vcf", "./test/annotate_1.vcf", method);
+			annotateCompare("./test/db_test_large.vcf", "./test/annotate_large.vcf", method);
+			annotateCompare("./test/db_test_chr22.vcf", "./test/test_chr22.vcf", method);
+			annotateCompare("./test/annotate_multiple_allele.db.vcf", "./test/annotate_multiple_allele.1.vcf", method);
+		}
+	}
+
+	/**
+	 * Batched and unbatched dbNSFP annotations are the same
+	 */
+	public void test_06_dbnsfp_batch() {
+		Gpr.debug("Test");
+		String dbFileName = "test/dbNSFP2.3.test.txt.gz";
+		for (String vcfFileName : new String[] { "test/test_dbNSFP_04.vcf", "test/test_dbNSFP_05.vcf", "test/test_dbNSFP_06.vcf" }) {
+			String expected = annotateDbNsfp(dbFileName, vcfFileName);
+			String batch = annotateDbNsfp(dbFileName, vcfFileName, "-queryBatch", "3");
+			Assert.assertEquals(expected, batch);
+		}
+	}
+
+	/**
+	 * DbNsfp batched query returns the same entries as one query per variant
+	 */
+	public void test_07_dbnsfp_query_list() {
+		Gpr.debug("Test");
+		String dbFileName = "test/dbNSFP2.0b3.chr1_69134.txt.gz";
+
+		DbNsfp dbNsfp = new DbNsfp(dbFileName);
+		dbNsfp.setVerbose(verbose);
+		dbNsfp.open();
+
+		Chromosome chr = genome.getOrCreateChromosome("1");
+		List<Variant> variants = new ArrayList<>();
+		variants.add(new Variant(chr, 69133, "A", "G"));
+		variants.add(new Variant(chr, 69133, "A", "T"));
+		variants.add(new Variant(chr, 69000, "A", "G")); // Not in database
+		variants.add(new Variant(chr, 69133, "A", "G")); // Repeated query
+
+		List<Collection<DbNsfpEntry>> results = dbNsfp.query(variants);
+		Assert.assertEquals(variants.size(), results.size());
+		for (int i = 0; i < variants.size(); i++) {
+			Collection<DbNsfpEntry> expected = dbNsfp.query(variants.get(i));
+			Assert.assertEquals(expected == null ? 0 : expected.size(), results.get(i).size());
+		}
+		Assert.assertEquals(1, results.get(0).size());
+		Assert.assertEquals(0, results.get(2).size());
+
+		dbNsfp.close();
+	}
+
+}
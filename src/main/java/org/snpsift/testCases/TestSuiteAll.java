@@ -13,14 +13,25 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({ //
 		TestCasesAnnotateCreateIndex.class, // Execute these test cases first to delete and create index files
+		TestCasesAnnotateExactOnly.class, // Uses index files created in 'TestCasesAnnotateCreateIndex' (exact match indexes are created)
 		TestCasesAnnotateMem.class, //
+		TestCasesAnnotateMemCompact.class, //
+		TestCasesAnnotateMultiDb.class, //
+		TestCasesAnnotateSdb.class, //
+		TestCasesAnnotateServer.class, //
+		TestCasesAnnotateSortedJoin.class, //
 		TestCasesAnnotateTabix.class, //
+		TestCasesAnnotateTabixBatch.class, //
+		TestCasesAnnotateTabixReadAhead.class, //
 		TestCasesAnnotateUseIndex.class, // These test cases use the indexes created in 'TestCasesAnnotateCreateIndex'
 		TestCasesCaseControl.class, //
 		TestCasesConcordance.class, //
 		TestCasesDbNsfp.class, // Test that use 'data type cache' files build in previous test
 		TestCasesDbNsfpDeleteCache.class, // Test that delete 'data type cache' files 
+		TestCasesDbNsfpBatch.class, //
+		TestCasesDbNsfpReadAhead.class, //
 		TestCasesExtractFields.class, //
+		TestCasesExtractFieldsParallel.class, //
 		TestCasesFilter.class, //
 		TestCasesFilterALL.class, //
 		TestCasesFilterChrPos.class, //
@@ -33,6 +44,7 @@ import org.junit.runners.Suite.SuiteClasses;
 		TestCasesIntervals.class, //
 		TestCasesLd.class, //
 		TestCasesPrivate.class, //
+		TestCasesQueryBatch.class, //
 		TestCasesSort.class, //
 		TestCasesSplit.class, //
 		TestCasesVarType.class, //
@@ -0,0 +1,568 @@
+package org.snpsift.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Write rows as an Arrow IPC file (a.k.a. 'Feather V2'), so that typed
+ * columns can be loaded directly by analytics tools (e.g. pyarrow, pandas,
+ * polars, DuckDB) or converted to Parquet without parsing text.
+ *
+ * Columns are Bool, Int64, Float64 or Utf8, or (nested) lists of them (see
+ * 'Column.listDepth'). Columns without a type are typed using the values
+ * in the first record batch (e.g. Int64 and Float64 values are Float64,
+ * any other mix is Utf8).
+ *
+ * Rows are buffered and written in record batches of 'batchSize' rows.
+ * Values are Boolean, Long, Double, String or List objects, converted to
+ * the column's type. Values that cannot be converted (e.g. '.' in a numeric
+ * column) are written as nulls, single values in list columns are written
+ * as one element lists.
+ *
+ * Format: https://arrow.apache.org/docs/format/Columnar.html (IPC file format, metadata version V5)
+ *
+ * Note: This class is not thread safe
+ * Note: Closing the writer only flushes it, the output stream is not closed (e.g. System.out)
+ *
+ * @author pcingola
+ */
+public class ArrowWriter implements AutoCloseable {
+
+	/**
+	 * Column (leaf) types
+	 */
+	public enum Type {
+		BOOL, INT, FLOAT, UTF8
+	}
+
+	/**
+	 * A column: Name, type (null means 'use the values in the first batch') and list nesting depth
+	 */
+	public static class Column {
+
+		final String name;
+		Type type;
+		final int listDepth; // Zero: Values, one: Lists of values, two: Lists of lists, etc.
+
+		public Column(String name, Type type, int listDepth) {
+			this.name = name;
+			this.type = type;
+			this.listDepth = listDepth;
+		}
+
+		public int getListDepth() {
+			return listDepth;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		@Override
+		public String toString() {
+			String str = (type != null ? type.toString() : "?");
+			for (int i = 0; i < listDepth; i++)
+				str = "List<" + str + ">";
+			return name + ": " + str;
+		}
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+	public static final byte MAGIC[] = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+
+	// Constants from Arrow's flatbuffer schemas (Schema.fbs, Message.fbs)
+	static final int METADATA_VERSION_V5 = 4;
+	static final int MESSAGE_HEADER_SCHEMA = 1;
+	static final int MESSAGE_HEADER_RECORD_BATCH = 3;
+	static final int TYPE_INT = 2;
+	static final int TYPE_FLOATING_POINT = 3;
+	static final int TYPE_UTF8 = 5;
+	static final int TYPE_BOOL = 6;
+	static final int TYPE_LIST = 12;
+	static final int PRECISION_DOUBLE = 2;
+	static final int ENDIANNESS_LITTLE = 0;
+
+	OutputStream out;
+	long position; // Bytes written so far
+	List<Column> columns;
+	int batchSize;
+	List<Object[]> rows; // Rows in the current batch
+	boolean schemaWritten;
+	List<long[]> recordBatchBlocks; // Record batches written so far: File offset, metadata length, body length
+
+	// Record batch being created
+	List<long[]> nodes; // Field nodes: Length, null count
+	List<long[]> buffers; // Buffers: Offset, length (relative to the body)
+	ByteArrayOutputStream body;
+
+	public ArrowWriter(OutputStream out, List<Column> columns) {
+		this(out, columns, DEFAULT_BATCH_SIZE);
+	}
+
+	public ArrowWriter(OutputStream out, List<Column> columns, int batchSize) {
+		this.out = new BufferedOutputStream(out, LineWriter.DEFAULT_BUFFER_SIZE);
+		this.columns = columns;
+		this.batchSize = Math.max(batchSize, 1);
+		rows = new ArrayList<>();
+		recordBatchBlocks = new ArrayList<>();
+	}
+
+	/**
+	 * Add a row (one value per column)
+	 */
+	public void add(Object row[]) {
+		if (row.length != columns.size()) throw new RuntimeException("Row has " + row.length + " values, expected " + columns.size());
+		rows.add(row);
+		if (rows.size() >= batchSize) flushBatch();
+	}
+
+	/**
+	 * Add a buffer to the record batch body (buffers are padded to 8 bytes)
+	 */
+	void addBuffer(byte data[], int len) {
+		buffers.add(new long[] { body.size(), len });
+		body.write(data, 0, len);
+		while (body.size() % 8 != 0)
+			body.write(0);
+	}
+
+	/**
+	 * Add a column's field nodes and buffers (and its children's) to the record batch
+	 * @param values : One value per row (lists for list columns)
+	 */
+	void addColumn(List<Object> values, Type type, int listDepth) {
+		int len = values.size();
+
+		// Convert values
+		for (int i = 0; i < len; i++) {
+			Object value = values.get(i);
+			if (listDepth > 0) values.set(i, toList(value));
+			else values.set(i, convert(value, type));
+		}
+
+		// Validity bitmap (omitted if there are no nulls)
+		byte validity[] = new byte[(len + 7) / 8];
+		int nullCount = 0;
+		for (int i = 0; i < len; i++) {
+			if (values.get(i) != null) validity[i / 8] |= 1 << (i % 8);
+			else nullCount++;
+		}
+		nodes.add(new long[] { len, nullCount });
+		addBuffer(validity, nullCount > 0 ? validity.length : 0);
+
+		// Lists: Offsets and child values
+		if (listDepth > 0) {
+			ByteBuffer offsets = newBuffer(4 * (len + 1));
+			List<Object> items = new ArrayList<>();
+			offsets.putInt(0);
+			for (Object value : values) {
+				if (value != null) items.addAll((List<?>) value);
+				offsets.putInt(items.size());
+			}
+			addBuffer(offsets.array(), offsets.position());
+			addColumn(items, type, listDepth - 1);
+			return;
+		}
+
+		// Values
+		switch (type) {
+		case BOOL:
+			byte bits[] = new byte[(len + 7) / 8];
+			for (int i = 0; i < len; i++)
+				if (values.get(i) == Boolean.TRUE) bits[i / 8] |= 1 << (i % 8);
+			addBuffer(bits, bits.length);
+			break;
+
+		case INT:
+			ByteBuffer longs = newBuffer(8 * len);
+			for (Object value : values)
+				longs.putLong(value != null ? (Long) value : 0L);
+			addBuffer(longs.array(), longs.position());
+			break;
+
+		case FLOAT:
+			ByteBuffer doubles = newBuffer(8 * len);
+			for (Object value : values)
+				doubles.putDouble(value != null ? (Double) value : 0.0);
+			addBuffer(doubles.array(), doubles.position());
+			break;
+
+		case UTF8:
+			ByteBuffer strOffsets = newBuffer(4 * (len + 1));
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			strOffsets.putInt(0);
+			for (Object value : values) {
+				if (value != null) {
+					byte bytes[] = ((String) value).getBytes(StandardCharsets.UTF_8);
+					data.write(bytes, 0, bytes.length);
+				}
+				strOffsets.putInt(data.size());
+			}
+			addBuffer(strOffsets.array(), strOffsets.position());
+			addBuffer(data.toByteArray(), data.size());
+			break;
+
+		default:
+			throw new RuntimeException("Unknown type '" + type + "'");
+		}
+	}
+
+	/**
+	 * Write pending rows and the file's footer
+	 */
+	@Override
+	public void close() {
+		if (!rows.isEmpty()) flushBatch();
+		if (!schemaWritten) writeSchema(); // No rows
+
+		try {
+			// End of stream marker
+			writeInt(-1);
+			writeInt(0);
+
+			writeFooter();
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Convert a value to a column's type
+	 * @return Converted value or null if it cannot be converted
+	 */
+	Object convert(Object value, Type type) {
+		if (value == null) return null;
+
+		// Lists in a column of values: Only single values can be converted
+		if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			if (list.size() == 1) return convert(list.get(0), type);
+			if (type != Type.UTF8) return null;
+			StringBuilder sb = new StringBuilder();
+			for (Object v : list)
+				sb.append(sb.length() > 0 ? "," : "").append(v);
+			return sb.toString();
+		}
+
+		switch (type) {
+		case BOOL:
+			if (value instanceof Boolean) return value;
+			if (value instanceof Number) return ((Number) value).doubleValue() != 0.0;
+			if (value.equals("true")) return Boolean.TRUE;
+			if (value.equals("false")) return Boolean.FALSE;
+			return null;
+
+		case INT:
+			if (value instanceof Long) return value;
+			if (value instanceof Boolean) return ((Boolean) value) ? 1L : 0L;
+			if (value instanceof Double) {
+				double d = (Double) value;
+				return d == Math.rint(d) && !Double.isInfinite(d) ? Long.valueOf((long) d) : null;
+			}
+			try {
+				return Long.parseLong(value.toString());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+		case FLOAT:
+			if (value instanceof Number) return ((Number) value).doubleValue();
+			if (value instanceof Boolean) return ((Boolean) value) ? 1.0 : 0.0;
+			try {
+				return Double.parseDouble(value.toString());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+		case UTF8:
+			return value.toString();
+
+		default:
+			throw new RuntimeException("Unknown type '" + type + "'");
+		}
+	}
+
+	/**
+	 * Create a field (schema) for a column or a list's items
+	 * @return Field's table offset
+	 */
+	int field(FlatBufferBuilder fbb, String name, Type type, int listDepth) {
+		int children[] = new int[0];
+		if (listDepth > 0) children = new int[] { field(fbb, "item", type, listDepth - 1) };
+		int childrenVector = fbb.createOffsetVector(children);
+		int nameOffset = fbb.createString(name);
+
+		// Type
+		int typeType;
+		if (listDepth > 0) {
+			typeType = TYPE_LIST;
+			fbb.startTable(0);
+		} else {
+			switch (type) {
+			case BOOL:
+				typeType = TYPE_BOOL;
+				fbb.startTable(0);
+				break;
+
+			case INT:
+				typeType = TYPE_INT;
+				fbb.startTable(2);
+				fbb.addFieldInt(0, 64); // Bit width
+				fbb.addFieldBool(1, true); // Signed
+				break;
+
+			case FLOAT:
+				typeType = TYPE_FLOATING_POINT;
+				fbb.startTable(1);
+				fbb.addFieldShort(0, PRECISION_DOUBLE);
+				break;
+
+			case UTF8:
+				typeType = TYPE_UTF8;
+				fbb.startTable(0);
+				break;
+
+			default:
+				throw new RuntimeException("Unknown type '" + type + "'");
+			}
+		}
+		int typeOffset = fbb.endTable();
+
+		// Field
+		fbb.startTable(7);
+		fbb.addFieldOffset(0, nameOffset);
+		fbb.addFieldOffset(3, typeOffset);
+		fbb.addFieldOffset(5, childrenVector);
+		fbb.addFieldBool(1, true); // Nullable
+		fbb.addFieldByte(2, typeType);
+		return fbb.endTable();
+	}
+
+	/**
+	 * Write the rows in the current batch as a record batch
+	 */
+	void flushBatch() {
+		if (!schemaWritten) {
+			inferTypes();
+			writeSchema();
+		}
+
+		nodes = new ArrayList<>();
+		buffers = new ArrayList<>();
+		body = new ByteArrayOutputStream();
+		for (int col = 0; col < columns.size(); col++) {
+			List<Object> values = new ArrayList<>(rows.size());
+			for (Object row[] : rows)
+				values.add(row[col]);
+
+			Column column = columns.get(col);
+			addColumn(values, column.type, column.listDepth);
+		}
+
+		// Record batch metadata
+		FlatBufferBuilder fbb = new FlatBufferBuilder();
+		int nodesVector = structVector(fbb, nodes);
+		int buffersVector = structVector(fbb, buffers);
+		fbb.startTable(5);
+		fbb.addFieldLong(0, rows.size());
+		fbb.addFieldOffset(1, nodesVector);
+		fbb.addFieldOffset(2, buffersVector);
+		int recordBatch = fbb.endTable();
+
+		// Write message and body
+		try {
+			long offset = position;
+			int metadataLength = writeMessage(fbb, MESSAGE_HEADER_RECORD_BATCH, recordBatch, body.size());
+			body.writeTo(out);
+			position += body.size();
+			recordBatchBlocks.add(new long[] { offset, metadataLength, body.size() });
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		rows.clear();
+		nodes = buffers = null;
+		body = null;
+	}
+
+	public List<Column> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Type of the values in a column (and lists)
+	 * @return Type or null if all values are null
+	 */
+	Type inferType(Object value, Type type) {
+		if (value == null) return type;
+
+		if (value instanceof List) {
+			for (Object v : (List<?>) value)
+				type = inferType(v, type);
+			return type;
+		}
+
+		Type valueType = Type.UTF8;
+		if (value instanceof Boolean) valueType = Type.BOOL;
+		else if (value instanceof Long) valueType = Type.INT;
+		else if (value instanceof Double) valueType = Type.FLOAT;
+
+		if (type == null || type == valueType) return valueType;
+		if ((type == Type.INT && valueType == Type.FLOAT) || (type == Type.FLOAT && valueType == Type.INT)) return Type.FLOAT;
+		return Type.UTF8;
+	}
+
+	/**
+	 * Set the type of columns without one, using the values in the current batch
+	 */
+	void inferTypes() {
+		for (int col = 0; col < columns.size(); col++) {
+			Column column = columns.get(col);
+			if (column.type != null) continue;
+
+			Type type = null;
+			for (Object row[] : rows)
+				type = inferType(row[col], type);
+			column.type = (type != null ? type : Type.UTF8);
+		}
+	}
+
+	ByteBuffer newBuffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Create a Schema table
+	 */
+	int schema(FlatBufferBuilder fbb) {
+		int fields[] = new int[columns.size()];
+		for (int i = 0; i < fields.length; i++) {
+			Column column = columns.get(i);
+			fields[i] = field(fbb, column.name, column.type, column.listDepth);
+		}
+		int fieldsVector = fbb.createOffsetVector(fields);
+
+		fbb.startTable(4);
+		fbb.addFieldOffset(1, fieldsVector);
+		fbb.addFieldShort(0, ENDIANNESS_LITTLE);
+		return fbb.endTable();
+	}
+
+	/**
+	 * Create a vector of structs having two 'long' values (FieldNode, Buffer)
+	 */
+	int structVector(FlatBufferBuilder fbb, List<long[]> structs) {
+		fbb.startVector(16, structs.size(), 8);
+		for (int i = structs.size() - 1; i >= 0; i--) {
+			fbb.prep(8, 16);
+			fbb.putLong(structs.get(i)[1]);
+			fbb.putLong(structs.get(i)[0]);
+		}
+		return fbb.endVector(structs.size());
+	}
+
+	/**
+	 * A value in a list column: Single values are converted to one element lists
+	 */
+	List<?> toList(Object value) {
+		if (value == null) return null;
+		if (value instanceof List) return (List<?>) value;
+		return Collections.singletonList(value);
+	}
+
+	/**
+	 * Write the footer: Schema and record batch positions
+	 */
+	void writeFooter() throws IOException {
+		FlatBufferBuilder fbb = new FlatBufferBuilder();
+		int schema = schema(fbb);
+
+		// Blocks: Offset, metadata length (int, padded to 8 bytes), body length
+		fbb.startVector(24, 0, 8);
+		int dictionariesVector = fbb.endVector(0);
+		fbb.startVector(24, recordBatchBlocks.size(), 8);
+		for (int i = recordBatchBlocks.size() - 1; i >= 0; i--) {
+			long block[] = recordBatchBlocks.get(i);
+			fbb.prep(8, 24);
+			fbb.putLong(block[2]);
+			fbb.pad(4);
+			fbb.putInt((int) block[1]);
+			fbb.putLong(block[0]);
+		}
+		int recordBatchesVector = fbb.endVector(recordBatchBlocks.size());
+
+		fbb.startTable(5);
+		fbb.addFieldOffset(1, schema);
+		fbb.addFieldOffset(2, dictionariesVector);
+		fbb.addFieldOffset(3, recordBatchesVector);
+		fbb.addFieldShort(0, METADATA_VERSION_V5);
+		byte footer[] = fbb.finish(fbb.endTable());
+
+		out.write(footer);
+		writeInt(footer.length);
+		out.write(MAGIC);
+		position += footer.length + MAGIC.length;
+	}
+
+	void writeInt(int v) throws IOException {
+		for (int i = 0; i < 4; i++)
+			out.write(v >>> (8 * i));
+		position += 4;
+	}
+
+	/**
+	 * Write an encapsulated message: Continuation marker, metadata length and metadata (padded to 8 bytes)
+	 * Note: The message's body is written by the caller
+	 * @return Length of the message, excluding the body
+	 */
+	int writeMessage(FlatBufferBuilder fbb, int headerType, int header, long bodyLength) throws IOException {
+		fbb.startTable(5);
+		fbb.addFieldLong(3, bodyLength);
+		fbb.addFieldOffset(2, header);
+		fbb.addFieldShort(0, METADATA_VERSION_V5);
+		fbb.addFieldByte(1, headerType);
+		byte metadata[] = fbb.finish(fbb.endTable());
+
+		int padding = (8 - metadata.length % 8) % 8;
+		writeInt(-1); // Continuation marker
+		writeInt(metadata.length + padding);
+		out.write(metadata);
+		for (int i = 0; i < padding; i++)
+			out.write(0);
+		position += metadata.length + padding;
+
+		return 8 + metadata.length + padding;
+	}
+
+	/**
+	 * Write file's magic and the schema message
+	 */
+	void writeSchema() {
+		try {
+			out.write(MAGIC);
+			out.write(0);
+			out.write(0);
+			position += MAGIC.length + 2;
+
+			FlatBufferBuilder fbb = new FlatBufferBuilder();
+			writeMessage(fbb, MESSAGE_HEADER_SCHEMA, schema(fbb), 0);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		schemaWritten = true;
+	}
+
+}
@@ -0,0 +1,385 @@
+package org.snpsift.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.BlockGunzipper;
+
+/**
+ * Read a BGZF (bgzip) compressed file, decompressing upcoming blocks
+ * in a thread pool ('read ahead').
+ *
+ * When a block is requested, the next 'blocksInFlight' blocks are
+ * scheduled for decompression, so that they are (hopefully) ready when
+ * the caller needs them. Requesting a block that was not scheduled
+ * (e.g. a 'jump' to a different part of the file) discards all pending
+ * blocks.
+ *
+ * All readers share one thread pool and one (bounded) pool of inflaters,
+ * created using htsjdk's default inflater factory (see BlockGunzipper), so
+ * opening a reader per worker does not multiply decompression threads.
+ *
+ * Positions in the file are BGZF 'virtual offsets', i.e.:
+ * 		(compressed block offset << 16) | (offset within uncompressed block)
+ *
+ * Note: This class is not thread safe (it is meant to be used by a single
+ * consumer, decompression is performed by the shared thread pool)
+ *
+ * @author pcingola
+ */
+public class BgzfReadAhead {
+
+	public static final int DEFAULT_BLOCKS_IN_FLIGHT = 16;
+	public static final int MAX_THREADS = 64; // Maximum size of the shared thread pool
+
+	static ThreadPoolExecutor executor; // Decompression threads, shared by all readers
+	static BlockingQueue<Inflater> inflaters; // Inflaters, shared by all decompression threads
+
+	/**
+	 * A decompressed block
+	 */
+	public static class Block {
+
+		long offset; // Compressed file offset
+		long nextOffset; // Compressed file offset of next block
+		byte data[]; // Uncompressed data
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public long getNextOffset() {
+			return nextOffset;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+	}
+
+	String fileName;
+	RandomAccessFile raf;
+	FileChannel channel;
+	long fileSize;
+	int blocksInFlight;
+	boolean readAhead; // Are blocks decompressed using the shared thread pool?
+	Map<Long, Future<Block>> pending; // Blocks scheduled for decompression (in file order)
+	long readAheadOffset; // Offset of the next block to schedule
+	Block current; // Latest block returned
+	long countBlocks, countReadAhead; // Statistics: Total blocks and blocks served from read ahead
+
+	/**
+	 * Make sure the shared thread pool has (at least) 'numThreads' threads.
+	 * The inflater pool holds one inflater per thread
+	 */
+	static synchronized void initPool(int numThreads) {
+		numThreads = Math.min(numThreads, MAX_THREADS);
+
+		if (executor == null) {
+			// Decompression threads should not prevent the JVM from exiting
+			executor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+				Thread t = new Thread(r, "BgzfReadAhead");
+				t.setDaemon(true);
+				return t;
+			});
+			inflaters = new ArrayBlockingQueue<>(MAX_THREADS + 1);
+		} else if (numThreads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(numThreads);
+			executor.setCorePoolSize(numThreads);
+		}
+	}
+
+	public BgzfReadAhead(String fileName, int numThreads, int blocksInFlight) {
+		this.fileName = fileName;
+		this.blocksInFlight = Math.max(blocksInFlight, 1);
+		pending = new LinkedHashMap<>();
+		readAheadOffset = -1;
+
+		try {
+			raf = new RandomAccessFile(fileName, "r");
+			channel = raf.getChannel();
+			fileSize = channel.size();
+		} catch (IOException e) {
+			throw new RuntimeException("Error opening file '" + fileName + "'", e);
+		}
+
+		readAhead = numThreads > 0;
+		if (readAhead) initPool(numThreads);
+	}
+
+	/**
+	 * Discard all pending blocks
+	 */
+	void cancelPending() {
+		for (Future<Block> f : pending.values())
+			f.cancel(false);
+		pending.clear();
+		readAheadOffset = -1;
+	}
+
+	/**
+	 * Close file. Note: The shared thread pool is not shut down (its threads are daemon threads)
+	 */
+	public void close() {
+		cancelPending();
+		current = null;
+
+		try {
+			if (raf != null) raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		raf = null;
+		channel = null;
+	}
+
+	/**
+	 * Get block at (compressed) file offset 'offset'
+	 */
+	public Block getBlock(long offset) {
+		if (current != null && current.offset == offset) return current;
+		countBlocks++;
+
+		// No read ahead? Decompress in this thread
+		if (!readAhead) {
+			current = readBlock(offset);
+			return current;
+		}
+
+		// Is this block already scheduled? Discard blocks before it.
+		// Otherwise discard all pending blocks and start reading ahead from 'offset'
+		Future<Block> future = null;
+		if (pending.containsKey(offset)) {
+			for (Iterator<Map.Entry<Long, Future<Block>>> it = pending.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Long, Future<Block>> e = it.next();
+				it.remove();
+				if (e.getKey() == offset) {
+					future = e.getValue();
+					break;
+				}
+				e.getValue().cancel(false);
+			}
+			countReadAhead++;
+		} else {
+			cancelPending();
+			future = executor.submit(() -> readBlock(offset));
+			readAheadOffset = nextBlockOffset(offset);
+		}
+
+		// Schedule upcoming blocks
+		readAhead();
+
+		try {
+			current = future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Error reading BGZF block from file '" + fileName + "', offset " + offset, e);
+		}
+
+		return current;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Decompress a block's 'deflate' data using an inflater from the shared pool
+	 */
+	void inflate(byte buffer[], int start, int len, byte data[], long offset) throws DataFormatException {
+		Inflater inflater = inflaters != null ? inflaters.poll() : null;
+		if (inflater == null) inflater = BlockGunzipper.getDefaultInflaterFactory().makeInflater(true);
+
+		try {
+			inflater.reset();
+			inflater.setInput(buffer, start, len);
+			int n = inflater.inflate(data, 0, data.length);
+			if (n != data.length) throw new RuntimeException("Error decompressing BGZF block from file '" + fileName + "', offset " + offset + ": Expected " + data.length + " bytes, got " + n);
+		} finally {
+			// Return inflater to the pool (discard it if the pool is full)
+			if (inflaters == null || !inflaters.offer(inflater)) inflater.end();
+		}
+	}
+
+	/**
+	 * Is 'offset' at (or past) the end of the file?
+	 */
+	public boolean isEof(long offset) {
+		return offset >= fileSize;
+	}
+
+	/**
+	 * Offset of the next block (only the block's header is read)
+	 */
+	long nextBlockOffset(long offset) {
+		if (isEof(offset)) return fileSize;
+		return offset + readBlockSize(offset);
+	}
+
+	/**
+	 * Read bytes at file position 'pos' (positional reads are safe to use from multiple threads)
+	 */
+	void read(long pos, byte buffer[], int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+		while (bb.hasRemaining()) {
+			int n = channel.read(bb, pos + bb.position());
+			if (n < 0) throw new IOException("Unexpected end of file '" + fileName + "', position " + pos);
+		}
+	}
+
+	/**
+	 * Schedule up to 'blocksInFlight' upcoming blocks for decompression
+	 */
+	void readAhead() {
+		while (pending.size() < blocksInFlight && readAheadOffset >= 0 && !isEof(readAheadOffset)) {
+			long offset = readAheadOffset;
+			pending.put(offset, executor.submit(() -> readBlock(offset)));
+			readAheadOffset = nextBlockOffset(offset);
+		}
+	}
+
+	/**
+	 * Read and decompress a block
+	 */
+	Block readBlock(long offset) {
+		try {
+			// Read compressed block
+			int blockSize = readBlockSize(offset);
+			byte buffer[] = new byte[blockSize];
+			read(offset, buffer, blockSize);
+
+			// Uncompressed size: Last 4 bytes (little endian)
+			int isize = (buffer[blockSize - 4] & 0xff) //
+					| ((buffer[blockSize - 3] & 0xff) << 8) //
+					| ((buffer[blockSize - 2] & 0xff) << 16) //
+					| ((buffer[blockSize - 1] & 0xff) << 24);
+
+			// Decompress (raw 'deflate' data, between header and footer)
+			Block block = new Block();
+			block.offset = offset;
+			block.nextOffset = offset + blockSize;
+			block.data = new byte[isize];
+
+			int dataStart = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+			inflate(buffer, dataStart, blockSize - dataStart - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH, block.data, offset);
+			return block;
+		} catch (IOException | DataFormatException e) {
+			throw new RuntimeException("Error reading BGZF block from file '" + fileName + "', offset " + offset, e);
+		}
+	}
+
+	/**
+	 * Read block header and return the (compressed) block size
+	 * Note: BGZF block headers have a fixed size (see BlockCompressedStreamConstants)
+	 */
+	int readBlockSize(long offset) {
+		try {
+			byte header[] = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+			read(offset, header, header.length);
+			if (header[0] != BlockCompressedStreamConstants.GZIP_ID1 //
+					|| header[1] != (byte) BlockCompressedStreamConstants.GZIP_ID2 //
+					|| header[12] != BlockCompressedStreamConstants.BGZF_ID1 //
+					|| header[13] != BlockCompressedStreamConstants.BGZF_ID2 //
+			) throw new RuntimeException("File '" + fileName + "' is not BGZF compressed (offset " + offset + ")");
+
+			return readShort(header, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading BGZF block from file '" + fileName + "', offset " + offset, e);
+		}
+	}
+
+	/**
+	 * Read all lines starting at virtual offsets in [vstart, vend)
+	 */
+	public void readLines(long vstart, long vend, List<String> lines) {
+		long offset = vstart >>> 16;
+		int pos = (int) (vstart & 0xffff);
+		Block block = getBlock(offset);
+
+		byte line[] = null; // Used for lines spanning more than one block
+		int lineLen = 0;
+		while (true) {
+			// End of block? Move to next one
+			if (pos >= block.data.length) {
+				if (isEof(block.nextOffset)) break;
+				block = getBlock(block.nextOffset);
+				pos = 0;
+				continue;
+			}
+
+			// Past the end?
+			long voffset = (block.offset << 16) | pos;
+			if (voffset >= vend) break;
+
+			// Find end of line
+			boolean eol = false;
+			while (!eol) {
+				int end = pos;
+				byte data[] = block.data;
+				while (end < data.length && data[end] != '\n')
+					end++;
+				eol = end < data.length;
+
+				if (eol && line == null) {
+					// Fast path: Line within a single block
+					lines.add(new String(data, pos, end - pos, StandardCharsets.UTF_8));
+				} else {
+					// Append to line buffer
+					int len = end - pos;
+					if (line == null) line = new byte[Math.max(2 * len, 1024)];
+					else if (lineLen + len > line.length) line = Arrays.copyOf(line, Math.max(2 * line.length, lineLen + len));
+					System.arraycopy(data, pos, line, lineLen, len);
+					lineLen += len;
+
+					// Continue on next block?
+					if (!eol) {
+						if (isEof(block.nextOffset)) eol = true;
+						else {
+							block = getBlock(block.nextOffset);
+							pos = 0;
+							continue;
+						}
+					}
+
+					if (lineLen > 0 || end < data.length) lines.add(new String(line, 0, lineLen, StandardCharsets.UTF_8));
+					line = null;
+					lineLen = 0;
+				}
+
+				pos = end + 1;
+			}
+		}
+	}
+
+	/**
+	 * Read a little endian unsigned short
+	 */
+	int readShort(byte buffer[], int idx) {
+		return (buffer[idx] & 0xff) | ((buffer[idx + 1] & 0xff) << 8);
+	}
+
+	public String toStringStats() {
+		return "blocks: " + countBlocks //
+				+ ", read ahead: " + countReadAhead //
+				+ (countBlocks > 0 ? String.format(" (%.1f%%)", (100.0 * countReadAhead) / countBlocks) : "") //
+				;
+	}
+
+}
@@ -0,0 +1,134 @@
+package org.snpsift.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An 'append only' off-heap storage for (small) byte arrays and strings.
+ *
+ * Data is stored in direct ByteBuffers ('chunks'), so it does not add
+ * to the Java heap nor to garbage collection times. Chunk sizes grow
+ * exponentially (up to MAX_CHUNK_SIZE), so small arenas use little memory.
+ *
+ * Each record is referenced by an 'offset': (chunk number << 32) | (position within chunk)
+ *
+ * Note: Appending is not thread safe, reading ('get', 'getString') is
+ *
+ * @author pcingola
+ */
+public class ByteBufferArena {
+
+	public static final int MIN_CHUNK_SIZE = 1024 * 1024;
+	public static final int MAX_CHUNK_SIZE = 1024 * 1024 * 1024;
+
+	List<ByteBuffer> chunks;
+	ByteBuffer current; // Chunk we are appending to
+	long size; // Total bytes stored
+	long capacity; // Total bytes allocated
+
+	public ByteBufferArena() {
+		chunks = new ArrayList<>();
+	}
+
+	/**
+	 * Add a record
+	 * @return Record's offset
+	 */
+	public long add(byte data[]) {
+		int len = data.length;
+		int recordSize = len + 5; // Length (variable length integer) + data
+
+		// Not enough space in current chunk? Allocate a new one
+		if (current == null || current.remaining() < recordSize) {
+			int chunkSize = (current == null ? MIN_CHUNK_SIZE : (int) Math.min(2L * current.capacity(), MAX_CHUNK_SIZE));
+			current = ByteBuffer.allocateDirect(Math.max(chunkSize, recordSize));
+			chunks.add(current);
+			capacity += current.capacity();
+		}
+
+		long offset = (((long) (chunks.size() - 1)) << 32) | current.position();
+
+		// Write length (7 bits per byte) and data
+		int value = len;
+		while ((value & ~0x7F) != 0) {
+			current.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		current.put((byte) value);
+		current.put(data);
+
+		size += len;
+		return offset;
+	}
+
+	/**
+	 * Add a string (UTF8)
+	 * @return Record's offset
+	 */
+	public long add(String str) {
+		return add(str.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Release all chunks (off-heap memory is released when chunks are garbage collected)
+	 * Note: Offsets are no longer valid
+	 */
+	public void close() {
+		chunks.clear();
+		current = null;
+		capacity = 0;
+		size = 0;
+	}
+
+	/**
+	 * Get a record
+	 */
+	public byte[] get(long offset) {
+		ByteBuffer chunk = chunks.get((int) (offset >>> 32));
+		int pos = (int) offset;
+
+		// Read length
+		int len = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = chunk.get(pos++);
+			len |= (b & 0x7F) << shift;
+			if (b >= 0) break;
+		}
+
+		// Read data (use a duplicate buffer so that concurrent readers don't interfere)
+		byte data[] = new byte[len];
+		ByteBuffer bb = chunk.duplicate();
+		bb.position(pos);
+		bb.get(data);
+		return data;
+	}
+
+	/**
+	 * Total bytes allocated (off-heap)
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get a string (UTF8)
+	 */
+	public String getString(long offset) {
+		return new String(get(offset), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Total bytes stored
+	 */
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "Arena: " + chunks.size() + " chunks, size: " + size + " bytes, allocated: " + capacity + " bytes";
+	}
+
+}
@@ -0,0 +1,239 @@
+package org.snpsift.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal FlatBuffers builder, used to write Arrow IPC metadata (see ArrowWriter)
+ *
+ * Same algorithm as the reference implementation: The buffer is filled
+ * from the end to the start (little endian), so objects are created before
+ * the objects referencing them. Only tables, strings and vectors (of offsets
+ * or structs) are supported and vtables are not de-duplicated.
+ *
+ * Note: Only one table can be built at a time (create its strings,
+ * vectors and child tables before 'startTable')
+ * Note: This class is not thread safe
+ *
+ * @author pcingola
+ */
+class FlatBufferBuilder {
+
+	byte buf[];
+	int space; // Data is stored in 'buf[space]' ... 'buf[buf.length - 1]'
+	int minAlign = 1; // Largest alignment used
+	int vtable[]; // Position of each field in the table being built (zero means 'not set')
+	int objectStart; // Start of the table being built
+
+	FlatBufferBuilder() {
+		this(1024);
+	}
+
+	FlatBufferBuilder(int size) {
+		buf = new byte[size];
+		space = size;
+	}
+
+	void addByte(int v) {
+		prep(1, 0);
+		putByte(v);
+	}
+
+	void addFieldBool(int field, boolean v) {
+		addByte(v ? 1 : 0);
+		slot(field);
+	}
+
+	void addFieldByte(int field, int v) {
+		addByte(v);
+		slot(field);
+	}
+
+	void addFieldInt(int field, int v) {
+		addInt(v);
+		slot(field);
+	}
+
+	void addFieldLong(int field, long v) {
+		addLong(v);
+		slot(field);
+	}
+
+	void addFieldOffset(int field, int off) {
+		addOffset(off);
+		slot(field);
+	}
+
+	void addFieldShort(int field, int v) {
+		addShort(v);
+		slot(field);
+	}
+
+	void addInt(int v) {
+		prep(4, 0);
+		putInt(v);
+	}
+
+	void addLong(long v) {
+		prep(8, 0);
+		putLong(v);
+	}
+
+	/**
+	 * Add an offset to an object (relative to the offset's position)
+	 */
+	void addOffset(int off) {
+		prep(4, 0);
+		putInt(offset() - off + 4);
+	}
+
+	void addShort(int v) {
+		prep(2, 0);
+		putShort(v);
+	}
+
+	/**
+	 * Create a vector of offsets (e.g. tables)
+	 */
+	int createOffsetVector(int offsets[]) {
+		startVector(4, offsets.length, 4);
+		for (int i = offsets.length - 1; i >= 0; i--)
+			addOffset(offsets[i]);
+		return endVector(offsets.length);
+	}
+
+	/**
+	 * Create a (null terminated) UTF-8 string
+	 */
+	int createString(String str) {
+		byte bytes[] = str.getBytes(StandardCharsets.UTF_8);
+		addByte(0);
+		startVector(1, bytes.length, 1);
+		space -= bytes.length;
+		System.arraycopy(bytes, 0, buf, space, bytes.length);
+		return endVector(bytes.length);
+	}
+
+	/**
+	 * Finish a table: Write the vtable (field positions relative to the table)
+	 * @return Table's offset
+	 */
+	int endTable() {
+		addInt(0); // Placeholder for the vtable's position
+		int objectOffset = offset();
+
+		for (int i = vtable.length - 1; i >= 0; i--)
+			addShort(vtable[i] != 0 ? objectOffset - vtable[i] : 0);
+		addShort(objectOffset - objectStart); // Table size
+		addShort((vtable.length + 2) * 2); // Vtable size
+
+		// The vtable is located 'vtableOffset - objectOffset' bytes before the table
+		int vtableOffset = offset();
+		putIntAt(buf.length - objectOffset, vtableOffset - objectOffset);
+
+		vtable = null;
+		return objectOffset;
+	}
+
+	/**
+	 * Finish a vector (elements have already been added)
+	 * @return Vector's offset
+	 */
+	int endVector(int numElems) {
+		putInt(numElems);
+		return offset();
+	}
+
+	/**
+	 * Finish the buffer
+	 * @return Buffer bytes (the root table is the first offset)
+	 */
+	byte[] finish(int rootTable) {
+		prep(minAlign, 4);
+		addOffset(rootTable);
+		return Arrays.copyOfRange(buf, space, buf.length);
+	}
+
+	/**
+	 * Make room for 'needed' more bytes
+	 */
+	void grow(int needed) {
+		int used = buf.length - space;
+		int newSize = Math.max(2 * buf.length, used + needed);
+		byte newBuf[] = new byte[newSize];
+		System.arraycopy(buf, space, newBuf, newSize - used, used);
+		space = newSize - used;
+		buf = newBuf;
+	}
+
+	/**
+	 * Current offset (bytes written, counted from the end of the buffer)
+	 */
+	int offset() {
+		return buf.length - space;
+	}
+
+	void pad(int numBytes) {
+		for (int i = 0; i < numBytes; i++)
+			buf[--space] = 0;
+	}
+
+	/**
+	 * Prepare to write an element of 'size' bytes after writing 'additionalBytes':
+	 * Add padding so that the element is aligned to 'size' and make sure there is enough space
+	 */
+	void prep(int size, int additionalBytes) {
+		if (size > minAlign) minAlign = size;
+		int alignSize = (-(offset() + additionalBytes)) & (size - 1);
+		int needed = alignSize + size + additionalBytes;
+		if (space < needed) grow(needed);
+		pad(alignSize);
+	}
+
+	void putByte(int v) {
+		buf[--space] = (byte) v;
+	}
+
+	void putInt(int v) {
+		space -= 4;
+		putIntAt(space, v);
+	}
+
+	void putIntAt(int pos, int v) {
+		for (int i = 0; i < 4; i++)
+			buf[pos + i] = (byte) (v >>> (8 * i));
+	}
+
+	void putLong(long v) {
+		space -= 8;
+		for (int i = 0; i < 8; i++)
+			buf[space + i] = (byte) (v >>> (8 * i));
+	}
+
+	void putShort(int v) {
+		space -= 2;
+		buf[space] = (byte) v;
+		buf[space + 1] = (byte) (v >>> 8);
+	}
+
+	/**
+	 * Field 'field' has just been added to the current table
+	 */
+	void slot(int field) {
+		vtable[field] = offset();
+	}
+
+	void startTable(int numFields) {
+		vtable = new int[numFields];
+		objectStart = offset();
+	}
+
+	/**
+	 * Start a vector of 'numElems' elements of 'elemSize' bytes (elements are added in reverse order)
+	 */
+	void startVector(int elemSize, int numElems, int alignment) {
+		prep(4, elemSize * numElems);
+		prep(alignment, elemSize * numElems);
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.snpsift.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered writer for text lines (e.g. tab separated output)
+ *
+ * Characters are encoded (UTF-8) directly into a re-used byte buffer,
+ * which is written to the output stream only when it is full (or when
+ * flushed). This avoids the overhead of 'System.out.println' on every
+ * line (synchronization, charset encoder, flushing).
+ *
+ * Note: This class is not thread safe
+ * Note: Closing the writer only flushes it, the output stream is not closed (e.g. System.out)
+ *
+ * @author pcingola
+ */
+public class LineWriter implements AutoCloseable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	OutputStream out;
+	byte buffer[];
+	int len;
+
+	public LineWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public LineWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		buffer = new byte[Math.max(bufferSize, 4)];
+	}
+
+	/**
+	 * Append a string (or StringBuilder)
+	 */
+	public LineWriter append(CharSequence str) {
+		int strLen = str.length();
+		for (int i = 0; i < strLen; i++) {
+			char c = str.charAt(i);
+
+			if (c < 0x80) {
+				// ASCII: Most common case
+				if (len >= buffer.length) flushBuffer();
+				buffer[len++] = (byte) c;
+			} else if (Character.isHighSurrogate(c) && (i + 1) < strLen && Character.isLowSurrogate(str.charAt(i + 1))) {
+				appendCodePoint(Character.toCodePoint(c, str.charAt(++i)));
+			} else {
+				appendCodePoint(c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Append a (non-ASCII) code point using UTF-8 encoding
+	 */
+	void appendCodePoint(int cp) {
+		if (len + 4 > buffer.length) flushBuffer();
+
+		if (cp < 0x800) {
+			buffer[len++] = (byte) (0xc0 | (cp >> 6));
+		} else if (cp < 0x10000) {
+			if (Character.isSurrogate((char) cp)) cp = '?'; // Unpaired surrogate
+			else {
+				buffer[len++] = (byte) (0xe0 | (cp >> 12));
+				buffer[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+			}
+		} else {
+			buffer[len++] = (byte) (0xf0 | (cp >> 18));
+			buffer[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+			buffer[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+		}
+
+		buffer[len++] = (byte) (cp < 0x80 ? cp : 0x80 | (cp & 0x3f));
+	}
+
+	/**
+	 * Append a string and a new line
+	 */
+	public LineWriter appendLine(CharSequence str) {
+		append(str);
+		return newLine();
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+
+	/**
+	 * Write buffer and flush output stream
+	 */
+	public void flush() {
+		flushBuffer();
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write buffer to output stream
+	 */
+	void flushBuffer() {
+		if (len <= 0) return;
+		try {
+			out.write(buffer, 0, len);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		len = 0;
+	}
+
+	public LineWriter newLine() {
+		if (len >= buffer.length) flushBuffer();
+		buffer[len++] = '\n';
+		return this;
+	}
+
+}
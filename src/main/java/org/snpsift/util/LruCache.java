@@ -0,0 +1,117 @@
+package org.snpsift.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * A size bounded cache: Least recently used entries are removed first
+ *
+ * The size can be either the number of entries or the total 'weight' of
+ * the values (e.g. number of VCF entries in a list), see 'weigher'.
+ * At least one entry (the most recently added) is always kept.
+ *
+ * Note: This class is not thread safe
+ * Note: When using a 'weigher', only 'get', 'put', 'remove' and 'clear' are supported
+ *
+ * @author pcingola
+ */
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+	private static final long serialVersionUID = 1L;
+
+	int maxSize;
+	ToIntFunction<V> weigher; // Weight of each value (null means that every value has weight 1)
+	long weight; // Total weight (when using 'weigher')
+	long hits, misses; // Statistics
+
+	public LruCache(int maxSize) {
+		this(maxSize, null);
+	}
+
+	/**
+	 * Create a cache bounded by total weight
+	 * @param maxSize : Maximum total weight
+	 * @param weigher : Weight of each value
+	 */
+	public LruCache(int maxSize, ToIntFunction<V> weigher) {
+		super(16, 0.75f, true); // Use access order (i.e. LRU)
+		this.maxSize = maxSize;
+		this.weigher = weigher;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		weight = 0;
+	}
+
+	@Override
+	public V get(Object key) {
+		V value = super.get(key);
+		if (value != null) hits++;
+		else misses++;
+		return value;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getWeight() {
+		return weigher != null ? weight : size();
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (weigher != null) weight += weigher.applyAsInt(value);
+		V old = super.put(key, value);
+		if (weigher != null && old != null) weight -= weigher.applyAsInt(old);
+		return old;
+	}
+
+	@Override
+	public V remove(Object key) {
+		V value = super.remove(key);
+		if (weigher != null && value != null) weight -= weigher.applyAsInt(value);
+		return value;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+		if (weigher == null) return size() > maxSize;
+
+		// Remove least recently used entries until total weight is within limits
+		Iterator<V> it = values().iterator();
+		while ((weight > maxSize) && (size() > 1)) {
+			weight -= weigher.applyAsInt(it.next());
+			it.remove();
+		}
+
+		return false; // Entries have already been removed
+	}
+
+	/**
+	 * Show cache statistics
+	 */
+	public String toStringStats() {
+		long total = hits + misses;
+		return "Cache size: " + size() //
+				+ (weigher != null ? ", weight: " + weight : "") //
+				+ ", max size: " + maxSize //
+				+ ", hits: " + hits //
+				+ ", misses: " + misses //
+				+ String.format(", hit rate: %.1f%%", total > 0 ? (100.0 * hits) / total : 0.0) //
+		;
+	}
+
+}
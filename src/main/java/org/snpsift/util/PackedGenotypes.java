@@ -0,0 +1,259 @@
+package org.snpsift.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfGenotype;
+
+/**
+ * Genotype calls (GT) for all samples in a VCF entry, packed using
+ * two bits per sample in a 'long[]' (32 samples per word).
+ *
+ * Calls are built directly from the raw genotype columns (i.e. no
+ * VcfGenotype objects are created), so functions such as 'countHet()'
+ * can be evaluated using bit-parallel popcounts.
+ *
+ * Codes:
+ * 		- 00 : Homozygous reference (e.g. '0/0')
+ * 		- 01 : Heterozygous (e.g. '0/1', '1|2')
+ * 		- 10 : Homozygous ALT (e.g. '1/1')
+ * 		- 11 : Other (missing, haploid, multi-digit alleles, etc.). These calls are
+ * 		  evaluated once using VcfGenotype and kept separately (see 'otherFlags')
+ *
+ * @author pcingola
+ */
+public class PackedGenotypes {
+
+	public static final int CODE_HOM_REF = 0;
+	public static final int CODE_HET = 1;
+	public static final int CODE_HOM_ALT = 2;
+	public static final int CODE_OTHER = 3;
+
+	public static final int FLAG_HET = 1;
+	public static final int FLAG_HOM = 2;
+	public static final int FLAG_VARIANT = 4;
+
+	public static final int MAX_OTHER_CALLS_CACHE = 1000; // Maximum number of 'other' calls cached
+	static final long LOW_BITS = 0x5555555555555555L; // Low bit of each 2-bit code
+
+	static ConcurrentHashMap<String, Integer> otherCallsCache = new ConcurrentHashMap<>(); // Flags for 'other' calls
+
+	int numSamples;
+	long codes[]; // Two bits per sample
+	int otherSamples[]; // Samples having 'other' calls (sorted)
+	int otherFlags[]; // Flags for each 'other' sample
+	int numOther;
+	int countHet = -1, countHom, countVariant; // Counts (calculated on first use)
+
+	/**
+	 * Flags for a genotype (evaluated using VcfGenotype)
+	 */
+	static int flags(VcfGenotype gen) {
+		return (gen.isHeterozygous() ? FLAG_HET : 0) //
+				| (gen.isHomozygous() ? FLAG_HOM : 0) //
+				| (gen.isVariant() ? FLAG_VARIANT : 0) //
+		;
+	}
+
+	/**
+	 * Pack genotype calls from raw genotype columns (FORMAT and samples, tab separated)
+	 */
+	public PackedGenotypes(VcfEntry vcfEntry, String genotypesStr) {
+		int len = genotypesStr.length();
+
+		// FORMAT column: Find GT's position
+		int formatEnd = genotypesStr.indexOf('\t');
+		if (formatEnd < 0) formatEnd = len;
+		int gtIdx = gtIndex(genotypesStr, formatEnd);
+
+		// Count samples
+		numSamples = 0;
+		for (int i = formatEnd; i >= 0 && i < len; i = genotypesStr.indexOf('\t', i + 1))
+			numSamples++;
+
+		codes = new long[(numSamples + 31) >>> 5];
+		otherSamples = new int[0];
+		otherFlags = new int[0];
+
+		// Pack each sample's call
+		int start = formatEnd + 1;
+		for (int sampleNum = 0; sampleNum < numSamples; sampleNum++) {
+			int end = genotypesStr.indexOf('\t', start);
+			if (end < 0) end = len;
+
+			int code = CODE_OTHER;
+			int gtStart = (gtIdx >= 0 ? subfieldStart(genotypesStr, start, end, gtIdx) : -1);
+			if (gtStart >= 0) {
+				int gtEnd = genotypesStr.indexOf(':', gtStart);
+				if (gtEnd < 0 || gtEnd > end) gtEnd = end;
+
+				code = code(genotypesStr, gtStart, gtEnd);
+				if (code == CODE_OTHER) addOther(sampleNum, otherFlags(vcfEntry, genotypesStr.substring(gtStart, gtEnd)));
+			} else {
+				// No GT field: Evaluate the whole sample
+				addOther(sampleNum, flags(new VcfGenotype(vcfEntry, genotypesStr.substring(0, formatEnd), genotypesStr.substring(start, end))));
+			}
+
+			codes[sampleNum >>> 5] |= ((long) code) << ((sampleNum & 31) << 1);
+			start = end + 1;
+		}
+	}
+
+	void addOther(int sampleNum, int flags) {
+		if (numOther >= otherSamples.length) {
+			int size = Math.max(8, 2 * otherSamples.length);
+			otherSamples = Arrays.copyOf(otherSamples, size);
+			otherFlags = Arrays.copyOf(otherFlags, size);
+		}
+
+		otherSamples[numOther] = sampleNum;
+		otherFlags[numOther] = flags;
+		numOther++;
+	}
+
+	/**
+	 * Code for a simple diploid call (single digit alleles, e.g. '0/1' or '1|1'), CODE_OTHER for any other call
+	 */
+	int code(String str, int start, int end) {
+		if (end - start != 3) return CODE_OTHER;
+
+		char a = str.charAt(start), sep = str.charAt(start + 1), b = str.charAt(start + 2);
+		if ((sep != '/' && sep != '|') || a < '0' || a > '9' || b < '0' || b > '9') return CODE_OTHER;
+
+		if (a != b) return CODE_HET;
+		return a == '0' ? CODE_HOM_REF : CODE_HOM_ALT;
+	}
+
+	/**
+	 * Count all calls (bit-parallel, using popcounts)
+	 */
+	void count() {
+		int het = 0, homAlt = 0;
+		for (long w : codes) {
+			long lo = w & LOW_BITS;
+			long hi = (w >>> 1) & LOW_BITS;
+			het += Long.bitCount(lo & ~hi);
+			homAlt += Long.bitCount(hi & ~lo);
+		}
+
+		int homRef = numSamples - het - homAlt - numOther; // Padding codes are zero, so homozygous reference is not counted directly
+		countHet = het;
+		countHom = homRef + homAlt;
+		countVariant = het + homAlt;
+
+		for (int i = 0; i < numOther; i++) {
+			int flags = otherFlags[i];
+			if ((flags & FLAG_HET) != 0) countHet++;
+			if ((flags & FLAG_HOM) != 0) countHom++;
+			if ((flags & FLAG_VARIANT) != 0) countVariant++;
+		}
+	}
+
+	/**
+	 * Number of heterozygous samples (same as VcfGenotype.isHeterozygous)
+	 */
+	public int countHet() {
+		if (countHet < 0) count();
+		return countHet;
+	}
+
+	/**
+	 * Number of homozygous samples (same as VcfGenotype.isHomozygous)
+	 */
+	public int countHom() {
+		if (countHet < 0) count();
+		return countHom;
+	}
+
+	/**
+	 * Number of non-variant samples (i.e. not VcfGenotype.isVariant)
+	 */
+	public int countRef() {
+		return numSamples - countVariant();
+	}
+
+	/**
+	 * Number of variant samples (same as VcfGenotype.isVariant)
+	 */
+	public int countVariant() {
+		if (countHet < 0) count();
+		return countVariant;
+	}
+
+	/**
+	 * Flags for sample number 'sampleNum'
+	 */
+	int flags(int sampleNum) {
+		if (sampleNum < 0 || sampleNum >= numSamples) throw new IndexOutOfBoundsException("Genotype index: " + sampleNum + ", number of samples: " + numSamples);
+
+		switch ((int) (codes[sampleNum >>> 5] >>> ((sampleNum & 31) << 1)) & 3) {
+		case CODE_HOM_REF:
+			return FLAG_HOM;
+
+		case CODE_HET:
+			return FLAG_HET | FLAG_VARIANT;
+
+		case CODE_HOM_ALT:
+			return FLAG_HOM | FLAG_VARIANT;
+
+		default:
+			return otherFlags[Arrays.binarySearch(otherSamples, 0, numOther, sampleNum)];
+		}
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * Position of 'GT' in FORMAT field (-1 if not found)
+	 */
+	int gtIndex(String str, int formatEnd) {
+		int idx = 0;
+		for (int start = 0; start < formatEnd; idx++) {
+			int end = str.indexOf(':', start);
+			if (end < 0 || end > formatEnd) end = formatEnd;
+			if (end - start == 2 && str.charAt(start) == 'G' && str.charAt(start + 1) == 'T') return idx;
+			start = end + 1;
+		}
+		return -1;
+	}
+
+	public boolean isHet(int sampleNum) {
+		return (flags(sampleNum) & FLAG_HET) != 0;
+	}
+
+	public boolean isHom(int sampleNum) {
+		return (flags(sampleNum) & FLAG_HOM) != 0;
+	}
+
+	public boolean isVariant(int sampleNum) {
+		return (flags(sampleNum) & FLAG_VARIANT) != 0;
+	}
+
+	/**
+	 * Start of sub-field number 'idx' (colon separated) in 'str[start]' to 'str[end-1]', or -1 if not found
+	 */
+	int subfieldStart(String str, int start, int end, int idx) {
+		for (int i = 0; i < idx; i++) {
+			start = str.indexOf(':', start);
+			if (start < 0 || start >= end) return -1;
+			start++;
+		}
+		return start;
+	}
+
+	/**
+	 * Flags for an 'other' GT value (evaluated using VcfGenotype, results are cached)
+	 */
+	int otherFlags(VcfEntry vcfEntry, String gt) {
+		Integer flags = otherCallsCache.get(gt);
+		if (flags != null) return flags;
+
+		int f = flags(new VcfGenotype(vcfEntry, "GT", gt));
+		if (otherCallsCache.size() < MAX_OTHER_CALLS_CACHE) otherCallsCache.put(gt, f);
+		return f;
+	}
+
+}
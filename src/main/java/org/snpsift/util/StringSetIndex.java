@@ -0,0 +1,153 @@
+package org.snpsift.util;
+
+import java.util.Collection;
+
+/**
+ * An immutable set of strings (e.g. genes from a 'SET' file) optimized for lookups
+ *
+ * Keys are interned and their hashes are calculated once. They are stored
+ * in a primitive open addressing hash table (linear probing), so lookups do
+ * not create objects and most misses are resolved comparing hashes only.
+ *
+ * Keys can also be looked up using a region of a string (see 'contains(str, start, end)'),
+ * which is used to find 'tokens' in a value without splitting it (see 'containsAnyToken')
+ *
+ * @author pcingola
+ */
+public class StringSetIndex {
+
+	public static final double MAX_LOAD_FACTOR = 0.5;
+
+	String keys[]; // Interned keys
+	int hashes[]; // Key hashes (same as 'String.hashCode()')
+	int table[]; // Open addressing hash table: Key index plus one (zero means 'empty slot')
+	int mask;
+	int size;
+	boolean hasEmpty; // Is the empty string in the set?
+
+	/**
+	 * Hash for 'str[start]' to 'str[end-1]' (same as 'str.substring(start, end).hashCode()')
+	 */
+	public static int hash(CharSequence str, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + str.charAt(i);
+		return h;
+	}
+
+	/**
+	 * Mix hash bits before using them as a slot number
+	 */
+	static int mix(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	public StringSetIndex(Collection<String> strings) {
+		int capacity = 2;
+		while (capacity * MAX_LOAD_FACTOR < strings.size())
+			capacity <<= 1;
+
+		table = new int[capacity];
+		mask = capacity - 1;
+		keys = new String[strings.size()];
+		hashes = new int[strings.size()];
+
+		for (String str : strings) {
+			if (str == null || contains(str)) continue;
+			if (str.isEmpty()) hasEmpty = true;
+
+			// Add key
+			int h = str.hashCode();
+			keys[size] = str.intern();
+			hashes[size] = h;
+			size++;
+
+			int slot = mix(h) & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = size;
+		}
+	}
+
+	public boolean contains(String str) {
+		if (str == null) return false;
+
+		int h = str.hashCode();
+		for (int slot = mix(h) & mask;; slot = (slot + 1) & mask) {
+			int idx = table[slot] - 1;
+			if (idx < 0) return false;
+
+			String key = keys[idx];
+			if (hashes[idx] == h && (key == str || key.equals(str))) return true;
+		}
+	}
+
+	/**
+	 * Is 'str[start]' to 'str[end-1]' in the set? (no substring is created)
+	 */
+	public boolean contains(String str, int start, int end) {
+		int len = end - start;
+		int h = hash(str, start, end);
+		for (int slot = mix(h) & mask;; slot = (slot + 1) & mask) {
+			int idx = table[slot] - 1;
+			if (idx < 0) return false;
+
+			String key = keys[idx];
+			if (hashes[idx] == h && key.length() == len && str.regionMatches(start, key, 0, len)) return true;
+		}
+	}
+
+	/**
+	 * Is any 'token' in 'str' in the set? Tokens are separated by any of the characters
+	 * in 'separators', i.e. the same as splitting 'str' using a character class regex (e.g. 'Has.SPLIT_REGEX')
+	 * The string is scanned only once and no substrings are created.
+	 */
+	public boolean containsAnyToken(String str, String separators) {
+		if (str == null) return false;
+
+		int len = str.length();
+		if (hasEmpty && hasEmptyToken(str, separators)) return true;
+
+		for (int start = 0; start < len;) {
+			// Find token end
+			int end = start;
+			while (end < len && separators.indexOf(str.charAt(end)) < 0)
+				end++;
+
+			if (end > start && contains(str, start, end)) return true;
+			start = end + 1;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Does splitting 'str' create any empty token? (trailing empty tokens are removed by 'String.split')
+	 */
+	boolean hasEmptyToken(String str, String separators) {
+		if (str.isEmpty()) return true;
+
+		// Last non-separator character
+		int last = str.length() - 1;
+		while (last >= 0 && separators.indexOf(str.charAt(last)) >= 0)
+			last--;
+
+		// Empty token: A separator at the beginning, or two consecutive separators (before the last token)
+		for (int i = 0; i < last; i++) {
+			if (separators.indexOf(str.charAt(i)) < 0) continue;
+			if (i == 0 || separators.indexOf(str.charAt(i - 1)) >= 0) return true;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "Set index: " + size + " keys, " + table.length + " slots";
+	}
+
+}
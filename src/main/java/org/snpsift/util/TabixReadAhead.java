@@ -0,0 +1,238 @@
+package org.snpsift.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.snpeff.interval.Chromosome;
+import org.snpeff.interval.Variant;
+import org.snpeff.util.Gpr;
+
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.util.TabixUtils;
+
+/**
+ * Query a bgzip compressed, tabix indexed file, decompressing
+ * upcoming BGZF blocks in a thread pool (see BgzfReadAhead).
+ *
+ * This is used instead of TabixReader when 'read ahead' is enabled
+ * (decompression is usually the most expensive part of a tabix query).
+ * The index is parsed by htsjdk's TabixIndex.
+ *
+ * Note: This class is not thread safe
+ *
+ * @author pcingola
+ */
+public class TabixReadAhead {
+
+	String fileName;
+	TabixIndex tabixIndex;
+	TabixFormat format;
+	Map<String, String> chrNames; // Map chromosome names (and 'simple' names) to names in the index
+	BgzfReadAhead bgzf;
+
+	public TabixReadAhead(String fileName, int numThreads, int blocksInFlight) {
+		this.fileName = fileName;
+
+		String indexFile = fileName + TabixUtils.STANDARD_INDEX_EXTENSION;
+		if (!Gpr.exists(indexFile)) throw new RuntimeException("Cannot find tabix index file '" + indexFile + "'");
+		try {
+			tabixIndex = new TabixIndex(new File(indexFile));
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading tabix index file '" + indexFile + "'", e);
+		}
+		format = tabixIndex.getFormatSpec();
+
+		chrNames = new HashMap<>();
+		for (String chr : tabixIndex.getSequenceNames())
+			chrNames.put(chr, chr);
+		for (String chr : tabixIndex.getSequenceNames())
+			chrNames.putIfAbsent(Chromosome.simpleName(chr), chr);
+
+		bgzf = new BgzfReadAhead(fileName, numThreads, blocksInFlight);
+	}
+
+	/**
+	 * Chunks (pairs of BGZF virtual offsets) that may contain entries intersecting 'variant'
+	 * @return Chunks or null if the chromosome is not in the index
+	 */
+	public long[] chunks(Variant variant) {
+		String chr = chrName(variant.getChromosomeName());
+		if (chr == null) return null;
+
+		// Note: TabixIndex uses one-based, closed coordinates
+		int start = Math.max(variant.getStart(), 0);
+		int end = Math.max(variant.getStart(), variant.getEnd());
+		List<Block> blocks = tabixIndex.getBlocks(chr, start + 1, end + 1);
+
+		long chunks[] = new long[2 * blocks.size()];
+		int i = 0;
+		for (Block block : blocks) {
+			chunks[i++] = block.getStartPosition();
+			chunks[i++] = block.getEndPosition();
+		}
+		return chunks;
+	}
+
+	/**
+	 * Chromosome name, as used in the index
+	 * @return Name or null if the chromosome is not in the index
+	 */
+	String chrName(String chr) {
+		String name = chrNames.get(chr);
+		if (name == null) name = chrNames.get(Chromosome.simpleName(chr));
+		return name;
+	}
+
+	public void close() {
+		if (bgzf != null) bgzf.close();
+		bgzf = null;
+	}
+
+	/**
+	 * Parse 'END' from a VCF INFO field
+	 * @return END or -1 if not found
+	 */
+	static int infoEnd(String info) {
+		if (info == null) return -1;
+		for (int start = 0; start < info.length();) {
+			int idx = info.indexOf(';', start);
+			if (idx < 0) idx = info.length();
+			if (info.startsWith("END=", start)) return Gpr.parseIntSafe(info.substring(start + 4, idx));
+			start = idx + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get entry's interval from a line (zero-based, half open) and store it in 'interval'
+	 *
+	 * @return Sequence name or null if the line cannot be parsed
+	 */
+	public String interval(String line, int interval[]) {
+		if ((format.flags & 0xffff) == TabixFormat.VCF_FLAGS) return intervalVcf(line, interval);
+
+		String chr = null;
+		int beg = -1, end = -1;
+		int maxCol = Math.max(format.sequenceColumn, Math.max(format.startPositionColumn, format.endPositionColumn));
+
+		// Parse only the columns we need (note: column numbers are one-based)
+		int col = 1;
+		for (int start = 0; col <= maxCol && start <= line.length(); col++) {
+			int idx = line.indexOf('\t', start);
+			if (idx < 0) idx = line.length();
+
+			if (col == format.sequenceColumn) chr = line.substring(start, idx);
+			if (col == format.startPositionColumn) beg = Gpr.parseIntSafe(line.substring(start, idx));
+			if (col == format.endPositionColumn && format.endPositionColumn > 0) end = Gpr.parseIntSafe(line.substring(start, idx));
+
+			start = idx + 1;
+		}
+		if (chr == null || beg < 0) return null;
+
+		// Zero-based coordinates
+		if ((format.flags & TabixFormat.ZERO_BASED) == 0) beg--;
+		if (format.endPositionColumn <= 0 || end < 0) end = beg + 1;
+
+		interval[0] = beg;
+		interval[1] = end;
+		return chr;
+	}
+
+	/**
+	 * Get a VCF entry's interval from a line (zero-based, half open) and store it in 'interval'.
+	 * The interval is [POS, POS + len(REF)), unless there is an 'END' INFO field
+	 * (e.g. structural variants), same as TabixReader. Only the first 8 columns are scanned.
+	 *
+	 * @return Sequence name or null if the line cannot be parsed
+	 */
+	public static String intervalVcf(String line, int interval[]) {
+		String chr = null, ref = null, info = null;
+		int beg = -1;
+
+		int col = 1;
+		for (int start = 0; col <= 8 && start <= line.length(); col++) {
+			int idx = line.indexOf('\t', start);
+			if (idx < 0) idx = line.length();
+
+			switch (col) {
+			case 1:
+				chr = line.substring(start, idx);
+				break;
+
+			case 2:
+				beg = Gpr.parseIntSafe(line.substring(start, idx)) - 1;
+				break;
+
+			case 4:
+				ref = line.substring(start, idx);
+				break;
+
+			case 8:
+				info = line.substring(start, idx);
+				break;
+
+			default:
+				break;
+			}
+
+			start = idx + 1;
+		}
+		if (chr == null || beg < 0) return null;
+
+		int end = beg + (ref != null && !ref.isEmpty() ? ref.length() : 1);
+		int infoEnd = infoEnd(info);
+		if (infoEnd > beg) end = infoEnd;
+
+		interval[0] = beg;
+		interval[1] = end;
+		return chr;
+	}
+
+	/**
+	 * Find all lines intersecting 'variant'
+	 */
+	public List<String> query(Variant variant) {
+		List<String> lines = new ArrayList<>();
+		long chunks[] = chunks(variant);
+		if (chunks == null) return lines;
+
+		int beg = variant.getStart();
+		int end = Math.max(variant.getStart(), variant.getEnd()) + 1;
+		String chr = chrName(variant.getChromosomeName());
+		int interval[] = new int[2];
+		for (String line : readLines(chunks)) {
+			// Lines are sorted by start: Are we past the query?
+			String lineChr = interval(line, interval);
+			if (lineChr == null || !lineChr.equals(chr)) continue;
+			if (interval[0] >= end) break;
+			if (interval[1] > beg) lines.add(line);
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Read all lines in 'chunks' (header lines are skipped)
+	 */
+	public List<String> readLines(long chunks[]) {
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < chunks.length; i += 2)
+			bgzf.readLines(chunks[i], chunks[i + 1], lines);
+
+		// Remove header lines
+		char meta = (char) format.metaCharacter;
+		lines.removeIf(line -> line.isEmpty() || line.charAt(0) == meta);
+		return lines;
+	}
+
+	public String toStringStats() {
+		return bgzf.toStringStats();
+	}
+
+}
@@ -0,0 +1,283 @@
+package org.snpsift.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.snpeff.vcf.VcfEntry;
+import org.snpeff.vcf.VcfHeader;
+
+/**
+ * Process VCF entries using a 'reader -> N workers -> ordered writer' pipeline
+ *
+ * 	- Reader: A thread that iterates over the input and groups VcfEntries into batches
+ * 	- Workers: A thread pool that processes each batch (e.g. annotate or filter entries)
+ * 	- Writer: The calling thread, that consumes the results in exactly the same order as the input
+ *
+ * Both the number of batches being processed and the number of batches waiting to
+ * be written are bounded, so memory usage does not depend on the input size.
+ *
+ * Each worker thread gets its own 'Worker' object (created by 'workerFactory'), so
+ * workers do not need to be thread safe.
+ *
+ * Note: If 'numWorkers' is 1 (or less), no threads are created and every entry is read,
+ * processed and written sequentially by the calling thread (one by one, unless
+ * 'serialBatches' is set).
+ *
+ * @author pcingola
+ */
+public class VcfPipeline<T> {
+
+	/**
+	 * Process one VcfEntry
+	 */
+	public interface Worker<T> {
+
+		/**
+		 * Called once, after all entries have been processed (e.g. to close a database)
+		 */
+		default void close() {
+		}
+
+		/**
+		 * Process a VcfEntry
+		 * @return A result to be consumed by the writer, or null if there is nothing to write
+		 */
+		public T process(VcfEntry vcfEntry);
+
+		/**
+		 * Process a batch of VcfEntries (e.g. to query a database once for all entries in the batch)
+		 * @return Results to be consumed by the writer (in the same order as the input)
+		 */
+		default List<T> processBatch(List<VcfEntry> batch) {
+			List<T> results = new ArrayList<>(batch.size());
+			for (VcfEntry ve : batch) {
+				T res = process(ve);
+				if (res != null) results.add(res);
+			}
+			return results;
+		}
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 1000; // Number of VCF entries per batch
+	public static final int BATCHES_PER_WORKER = 4; // Maximum number of batches 'in flight' per worker
+
+	@SuppressWarnings("rawtypes")
+	private static final Future END_OF_INPUT = CompletableFuture.completedFuture(null);
+
+	int numWorkers;
+	int batchSize = DEFAULT_BATCH_SIZE;
+	boolean serialBatches; // Use batches even when running in the calling thread (see Worker.processBatch)
+	Supplier<Worker<T>> workerFactory; // Create one worker per thread
+	Consumer<VcfEntry> reader; // Invoked (in input order) on each entry, before it is sent to a worker. Can be null
+	Consumer<T> writer; // Invoked (in input order) on each result
+	ThreadLocal<Worker<T>> threadWorker;
+	List<Worker<T>> workers;
+	volatile Throwable readerError;
+
+	public VcfPipeline(int numWorkers, Supplier<Worker<T>> workerFactory, Consumer<T> writer) {
+		this.numWorkers = numWorkers;
+		this.workerFactory = workerFactory;
+		this.writer = writer;
+		workers = Collections.synchronizedList(new ArrayList<Worker<T>>());
+		threadWorker = ThreadLocal.withInitial(() -> {
+			Worker<T> worker = workerFactory.get();
+			workers.add(worker);
+			return worker;
+		});
+	}
+
+	/**
+	 * Close all workers
+	 */
+	void close() {
+		synchronized (workers) {
+			for (Worker<T> worker : workers)
+				worker.close();
+			workers.clear();
+		}
+	}
+
+	/**
+	 * Process a batch of entries (invoked from worker threads)
+	 */
+	List<T> process(List<VcfEntry> batch) {
+		return threadWorker.get().processBatch(batch);
+	}
+
+	/**
+	 * Read all entries, send them to workers in batches
+	 */
+	@SuppressWarnings("unchecked")
+	void read(Iterable<VcfEntry> vcfEntries, ExecutorService executor, BlockingQueue<Future<List<T>>> queue) {
+		try {
+			boolean first = true;
+			List<VcfEntry> batch = new ArrayList<>(batchSize);
+			for (VcfEntry ve : vcfEntries) {
+				if (reader != null) reader.accept(ve);
+
+				// Some VcfHeader data structures are lazily initialized: Make
+				// sure they are created before any worker thread uses them
+				if (first) {
+					warmUpHeader(ve);
+					first = false;
+				}
+
+				batch.add(ve);
+				if (batch.size() >= batchSize) {
+					submit(batch, executor, queue);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+
+			if (!batch.isEmpty()) submit(batch, executor, queue);
+		} catch (InterruptedException e) {
+			return; // Writer failed, nothing else to do
+		} catch (Throwable t) {
+			readerError = t;
+		}
+
+		// Signal end of input
+		try {
+			queue.put(END_OF_INPUT);
+		} catch (InterruptedException e) {
+			// Writer failed, nothing to do
+		}
+	}
+
+	/**
+	 * Process all entries
+	 */
+	public void run(Iterable<VcfEntry> vcfEntries) {
+		if (numWorkers <= 1) runSerial(vcfEntries);
+		else runParallel(vcfEntries);
+	}
+
+	/**
+	 * Process all entries using 'numWorkers' threads
+	 */
+	void runParallel(Iterable<VcfEntry> vcfEntries) {
+		ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+		BlockingQueue<Future<List<T>>> queue = new ArrayBlockingQueue<>(BATCHES_PER_WORKER * numWorkers);
+
+		Thread readerThread = new Thread(() -> read(vcfEntries, executor, queue), VcfPipeline.class.getSimpleName() + "-reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+
+		try {
+			// Write results in the same order as they were read
+			while (true) {
+				Future<List<T>> future = queue.take();
+				if (future == END_OF_INPUT) break;
+
+				for (T res : future.get())
+					writer.accept(res);
+			}
+
+			if (readerError != null) throw new RuntimeException("Error reading VCF entries", readerError);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} finally {
+			readerThread.interrupt(); // Reader could be blocked if the writer failed
+			shutdown(executor);
+			close();
+		}
+	}
+
+	/**
+	 * Process all entries in the calling thread
+	 */
+	void runSerial(Iterable<VcfEntry> vcfEntries) {
+		Worker<T> worker = workerFactory.get();
+		try {
+			List<VcfEntry> batch = new ArrayList<>(batchSize);
+			for (VcfEntry ve : vcfEntries) {
+				if (reader != null) reader.accept(ve);
+
+				if (serialBatches) {
+					// Process in batches
+					batch.add(ve);
+					if (batch.size() >= batchSize) {
+						for (T res : worker.processBatch(batch))
+							writer.accept(res);
+						batch.clear();
+					}
+				} else {
+					T res = worker.process(ve);
+					if (res != null) writer.accept(res);
+				}
+			}
+
+			// Process remaining entries
+			if (!batch.isEmpty()) {
+				for (T res : worker.processBatch(batch))
+					writer.accept(res);
+			}
+		} finally {
+			worker.close();
+		}
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Process entries in batches (see Worker.processBatch) even when
+	 * running in a single thread (by default entries are processed one by one)
+	 */
+	public void setSerialBatches(boolean serialBatches) {
+		this.serialBatches = serialBatches;
+	}
+
+	/**
+	 * Set a function to be invoked on each entry, in input order, by the reader
+	 * thread (e.g. to process the VCF header or to check that the input is sorted)
+	 */
+	public void setReader(Consumer<VcfEntry> reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Stop all worker threads and wait for them to finish
+	 */
+	void shutdown(ExecutorService executor) {
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	void submit(List<VcfEntry> batch, ExecutorService executor, BlockingQueue<Future<List<T>>> queue) throws InterruptedException {
+		queue.put(executor.submit(() -> process(batch)));
+	}
+
+	/**
+	 * Initialize lazy data structures in VCF header
+	 */
+	void warmUpHeader(VcfEntry ve) {
+		if (ve.getVcfFileIterator() == null) return;
+		VcfHeader vcfHeader = ve.getVcfFileIterator().getVcfHeader();
+		if (vcfHeader == null) return;
+		vcfHeader.getVcfHeaderInfo();
+		vcfHeader.getSampleNames();
+		vcfHeader.getSampleNum("");
+	}
+
+}